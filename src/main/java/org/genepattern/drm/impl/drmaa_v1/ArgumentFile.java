@@ -0,0 +1,94 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Save a long command line to a file in the working directory, and run it with a small launcher script
+ * which reads the args back from the file, so that the job template and the qmaster spool only hold the
+ * short launcher command line.
+ *
+ * The file has one entry per arg, each terminated by a NUL byte, which can't appear in an arg.
+ */
+public class ArgumentFile {
+    /** the default argument file, in the working directory */
+    public static final String ARG_FILE=".gp_args";
+
+    /** read the NUL-terminated args into an array, then exec the command */
+    protected static final String LAUNCHER=
+            "args=(); while IFS= read -r -d '' arg; do args+=(\"$arg\"); done < \"$1\"; "+
+            "[ ${#args[@]} -gt 0 ] || { echo \"gp_args: no args in $1\" >&2; exit 127; }; "+
+            "exec \"${args[@]}\"";
+
+    /**
+     * @return true if the command line has more than maxArgs args, or more than maxBytes bytes
+     */
+    public static boolean isLarge(final List<String> commandLine, final int maxArgs, final long maxBytes) {
+        if (commandLine.size() > maxArgs) {
+            return true;
+        }
+        long numBytes=0L;
+        for(final String arg : commandLine) {
+            // approximate, one byte per char plus the separator
+            numBytes += arg.length() + 1;
+            if (numBytes > maxBytes) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write the args to the file; the file is replaced in one step, so that a job which is resubmitted
+     * never reads a partially written file.
+     */
+    public static void write(final File file, final List<String> commandLine) throws IOException {
+        final File tmp=new File(file.getParentFile(), file.getName()+".tmp");
+        final OutputStream out=new BufferedOutputStream(new FileOutputStream(tmp));
+        try {
+            for(final String arg : commandLine) {
+                out.write(arg.getBytes(Charsets.UTF_8));
+                out.write(0);
+            }
+        }
+        finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            Files.move(tmp, file);
+        }
+    }
+
+    /**
+     * Read the args from the file.
+     */
+    public static List<String> read(final File file) throws IOException {
+        final byte[] bytes=Files.toByteArray(file);
+        final List<String> args=new ArrayList<String>();
+        int start=0;
+        for(int i=0; i<bytes.length; ++i) {
+            if (bytes[i]==0) {
+                args.add(new String(bytes, start, i - start, Charsets.UTF_8));
+                start=i+1;
+            }
+        }
+        return args;
+    }
+
+    /**
+     * @return the launcher command line, '/bin/bash -c {launcher} gp_args {argFile}'
+     */
+    public static List<String> wrapCommandLine(final String argFile) {
+        return Arrays.asList("/bin/bash", "-c", LAUNCHER, "gp_args", argFile);
+    }
+
+}
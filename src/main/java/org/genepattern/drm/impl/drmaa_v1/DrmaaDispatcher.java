@@ -0,0 +1,334 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Run all calls into the native DRMAA library from a single dispatcher thread.
+ * Some DRMAA v1 implementations are not safe for concurrent calls on the same Session.
+ *
+ * Caller threads add requests to a lock-free queue and get a Future back. The dispatcher thread
+ * drains the queue and runs the requests one at a time, in order; each request is its own DRMAA call.
+ * Requests with the same (non-null) key which are drained together, e.g. 'getJobProgramStatus' for 
+ * the same job, are run once and share the result.
+ */
+public class DrmaaDispatcher {
+    private static final Logger log = Logger.getLogger(DrmaaDispatcher.class);
+
+    /** max number of requests to drain from the queue in one pass, the scope for sharing the result of same-key requests */
+    public static final int DEFAULT_MAX_DRAIN_SIZE=1000;
+
+    private static class Request<T> {
+        final String key;
+        final Callable<T> call;
+        final SettableFuture<T> future=SettableFuture.create();
+
+        Request(final String key, final Callable<T> call) {
+            this.key=key;
+            this.call=call;
+        }
+
+        void run() {
+            if (future.isCancelled()) {
+                return;
+            }
+            try {
+                future.set(call.call());
+            }
+            catch (Throwable t) {
+                future.setException(t);
+            }
+        }
+
+        /** complete this request with the result of an identical request */
+        @SuppressWarnings("unchecked")
+        void copyResult(final Request<?> from) {
+            try {
+                future.set((T) from.future.get());
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof CancellationException) {
+                    // the shared call was abandoned after a timeout
+                    run();
+                }
+                else {
+                    future.setException(e.getCause());
+                }
+            }
+            catch (CancellationException e) {
+                // the shared call was cancelled before it ran, run it again for this caller
+                run();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.setException(e);
+            }
+        }
+    }
+
+    /**
+     * A call which can be abandoned after a timeout, but only if it has not yet started.
+     */
+    protected static class TimedCall<T> implements Callable<T> {
+        private static final int NEW=0;
+        private static final int RUNNING=1;
+        private static final int ABANDONED=2;
+
+        private final Callable<T> call;
+        private final AtomicInteger state=new AtomicInteger(NEW);
+
+        TimedCall(final Callable<T> call) {
+            this.call=call;
+        }
+
+        @Override
+        public T call() throws Exception {
+            if (!state.compareAndSet(NEW, RUNNING)) {
+                throw new CancellationException("abandoned after timeout");
+            }
+            return call.call();
+        }
+
+        /** @return true if the call had not started, it will not be run */
+        boolean abandon() {
+            return state.compareAndSet(NEW, ABANDONED);
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Request<?>> queue=new ConcurrentLinkedQueue<Request<?>>();
+    /** System.currentTimeMillis() when the current request started, 0 when the dispatcher is idle */
+    private volatile long runningSince=0L;
+    private volatile String runningKey=null;
+    private final AtomicLong numStarted=new AtomicLong(0L);
+    private final int maxDrainSize;
+    private final Thread thread;
+    private volatile boolean running=true;
+
+    public DrmaaDispatcher() {
+        this(DEFAULT_MAX_DRAIN_SIZE);
+    }
+
+    public DrmaaDispatcher(final int maxDrainSize) {
+        this.maxDrainSize=Math.max(1, maxDrainSize);
+        this.thread=new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatchLoop();
+            }
+        }, "drmaa_v1-dispatcher");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop the dispatcher thread after the requests which are already in the queue have been run.
+     */
+    public void shutdown() {
+        running=false;
+        LockSupport.unpark(thread);
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join(30*1000L);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Add a request to the queue.
+     * @param key, optional, requests with the same key which are drained together are run once,
+     *     set this to null when each request must be run, e.g. for submitting a job.
+     * @param call, the request, which is run on the dispatcher thread
+     * @return a Future for the result of the request
+     */
+    public <T> ListenableFuture<T> submit(final String key, final Callable<T> call) {
+        final Request<T> request=new Request<T>(key, call);
+        if (!running) {
+            request.future.setException(new IllegalStateException("dispatcher is not running"));
+            return request.future;
+        }
+        if (Thread.currentThread() == thread) {
+            // nested call from the dispatcher thread, run it now to avoid deadlock
+            request.run();
+            return request.future;
+        }
+        queue.offer(request);
+        LockSupport.unpark(thread);
+        if (!running && queue.remove(request)) {
+            // shutdown started before the request was added, it may never be polled
+            request.future.setException(new IllegalStateException("dispatcher is not running"));
+        }
+        return request.future;
+    }
+
+    /**
+     * Add a request to the queue and wait for the result.
+     * @throws ExecutionException wrapping the exception thrown by the call
+     * @throws InterruptedException
+     */
+    public <T> T call(final String key, final Callable<T> call) throws ExecutionException, InterruptedException {
+        return submit(key, call).get();
+    }
+
+    /**
+     * Add a request to the queue and wait at most timeoutMillis for the result.
+     * On timeout, a request which has not started is removed from the queue; a request which is running
+     * in the native library can't be stopped, it is 'in doubt'.
+     * @throws DrmaaTimeoutException on timeout
+     * @throws ExecutionException wrapping the exception thrown by the call
+     * @throws InterruptedException
+     */
+    public <T> T call(final String key, final Callable<T> call, final long timeoutMillis) 
+            throws DrmaaTimeoutException, ExecutionException, InterruptedException 
+    {
+        final TimedCall<T> timedCall=new TimedCall<T>(call);
+        final ListenableFuture<T> future=submit(key, timedCall);
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            if (abandon(timedCall, future)) {
+                purge();
+                throw new DrmaaTimeoutException("timed out after "+timeoutMillis+" ms waiting for the dispatcher, key="+key, false, future);
+            }
+            throw new DrmaaTimeoutException("timed out after "+timeoutMillis+" ms waiting for the DRMAA call to complete, key="+key, true, future);
+        }
+    }
+
+    /**
+     * Abandon a request whose call is a {@link TimedCall}, e.g. after a timeout. A request which has 
+     * not started is cancelled; call {@link #purge()} to remove it from the queue.
+     * @return true if the call had not started, it will not be run
+     */
+    public boolean abandon(final TimedCall<?> timedCall, final Future<?> future) {
+        if (!timedCall.abandon()) {
+            return false;
+        }
+        future.cancel(false);
+        return true;
+    }
+
+    /**
+     * Remove the cancelled requests from the queue.
+     */
+    public void purge() {
+        for(final Iterator<Request<?>> it=queue.iterator(); it.hasNext(); ) {
+            if (it.next().future.isCancelled()) {
+                it.remove();
+            }
+        }
+    }
+
+    /** @return the number of requests waiting in the queue */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /** @return the number of milliseconds that the current request has been running, or 0 when the dispatcher is idle */
+    public long getRunningMillis() {
+        final long since=runningSince;
+        return since==0L ? 0L : Math.max(0L, System.currentTimeMillis() - since);
+    }
+
+    /** @return the key of the current request */
+    public String getRunningKey() {
+        return runningKey;
+    }
+
+    /** @return the number of requests which have been started, to tell one long running request from the next */
+    public long getNumStarted() {
+        return numStarted.get();
+    }
+
+    /** @return the stack trace of the dispatcher thread */
+    public StackTraceElement[] getStackTrace() {
+        return thread.getStackTrace();
+    }
+
+    protected void dispatchLoop() {
+        final List<Request<?>> drained=new ArrayList<Request<?>>();
+        while(running || !queue.isEmpty()) {
+            Request<?> request=queue.poll();
+            if (request==null) {
+                LockSupport.park(this);
+                continue;
+            }
+            while(request != null) {
+                drained.add(request);
+                if (drained.size() >= maxDrainSize) {
+                    break;
+                }
+                request=queue.poll();
+            }
+            runDrained(drained);
+            drained.clear();
+        }
+        failQueuedRequests();
+        log.debug("dispatcher stopped");
+    }
+
+    /**
+     * Fail the requests which were added after the dispatch loop exited, so that no caller waits forever.
+     */
+    protected void failQueuedRequests() {
+        Request<?> request;
+        while((request=queue.poll()) != null) {
+            request.future.setException(new IllegalStateException("dispatcher is not running"));
+        }
+    }
+
+    /**
+     * Run the drained requests one after another; a request with the same key as an earlier one
+     * gets its result instead of running again.
+     */
+    protected void runDrained(final List<Request<?>> drained) {
+        if (log.isDebugEnabled() && drained.size()>1) {
+            log.debug("running "+drained.size()+" drained requests");
+        }
+        final Map<String,Request<?>> byKey=new HashMap<String,Request<?>>();
+        for(final Request<?> request : drained) {
+            if (request.key != null) {
+                final Request<?> shared=byKey.get(request.key);
+                if (shared != null) {
+                    request.copyResult(shared);
+                    continue;
+                }
+                byKey.put(request.key, request);
+            }
+            numStarted.incrementAndGet();
+            runningKey=request.key;
+            runningSince=System.currentTimeMillis();
+            try {
+                request.run();
+            }
+            finally {
+                runningSince=0L;
+                runningKey=null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import org.ggf.drmaa.DrmCommunicationException;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A DRMAA call did not complete within its timeout, see 'job.ge.timeout.submit'.
+ * When the call was already running in the native library, it is 'in doubt': it may still complete,
+ * e.g. a job may still be added to the queue, and the result is available from {@link #getFuture()}.
+ * Otherwise the call was removed from the dispatcher queue and will not run.
+ */
+public class DrmaaTimeoutException extends DrmCommunicationException {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean inDoubt;
+    private final ListenableFuture<?> future;
+
+    public DrmaaTimeoutException(final String message, final boolean inDoubt, final ListenableFuture<?> future) {
+        super(message);
+        this.inDoubt=inDoubt;
+        this.future=future;
+    }
+
+    /** @return true if the call was running when it timed out, and may still complete */
+    public boolean isInDoubt() {
+        return inDoubt;
+    }
+
+    /** the result of the call, completed if and when the call completes */
+    public ListenableFuture<?> getFuture() {
+        return future;
+    }
+
+}
@@ -1,18 +1,45 @@
 package org.genepattern.drm.impl.drmaa_v1;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 
 import org.apache.log4j.Logger;
 import org.genepattern.drm.CpuTime;
@@ -22,11 +49,14 @@ import org.genepattern.drm.DrmJobStatus;
 import org.genepattern.drm.DrmJobSubmission;
 import org.genepattern.drm.JobRunner;
 import org.genepattern.drm.Memory;
+import org.genepattern.drm.Walltime;
 import org.genepattern.server.config.GpConfig;
 import org.genepattern.server.config.GpContext;
+import org.genepattern.server.config.ServerConfigurationFactory;
 import org.genepattern.server.config.Value;
 import org.genepattern.server.executor.CommandExecutorException;
 import org.ggf.drmaa.AuthorizationException;
+import org.ggf.drmaa.DeniedByDrmException;
 import org.ggf.drmaa.DrmCommunicationException;
 import org.ggf.drmaa.DrmaaException;
 import org.ggf.drmaa.ExitTimeoutException;
@@ -40,7 +70,15 @@ import org.ggf.drmaa.SessionFactory;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.EvictingQueue;
 import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * JobRunner for GridEngine integration with DRMAA v1 library. 
@@ -53,8 +91,129 @@ import com.google.common.primitives.Doubles;
 public class DrmaaV1JobRunner implements JobRunner {
     private static final Logger log = Logger.getLogger(DrmaaV1JobRunner.class);
 
-    private Session session=null;
-    private DrmaaException sessionInitError=null;
+    /** the state of the DRMAA session, see 'job.ge.startup.async' */
+    public static enum SessionState {
+        NOT_STARTED,
+        INITIALIZING,
+        READY,
+        FAILED
+    }
+
+    /** numbers the runner instances in the server, for the MBean names */
+    private static final AtomicInteger numInstances=new AtomicInteger(0);
+    private final int instanceId=numInstances.incrementAndGet();
+    
+    private volatile Session session=null;
+    private volatile DrmaaException sessionInitError=null;
+    private volatile SessionState sessionState=SessionState.NOT_STARTED;
+    /** set by the first call to stop, so that concurrent calls don't exit the session twice; reset by start */
+    private final AtomicBoolean stopped=new AtomicBoolean(false);
+    
+    /** jobs which are not in the queue yet, held under a placeholder extJobId, and the submission index */
+    private final SubmissionTracker submissionTracker=new SubmissionTracker(new TrackerQueue());
+    /** all calls into the native DRMAA library run on the dispatcher thread */
+    private volatile DrmaaDispatcher dispatcher=null;
+    
+    /** server configuration, for runner-wide settings which are not specific to a job */
+    private GpConfig gpConfig=null;
+    private GpContext serverContext=null;
+    
+    /** pending or completed status checks from the startup reconciliation, keyed by extJobId */
+    private final ConcurrentMap<String, Future<DrmJobStatus>> reconciledStatus=new ConcurrentHashMap<String, Future<DrmJobStatus>>();
+    /** reconciled jobs which are not owned by the current session, keyed by extJobId */
+    private final Set<String> reconciledJobIds=Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /** jobs which were added to the queue by the current session and have not completed, see {@link #isForeignJobId(String)} */
+    private final Set<String> sessionJobIds=Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /** runs the startup reconciliation, initialized on first use */
+    private ExecutorService reconcileExecutor=null;
+    /** the time of the first accounting lookup which did not find a reconciled job, keyed by extJobId */
+    private final ConcurrentMap<String, Long> accountingMisses=new ConcurrentHashMap<String, Long>();
+    /** 
+     * completed staged jobs whose done marker is not visible yet, keyed by extJobId; 
+     * the status from session.wait, and the time of the first check which did not find the marker
+     */
+    private final ConcurrentMap<String, DrmJobStatus> stagingStatuses=new ConcurrentHashMap<String, DrmJobStatus>();
+    private final ConcurrentMap<String, Long> stagingMisses=new ConcurrentHashMap<String, Long>();
+    
+    /** completed job statuses, keyed by extJobId; the DRMAA library forgets the job after session.wait returns */
+    private Cache<String, DrmJobStatus> completedStatusCache=null;
+    /** 
+     * completed jobs which were reaped by drainCompletedJobs before GenePattern asked for their status, keyed by extJobId;
+     * they can't be evicted, session.wait can't find a job which has been reaped 
+     */
+    private final ConcurrentMap<String, DrmJobStatus> unpolledStatuses=new ConcurrentHashMap<String, DrmJobStatus>();
+    /**
+     * jobs which were reaped by session.wait on the dispatcher thread, but not completed yet, keyed by extJobId;
+     * completeJob reads files, so it runs on the caller thread, see {@link #completeReapedJob(String, boolean)}
+     */
+    private final ConcurrentMap<String, DrmJobStatus> reapedStatuses=new ConcurrentHashMap<String, DrmJobStatus>();
+    
+    /** recent status of queued and running jobs, keyed by extJobId, cached for 'job.ge.status.ttl' milliseconds */
+    private Cache<String, DrmJobStatus> recentStatusCache=null;
+    private boolean recentStatusCacheInitialized=false;
+    
+    /** jobs submitted by this runner which have not yet completed, keyed by extJobId */
+    private final ConcurrentMap<String, SubmittedJob> submittedJobs=new ConcurrentHashMap<String, SubmittedJob>();
+    
+    /** peak memory, in megabytes, of completed jobs, keyed by module name and input size bucket */
+    private final UsageHistory memoryHistory=new UsageHistory();
+    
+    /** wallclock time, in seconds, of completed jobs, keyed by module name (and optionally user) */
+    private final UsageHistory walltimeHistory=new UsageHistory();
+    
+    /** average number of busy cores, cpu / wallclock, of completed jobs, keyed by module name */
+    private final UsageHistory cpuHistory=new UsageHistory();
+    
+    /** wait times per queue, initialized on first use */
+    private QueueWaitStats queueWaitStats=null;
+    
+    /** the selected queue, keyed by gpJobNo, from initNativeSpecification until the job is added to submittedJobs */
+    private final ConcurrentMap<Integer, String> selectedQueues=new ConcurrentHashMap<Integer, String>();
+    
+    /** for picking a queue without enough samples */
+    private final Random queueRandom=new Random();
+    
+    /** the most recent queue selection decisions, for audit */
+    private final EvictingQueue<String> queueDecisions=EvictingQueue.create(MAX_QUEUE_DECISIONS);
+    
+    /** trace spans, null when tracing is disabled */
+    private volatile TraceRing traceRing=null;
+    private volatile long traceThresholdNanos=0L;
+    
+    /** number of timed out DRMAA calls, keyed by the timeout property */
+    private final Map<String, AtomicLong> numTimeouts=new LinkedHashMap<String, AtomicLong>();
+    {
+        numTimeouts.put(PROP_TIMEOUT_SUBMIT, new AtomicLong(0L));
+        numTimeouts.put(PROP_TIMEOUT_STATUS, new AtomicLong(0L));
+        numTimeouts.put(PROP_TIMEOUT_CANCEL, new AtomicLong(0L));
+    }
+    private final AtomicLong numStuckCalls=new AtomicLong(0L);
+    /** the dispatcher call which was last reported as stuck, so that each call is logged once */
+    private volatile long lastStuckCall=-1L;
+    private ScheduledExecutorService watchdog=null;
+    /** the cluster configuration for checking native specifications, null until loaded */
+    private volatile NativeSpecValidator specValidator=null;
+    private ScheduledExecutorService specValidatorTimer=null;
+    
+    /** per-module usage sketches, initialized on first use */
+    private UsageSketches usageSketches=null;
+    private ScheduledExecutorService usageSketchesTimer=null;
+    
+    /** optional lane for running small jobs locally, initialized on first use */
+    private LocalJobLane localJobLane=null;
+    
+    /** values derived from each submission, computed at most once per submission */
+    private final LoadingCache<DrmJobSubmission, SubmissionInfo> submissionInfo=CacheBuilder.newBuilder()
+        .weakKeys()
+        .build(new CacheLoader<DrmJobSubmission, SubmissionInfo>() {
+            @Override
+            public SubmissionInfo load(final DrmJobSubmission jobSubmission) {
+                return new SubmissionInfo();
+            }
+        });
+    
+    /** concurrent status requests for the same extJobId share one DRMAA call */
+    private final SingleFlight<String, DrmJobStatus> statusRequests=new SingleFlight<String, DrmJobStatus>();
     
     /**
      * Set the 'job.ge.clear' boolean flag to clear default settings as the first arg of the 
@@ -65,10 +224,142 @@ public class DrmaaV1JobRunner implements JobRunner {
     public static final String PROP_CLEAR="job.ge.clear";
     
     /**
-     * Set the 'job.ge.pe_type' to specify the parallel environment for a multi-core job
+     * Set the 'job.ge.pe_type' to specify the parallel environment for a multi-core job,
+     * or a list of '{maxSlots}={pe_type}' entries to select it by the number of slots.
      */
     public static final String PROP_PE_TYPE="job.ge.pe_type";
     
+    /**
+     * Set the 'job.ge.binding' to bind the job to its slots, -binding {strategy}:{slots},
+     * off (default) | linear | striding.
+     */
+    public static final String PROP_BINDING="job.ge.binding";
+    public static final String PROP_BINDING_STEP="job.ge.binding.step";
+    
+    /**
+     * Set the 'job.ge.reservation.minSlots' to request a resource reservation, -R y, for parallel jobs with at least this many slots.
+     */
+    public static final String PROP_RESERVATION_MIN_SLOTS="job.ge.reservation.minSlots";
+    
+    /**
+     * Set the 'job.ge.locality' to request a complex value based on the location of the input files, 
+     * see {@link LocalityResolver}.
+     */
+    public static final String PROP_LOCALITY="job.ge.locality";
+    public static final String PROP_LOCALITY_MODE="job.ge.locality.mode";
+    public static final String PROP_LOCALITY_MIN_INPUT_SIZE="job.ge.locality.minInputSize";
+    
+    /**
+     * Set 'job.ge.stage: true' to write stdout and stderr to node-local scratch space, see {@link OutputStaging}.
+     */
+    public static final String PROP_STAGE="job.ge.stage";
+    public static final String PROP_STAGE_OUTPUT_FILES="job.ge.stage.outputFiles";
+    public static final String PROP_STAGE_GRACE="job.ge.stage.grace";
+    
+    /**
+     * Set 'job.ge.sampler: true' to sample the resource usage of the job's process tree, see {@link ResourceSampler}.
+     */
+    public static final String PROP_SAMPLER="job.ge.sampler";
+    public static final String PROP_SAMPLER_INTERVAL="job.ge.sampler.interval";
+    
+    /**
+     * Set 'job.ge.progress' to a regular expression to show the last matching line of the job's output
+     * as the status message of a running job, see {@link ProgressTail}.
+     */
+    public static final String PROP_PROGRESS="job.ge.progress";
+    public static final String PROP_PROGRESS_STREAM="job.ge.progress.stream";
+    public static final String PROP_PROGRESS_MAX_BYTES="job.ge.progress.maxBytes";
+    
+    /**
+     * Set 'job.ge.argfile: true' to save a long command line to an argument file, see {@link ArgumentFile}.
+     */
+    public static final String PROP_ARGFILE="job.ge.argfile";
+    public static final String PROP_ARGFILE_MAX_ARGS="job.ge.argfile.maxArgs";
+    public static final String PROP_ARGFILE_MAX_BYTES="job.ge.argfile.maxBytes";
+    
+    /**
+     * Set 'job.ge.local: true' to run small jobs as local processes on the GenePattern server, see {@link LocalJobLane}.
+     */
+    public static final String PROP_LOCAL="job.ge.local";
+    public static final String PROP_LOCAL_MODULES="job.ge.local.modules";
+    public static final String PROP_LOCAL_MAX_MEMORY="job.ge.local.maxMemory";
+    public static final String PROP_LOCAL_NUM_THREADS="job.ge.local.numThreads";
+    public static final String PROP_LOCAL_MAX_QUEUED="job.ge.local.maxQueued";
+    
+    /**
+     * Set the 'job.ge.queue.candidates' to a list of acceptable queues for a module;
+     * the job is submitted to the candidate with the lowest expected wait, see {@link QueueWaitStats}.
+     */
+    public static final String PROP_QUEUE_CANDIDATES="job.ge.queue.candidates";
+    public static final String PROP_QUEUE_PERCENTILE="job.ge.queue.percentile";
+    public static final String PROP_QUEUE_MIN_SAMPLES="job.ge.queue.minSamples";
+    public static final String PROP_QUEUE_HALF_LIFE="job.ge.queue.halfLife";
+    public static final String PROP_QUEUE_EXPLORE_RATE="job.ge.queue.exploreRate";
+    
+    /**
+     * Server settings for the per-module usage sketches, see {@link UsageSketches}.
+     */
+    public static final String PROP_USAGE_SKETCHES_FILE="job.ge.usageSketches.file";
+    public static final String PROP_USAGE_SKETCHES_SNAPSHOT_INTERVAL="job.ge.usageSketches.snapshotInterval";
+    public static final String PROP_USAGE_SKETCHES_MAX_MODULES="job.ge.usageSketches.maxModules";
+    /** the JMX domain for the MBeans of each runner instance */
+    public static final String MBEAN_DOMAIN="org.genepattern.drm.impl.drmaa_v1";
+    
+    /**
+     * Server settings for starting the DRMAA session in the background, see {@link SubmissionTracker}.
+     */
+    public static final String PROP_STARTUP_ASYNC="job.ge.startup.async";
+    public static final String PROP_STARTUP_MAX_PENDING="job.ge.startup.maxPending";
+
+    /**
+     * Server settings for tracing job submission and status requests, see {@link TraceRing}.
+     */
+    public static final String PROP_TRACE="job.ge.trace";
+    public static final String PROP_TRACE_CAPACITY="job.ge.trace.capacity";
+    public static final String PROP_TRACE_THRESHOLD="job.ge.trace.threshold";
+    
+    /**
+     * Server settings for timeouts, in seconds, around the calls into the native DRMAA library, 
+     * and for the watchdog on the dispatcher thread, see {@link DrmaaDispatcher}.
+     */
+    public static final String PROP_TIMEOUT_SUBMIT="job.ge.timeout.submit";
+    public static final String PROP_TIMEOUT_STATUS="job.ge.timeout.status";
+    public static final String PROP_TIMEOUT_CANCEL="job.ge.timeout.cancel";
+    public static final String PROP_TIMEOUT_SUBMIT_IN_DOUBT_DEADLINE="job.ge.timeout.submit.inDoubtDeadline";
+    public static final int DEFAULT_TIMEOUT_SUBMIT_IN_DOUBT_DEADLINE=300;
+    public static final String PROP_WATCHDOG_THRESHOLD="job.ge.watchdog.threshold";
+    
+    /**
+     * Server settings for detecting a duplicate submission, see {@link SubmissionIndex} and {@link JobLookup}.
+     */
+    public static final String PROP_SUBMIT_DEDUPE="job.ge.submit.dedupe";
+    public static final String PROP_SUBMIT_INDEX_FILE="job.ge.submit.indexFile";
+    public static final String PROP_SUBMIT_LOOKUP_CMD="job.ge.submit.lookupCmd";
+    
+    /**
+     * Server settings for retrying a submission which failed with a transient error, see {@link RetryPolicy}.
+     */
+    public static final String PROP_SUBMIT_RETRY="job.ge.submit.retry";
+    public static final String PROP_SUBMIT_RETRY_INITIAL_DELAY="job.ge.submit.retry.initialDelay";
+    public static final String PROP_SUBMIT_RETRY_MAX_DELAY="job.ge.submit.retry.maxDelay";
+    public static final String PROP_SUBMIT_RETRY_DEADLINE="job.ge.submit.retry.deadline";
+    public static final String PROP_SUBMIT_RETRY_MAX_PENDING="job.ge.submit.retry.maxPending";
+    
+    /**
+     * Server settings for checking the native specification of each job against the cluster configuration, 
+     * see {@link NativeSpecValidator}.
+     */
+    public static final String PROP_VALIDATE="job.ge.validate";
+    public static final String PROP_VALIDATE_REFRESH_INTERVAL="job.ge.validate.refreshInterval";
+    public static final String PROP_VALIDATE_CMD="job.ge.validate.cmd";
+    public static final String PROP_VALIDATE_DIR="job.ge.validate.dir";
+    
+    /** audit log for adaptive queue selection */
+    private static final Logger queueSelectionLog = Logger.getLogger(DrmaaV1JobRunner.class.getName()+".queueSelection");
+    
+    /** max number of recent queue selection decisions to keep in memory */
+    public static final int MAX_QUEUE_DECISIONS=1000;
+    
     /**
      * To set complex attributes of the form, <pre>-l {resource_name}={resource_value}</pre>,
      * first add the {resource_name} to the list of 'job.ge.resource_names', then set
@@ -79,6 +370,127 @@ public class DrmaaV1JobRunner implements JobRunner {
      * </pre>
      */
     public static final String PROP_RESOURCE_NAMES="job.ge.resource_names";
+    
+    /**
+     * Set the 'job.ge.memory.resource' to the complex attribute for the job.memory request, 
+     * e.g. m_mem_free | mem_free | h_vmem | h_rss, default=m_mem_free.
+     */
+    public static final String PROP_MEMORY_RESOURCE="job.ge.memory.resource";
+    
+    /**
+     * Set the 'job.ge.memory.perSlot' flag to divide the job.memory by the number of slots
+     * for a parallel job, default=true.
+     */
+    public static final String PROP_MEMORY_PER_SLOT="job.ge.memory.perSlot";
+    
+    /**
+     * Set the 'job.ge.memory.units' to the granularity of the memory request,
+     * 'g' (round up to whole gigabytes) or 'm' (round up to whole megabytes), default=m.
+     */
+    public static final String PROP_MEMORY_UNITS="job.ge.memory.units";
+    
+    /**
+     * Set the 'job.ge.memory.hard.resource' to request a hard memory limit, e.g. h_vmem, 
+     * of job.memory times the 'job.ge.memory.hard.factor', default=1.0.
+     */
+    public static final String PROP_MEMORY_HARD_RESOURCE="job.ge.memory.hard.resource";
+    public static final String PROP_MEMORY_HARD_FACTOR="job.ge.memory.hard.factor";
+    
+    /**
+     * Set the 'job.ge.rightsize.memory' to adjust the job.memory request based on the peak memory
+     * of previous runs of the module, off (default) | dryRun | on.
+     */
+    public static final String PROP_RIGHTSIZE_MEMORY="job.ge.rightsize.memory";
+    public static final String PROP_RIGHTSIZE_MEMORY_PERCENTILE="job.ge.rightsize.memory.percentile";
+    public static final String PROP_RIGHTSIZE_MEMORY_HEADROOM="job.ge.rightsize.memory.headroom";
+    public static final String PROP_RIGHTSIZE_MEMORY_MIN="job.ge.rightsize.memory.min";
+    public static final String PROP_RIGHTSIZE_MEMORY_MAX="job.ge.rightsize.memory.max";
+    public static final String PROP_RIGHTSIZE_MEMORY_MIN_SAMPLES="job.ge.rightsize.memory.minSamples";
+    public static final String PROP_RIGHTSIZE_MEMORY_OVERRIDE="job.ge.rightsize.memory.override";
+    
+    /**
+     * Set the 'job.ge.walltime.mode' to request a walltime limit, -l h_rt={hh:mm:ss},
+     * off (default) | explicit | dryRun | predict.
+     */
+    public static final String PROP_WALLTIME_MODE="job.ge.walltime.mode";
+    public static final String PROP_WALLTIME_PERCENTILE="job.ge.walltime.percentile";
+    public static final String PROP_WALLTIME_MARGIN="job.ge.walltime.margin";
+    public static final String PROP_WALLTIME_MIN="job.ge.walltime.min";
+    public static final String PROP_WALLTIME_MAX="job.ge.walltime.max";
+    public static final String PROP_WALLTIME_MIN_SAMPLES="job.ge.walltime.minSamples";
+    public static final String PROP_WALLTIME_PER_USER="job.ge.walltime.perUser";
+    public static final String PROP_WALLTIME_SOFT="job.ge.walltime.soft";
+    public static final String PROP_WALLTIME_MAX_RETRIES="job.ge.walltime.maxRetries";
+    public static final String PROP_WALLTIME_RETRY_FACTOR="job.ge.walltime.retryFactor";
+    
+    /**
+     * Set 'job.ge.oom.resubmit: true' to resubmit a job which was killed for exceeding its memory limit, with more memory.
+     */
+    public static final String PROP_OOM_RESUBMIT="job.ge.oom.resubmit";
+    public static final String PROP_OOM_MAX_RETRIES="job.ge.oom.maxRetries";
+    public static final String PROP_OOM_MEMORY_FACTOR="job.ge.oom.memoryFactor";
+    public static final String PROP_OOM_MAX_MEMORY="job.ge.oom.maxMemory";
+    public static final String PROP_OOM_THRESHOLD="job.ge.oom.threshold";
+    
+    /**
+     * Set the 'job.ge.pe.downsize' to cap the number of PE slots for modules with consistently low cpu efficiency,
+     * off (default) | dryRun | on.
+     */
+    public static final String PROP_PE_DOWNSIZE="job.ge.pe.downsize";
+    public static final String PROP_PE_DOWNSIZE_PERCENTILE="job.ge.pe.downsize.percentile";
+    public static final String PROP_PE_DOWNSIZE_THRESHOLD="job.ge.pe.downsize.threshold";
+    public static final String PROP_PE_DOWNSIZE_HEADROOM="job.ge.pe.downsize.headroom";
+    public static final String PROP_PE_DOWNSIZE_MIN_SAMPLES="job.ge.pe.downsize.minSamples";
+    public static final String PROP_PE_DOWNSIZE_MIN_WALLCLOCK="job.ge.pe.downsize.minWallclock";
+    public static final String PROP_PE_DOWNSIZE_OVERRIDE="job.ge.pe.downsize.override";
+    
+    /**
+     * Set the 'job.ge.reconcile.numThreads' to limit the number of concurrent status checks
+     * when reconciling outstanding jobs on startup, default=8.
+     */
+    public static final String PROP_RECONCILE_NUM_THREADS="job.ge.reconcile.numThreads";
+    public static final int DEFAULT_RECONCILE_NUM_THREADS=8;
+    
+    /**
+     * Set the 'job.ge.accounting.cmd' to the command for looking up the resource usage of jobs
+     * which completed outside of the current session, default='qacct'.
+     */
+    public static final String PROP_ACCOUNTING_CMD="job.ge.accounting.cmd";
+
+    /**
+     * Set the 'job.ge.accounting.grace' to the number of seconds to wait for the accounting record of a
+     * reconciled job which is no longer in the queue, default=600.
+     */
+    public static final String PROP_ACCOUNTING_GRACE="job.ge.accounting.grace";
+    public static final int DEFAULT_ACCOUNTING_GRACE=600;
+    
+    /**
+     * Set the 'job.ge.statusCache.maxSize' to limit the number of completed job statuses
+     * which are kept in memory after session.wait returns, default=10000.
+     */
+    public static final String PROP_STATUS_CACHE_MAX_SIZE="job.ge.statusCache.maxSize";
+    public static final int DEFAULT_STATUS_CACHE_MAX_SIZE=10000;
+    
+    /**
+     * Set the 'job.ge.statusCache.expireAfter' to the number of seconds to keep a completed 
+     * job status in memory, default=3600 (1 hour).
+     */
+    public static final String PROP_STATUS_CACHE_EXPIRE_AFTER="job.ge.statusCache.expireAfter";
+    public static final int DEFAULT_STATUS_CACHE_EXPIRE_AFTER=3600;
+    
+    /**
+     * Set the 'job.ge.status.ttl' to the number of milliseconds to reuse the status of a queued or running job,
+     * default=500. Set to 0 to request the status from DRMAA on every call to getStatus.
+     */
+    public static final String PROP_STATUS_TTL="job.ge.status.ttl";
+    public static final int DEFAULT_STATUS_TTL=500;
+    
+    /**
+     * Set the 'job.ge.status.waitTimeout' to the number of seconds to block in session.wait when
+     * checking the status of a job, default=0 (Session.TIMEOUT_NO_WAIT).
+     */
+    public static final String PROP_STATUS_WAIT_TIMEOUT="job.ge.status.waitTimeout";
+    public static final int DEFAULT_STATUS_WAIT_TIMEOUT=(int) Session.TIMEOUT_NO_WAIT;
  
     /**
      * lookup table for selecting an entry from the GenePattern DrmJobState enum 
@@ -119,95 +531,1635 @@ public class DrmaaV1JobRunner implements JobRunner {
         }
     }
 
-    public void start() {
-        try {
-            this.sessionInitError=null;
-            this.session=initSession();
-            if (log.isDebugEnabled()) {
-                debugInitTemplate(this.session);
-            }
+    protected void setGpConfig(final GpConfig gpConfig, final GpContext serverContext) {
+        this.gpConfig=gpConfig;
+        this.serverContext=serverContext;
+    }
+
+    protected GpConfig getGpConfig() {
+        if (gpConfig==null) {
+            gpConfig=ServerConfigurationFactory.instance();
         }
-        catch (final DrmaaException e) {
-            log.error("Error initializing session on startup", e);
-            this.sessionInitError=e;
+        return gpConfig;
+    }
+
+    protected GpContext getServerContext() {
+        if (serverContext==null) {
+            serverContext=GpContext.getServerContext();
         }
+        return serverContext;
     }
-    
-    @Override
-    public void stop() {
-        // TODO: not thread safe
-        if (session != null) {
-            try {
-                session.exit();
+
+    protected int getServerIntegerProperty(final String key, final int defaultValue) {
+        final GpConfig gpConfig=getGpConfig();
+        if (gpConfig==null) {
+            return defaultValue;
+        }
+        final Integer value=gpConfig.getGPIntegerProperty(getServerContext(), key, defaultValue);
+        return value==null ? defaultValue : value;
+    }
+
+    protected String getServerProperty(final String key, final String defaultValue) {
+        final GpConfig gpConfig=getGpConfig();
+        if (gpConfig==null) {
+            return defaultValue;
+        }
+        return gpConfig.getGPProperty(getServerContext(), key, defaultValue);
+    }
+
+    /**
+     * Get the status of a completed job, from the unpolled statuses or the completed status cache.
+     * An unpolled status is moved to the cache on the first read.
+     * @return the status, or null if the job has not completed or its status has expired
+     */
+    protected DrmJobStatus getCompletedStatus(final String extJobId) {
+        final DrmJobStatus unpolled=unpolledStatuses.remove(extJobId);
+        if (unpolled != null) {
+            getCompletedStatusCache().put(extJobId, unpolled);
+            return unpolled;
+        }
+        return getCompletedStatusCache().getIfPresent(extJobId);
+    }
+
+    /** @return the number of completed jobs which were reaped before their status was requested */
+    public int getNumUnpolledStatuses() {
+        return unpolledStatuses.size();
+    }
+
+    protected synchronized Cache<String, DrmJobStatus> getCompletedStatusCache() {
+        if (completedStatusCache==null) {
+            final int maxSize=getServerIntegerProperty(PROP_STATUS_CACHE_MAX_SIZE, DEFAULT_STATUS_CACHE_MAX_SIZE);
+            final int expireAfter=getServerIntegerProperty(PROP_STATUS_CACHE_EXPIRE_AFTER, DEFAULT_STATUS_CACHE_EXPIRE_AFTER);
+            completedStatusCache=CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(expireAfter, TimeUnit.SECONDS)
+            .build();
+        }
+        return completedStatusCache;
+    }
+
+    /**
+     * @return the cache of recent statuses for queued and running jobs, or null if disabled
+     */
+    protected synchronized Cache<String, DrmJobStatus> getRecentStatusCache() {
+        if (!recentStatusCacheInitialized) {
+            final int ttl=getServerIntegerProperty(PROP_STATUS_TTL, DEFAULT_STATUS_TTL);
+            if (ttl > 0) {
+                final int maxSize=getServerIntegerProperty(PROP_STATUS_CACHE_MAX_SIZE, DEFAULT_STATUS_CACHE_MAX_SIZE);
+                recentStatusCache=CacheBuilder.newBuilder()
+                    .maximumSize(maxSize)
+                    .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .build();
             }
-            catch (DrmaaException e) {
-                log.error("Error in session.exit()", e);
+            recentStatusCacheInitialized=true;
+        }
+        return recentStatusCache;
+    }
+
+    /**
+     * Call into the native DRMAA library from the dispatcher thread,
+     * or from the current thread when the dispatcher is not running.
+     * 
+     * @param key, optional, identical requests with the same key are run once when the dispatcher drains them together
+     * @param call
+     * @return the result of the call
+     * @throws DrmaaException
+     */
+    protected <T> T callDrmaa(final String key, final Callable<T> call) throws DrmaaException {
+        final DrmaaDispatcher dispatcher=this.dispatcher;
+        try {
+            if (dispatcher==null) {
+                return call.call();
             }
-        } 
-        this.session=null;
-        this.sessionInitError=null;
+            return dispatcher.call(key, call);
+        }
+        catch (ExecutionException e) {
+            throw asDrmaaException(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("interrupted waiting for DRMAA call");
+        }
+        catch (Exception e) {
+            throw asDrmaaException(e);
+        }
     }
 
-    @Override
-    public String startJob(final DrmJobSubmission jobSubmission) throws CommandExecutorException {
-        validateCmdLine(jobSubmission);
-        Util.logCommandLine(jobSubmission);
-        final Session session=getSession();
+    /**
+     * Call into the native DRMAA library from the dispatcher thread, waiting at most the timeout from the given
+     * server property, e.g. 'job.ge.timeout.submit'. Without a timeout this is the same as {@link #callDrmaa(String, Callable)}.
+     * 
+     * @throws DrmaaTimeoutException on timeout
+     */
+    protected <T> T callDrmaa(final String key, final Callable<T> call, final String timeoutProp) throws DrmaaException {
+        final long timeoutMillis=getServerIntegerProperty(timeoutProp, 0) * 1000L;
+        final DrmaaDispatcher dispatcher=this.dispatcher;
+        if (timeoutMillis <= 0L || dispatcher==null) {
+            return callDrmaa(key, call);
+        }
         try {
-            final String jobId=submitJob(session, jobSubmission);
-            return jobId;
+            return dispatcher.call(key, call, timeoutMillis);
         }
-        catch (DrmaaException e) {
-            final String msg="Error adding job to queue, gpJobNo="+jobSubmission.getGpJobNo()+", DrmaaException="+e.getLocalizedMessage();
-            log.debug(msg, e);
-            throw new CommandExecutorException(msg, e);
+        catch (DrmaaTimeoutException e) {
+            countTimeout(timeoutProp);
+            log.error(timeoutProp+": "+e.getLocalizedMessage());
+            throw e;
+        }
+        catch (ExecutionException e) {
+            throw asDrmaaException(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("interrupted waiting for DRMAA call");
+        }
+    }
+
+    private void countTimeout(final String timeoutProp) {
+        final AtomicLong count=numTimeouts.get(timeoutProp);
+        if (count != null) {
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Add a call into the native DRMAA library to the dispatcher queue without waiting for the result.
+     * When the dispatcher is not running, the call is made from the current thread.
+     */
+    protected <T> Future<T> submitDrmaa(final String key, final Callable<T> call) {
+        final DrmaaDispatcher dispatcher=this.dispatcher;
+        if (dispatcher != null) {
+            return dispatcher.submit(key, call);
+        }
+        try {
+            return Futures.immediateFuture(call.call());
         }
         catch (Throwable t) {
-            final String msg="Unexpected exception adding job to queue, gpJobNo="+jobSubmission.getGpJobNo()+": "+t.getLocalizedMessage();
-            log.error(msg, t);
-            throw new CommandExecutorException(msg, t);
+            return Futures.immediateFailedFuture(t);
         }
     }
 
-    @Override
-    public DrmJobStatus getStatus(DrmJobRecord drmJobRecord) {
+    private static DrmaaException asDrmaaException(final Throwable t) {
+        if (t instanceof DrmaaException) {
+            return (DrmaaException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new InternalException(""+t.getLocalizedMessage());
+    }
+
+    /**
+     * Start the runner. Jobs from a previous session are reconciled on their first status check,
+     * see {@link #isForeignJobId(String)}.
+     */
+    public void start() {
+        startRunner(null);
+    }
+    
+    /**
+     * Start the runner, then reconcile the given outstanding jobs, e.g. the jobs which GenePattern 
+     * considers to be RUNNING after a server restart.
+     * When 'job.ge.startup.async' is set, the session is initialized and the jobs are reconciled
+     * in the background.
+     * 
+     * This is an optional warm-up; the server only calls {@link #start()}, any job which is not 
+     * reconciled in advance is reconciled lazily by getStatus.
+     * 
+     * @param outstandingJobs
+     */
+    public void start(final Collection<DrmJobRecord> outstandingJobs) {
+        startRunner(outstandingJobs);
+    }
+
+    protected void startRunner(final Collection<DrmJobRecord> outstandingJobs) {
+        stopped.set(false);
+        initTrace();
+        getUsageSketches();
+        this.dispatcher=new DrmaaDispatcher();
+        this.dispatcher.start();
+        startWatchdog();
+        startSpecValidator();
+        if (getGpConfig() == null || !getGpConfig().getGPBooleanProperty(getServerContext(), PROP_STARTUP_ASYNC, false)) {
+            startSession();
+            reconcileJobs(outstandingJobs);
+            return;
+        }
+        setSessionInitializing();
+        final Thread startup=new ThreadFactoryBuilder().setNameFormat("drmaa_v1-startup-%d").setDaemon(true).build()
+            .newThread(new Runnable() {
+                @Override
+                public void run() {
+                    startSession();
+                    reconcileJobs(outstandingJobs);
+                }
+            });
+        log.info("initializing session in the background");
+        startup.start();
+    }
+
+    /**
+     * Initialize the session on the dispatcher thread, then add any pending jobs to the queue.
+     */
+    protected void startSession() {
+        Session session=null;
+        DrmaaException error=null;
         try {
-            final Session session = getSession();
-            return requestStatus(session, drmJobRecord.getExtJobId());
+            session=callDrmaa(null, new Callable<Session>() {
+                @Override
+                public Session call() throws Exception {
+                    final Session session=initSession();
+                    if (log.isDebugEnabled()) {
+                        debugInitTemplate(session);
+                    }
+                    return session;
+                }
+            });
         }
-        // TODO: deal with these exceptions, UNDETERMINED causes the job to be flagged as cancelled in GP
-        catch (CommandExecutorException e) {
-            log.error("Error getting status for gpJobNo="+drmJobRecord.getGpJobNo(), e);
-            return new DrmJobStatus.Builder()
-                .extJobId(drmJobRecord.getExtJobId())
-                .jobState(DrmJobState.UNDETERMINED)
-                .jobStatusMessage("job queue error: "+e.getLocalizedMessage())
-            .build();
+        catch (final DrmaaException e) {
+            log.error("Error initializing session on startup", e);
+            error=e;
         }
-        catch (DrmaaException e) {
-            log.error("Error getting status for gpJobNo="+drmJobRecord.getGpJobNo(), e);
-            return new DrmJobStatus.Builder()
-                .extJobId(drmJobRecord.getExtJobId())
-                .jobState(DrmJobState.UNDETERMINED)
-                .jobStatusMessage("job queue error: "+e.getLocalizedMessage())
-            .build();
+        onSessionInit(session, error);
+    }
+
+    /**
+     * Set the session state, then flush the jobs which were started while the session was initializing.
+     * @param session, the initialized session, or null on error
+     * @param error, the error, or null on success
+     */
+    protected void onSessionInit(final Session session, final DrmaaException error) {
+        // the session before the state, a job which is not held must find the session
+        this.session=session;
+        this.sessionInitError=error;
+        this.sessionState=session != null ? SessionState.READY : SessionState.FAILED;
+        final Map<String, DrmJobSubmission> pending=submissionTracker.releaseStartupJobs();
+        if (!pending.isEmpty()) {
+            log.info("session "+sessionState+", flushing "+pending.size()+" pending jobs");
+        }
+        for(final Entry<String, DrmJobSubmission> entry : pending.entrySet()) {
+            submissionTracker.flushPendingJob(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /** hold new jobs until the session is initialized, see {@link #onSessionInit(Session, DrmaaException)} */
+    protected void setSessionInitializing() {
+        submissionTracker.holdStartupJobs();
+        this.sessionState=SessionState.INITIALIZING;
+    }
+
+    public SessionState getSessionState() {
+        return sessionState;
+    }
+
+    protected SubmissionTracker getSubmissionTracker() {
+        return submissionTracker;
+    }
+
+    /**
+     * The calls from the submission tracker into this runner.
+     */
+    private class TrackerQueue implements SubmissionTracker.JobQueue {
+        @Override
+        public GpConfig getGpConfig() {
+            return DrmaaV1JobRunner.this.getGpConfig();
+        }
+
+        @Override
+        public GpContext getServerContext() {
+            return DrmaaV1JobRunner.this.getServerContext();
+        }
+
+        @Override
+        public String submitToQueue(final DrmJobSubmission jobSubmission) throws CommandExecutorException {
+            return DrmaaV1JobRunner.this.submitToQueue(jobSubmission);
+        }
+
+        @Override
+        public String submitOnce(final DrmJobSubmission jobSubmission) throws DrmaaException, CommandExecutorException {
+            return DrmaaV1JobRunner.this.submitOnce(getSession(), jobSubmission);
+        }
+
+        @Override
+        public CommandExecutorException submitError(final DrmJobSubmission jobSubmission, final DrmaaException e, final int numAttempts) {
+            return DrmaaV1JobRunner.this.submitError(jobSubmission, e, numAttempts);
+        }
+
+        @Override
+        public void clearSelectedQueue(final DrmJobSubmission jobSubmission) {
+            DrmaaV1JobRunner.this.clearSelectedQueue(jobSubmission);
+        }
+
+        @Override
+        public void addSubmittedJob(final String extJobId, final DrmJobSubmission jobSubmission) {
+            DrmaaV1JobRunner.this.addSubmittedJob(extJobId, jobSubmission);
+        }
+
+        @Override
+        public void addFoundJob(final String extJobId) {
+            DrmaaV1JobRunner.this.addFoundJob(extJobId);
+        }
+
+        @Override
+        public boolean isKnownJob(final String extJobId) {
+            return DrmaaV1JobRunner.this.isKnownJob(extJobId);
+        }
+
+        @Override
+        public boolean isLiveJob(final String extJobId) {
+            return DrmaaV1JobRunner.this.isLiveJob(extJobId);
+        }
+
+        @Override
+        public void cancelOrphanJob(final String extJobId) {
+            DrmaaV1JobRunner.this.cancelOrphanJob(extJobId);
+        }
+
+        @Override
+        public void putCompletedStatus(final DrmJobStatus jobStatus) {
+            getCompletedStatusCache().put(jobStatus.getDrmJobId(), jobStatus);
+        }
+
+        @Override
+        public DrmJobStatus fetchStatus(final DrmJobRecord drmJobRecord, final String extJobId) {
+            return DrmaaV1JobRunner.this.fetchStatus(drmJobRecord, extJobId);
+        }
+    }
+
+    /**
+     * Cancel a job which was added to the queue after its placeholder was cancelled or failed.
+     */
+    protected void cancelOrphanJob(final String extJobId) {
+        sessionJobIds.remove(extJobId);
+        try {
+            callDrmaa(null, new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return requestCancelJob(session, extJobId);
+                }
+            }, PROP_TIMEOUT_CANCEL);
+        }
+        catch (DrmaaException e) {
+            log.error("Error cancelling pending job, extJobId="+extJobId, e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        final Session session=this.session;
+        if (session != null) {
+            try {
+                callDrmaa(null, new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        session.exit();
+                        return null;
+                    }
+                });
+            }
+            catch (DrmaaException e) {
+                log.error("Error in session.exit()", e);
+            }
+        } 
+        this.session=null;
+        this.sessionInitError=null;
+        this.sessionState=SessionState.NOT_STARTED;
+        submissionTracker.shutdown();
+        synchronized(this) {
+            if (localJobLane != null) {
+                localJobLane.shutdown();
+                localJobLane=null;
+            }
+            if (usageSketches != null) {
+                stopUsageSketches();
+            }
+            if (traceRing != null) {
+                setTraceRing(null, 0);
+            }
+            if (specValidatorTimer != null) {
+                specValidatorTimer.shutdownNow();
+                specValidatorTimer=null;
+            }
+            if (reconcileExecutor != null) {
+                reconcileExecutor.shutdownNow();
+                reconcileExecutor=null;
+            }
+        }
+        stopWatchdog();
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+            dispatcher=null;
+        }
+    }
+
+    @Override
+    public String startJob(final DrmJobSubmission jobSubmission) throws CommandExecutorException {
+        final long traceId=jobSubmission.getGpJobNo()==null ? -1L : jobSubmission.getGpJobNo();
+        final long startJobStart=traceStart();
+        try {
+            validateCmdLine(jobSubmission);
+            final long logStart=traceStart();
+            Util.logCommandLine(jobSubmission, Util.getGPBooleanProperty(jobSubmission, PROP_ARGFILE, false) ? 
+                    getIntegerProperty(jobSubmission, PROP_ARGFILE_MAX_ARGS, 1000) : Integer.MAX_VALUE);
+            traceEnd(TraceRing.Span.LOG_COMMAND_LINE, traceId, logStart);
+            if (isLocalJob(jobSubmission)) {
+                try {
+                    final String jobId=startLocalJob(jobSubmission);
+                    log.debug("gpJobNo="+jobSubmission.getGpJobNo()+", running in local lane, extJobId="+jobId);
+                    return jobId;
+                }
+                catch (RejectedExecutionException e) {
+                    log.debug("local lane is full, adding gpJobNo="+jobSubmission.getGpJobNo()+" to the queue");
+                }
+            }
+            final String existingJobId=submissionTracker.findExistingJob(jobSubmission);
+            if (existingJobId != null) {
+                log.info("gpJobNo="+jobSubmission.getGpJobNo()+" was already submitted, extJobId="+existingJobId);
+                return existingJobId;
+            }
+            if (sessionState==SessionState.INITIALIZING) {
+                final String pendingId=submissionTracker.addStartupJob(jobSubmission);
+                if (pendingId != null) {
+                    log.debug("session is initializing, gpJobNo="+jobSubmission.getGpJobNo()+", extJobId="+pendingId);
+                    return pendingId;
+                }
+            }
+            return submitToQueue(jobSubmission);
+        }
+        finally {
+            // also for a failed or timed out submission
+            traceEnd(TraceRing.Span.START_JOB, traceId, startJobStart);
+        }
+    }
+
+    /**
+     * Add the job to the queue.
+     * @return the extJobId
+     */
+    protected String submitToQueue(final DrmJobSubmission jobSubmission) throws CommandExecutorException {
+        final Session session=getSession();
+        try {
+            return submitOnce(session, jobSubmission);
+        }
+        catch (DrmaaException e) {
+            if (RetryPolicy.isTransient(e)) {
+                final String pendingId=submissionTracker.addRetryJob(jobSubmission, e);
+                if (pendingId != null) {
+                    return pendingId;
+                }
+            }
+            throw submitError(jobSubmission, e, 1);
+        }
+        catch (Throwable t) {
+            clearSelectedQueue(jobSubmission);
+            final String msg="Unexpected exception adding job to queue, gpJobNo="+jobSubmission.getGpJobNo()+": "+t.getLocalizedMessage();
+            log.error(msg, t);
+            throw new CommandExecutorException(msg, t);
+        }
+    }
+
+    /**
+     * Make one attempt to add the job to the queue.
+     * @return the extJobId, or a placeholder extJobId when the submission is in doubt
+     */
+    protected String submitOnce(final Session session, final DrmJobSubmission jobSubmission) throws DrmaaException {
+        final long traceId=jobSubmission.getGpJobNo()==null ? -1L : jobSubmission.getGpJobNo();
+        // on the caller's thread, not the dispatcher
+        final PreparedSubmission prepared=prepareJob(jobSubmission);
+        final long dispatchStart=traceStart();
+        final String jobId;
+        try {
+            jobId=callDrmaa(null, new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    traceEnd(TraceRing.Span.DISPATCH_WAIT, traceId, dispatchStart);
+                    return submitJob(session, prepared);
+                }
+            }, PROP_TIMEOUT_SUBMIT);
+        }
+        catch (DrmaaTimeoutException e) {
+            if (e.isInDoubt()) {
+                return submissionTracker.addInDoubtJob(jobSubmission, e.getFuture());
+            }
+            throw e;
+        }
+        addSubmittedJob(jobId, jobSubmission);
+        return jobId;
+    }
+
+    /**
+     * Clean up after a failed submission.
+     * @return the exception for the caller
+     */
+    protected CommandExecutorException submitError(final DrmJobSubmission jobSubmission, final DrmaaException e, final int numAttempts) {
+        clearSelectedQueue(jobSubmission);
+        submissionTracker.indexFailedSubmission(jobSubmission, e);
+        final String msg=(e instanceof DrmaaTimeoutException ? "Timed out" : "Error")+" adding job to queue, gpJobNo="+jobSubmission.getGpJobNo()+
+                (numAttempts > 1 ? ", attempts="+numAttempts : "")+", DrmaaException="+e.getLocalizedMessage();
+        log.debug(msg, e);
+        return new CommandExecutorException(msg, e);
+    }
+
+    protected void clearSelectedQueue(final DrmJobSubmission jobSubmission) {
+        if (jobSubmission.getGpJobNo() != null) {
+            selectedQueues.remove(jobSubmission.getGpJobNo());
+        }
+    }
+
+    protected synchronized LocalJobLane getLocalJobLane() {
+        if (localJobLane==null) {
+            localJobLane=new LocalJobLane(
+                    getServerIntegerProperty(PROP_LOCAL_NUM_THREADS, 2), 
+                    getServerIntegerProperty(PROP_LOCAL_MAX_QUEUED, 20));
+        }
+        return localJobLane;
+    }
+
+    /**
+     * Should the job run in the local lane, see 'job.ge.local'.
+     */
+    protected boolean isLocalJob(final DrmJobSubmission jobSubmission) {
+        if (!Util.getGPBooleanProperty(jobSubmission, PROP_LOCAL, false)) {
+            return false;
+        }
+        final Integer numCores=getNumCores(jobSubmission);
+        if (numCores != null && numCores > 1) {
+            return false;
+        }
+        Memory maxMemory=getMemoryProperty(jobSubmission, PROP_LOCAL_MAX_MEMORY);
+        if (maxMemory==null) {
+            maxMemory=Memory.fromString("2 Gb");
+        }
+        if (jobSubmission.getMemory() != null && jobSubmission.getMemory().getNumBytes() > maxMemory.getNumBytes()) {
+            return false;
+        }
+        final Value modules=jobSubmission.getValue(PROP_LOCAL_MODULES);
+        if (modules != null && modules.getValues() != null && !modules.getValues().isEmpty()) {
+            return modules.getValues().contains(Util.getTaskName(jobSubmission));
+        }
+        return true;
+    }
+
+    protected String startLocalJob(final DrmJobSubmission jobSubmission) throws RejectedExecutionException {
+        final File workingDir=jobSubmission.getWorkingDir();
+        final File stdin=jobSubmission.getStdinFile()==null ? null :
+            initFile(workingDir, jobSubmission.getStdinFile(), "stdin.txt");
+        return getLocalJobLane().submit(jobSubmission.getCommandLine(), workingDir, 
+                initFile(workingDir, jobSubmission.getStdoutFile(), "stdout.txt"), 
+                initFile(workingDir, jobSubmission.getStderrFile(), "stderr.txt"), 
+                stdin);
+    }
+
+    /** like initFilepath, but resolve a relative path against the working directory */
+    protected File initFile(final File workingDir, final File ioFile, final String defaultValue) {
+        final File file=new File(initFilepath(workingDir, ioFile, defaultValue));
+        if (file.isAbsolute()) {
+            return file;
+        }
+        return new File(workingDir, file.getPath());
+    }
+
+    protected SubmittedJob addSubmittedJob(final String extJobId, final DrmJobSubmission jobSubmission) {
+        final SubmittedJob submittedJob=new SubmittedJob(extJobId, jobSubmission);
+        if (isRightsizeMemory(jobSubmission)) {
+            submittedJob.setMemoryHistoryKey(getMemoryHistoryKey(jobSubmission));
+        }
+        if (isPredictWalltime(jobSubmission)) {
+            submittedJob.setWalltimeHistoryKey(getWalltimeHistoryKey(jobSubmission));
+        }
+        submittedJob.setWalltimeLimit(getWalltimeLimit(jobSubmission));
+        submittedJob.setMemoryLimit(getRequestedMemory(jobSubmission));
+        final Integer numSlots=getNumSlots(jobSubmission);
+        submittedJob.setNumSlots(numSlots==null ? 1 : Math.max(1, numSlots));
+        submittedJob.setCpuHistoryKey(Util.getTaskName(jobSubmission));
+        final String selectedQueue=jobSubmission.getGpJobNo()==null ? null : selectedQueues.remove(jobSubmission.getGpJobNo());
+        submittedJob.setQueue(selectedQueue != null ? selectedQueue : jobSubmission.getQueue());
+        submittedJob.setStaged(isStaged(jobSubmission));
+        submittedJob.setSampled(isSampled(jobSubmission));
+        submittedJob.setProgressTail(initProgressTail(jobSubmission));
+        sessionJobIds.add(extJobId);
+        submittedJobs.put(extJobId, submittedJob);
+        submissionTracker.indexSubmission(jobSubmission, extJobId);
+        return submittedJob;
+    }
+
+    /** @return the book-keeping for a submitted job which has not completed, or null */
+    protected SubmittedJob getSubmittedJob(final String extJobId) {
+        return submittedJobs.get(extJobId);
+    }
+
+    /**
+     * Track a job which was found by name, e.g. after an in doubt submission or a server restart;
+     * a job which was not submitted by this runner is reconciled on its first status check.
+     */
+    protected void addFoundJob(final String extJobId) {
+        if (!submittedJobs.containsKey(extJobId)) {
+            reconciledJobIds.add(extJobId);
+        }
+    }
+
+    /** @return true if the job was submitted by this runner, or found by name */
+    protected boolean isKnownJob(final String extJobId) {
+        return submittedJobs.containsKey(extJobId) || reconciledJobIds.contains(extJobId);
+    }
+
+    /**
+     * Forget a submitted job which will not reach completeJob, e.g. it was cancelled or lost by the qmaster,
+     * so that its book-keeping isn't kept for the life of the server.
+     */
+    protected void evictSubmittedJob(final String extJobId) {
+        sessionJobIds.remove(extJobId);
+        final SubmittedJob submittedJob=submittedJobs.remove(extJobId);
+        if (submittedJob != null && submittedJob.getJobSubmission().getGpJobNo() != null) {
+            submissionTracker.getSubmissionIndex().remove(submittedJob.getJobSubmission().getGpJobNo(), extJobId);
+            if (log.isDebugEnabled()) {
+                log.debug("evicted submitted job, extJobId="+extJobId);
+            }
+        }
+    }
+
+    /** @return true if the job is pending or running */
+    protected boolean isLiveJob(final String extJobId) {
+        final Session session=this.session;
+        if (session==null) {
+            return false;
+        }
+        try {
+            final DrmJobState jobState=callDrmaa("requestDrmJobState:"+extJobId, new Callable<DrmJobState>() {
+                @Override
+                public DrmJobState call() throws Exception {
+                    return requestDrmJobState(session, extJobId);
+                }
+            }, PROP_TIMEOUT_STATUS);
+            return jobState != null && !isTerminal(jobState) && jobState != DrmJobState.UNDETERMINED;
+        }
+        catch (DrmaaException e) {
+            log.debug("Error getting job program status, extJobId="+extJobId, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the progress tail for the job, or null if 'job.ge.progress' is not set or the job is staged
+     */
+    protected ProgressTail initProgressTail(final DrmJobSubmission jobSubmission) {
+        final String regex=jobSubmission.getProperty(PROP_PROGRESS);
+        if (Strings.isNullOrEmpty(regex)) {
+            return null;
+        }
+        if (isStaged(jobSubmission)) {
+            // stdout and stderr are on the execution host until the job exits
+            log.warn("Ignoring "+PROP_PROGRESS+" for staged job, gpJobNo="+jobSubmission.getGpJobNo()+
+                    ", set "+PROP_STAGE+": false to show progress");
+            return null;
+        }
+        final Pattern pattern;
+        try {
+            pattern=Pattern.compile(regex);
+        }
+        catch (PatternSyntaxException e) {
+            log.error("Invalid "+PROP_PROGRESS+" pattern, gpJobNo="+jobSubmission.getGpJobNo()+": "+e.getLocalizedMessage());
+            return null;
+        }
+        final File file;
+        if ("stderr".equalsIgnoreCase(jobSubmission.getProperty(PROP_PROGRESS_STREAM))) {
+            file=initFile(jobSubmission.getWorkingDir(), jobSubmission.getStderrFile(), "stderr.txt");
+        }
+        else {
+            file=initFile(jobSubmission.getWorkingDir(), jobSubmission.getStdoutFile(), "stdout.txt");
+        }
+        return new ProgressTail(file, pattern, getIntegerProperty(jobSubmission, PROP_PROGRESS_MAX_BYTES, 1048576));
+    }
+
+    /**
+     * Set the status message of a running job to the latest progress message, see 'job.ge.progress'.
+     */
+    protected DrmJobStatus withProgress(final String extJobId, final DrmJobStatus status) {
+        if (status==null || status.getJobState() != DrmJobState.RUNNING) {
+            return status;
+        }
+        final SubmittedJob submittedJob=submittedJobs.get(extJobId);
+        final ProgressTail progressTail=submittedJob==null ? null : submittedJob.getProgressTail();
+        if (progressTail==null) {
+            return status;
+        }
+        try {
+            final String progress=progressTail.poll();
+            if (progress != null) {
+                return copyOf(status).jobStatusMessage(progress).build();
+            }
+        }
+        catch (IOException e) {
+            log.debug("Error reading progress, extJobId="+extJobId, e);
+        }
+        return status;
+    }
+
+    @Override
+    public DrmJobStatus getStatus(final DrmJobRecord drmJobRecord) {
+        final DrmJobStatus status=getResolvedStatus(drmJobRecord);
+        if (status != null && (isTerminal(status.getJobState()) || status.getJobState()==DrmJobState.CANCELLED)) {
+            // GP won't ask for it again
+            submissionTracker.removeAliases(drmJobRecord.getExtJobId());
+        }
+        return status;
+    }
+
+    /**
+     * Get the status of the current attempt for the job, see {@link SubmissionTracker#resolveExtJobId(String)}.
+     */
+    protected DrmJobStatus getResolvedStatus(final DrmJobRecord drmJobRecord) {
+        final String extJobId=submissionTracker.resolveExtJobId(drmJobRecord.getExtJobId());
+        if (extJobId==null) {
+            return fetchStatus(drmJobRecord, extJobId);
+        }
+        final DrmJobStatus staging=checkStagingStatus(extJobId);
+        if (staging != null) {
+            return staging;
+        }
+        final DrmJobStatus completed=getCompletedStatus(extJobId);
+        if (completed != null) {
+            if (log.isDebugEnabled()) {
+                log.debug("using cached status for completed job, extJobId="+extJobId);
+            }
+            return completed;
+        }
+        final DrmJobStatus reaped=completeReapedJob(extJobId, false);
+        if (reaped != null) {
+            return reaped;
+        }
+        if (SubmissionTracker.isPendingJobId(extJobId)) {
+            return submissionTracker.getPendingJobStatus(drmJobRecord, extJobId);
+        }
+        if (LocalJobLane.isLocalJobId(extJobId)) {
+            final DrmJobStatus status=getLocalJobLane().getStatus(extJobId);
+            if (isTerminal(status.getJobState()) || status.getJobState()==DrmJobState.CANCELLED) {
+                getCompletedStatusCache().put(extJobId, status);
+            }
+            return status;
+        }
+        final Cache<String, DrmJobStatus> recentStatusCache=getRecentStatusCache();
+        if (recentStatusCache != null) {
+            final DrmJobStatus recent=recentStatusCache.getIfPresent(extJobId);
+            if (recent != null) {
+                return withProgress(extJobId, recent);
+            }
+        }
+        try {
+            return withProgress(extJobId, statusRequests.get(extJobId, new Callable<DrmJobStatus>() {
+                @Override
+                public DrmJobStatus call() throws Exception {
+                    final DrmJobStatus status=fetchStatus(drmJobRecord, extJobId);
+                    if (recentStatusCache != null && status != null && 
+                            !isTerminal(status.getJobState()) && status.getJobState() != DrmJobState.UNDETERMINED) 
+                    {
+                        recentStatusCache.put(extJobId, status);
+                    }
+                    if (status != null && isTerminal(status.getJobState())) {
+                        // GP won't ask for it again; an UNDETERMINED status may be a transient error,
+                        // a job which is lost by the qmaster is evicted by fetchStatus
+                        evictSubmittedJob(extJobId);
+                    }
+                    return status;
+                }
+            }));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted getting status for gpJobNo="+drmJobRecord.getGpJobNo(), e);
+            return new DrmJobStatus.Builder()
+                .extJobId(extJobId)
+                .jobState(DrmJobState.UNDETERMINED)
+                .jobStatusMessage("job queue error: "+e.getLocalizedMessage())
+            .build();
+        }
+        catch (ExecutionException e) {
+            log.error("Error getting status for gpJobNo="+drmJobRecord.getGpJobNo(), e.getCause());
+            return new DrmJobStatus.Builder()
+                .extJobId(extJobId)
+                .jobState(DrmJobState.UNDETERMINED)
+                .jobStatusMessage("job queue error: "+e.getCause().getLocalizedMessage())
+            .build();
+        }
+    }
+
+    /**
+     * Request the status for the job from DRMAA, 
+     * called by getStatus when the status is not already cached or in flight.
+     */
+    protected DrmJobStatus fetchStatus(final DrmJobRecord drmJobRecord, final String extJobId) {
+        if (sessionState==SessionState.INITIALIZING) {
+            // don't report UNDETERMINED, which flags the job as cancelled
+            return new DrmJobStatus.Builder()
+                .extJobId(extJobId)
+                .jobState(DrmJobState.QUEUED)
+                .jobStatusMessage("waiting for the job queue to start")
+            .build();
+        }
+        try {
+            final Session session = getSession();
+            if (reconciledJobIds.contains(extJobId) || isForeignJobId(extJobId)) {
+                reconciledJobIds.add(extJobId);
+                return getReconciledStatus(session, drmJobRecord.getGpJobNo(), extJobId);
+            }
+            final DrmJobStatus status=callDrmaa("requestStatus:"+extJobId, new Callable<DrmJobStatus>() {
+                @Override
+                public DrmJobStatus call() throws Exception {
+                    return requestStatus(session, extJobId);
+                }
+            }, PROP_TIMEOUT_STATUS);
+            final DrmJobStatus reaped=completeReapedJob(extJobId, false);
+            if (reaped != null) {
+                return reaped;
+            }
+            final SubmittedJob submittedJob=submittedJobs.get(extJobId);
+            if (submittedJob != null && status != null && !isTerminal(status.getJobState())) {
+                submittedJob.setLastStatus(status);
+            }
+            return status;
+        }
+        catch (DrmaaTimeoutException e) {
+            return timedOutStatus(extJobId);
+        }
+        catch (InvalidJobException e) {
+            // e.g. reaped by drainCompletedJobs on another thread
+            final DrmJobStatus reaped=completeReapedJob(extJobId, false);
+            if (reaped != null) {
+                return reaped;
+            }
+            // e.g. lost by the qmaster, GP won't ask for it again
+            log.error("Job not found in the queue, gpJobNo="+drmJobRecord.getGpJobNo()+", extJobId="+extJobId, e);
+            evictSubmittedJob(extJobId);
+            return new DrmJobStatus.Builder()
+                .extJobId(drmJobRecord.getExtJobId())
+                .jobState(DrmJobState.UNDETERMINED)
+                .jobStatusMessage("job queue error: job not found, "+e.getLocalizedMessage())
+            .build();
+        }
+        // TODO: deal with these exceptions, UNDETERMINED causes the job to be flagged as cancelled in GP
+        catch (CommandExecutorException e) {
+            log.error("Error getting status for gpJobNo="+drmJobRecord.getGpJobNo(), e);
+            return new DrmJobStatus.Builder()
+                .extJobId(drmJobRecord.getExtJobId())
+                .jobState(DrmJobState.UNDETERMINED)
+                .jobStatusMessage("job queue error: "+e.getLocalizedMessage())
+            .build();
+        }
+        catch (DrmaaException e) {
+            log.error("Error getting status for gpJobNo="+drmJobRecord.getGpJobNo(), e);
+            return new DrmJobStatus.Builder()
+                .extJobId(drmJobRecord.getExtJobId())
+                .jobState(DrmJobState.UNDETERMINED)
+                .jobStatusMessage("job queue error: "+e.getLocalizedMessage())
+            .build();
+        }
+        catch (Throwable t) {
+            log.error("Error getting status for gpJobNo="+drmJobRecord.getGpJobNo(), t);
+            return new DrmJobStatus.Builder()
+                .extJobId(drmJobRecord.getExtJobId())
+                .jobState(DrmJobState.UNDETERMINED)
+                .jobStatusMessage("job queue error: "+t.getLocalizedMessage())
+            .build();
+        }
+        
+
+    }
+
+    /**
+     * The status for a job whose status check timed out, the last known state of the job, or QUEUED if not known.
+     * Don't report UNDETERMINED, which flags the job as cancelled.
+     */
+    protected DrmJobStatus timedOutStatus(final String extJobId) {
+        final SubmittedJob submittedJob=extJobId==null ? null : submittedJobs.get(extJobId);
+        final DrmJobStatus lastStatus=submittedJob==null ? null : submittedJob.getLastStatus();
+        return new DrmJobStatus.Builder()
+            .extJobId(extJobId)
+            .jobState(lastStatus==null ? DrmJobState.QUEUED : lastStatus.getJobState())
+            .jobStatusMessage("job queue status check timed out")
+        .build();
+    }
+
+    /**
+     * Get the status for a collection of jobs, e.g. all of the jobs in one poll cycle.
+     * First drain all completed jobs from the session with one series of 
+     * <pre>wait(JOB_IDS_SESSION_ANY, TIMEOUT_NO_WAIT)</pre> calls, then request the 
+     * program status for the remaining jobs, which are queued together and run one after another on the dispatcher.
+     * 
+     * @param drmJobRecords
+     * @return a map of extJobId to job status, in the same order as the given records
+     */
+    public Map<String, DrmJobStatus> getStatuses(final Collection<DrmJobRecord> drmJobRecords) {
+        final Map<String, DrmJobStatus> statuses=new LinkedHashMap<String, DrmJobStatus>();
+        if (drmJobRecords==null || drmJobRecords.isEmpty()) {
+            return statuses;
+        }
+        if (sessionState != SessionState.INITIALIZING) {
+            try {
+                final Session session=getSession();
+                callDrmaa(null, new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return drainCompletedJobs(session);
+                    }
+                }, PROP_TIMEOUT_STATUS);
+            }
+            catch (Throwable t) {
+                log.error("Error draining completed jobs, checking each job instead", t);
+            }
+            completeReapedJobs();
+        }
+
+        final Map<DrmJobRecord, Future<DrmJobState>> pending=new LinkedHashMap<DrmJobRecord, Future<DrmJobState>>();
+        // so that a request which is still in the queue at the deadline is not run
+        final Map<DrmJobRecord, DrmaaDispatcher.TimedCall<DrmJobState>> timedCalls=new HashMap<DrmJobRecord, DrmaaDispatcher.TimedCall<DrmJobState>>();
+        final Cache<String, DrmJobStatus> recentStatusCache=getRecentStatusCache();
+        for(final DrmJobRecord drmJobRecord : drmJobRecords) {
+            final String extJobId=drmJobRecord.getExtJobId();
+            if (extJobId==null || statuses.containsKey(extJobId)) {
+                continue;
+            }
+            DrmJobStatus status=checkStagingStatus(extJobId);
+            if (status==null) {
+                status=getCompletedStatus(extJobId);
+            }
+            if (status==null && recentStatusCache != null) {
+                status=recentStatusCache.getIfPresent(extJobId);
+            }
+            if (status != null) {
+                statuses.put(extJobId, withProgress(extJobId, status));
+            }
+            else if (this.session != null && !reconciledJobIds.contains(extJobId) && submissionTracker.resolveExtJobId(extJobId).equals(extJobId) 
+                    && !LocalJobLane.isLocalJobId(extJobId) && !SubmissionTracker.isPendingJobId(extJobId)) 
+            {
+                // not completed (as of the drain), only need the program status
+                final Session session=this.session;
+                final DrmaaDispatcher.TimedCall<DrmJobState> timedCall=new DrmaaDispatcher.TimedCall<DrmJobState>(new Callable<DrmJobState>() {
+                    @Override
+                    public DrmJobState call() throws Exception {
+                        return requestDrmJobState(session, extJobId);
+                    }
+                });
+                statuses.put(extJobId, null);
+                timedCalls.put(drmJobRecord, timedCall);
+                pending.put(drmJobRecord, submitDrmaa("requestDrmJobState:"+extJobId, timedCall));
+            }
+            else {
+                statuses.put(extJobId, null);
+                pending.put(drmJobRecord, null);
+            }
+        }
+
+        // one deadline for all of the requests, they run one after another on the dispatcher thread
+        final long timeoutMillis=getServerIntegerProperty(PROP_TIMEOUT_STATUS, 0) * 1000L;
+        final long deadline=System.currentTimeMillis() + timeoutMillis;
+        final DrmaaDispatcher dispatcher=this.dispatcher;
+        int numAbandoned=0;
+        for(final Entry<DrmJobRecord, Future<DrmJobState>> entry : pending.entrySet()) {
+            final DrmJobRecord drmJobRecord=entry.getKey();
+            final String extJobId=drmJobRecord.getExtJobId();
+            DrmJobState jobState=null;
+            boolean timedOut=false;
+            if (entry.getValue() != null) {
+                try {
+                    if (timeoutMillis > 0L) {
+                        jobState=entry.getValue().get(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    }
+                    else {
+                        jobState=entry.getValue().get();
+                    }
+                }
+                catch (TimeoutException e) {
+                    if (dispatcher != null && dispatcher.abandon(timedCalls.get(drmJobRecord), entry.getValue())) {
+                        ++numAbandoned;
+                    }
+                    countTimeout(PROP_TIMEOUT_STATUS);
+                    timedOut=true;
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                catch (ExecutionException e) {
+                    log.debug("Error getting job program status, extJobId="+extJobId, e.getCause());
+                }
+            }
+            if (timedOut) {
+                log.debug("timed out getting job program status, extJobId="+extJobId);
+                statuses.put(extJobId, withProgress(extJobId, timedOutStatus(extJobId)));
+            }
+            else if (jobState != null && !isTerminal(jobState) && jobState != DrmJobState.UNDETERMINED) {
+                final DrmJobStatus status=new DrmJobStatus.Builder()
+                    .extJobId(extJobId)
+                    .jobState(jobState)
+                .build();
+                if (recentStatusCache != null) {
+                    recentStatusCache.put(extJobId, status);
+                }
+                statuses.put(extJobId, withProgress(extJobId, status));
+            }
+            else {
+                // completed since the drain, reconciled, or unknown; use the regular status check
+                statuses.put(extJobId, getStatus(drmJobRecord));
+            }
+        }
+        if (numAbandoned > 0) {
+            log.debug("abandoned "+numAbandoned+" status requests after timeout");
+            dispatcher.purge();
+        }
+        return statuses;
+    }
+
+    /**
+     * Reap all completed jobs from the session, without blocking. Called on the dispatcher thread, 
+     * this only saves the status from the JobInfo; call {@link #completeReapedJobs()} on the caller thread.
+     * @return the number of completed jobs
+     */
+    protected int drainCompletedJobs(final Session session) throws DrmaaException {
+        int count=0;
+        final int maxCount=getServerIntegerProperty(PROP_STATUS_CACHE_MAX_SIZE, DEFAULT_STATUS_CACHE_MAX_SIZE);
+        while(count < maxCount) {
+            final JobInfo jobInfo;
+            try {
+                jobInfo=session.wait(Session.JOB_IDS_SESSION_ANY, Session.TIMEOUT_NO_WAIT);
+            }
+            catch (ExitTimeoutException e) {
+                // no more completed jobs
+                break;
+            }
+            catch (InvalidJobException e) {
+                // no jobs in the session
+                break;
+            }
+            if (jobInfo==null) {
+                break;
+            }
+            reapedStatuses.put(jobInfo.getJobId(), initStatusFromJobInfo(jobInfo));
+            ++count;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("drained "+count+" completed jobs");
+        }
+        return count;
+    }
+
+    /**
+     * Complete all of the reaped jobs. The statuses are also kept in the unpolled statuses until the 
+     * first getStatus for the job, so that a job which is not part of the current getStatuses call 
+     * is not lost when the cache evicts it.
+     * @return the number of completed jobs
+     */
+    protected int completeReapedJobs() {
+        int count=0;
+        for(final String extJobId : reapedStatuses.keySet()) {
+            if (completeReapedJob(extJobId, true) != null) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Complete a job which was reaped by session.wait on the dispatcher thread, at most once.
+     * A concurrent caller for the same job waits for the completion, and gets the completed status.
+     * @param unpolled, see {@link #completeJob(String, DrmJobStatus, boolean)}
+     * @return the completed status, or null if the job was not reaped
+     */
+    protected DrmJobStatus completeReapedJob(final String extJobId, final boolean unpolled) {
+        final DrmJobStatus reaped=extJobId==null ? null : reapedStatuses.get(extJobId);
+        if (reaped==null) {
+            return null;
+        }
+        synchronized(reaped) {
+            if (reapedStatuses.get(extJobId) != reaped) {
+                // completed by another thread
+                return getCompletedStatus(extJobId);
+            }
+            try {
+                return completeJob(extJobId, reaped, unpolled);
+            }
+            finally {
+                reapedStatuses.remove(extJobId, reaped);
+            }
+        }
+    }
+
+    @Override
+    public boolean cancelJob(final DrmJobRecord drmJobRecord) throws Exception {
+        if (LocalJobLane.isLocalJobId(drmJobRecord.getExtJobId())) {
+            return getLocalJobLane().cancel(drmJobRecord.getExtJobId());
+        }
+        if (SubmissionTracker.isPendingJobId(drmJobRecord.getExtJobId())) {
+            if (submissionTracker.cancelPendingJob(drmJobRecord.getExtJobId())) {
+                return true;
+            }
+            final String extJobId=submissionTracker.resolveExtJobId(drmJobRecord.getExtJobId());
+            if (SubmissionTracker.isPendingJobId(extJobId)) {
+                // resolved to another placeholder, e.g. an in doubt submission
+                return submissionTracker.cancelPendingJob(extJobId);
+            }
+        }
+        final Session session=getSession();
+        final String extJobId=submissionTracker.resolveExtJobId(drmJobRecord.getExtJobId());
+        final boolean cancelled=callDrmaa(null, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return requestCancelJob(session, extJobId);
+            }
+        }, PROP_TIMEOUT_CANCEL);
+        if (cancelled) {
+            evictSubmittedJob(extJobId);
+        }
+        // GenePattern may not ask for the status of a cancelled job
+        unpolledStatuses.remove(extJobId);
+        stagingStatuses.remove(extJobId);
+        stagingMisses.remove(extJobId);
+        return cancelled;
+    }
+    
+    /**
+     * Resolve the status of the outstanding jobs in parallel, with at most 'job.ge.reconcile.numThreads' 
+     * concurrent requests. Results are cached until the next call to getStatus for the job.
+     * These jobs are not owned by the current session, so later status checks use 
+     * getJobProgramStatus and the accounting file rather than session.wait.
+     * 
+     * @param outstandingJobs
+     */
+    protected void reconcileJobs(final Collection<DrmJobRecord> outstandingJobs) {
+        if (outstandingJobs==null || outstandingJobs.isEmpty()) {
+            return;
+        }
+        final Session session;
+        try {
+            session=getSession();
+        }
+        catch (CommandExecutorException e) {
+            log.error("Error reconciling "+outstandingJobs.size()+" outstanding jobs", e);
+            return;
+        }
+        final JobAccounting accounting=new JobAccounting(getServerProperty(PROP_ACCOUNTING_CMD, JobAccounting.DEFAULT_CMD), JobAccounting.DEFAULT_TIMEOUT);
+        log.info("reconciling "+outstandingJobs.size()+" outstanding jobs");
+        final ExecutorService exec=getReconcileExecutor();
+        for(final DrmJobRecord drmJobRecord : outstandingJobs) {
+            final String extJobId=drmJobRecord.getExtJobId();
+            if (Strings.isNullOrEmpty(extJobId)) {
+                continue;
+            }
+            reconciledJobIds.add(extJobId);
+            reconciledStatus.put(extJobId, exec.submit(new Callable<DrmJobStatus>() {
+                @Override
+                public DrmJobStatus call() throws Exception {
+                    return reconcileStatus(session, accounting, extJobId);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Get the executor for the startup reconciliation, with at most 'job.ge.reconcile.numThreads' threads, 
+     * shared by all calls to reconcileJobs; idle threads time out.
+     */
+    protected synchronized ExecutorService getReconcileExecutor() {
+        if (reconcileExecutor==null) {
+            final int numThreads=Math.max(1, getServerIntegerProperty(PROP_RECONCILE_NUM_THREADS, DEFAULT_RECONCILE_NUM_THREADS));
+            final ThreadPoolExecutor exec=new ThreadPoolExecutor(numThreads, numThreads, 60L, TimeUnit.SECONDS, 
+                    new LinkedBlockingQueue<Runnable>(), 
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("drmaa_v1-reconcile-%d").build());
+            exec.allowCoreThreadTimeOut(true);
+            reconcileExecutor=exec;
+        }
+        return reconcileExecutor;
+    }
+    
+    /**
+     * A queued job which was not submitted by the current session, e.g. after a server restart, 
+     * or which has already completed; session.wait can't find such a job.
+     */
+    protected boolean isForeignJobId(final String extJobId) {
+        return extJobId != null && !sessionJobIds.contains(extJobId) &&
+                !LocalJobLane.isLocalJobId(extJobId) && !SubmissionTracker.isPendingJobId(extJobId);
+    }
+
+    /**
+     * Get the status for a job which was submitted by a previous session, 
+     * using the cached result from the startup reconciliation when available.
+     * A job which is neither in the queue nor in the accounting file is reported as RUNNING
+     * until the 'job.ge.accounting.grace' period has passed.
+     * @param gpJobNo, optional, to remove the job from the submission index when it is done
+     */
+    protected DrmJobStatus getReconciledStatus(final Session session, final Integer gpJobNo, final String extJobId) {
+        DrmJobStatus status=null;
+        final Future<DrmJobStatus> f=reconciledStatus.remove(extJobId);
+        if (f != null) {
+            try {
+                status=f.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e) {
+                log.error("Error reconciling status for extJobId="+extJobId, e.getCause());
+            }
+        }
+        if (status==null && isAccountingMissCached(extJobId)) {
+            // not found in the last lookup, check again when the grace period has passed
+            return accountingMiss(extJobId);
+        }
+        if (status==null) {
+            final JobAccounting accounting=new JobAccounting(getServerProperty(PROP_ACCOUNTING_CMD, JobAccounting.DEFAULT_CMD), JobAccounting.DEFAULT_TIMEOUT);
+            status=reconcileStatus(session, accounting, extJobId);
+        }
+        if (status==null) {
+            status=accountingMiss(extJobId);
+            if (!reconciledJobIds.contains(extJobId) && gpJobNo != null) {
+                // gave up waiting for the accounting record
+                submissionTracker.getSubmissionIndex().remove(gpJobNo, extJobId);
+            }
+            return status;
+        }
+        accountingMisses.remove(extJobId);
+        if (isTerminal(status.getJobState())) {
+            completeJob(extJobId, status);
+            reconciledJobIds.remove(extJobId);
+            if (gpJobNo != null) {
+                // completeJob only removes the entry for a job which was submitted by this session
+                submissionTracker.getSubmissionIndex().remove(gpJobNo, extJobId);
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Was the reconciled job missing from the accounting file within the 'job.ge.accounting.grace' period?
+     * The negative result is cached for the grace period, so that each status check in the meantime 
+     * doesn't run the accounting command again.
+     */
+    protected boolean isAccountingMissCached(final String extJobId) {
+        final Long firstMiss=accountingMisses.get(extJobId);
+        if (firstMiss==null) {
+            return false;
+        }
+        final long graceMillis=getServerIntegerProperty(PROP_ACCOUNTING_GRACE, DEFAULT_ACCOUNTING_GRACE) * 1000L;
+        return System.currentTimeMillis() - firstMiss < graceMillis;
+    }
+
+    /**
+     * The status for a reconciled job which is neither in the queue nor in the accounting file,
+     * e.g. the accounting record has not been written yet.
+     */
+    protected DrmJobStatus accountingMiss(final String extJobId) {
+        final long now=System.currentTimeMillis();
+        final Long prev=accountingMisses.putIfAbsent(extJobId, now);
+        final long firstMiss=prev==null ? now : prev;
+        final long graceMillis=getServerIntegerProperty(PROP_ACCOUNTING_GRACE, DEFAULT_ACCOUNTING_GRACE) * 1000L;
+        if (now - firstMiss < graceMillis) {
+            // don't report UNDETERMINED, which flags the job as cancelled
+            return new DrmJobStatus.Builder()
+                .extJobId(extJobId)
+                .jobState(DrmJobState.RUNNING)
+                .jobStatusMessage("job is no longer in the queue, waiting for the accounting record")
+            .build();
+        }
+        accountingMisses.remove(extJobId);
+        reconciledJobIds.remove(extJobId);
+        return new DrmJobStatus.Builder()
+            .extJobId(extJobId)
+            .jobState(DrmJobState.UNDETERMINED)
+            .jobStatusMessage("job not found in queue or accounting file")
+        .build();
+    }
+
+    /**
+     * Resolve the status of a job which is not owned by the current session. 
+     * Use getJobProgramStatus for jobs which are still known by the qmaster,
+     * otherwise get the resource usage for the completed job from the accounting file.
+     * 
+     * @return the status, or null if the job could not be found
+     */
+    protected DrmJobStatus reconcileStatus(final Session session, final JobAccounting accounting, final String extJobId) {
+        try {
+            final DrmJobState gpState=callDrmaa("requestDrmJobState:"+extJobId, new Callable<DrmJobState>() {
+                @Override
+                public DrmJobState call() throws Exception {
+                    return requestDrmJobState(session, extJobId);
+                }
+            });
+            if (!isTerminal(gpState) && gpState != DrmJobState.UNDETERMINED) {
+                return new DrmJobStatus.Builder()
+                    .extJobId(extJobId)
+                    .jobState(gpState)
+                .build();
+            }
+        }
+        catch (InvalidJobException e) {
+            log.debug("job is no longer in the queue, extJobId="+extJobId);
+        }
+        catch (DrmaaException e) {
+            log.error("Error getting job program status, extJobId="+extJobId, e);
+        }
+        final Map<String,String> usage=accounting.getUsage(extJobId);
+        if (usage.isEmpty()) {
+            return null;
+        }
+        return initStatusFromUsage(extJobId, usage);
+    }
+
+    /**
+     * Create a completed job status from the 'exit_status' and 'failed' entries in the accounting record.
+     */
+    protected DrmJobStatus initStatusFromUsage(final String extJobId, final Map<String,String> usage) {
+        final DrmJobStatus.Builder b=new DrmJobStatus.Builder()
+            .extJobId(extJobId);
+        logUsageStats(b, usage);
+        Integer exitStatus=null;
+        final Double d=Doubles.tryParse(Strings.nullToEmpty(usage.get("exit_status")));
+        if (d != null) {
+            exitStatus=d.intValue();
+            b.exitCode(exitStatus);
+        }
+        // e.g. 'failed 100 : assumedly after job'
+        final String failed=Strings.nullToEmpty(usage.get("failed")).trim();
+        if (failed.length()>0 && !failed.startsWith("0")) {
+            b.jobState(DrmJobState.FAILED);
+            b.jobStatusMessage("failed: "+failed);
+        }
+        else if (exitStatus != null && exitStatus==0) {
+            b.jobState(DrmJobState.DONE);
+        }
+        else {
+            b.jobState(DrmJobState.FAILED);
+        }
+        return b.build();
+    }
+
+    /**
+     * Record the final status of a completed job; add it to the completed status cache
+     * and update the usage history for jobs which were submitted by this runner.
+     */
+    protected DrmJobStatus completeJob(final String extJobId, final DrmJobStatus jobStatus) {
+        return completeJob(extJobId, jobStatus, false);
+    }
+
+    /**
+     * @param unpolled, true if the status has not been requested yet, see {@link #getCompletedStatus(String)}
+     */
+    protected DrmJobStatus completeJob(final String extJobId, final DrmJobStatus jobStatus, final boolean unpolled) {
+        if (isStagingPending(extJobId, submittedJobs.get(extJobId), jobStatus)) {
+            return stagingStatus(extJobId);
+        }
+        // session.wait can't find the job again, a later status check uses the accounting file
+        sessionJobIds.remove(extJobId);
+        final SubmittedJob submittedJob=submittedJobs.remove(extJobId);
+        if (submittedJob != null && submittedJob.getJobSubmission().getGpJobNo() != null) {
+            submissionTracker.getSubmissionIndex().remove(submittedJob.getJobSubmission().getGpJobNo(), extJobId);
+        }
+        DrmJobStatus status=checkStaging(submittedJob, 
+                withCpuEfficiency(withSampledUsage(submittedJob, jobStatus), submittedJob==null ? null : submittedJob.getNumSlots()));
+        if (submittedJob != null) {
+            deleteJobFiles(submittedJob.getJobSubmission().getWorkingDir());
+            recordUsage(submittedJob, status);
+            final DrmJobStatus resubmitted=checkResubmit(submittedJob, status);
+            if (resubmitted != null) {
+                return resubmitted;
+            }
+            status=withAttemptHistory(submittedJob.getJobSubmission().getGpJobNo(), status);
+        }
+        if (unpolled) {
+            // before the cache, so that a concurrent poll does not leave a stale entry
+            unpolledStatuses.put(extJobId, status);
+        }
+        getCompletedStatusCache().put(extJobId, status);
+        return status;
+    }
+
+    /**
+     * Automatically resubmit a job which was killed for exceeding its walltime or memory limit,
+     * see 'job.ge.walltime.maxRetries' and 'job.ge.oom.resubmit'.
+     * @return the status of the placeholder for the new attempt, or null if the job is not resubmitted
+     */
+    protected DrmJobStatus checkResubmit(final SubmittedJob submittedJob, final DrmJobStatus status) {
+        final DrmJobSubmission jobSubmission=submittedJob.getJobSubmission();
+        final Integer gpJobNo=jobSubmission.getGpJobNo();
+        if (gpJobNo==null) {
+            return null;
+        }
+        final JobAttempts prevAttempts=submissionTracker.getSubmissionIndex().getAttempts(gpJobNo);
+        if (isWalltimeExceeded(status, submittedJob.getWalltimeLimit())) {
+            final int maxRetries=getIntegerProperty(jobSubmission, PROP_WALLTIME_MAX_RETRIES, 1);
+            if (prevAttempts==null || prevAttempts.getNumRetries("walltime") < maxRetries) {
+                final double retryFactor=getDoubleProperty(jobSubmission, PROP_WALLTIME_RETRY_FACTOR, 2.0);
+                final long walltimeLimit=(long) Math.ceil(submittedJob.getWalltimeLimit() * Math.max(1.0, retryFactor));
+                final String reason="walltime limit exceeded, h_rt="+formatWalltime(submittedJob.getWalltimeLimit());
+                final JobAttempts attempts=getJobAttempts(submittedJob);
+                final String description="extJobId="+submittedJob.getExtJobId()+": "+reason;
+                attempts.addFailedAttempt("walltime", description);
+                attempts.setWalltimeLimit(walltimeLimit);
+                submissionTracker.getSubmissionIndex().saveFailedAttempt(attempts, "walltime", description);
+                return submissionTracker.scheduleResubmit(submittedJob, reason);
+            }
+        }
+        // independent of the walltime check, e.g. when the walltime retries are used up
+        if (Util.getGPBooleanProperty(jobSubmission, PROP_OOM_RESUBMIT, false) && isOutOfMemory(status, submittedJob.getMemoryLimit(), 
+                getDoubleProperty(jobSubmission, PROP_OOM_THRESHOLD, 0.9))) 
+        {
+            final int maxRetries=getIntegerProperty(jobSubmission, PROP_OOM_MAX_RETRIES, 1);
+            final long memoryLimit=getEscalatedMemory(jobSubmission, submittedJob.getMemoryLimit());
+            if ((prevAttempts==null || prevAttempts.getNumRetries("memory") < maxRetries) && memoryLimit > submittedJob.getMemoryLimit()) {
+                final String reason="memory limit exceeded, maxvmem="+formatMemoryPerSlot(status.getMemory().getNumBytes(), 1, "m")+
+                        ", requested="+formatMemoryPerSlot(submittedJob.getMemoryLimit(), 1, "m");
+                final JobAttempts attempts=getJobAttempts(submittedJob);
+                final String description="extJobId="+submittedJob.getExtJobId()+": "+reason;
+                attempts.addFailedAttempt("memory", description);
+                attempts.setMemory(memoryLimit);
+                submissionTracker.getSubmissionIndex().saveFailedAttempt(attempts, "memory", description);
+                return submissionTracker.scheduleResubmit(submittedJob, reason);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The final status of a job, with the history of its previous attempts, if any.
+     */
+    protected DrmJobStatus withAttemptHistory(final Integer gpJobNo, final DrmJobStatus status) {
+        final JobAttempts attempts=gpJobNo==null ? null : submissionTracker.getSubmissionIndex().removeAttempts(gpJobNo);
+        if (attempts != null) {
+            return withJobStatusMessage(status, joinStatusMessage(status.getJobStatusMessage(), 
+                    "previous attempts: "+Joiner.on("; ").join(attempts.getHistory())));
+        }
+        return status;
+    }
+
+    /** get or create the chain of attempts for the job */
+    protected JobAttempts getJobAttempts(final SubmittedJob submittedJob) {
+        final Integer gpJobNo=submittedJob.getJobSubmission().getGpJobNo();
+        return submissionTracker.getSubmissionIndex().getOrCreateAttempts(gpJobNo, submittedJob.getExtJobId());
+    }
+
+    protected static String joinStatusMessage(final String message, final String suffix) {
+        if (Strings.isNullOrEmpty(message)) {
+            return suffix;
+        }
+        return message+"; "+suffix;
+    }
+
+    /** copy the status, replacing the jobStatusMessage */
+    protected static DrmJobStatus withJobStatusMessage(final DrmJobStatus status, final String message) {
+        return copyOf(status)
+            .jobStatusMessage(message)
+        .build();
+    }
+
+    /** initialize a builder with the values from the given status */
+    protected static DrmJobStatus.Builder copyOf(final DrmJobStatus status) {
+        return new DrmJobStatus.Builder()
+            .extJobId(status.getDrmJobId())
+            .jobState(status.getJobState())
+            .jobStatusMessage(status.getJobStatusMessage())
+            .exitCode(status.getExitCode())
+            .terminatingSignal(status.getTerminatingSignal())
+            .submitTime(status.getSubmitTime())
+            .startTime(status.getStartTime())
+            .endTime(status.getEndTime())
+            .cpuTime(status.getCpuTime())
+            .memory(status.getMemory())
+            .maxSwap(status.getMaxSwap())
+            .maxProcesses(status.getMaxProcesses())
+            .maxThreads(status.getMaxThreads())
+            .resourceUsage(status.getResourceUsage())
+            .queueId(status.getQueueId());
+    }
+
+    /**
+     * Get the cpu efficiency, cpu / (wallclock * slots), of a completed job.
+     * @param status
+     * @param numSlots, the number of requested slots, when null use the 'slots' from the resource usage
+     * @return the efficiency, or null if the cpu or wallclock is not available
+     */
+    protected static Double getCpuEfficiency(final DrmJobStatus status, final Integer numSlots) {
+        final Double cpu=getUsageValue(status, "cpu");
+        final Double wallclock=getUsageValue(status, "wallclock");
+        if (cpu==null || wallclock==null || wallclock <= 0.0) {
+            return null;
+        }
+        Double slots=numSlots==null ? getUsageValue(status, "slots") : new Double(numSlots);
+        if (slots==null || slots < 1.0) {
+            slots=1.0;
+        }
+        return cpu / (wallclock * slots);
+    }
+
+    /** add the 'cpu_efficiency' to the resource usage of a completed job */
+    protected static DrmJobStatus withCpuEfficiency(final DrmJobStatus status, final Integer numSlots) {
+        if (status==null || status.getResourceUsage()==null || status.getResourceUsage().containsKey("cpu_efficiency")) {
+            return status;
+        }
+        final Double efficiency=getCpuEfficiency(status, numSlots);
+        if (efficiency==null) {
+            return status;
+        }
+        final Map<String,String> usage=new TreeMap<String,String>(status.getResourceUsage());
+        usage.put("cpu_efficiency", String.format("%.4f", efficiency));
+        return copyOf(status)
+            .resourceUsage(usage)
+        .build();
+    }
+
+    /**
+     * Was the job killed for exceeding its memory limit? 
+     * Grid Engine sends SIGKILL when a memory limit (e.g. h_vmem or m_mem_free) is exceeded, 
+     * reported as exit code 137 or as the terminating signal, and the peak memory is close to the request.
+     * 
+     * @param status, the status of the completed job
+     * @param memoryLimit, the requested memory in bytes
+     * @param threshold, the minimum ratio of maxvmem to the requested memory
+     */
+    protected static boolean isOutOfMemory(final DrmJobStatus status, final Long memoryLimit, final double threshold) {
+        if (memoryLimit==null || status.getJobState() != DrmJobState.FAILED) {
+            return false;
+        }
+        final Integer exitCode=status.getExitCode();
+        final String signal=Strings.nullToEmpty(status.getTerminatingSignal());
+        final boolean killed=(exitCode != null && exitCode==137) || signal.endsWith("KILL");
+        if (!killed) {
+            return false;
+        }
+        final Memory maxvmem=status.getMemory();
+        return maxvmem != null && maxvmem.getNumBytes() >= threshold * memoryLimit;
+    }
+
+    /**
+     * Get the memory for the next attempt, the requested memory times the 'job.ge.oom.memoryFactor',
+     * but not more than the 'job.ge.oom.maxMemory'.
+     */
+    protected static long getEscalatedMemory(final DrmJobSubmission jobSubmission, final long memoryLimit) {
+        final double memoryFactor=getDoubleProperty(jobSubmission, PROP_OOM_MEMORY_FACTOR, 2.0);
+        long escalated=(long) Math.ceil(memoryLimit * Math.max(1.0, memoryFactor));
+        final Memory maxMemory=getMemoryProperty(jobSubmission, PROP_OOM_MAX_MEMORY);
+        if (maxMemory != null) {
+            escalated=Math.min(escalated, maxMemory.getNumBytes());
+        }
+        return escalated;
+    }
+
+    /**
+     * Was the job killed for exceeding its walltime limit? 
+     * Grid Engine sends SIGKILL when the h_rt limit is reached, reported as exit code 137 
+     * or as the terminating signal, and the wallclock time is (close to) the limit.
+     */
+    protected static boolean isWalltimeExceeded(final DrmJobStatus status, final Long walltimeLimit) {
+        if (walltimeLimit==null || status.getJobState() != DrmJobState.FAILED) {
+            return false;
         }
-        catch (Throwable t) {
-            log.error("Error getting status for gpJobNo="+drmJobRecord.getGpJobNo(), t);
-            return new DrmJobStatus.Builder()
-                .extJobId(drmJobRecord.getExtJobId())
-                .jobState(DrmJobState.UNDETERMINED)
-                .jobStatusMessage("job queue error: "+t.getLocalizedMessage())
-            .build();
+        final Integer exitCode=status.getExitCode();
+        final String signal=Strings.nullToEmpty(status.getTerminatingSignal());
+        final boolean killed=(exitCode != null && (exitCode==137 || exitCode==152)) || 
+                signal.endsWith("KILL") || signal.endsWith("XCPU");
+        if (!killed) {
+            return false;
         }
-        
+        final Double wallclock=getUsageValue(status, "wallclock");
+        return wallclock != null && wallclock >= 0.95 * walltimeLimit;
+    }
 
+    /** get a numerical value from the resource usage map of a completed job, e.g. 'wallclock' */
+    protected static Double getUsageValue(final DrmJobStatus status, final String key) {
+        final Map<String,String> usage=status.getResourceUsage();
+        if (usage==null) {
+            return null;
+        }
+        return Doubles.tryParse(Strings.nullToEmpty(usage.get(key)).trim());
     }
 
-    @Override
-    public boolean cancelJob(DrmJobRecord drmJobRecord) throws Exception {
-        final Session session=getSession();
-        return requestCancelJob(session, drmJobRecord.getExtJobId());
+    protected void recordUsage(final SubmittedJob submittedJob, final DrmJobStatus status) {
+        if (submittedJob.getMemoryHistoryKey() != null && status.getJobState()==DrmJobState.DONE && status.getMemory() != null) {
+            memoryHistory.add(submittedJob.getMemoryHistoryKey(), status.getMemory().getNumBytes() / (1024.0*1024.0));
+        }
+        if (submittedJob.getWalltimeHistoryKey() != null && status.getJobState()==DrmJobState.DONE) {
+            final Double wallclock=getUsageValue(status, "wallclock");
+            if (wallclock != null) {
+                walltimeHistory.add(submittedJob.getWalltimeHistoryKey(), wallclock);
+            }
+        }
+        addUsageSketches(Util.getTaskName(submittedJob.getJobSubmission()), status);
+        if (submittedJob.getQueue() != null && status.getSubmitTime() != null && status.getStartTime() != null) {
+            getQueueWaitStats().add(submittedJob.getQueue(), status.getStartTime().getTime() - status.getSubmitTime().getTime());
+        }
+        if (submittedJob.getCpuHistoryKey() != null && status.getJobState()==DrmJobState.DONE) {
+            final Double cpu=getUsageValue(status, "cpu");
+            final Double wallclock=getUsageValue(status, "wallclock");
+            final int minWallclock=getIntegerProperty(submittedJob.getJobSubmission(), PROP_PE_DOWNSIZE_MIN_WALLCLOCK, 60);
+            if (cpu != null && wallclock != null && wallclock > 0.0 && wallclock >= minWallclock) {
+                cpuHistory.add(submittedJob.getCpuHistoryKey(), cpu / wallclock);
+            }
+        }
+    }
+
+    protected static boolean isTerminal(final DrmJobState jobState) {
+        return jobState==DrmJobState.DONE || jobState==DrmJobState.FAILED || jobState==DrmJobState.ABORTED;
     }
     
     protected Session initSession() throws DrmaaException {
@@ -226,6 +2178,9 @@ public class DrmaaV1JobRunner implements JobRunner {
             if (this.sessionInitError != null) {
                 throw new CommandExecutorException("DRMAA configuration error", sessionInitError);
             }
+            else if (this.sessionState==SessionState.INITIALIZING) {
+                throw new CommandExecutorException("session is initializing");
+            }
             else {
                 throw new CommandExecutorException("session is not initialized");
             }
@@ -325,17 +2280,17 @@ public class DrmaaV1JobRunner implements JobRunner {
             rval.add(""+priority);
         }
         
-        // optionally set the memory flag
-        if (jobSubmission.getMemory() != null) {
-            //-l m_mem_free=Xg
-            rval.add("-l");
-            rval.add("m_mem_free="+((long)Math.ceil(jobSubmission.getMemory().numGb()))+"g");
-        }
+        // optionally set the memory flag, -l m_mem_free=Xg
+        rval.addAll(getMemoryFlags(jobSubmission));
+        
+        // optionally set the walltime limit, -l h_rt=hh:mm:ss
+        rval.addAll(getWalltimeFlags(jobSubmission));
         
         // optionally set the queue flag
-        if (!Strings.isNullOrEmpty(jobSubmission.getQueue())) {
+        final String queue=getQueue(jobSubmission);
+        if (!Strings.isNullOrEmpty(queue)) {
             rval.add("-q");
-            rval.add(jobSubmission.getQueue());
+            rval.add(queue);
         }
         
         // optionally set the project flag
@@ -351,38 +2306,654 @@ public class DrmaaV1JobRunner implements JobRunner {
         // optionally set complex attributes, -l {resource}={value}
         rval.addAll(getCustomResourceFlags(jobSubmission));
         
+        // optionally request a complex value based on the location of the input files
+        rval.addAll(getLocalityFlags(jobSubmission));
+        
         // optionally add any extra args
         final List<String> extraArgs=jobSubmission.getExtraArgs();
         if (extraArgs != null) { 
             rval.addAll(extraArgs);
         }
-        return rval;
+        return rval;
+    }
+
+    /**
+     * Helper method to deal with two possible flags:
+     *     job.cpuCount and job.nodeCount
+     *     
+     * @param jobSubmission
+     * @return
+     */
+    protected Integer getNumCores(final DrmJobSubmission jobSubmission) {
+        Integer nodeCount=jobSubmission.getNodeCount();
+        Integer cpuCount=jobSubmission.getCpuCount();
+        if (cpuCount==nodeCount) return cpuCount;
+        if (nodeCount==null && cpuCount !=null) return cpuCount;
+        if (cpuCount==null && nodeCount !=null) return nodeCount;
+        
+        // special-case: both set, but they differ        
+        return Math.max(nodeCount, cpuCount); 
+    }
+    
+    protected UsageHistory getCpuHistory() {
+        return cpuHistory;
+    }
+
+    /**
+     * Get the usage sketches; on first use, load the last snapshot, register the MBean and 
+     * schedule periodic snapshots.
+     */
+    public synchronized UsageSketches getUsageSketches() {
+        if (usageSketches != null) {
+            return usageSketches;
+        }
+        final String path=getServerProperty(PROP_USAGE_SKETCHES_FILE, null);
+        File snapshotFile=null;
+        if (!Strings.isNullOrEmpty(path)) {
+            snapshotFile=new File(path);
+        }
+        else if (getGpConfig() != null && getGpConfig().getResourcesDir() != null) {
+            snapshotFile=new File(getGpConfig().getResourcesDir(), "drmaa_v1_usage_sketches.bin");
+        }
+        usageSketches=new UsageSketches(getServerIntegerProperty(PROP_USAGE_SKETCHES_MAX_MODULES, 2000), snapshotFile);
+        if (snapshotFile != null && snapshotFile.isFile()) {
+            try {
+                final int numModules=usageSketches.read(snapshotFile);
+                log.info("loaded usage sketches for "+numModules+" modules from "+snapshotFile);
+            }
+            catch (Throwable t) {
+                log.error("Error loading usage sketches from "+snapshotFile, t);
+            }
+        }
+        registerMBean("UsageSketches", usageSketches);
+        final int interval=getServerIntegerProperty(PROP_USAGE_SKETCHES_SNAPSHOT_INTERVAL, 300);
+        if (snapshotFile != null && interval > 0) {
+            final UsageSketches sketches=usageSketches;
+            usageSketchesTimer=Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("drmaa_v1-usage-snapshot-%d").build());
+            usageSketchesTimer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sketches.snapshot();
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+        return usageSketches;
+    }
+
+    /** write a final snapshot, unregister the MBean */
+    protected synchronized void stopUsageSketches() {
+        if (usageSketchesTimer != null) {
+            usageSketchesTimer.shutdownNow();
+            try {
+                // don't race a periodic snapshot which is still writing the file
+                if (!usageSketchesTimer.awaitTermination(10L, TimeUnit.SECONDS)) {
+                    log.warn("usage sketches snapshot did not finish before shutdown");
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            usageSketchesTimer=null;
+        }
+        usageSketches.snapshot();
+        unregisterMBean("UsageSketches");
+        usageSketches=null;
+    }
+
+    /**
+     * Get the name of an MBean of this runner instance, so that the MBeans of two instances in the same 
+     * server don't replace each other.
+     * @param type, e.g. 'UsageSketches'
+     */
+    protected ObjectName getMBeanName(final String type) throws MalformedObjectNameException {
+        return new ObjectName(MBEAN_DOMAIN+":type="+type+",instance="+instanceId);
+    }
+
+    protected void registerMBean(final String type, final Object mbean) {
+        try {
+            final MBeanServer mbs=ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name=getMBeanName(type);
+            if (mbs.isRegistered(name)) {
+                mbs.unregisterMBean(name);
+            }
+            mbs.registerMBean(mbean, name);
+        }
+        catch (Throwable t) {
+            log.error("Error registering MBean, type="+type, t);
+        }
+    }
+
+    protected void unregisterMBean(final String type) {
+        try {
+            final MBeanServer mbs=ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name=getMBeanName(type);
+            if (mbs.isRegistered(name)) {
+                mbs.unregisterMBean(name);
+            }
+        }
+        catch (Throwable t) {
+            log.error("Error unregistering MBean, type="+type, t);
+        }
+    }
+
+    /** add the resource usage of a completed job to the sketches for the module */
+    protected void addUsageSketches(final String module, final DrmJobStatus status) {
+        if (module==null) {
+            return;
+        }
+        final UsageSketches sketches=getUsageSketches();
+        sketches.add(module, UsageSketches.WALLCLOCK, getUsageValue(status, "wallclock"));
+        sketches.add(module, UsageSketches.CPU, getUsageValue(status, "cpu"));
+        sketches.add(module, UsageSketches.IO, getUsageValue(status, "io"));
+        if (status.getMemory() != null) {
+            sketches.add(module, UsageSketches.MAXVMEM, status.getMemory().getNumBytes() / (1024.0*1024.0));
+        }
+        if (status.getSubmitTime() != null && status.getStartTime() != null) {
+            sketches.add(module, UsageSketches.QUEUE_WAIT, (status.getStartTime().getTime() - status.getSubmitTime().getTime()) / 1000.0);
+        }
+    }
+
+    protected synchronized QueueWaitStats getQueueWaitStats() {
+        if (queueWaitStats==null) {
+            final int halfLife=getServerIntegerProperty(PROP_QUEUE_HALF_LIFE, 3600);
+            queueWaitStats=new QueueWaitStats(Math.max(1, halfLife) * 1000L);
+        }
+        return queueWaitStats;
+    }
+    
+    /** the most recent queue selection decisions, oldest first */
+    public List<String> getQueueDecisions() {
+        synchronized(queueDecisions) {
+            return new ArrayList<String>(queueDecisions);
+        }
+    }
+    
+    /**
+     * Get the queue for the job, the 'job.queue', or when 'job.ge.queue.candidates' is set, 
+     * the candidate with the lowest expected wait.
+     * @return the queue, or null if not set
+     */
+    protected String getQueue(final DrmJobSubmission jobSubmission) {
+        final Value candidatesValue=jobSubmission.getValue(PROP_QUEUE_CANDIDATES);
+        final List<String> candidates=candidatesValue==null ? null : candidatesValue.getValues();
+        if (candidates==null || candidates.isEmpty()) {
+            return jobSubmission.getQueue();
+        }
+        final String defaultQueue=!Strings.isNullOrEmpty(jobSubmission.getQueue()) && candidates.contains(jobSubmission.getQueue()) ?
+                jobSubmission.getQueue() : candidates.get(0);
+        final double percentile=getDoubleProperty(jobSubmission, PROP_QUEUE_PERCENTILE, 50.0);
+        final int minSamples=Math.max(1, getIntegerProperty(jobSubmission, PROP_QUEUE_MIN_SAMPLES, 5));
+        final QueueWaitStats stats=getQueueWaitStats();
+        final List<String> estimates=new ArrayList<String>();
+        final List<String> unknown=new ArrayList<String>();
+        String selected=null;
+        long minWait=Long.MAX_VALUE;
+        for(final String candidate : candidates) {
+            final Long waitMillis=stats.getWeight(candidate) < minSamples ? null : stats.getWaitMillis(candidate, percentile);
+            estimates.add(candidate+"="+(waitMillis==null ? "?" : (waitMillis/1000L)+"s"));
+            if (waitMillis==null) {
+                unknown.add(candidate);
+            }
+            else if (waitMillis < minWait) {
+                selected=candidate;
+                minWait=waitMillis;
+            }
+        }
+        final double exploreRate=getDoubleProperty(jobSubmission, PROP_QUEUE_EXPLORE_RATE, 0.1);
+        boolean explore=false;
+        if (!unknown.isEmpty() && exploreRate > 0.0) {
+            synchronized(queueRandom) {
+                if (queueRandom.nextDouble() < exploreRate) {
+                    selected=unknown.get(queueRandom.nextInt(unknown.size()));
+                    explore=true;
+                }
+            }
+        }
+        if (selected==null) {
+            selected=defaultQueue;
+        }
+        final String decision="gpJobNo="+jobSubmission.getGpJobNo()+", module="+Util.getTaskName(jobSubmission)+
+                ", p"+(int)percentile+" wait: "+estimates+", selected="+selected+(explore ? " (explore)" : "");
+        queueSelectionLog.info(decision);
+        synchronized(queueDecisions) {
+            queueDecisions.add(new Date()+": "+decision);
+        }
+        if (jobSubmission.getGpJobNo() != null) {
+            selectedQueues.put(jobSubmission.getGpJobNo(), selected);
+        }
+        return selected;
+    }
+    
+    /**
+     * Get the number of PE slots to request, the getNumCores, 
+     * optionally capped for modules with low cpu efficiency, see 'job.ge.pe.downsize'.
+     * 
+     * @param jobSubmission
+     * @return the number of slots, or null if not set
+     */
+    protected Integer getNumSlots(final DrmJobSubmission jobSubmission) {
+        final Integer numCores=getNumCores(jobSubmission);
+        if (numCores==null || numCores <= 1) {
+            return numCores;
+        }
+        // once per submission, for the memory and PE flags and the submitted job
+        final SubmissionInfo info=getSubmissionInfo(jobSubmission);
+        Integer numSlots=info.getNumSlots();
+        if (numSlots==null) {
+            numSlots=getDownsizedSlots(jobSubmission, numCores);
+            info.setNumSlots(numSlots);
+        }
+        return numSlots;
+    }
+
+    /**
+     * Get the number of slots for a parallel job, capped for modules with low cpu efficiency.
+     * @param numCores, the job.cpuCount
+     */
+    protected int getDownsizedSlots(final DrmJobSubmission jobSubmission, final int numCores) {
+        final String mode=jobSubmission.getProperty(PROP_PE_DOWNSIZE);
+        if (!("on".equalsIgnoreCase(mode) || "dryRun".equalsIgnoreCase(mode)) || Util.getGPBooleanProperty(jobSubmission, PROP_PE_DOWNSIZE_OVERRIDE, false)) {
+            return numCores;
+        }
+        final String key=Util.getTaskName(jobSubmission);
+        final int minSamples=getIntegerProperty(jobSubmission, PROP_PE_DOWNSIZE_MIN_SAMPLES, 10);
+        if (key==null || cpuHistory.count(key) < Math.max(1, minSamples)) {
+            return numCores;
+        }
+        final double percentile=getDoubleProperty(jobSubmission, PROP_PE_DOWNSIZE_PERCENTILE, 90.0);
+        final double threshold=getDoubleProperty(jobSubmission, PROP_PE_DOWNSIZE_THRESHOLD, 0.5);
+        final double headroom=getDoubleProperty(jobSubmission, PROP_PE_DOWNSIZE_HEADROOM, 1.5);
+        final double busyCores=cpuHistory.percentile(key, percentile);
+        if (busyCores / numCores >= threshold) {
+            return numCores;
+        }
+        final int numSlots=Math.max(1, Math.min(numCores, (int) Math.ceil(busyCores * headroom)));
+        final boolean dryRun="dryRun".equalsIgnoreCase(mode);
+        if (log.isDebugEnabled() || dryRun) {
+            log.info("downsize PE slots"+(dryRun ? " (dryRun)" : "")+", gpJobNo="+jobSubmission.getGpJobNo()+", module="+key+
+                ", samples="+cpuHistory.count(key)+", busyCores="+String.format("%.2f", busyCores)+
+                ", cpuCount="+numCores+", slots="+numSlots);
+        }
+        if (dryRun) {
+            return numCores;
+        }
+        return numSlots;
+    }
+
+    /**
+     * Get the [optional] memory flags as nativeSpec args based on the <job.memory>.
+     * By default, the total job.memory is divided by the number of slots for a parallel job,
+     * because Grid Engine charges consumable resources per slot. 
+     * 
+     * Example qsub command-line, for job.memory=16 Gb and job.cpuCount=8:
+     *     qsub -l m_mem_free=2048m -pe smp 8
+     *     
+     * With job.ge.memory.hard.resource=h_vmem and job.ge.memory.hard.factor=1.5:
+     *     qsub -l m_mem_free=2048m -l h_vmem=3072m -pe smp 8
+     */
+    protected List<String> getMemoryFlags(final DrmJobSubmission jobSubmission) {
+        final Long numBytes=getRequestedMemory(jobSubmission);
+        if (numBytes==null) {
+            return Collections.emptyList();
+        }
+        int numSlots=1;
+        if (Util.getGPBooleanProperty(jobSubmission, PROP_MEMORY_PER_SLOT, true)) {
+            final Integer numCores=getNumSlots(jobSubmission);
+            if (numCores != null && numCores > 1) {
+                numSlots=numCores;
+            }
+        }
+        final String units=getMemoryUnits(jobSubmission);
+        final String resource=Strings.isNullOrEmpty(jobSubmission.getProperty(PROP_MEMORY_RESOURCE)) ? "m_mem_free" : jobSubmission.getProperty(PROP_MEMORY_RESOURCE);
+        final List<String> rval=new ArrayList<String>();
+        rval.add("-l");
+        rval.add(resource+"="+formatMemoryPerSlot(numBytes, numSlots, units));
+
+        final String hardResource=jobSubmission.getProperty(PROP_MEMORY_HARD_RESOURCE);
+        if (!Strings.isNullOrEmpty(hardResource)) {
+            BigDecimal factor=getGPBigDecimalProperty(jobSubmission.getGpConfig(), jobSubmission.getJobContext(), PROP_MEMORY_HARD_FACTOR);
+            if (factor==null) {
+                factor=BigDecimal.ONE;
+            }
+            final long hardNumBytes=(long) Math.ceil(numBytes * factor.doubleValue());
+            rval.add("-l");
+            rval.add(hardResource+"="+formatMemoryPerSlot(hardNumBytes, numSlots, units));
+        }
+        return rval;
+    }
+    
+    /**
+     * Get the granularity of the memory request, the 'job.ge.memory.units' if it is set, otherwise 'm',
+     * so that rounding up doesn't inflate the request, e.g. 1.5 Gb is 1536m rather than 2g.
+     */
+    protected static String getMemoryUnits(final DrmJobSubmission jobSubmission) {
+        final String units=jobSubmission.getProperty(PROP_MEMORY_UNITS);
+        if (!Strings.isNullOrEmpty(units)) {
+            return units.trim();
+        }
+        return "m";
+    }
+    
+    /**
+     * Get the total memory to request for the job; a resubmitted job uses the memory for the attempt,
+     * otherwise the job.memory, optionally adjusted by 'job.ge.rightsize.memory'.
+     * @return the number of bytes, or null if no memory is requested
+     */
+    protected Long getRequestedMemory(final DrmJobSubmission jobSubmission) {
+        final Integer gpJobNo=jobSubmission.getGpJobNo();
+        final JobAttempts attempts=gpJobNo==null ? null : submissionTracker.getSubmissionIndex().getAttempts(gpJobNo);
+        if (attempts != null && attempts.getMemory() != null) {
+            return attempts.getMemory();
+        }
+        final Memory memory=jobSubmission.getMemory();
+        if (memory==null) {
+            return null;
+        }
+        // once per submission, for the native specification and the submitted job
+        final SubmissionInfo info=getSubmissionInfo(jobSubmission);
+        Long numBytes=info.getRightsizedMemory();
+        if (numBytes==null) {
+            numBytes=getRightsizedMemory(jobSubmission, memory.getNumBytes());
+            info.setRightsizedMemory(numBytes);
+        }
+        return numBytes;
+    }
+    
+    protected UsageHistory getMemoryHistory() {
+        return memoryHistory;
+    }
+    
+    protected boolean isRightsizeMemory(final DrmJobSubmission jobSubmission) {
+        final String mode=jobSubmission.getProperty(PROP_RIGHTSIZE_MEMORY);
+        return "on".equalsIgnoreCase(mode) || "dryRun".equalsIgnoreCase(mode);
+    }
+    
+    /**
+     * Get the key for the peak memory history, the module name and the input size bucket, e.g. 'ConvertLineEndings|31'.
+     * @return the key, or null if the module name is not available
+     */
+    protected String getMemoryHistoryKey(final DrmJobSubmission jobSubmission) {
+        final String taskName=Util.getTaskName(jobSubmission);
+        if (taskName==null) {
+            return null;
+        }
+        return taskName+"|"+Util.getSizeBucket(getInputSize(jobSubmission));
+    }
+    
+    protected SubmissionInfo getSubmissionInfo(final DrmJobSubmission jobSubmission) {
+        return submissionInfo.getUnchecked(jobSubmission);
+    }
+    
+    /**
+     * Get the input file paths for the job, parsed once per submission.
+     */
+    protected List<String> getInputPaths(final DrmJobSubmission jobSubmission) {
+        final SubmissionInfo info=getSubmissionInfo(jobSubmission);
+        List<String> inputPaths=info.getInputPaths();
+        if (inputPaths==null) {
+            inputPaths=Collections.unmodifiableList(Util.getInputPaths(jobSubmission));
+            info.setInputPaths(inputPaths);
+        }
+        return inputPaths;
+    }
+    
+    /**
+     * Get the total size in bytes of the input files for the job, 
+     * computed once per submission, because it checks each file on the (possibly remote) file system.
+     */
+    protected long getInputSize(final DrmJobSubmission jobSubmission) {
+        final SubmissionInfo info=getSubmissionInfo(jobSubmission);
+        Long inputSize=info.getInputSize();
+        if (inputSize==null) {
+            inputSize=Util.getInputSize(getInputPaths(jobSubmission));
+            info.setInputSize(inputSize);
+        }
+        return inputSize;
+    }
+    
+    /**
+     * Get the total memory to request for the job, 
+     * optionally adjusted based on the peak memory of previous runs, see 'job.ge.rightsize.memory'.
+     * 
+     * @param jobSubmission
+     * @param requestedBytes, the job.memory
+     * @return the number of bytes to request
+     */
+    protected long getRightsizedMemory(final DrmJobSubmission jobSubmission, final long requestedBytes) {
+        if (!isRightsizeMemory(jobSubmission) || Util.getGPBooleanProperty(jobSubmission, PROP_RIGHTSIZE_MEMORY_OVERRIDE, false)) {
+            return requestedBytes;
+        }
+        final String key=getMemoryHistoryKey(jobSubmission);
+        final int minSamples=getIntegerProperty(jobSubmission, PROP_RIGHTSIZE_MEMORY_MIN_SAMPLES, 10);
+        if (key==null || memoryHistory.count(key) < Math.max(1, minSamples)) {
+            return requestedBytes;
+        }
+        final double percentile=getDoubleProperty(jobSubmission, PROP_RIGHTSIZE_MEMORY_PERCENTILE, 95.0);
+        final double headroom=getDoubleProperty(jobSubmission, PROP_RIGHTSIZE_MEMORY_HEADROOM, 1.2);
+        final double peakMb=memoryHistory.percentile(key, percentile);
+        long recommended=(long) Math.ceil(peakMb * headroom * 1024.0 * 1024.0);
+        final Memory min=getMemoryProperty(jobSubmission, PROP_RIGHTSIZE_MEMORY_MIN);
+        if (min != null) {
+            recommended=Math.max(recommended, min.getNumBytes());
+        }
+        final Memory max=getMemoryProperty(jobSubmission, PROP_RIGHTSIZE_MEMORY_MAX);
+        if (max != null) {
+            recommended=Math.min(recommended, max.getNumBytes());
+        }
+        final boolean dryRun="dryRun".equalsIgnoreCase(jobSubmission.getProperty(PROP_RIGHTSIZE_MEMORY));
+        log.info("rightsize memory"+(dryRun ? " (dryRun)" : "")+", gpJobNo="+jobSubmission.getGpJobNo()+", key="+key+
+                ", samples="+memoryHistory.count(key)+", requested="+requestedBytes+", recommended="+recommended);
+        if (dryRun) {
+            return requestedBytes;
+        }
+        return recommended;
+    }
+    
+    protected UsageHistory getWalltimeHistory() {
+        return walltimeHistory;
+    }
+    
+    protected static String getWalltimeMode(final DrmJobSubmission jobSubmission) {
+        final String mode=jobSubmission.getProperty(PROP_WALLTIME_MODE);
+        return Strings.isNullOrEmpty(mode) ? "off" : mode.trim();
+    }
+    
+    protected boolean isPredictWalltime(final DrmJobSubmission jobSubmission) {
+        final String mode=getWalltimeMode(jobSubmission);
+        return "predict".equalsIgnoreCase(mode) || "dryRun".equalsIgnoreCase(mode);
+    }
+
+    /**
+     * Get the key for the wallclock history, the module name, e.g. 'ConvertLineEndings', 
+     * or the module name and user, e.g. 'ConvertLineEndings|test_user'.
+     * @return the key, or null if the module name is not available
+     */
+    protected String getWalltimeHistoryKey(final DrmJobSubmission jobSubmission) {
+        final String taskName=Util.getTaskName(jobSubmission);
+        if (taskName==null) {
+            return null;
+        }
+        if (Util.getGPBooleanProperty(jobSubmission, PROP_WALLTIME_PER_USER, false)) {
+            return taskName+"|"+Util.getUserId(jobSubmission);
+        }
+        return taskName;
+    }
+    
+    /**
+     * Get the walltime limit for the job, see 'job.ge.walltime.mode'. 
+     * A resubmitted job uses the limit for the attempt, otherwise the 'job.walltime' is used when it is set.
+     * 
+     * @return the limit in seconds, or null if there is no limit
+     */
+    protected Long getWalltimeLimit(final DrmJobSubmission jobSubmission) {
+        final String mode=getWalltimeMode(jobSubmission);
+        if ("off".equalsIgnoreCase(mode)) {
+            return null;
+        }
+        final Integer gpJobNo=jobSubmission.getGpJobNo();
+        final JobAttempts attempts=gpJobNo==null ? null : submissionTracker.getSubmissionIndex().getAttempts(gpJobNo);
+        if (attempts != null && attempts.getWalltimeLimit() != null) {
+            return attempts.getWalltimeLimit();
+        }
+        // once per submission, in prepareJob for the h_rt flag, reused for the submitted job
+        final SubmissionInfo info=getSubmissionInfo(jobSubmission);
+        if (!info.isWalltimeLimitSet()) {
+            info.setWalltimeLimit(initWalltimeLimit(jobSubmission, mode));
+        }
+        return info.getWalltimeLimit();
+    }
+
+    /**
+     * Compute the walltime limit from the 'job.walltime' or, in predict mode, from the walltime history.
+     */
+    protected Long initWalltimeLimit(final DrmJobSubmission jobSubmission, final String mode) {
+        final Integer gpJobNo=jobSubmission.getGpJobNo();
+        final Walltime walltime=jobSubmission.getWalltime();
+        if (walltime != null) {
+            return (long) Math.ceil(walltime.asMillis() / 1000.0);
+        }
+        if (!isPredictWalltime(jobSubmission)) {
+            return null;
+        }
+        final String key=getWalltimeHistoryKey(jobSubmission);
+        final int minSamples=getIntegerProperty(jobSubmission, PROP_WALLTIME_MIN_SAMPLES, 10);
+        if (key==null || walltimeHistory.count(key) < Math.max(1, minSamples)) {
+            return null;
+        }
+        final double percentile=getDoubleProperty(jobSubmission, PROP_WALLTIME_PERCENTILE, 95.0);
+        final double margin=getDoubleProperty(jobSubmission, PROP_WALLTIME_MARGIN, 1.5);
+        long predicted=(long) Math.ceil(walltimeHistory.percentile(key, percentile) * margin);
+        predicted=Math.max(predicted, getIntegerProperty(jobSubmission, PROP_WALLTIME_MIN, 600));
+        final int max=getIntegerProperty(jobSubmission, PROP_WALLTIME_MAX, -1);
+        if (max > 0) {
+            predicted=Math.min(predicted, max);
+        }
+        final boolean dryRun="dryRun".equalsIgnoreCase(mode);
+        if (log.isDebugEnabled() || dryRun) {
+            log.info("predicted walltime"+(dryRun ? " (dryRun)" : "")+", gpJobNo="+gpJobNo+", key="+key+
+                ", samples="+walltimeHistory.count(key)+", h_rt="+formatWalltime(predicted));
+        }
+        if (dryRun) {
+            return null;
+        }
+        return predicted;
+    }
+    
+    /**
+     * Get the [optional] walltime flags as nativeSpec args, e.g.
+     *     -l h_rt=1:30:00
+     *     -l h_rt=1:30:00 -l s_rt=1:25:30
+     */
+    protected List<String> getWalltimeFlags(final DrmJobSubmission jobSubmission) {
+        final Long walltimeLimit=getWalltimeLimit(jobSubmission);
+        if (walltimeLimit==null) {
+            return Collections.emptyList();
+        }
+        final List<String> rval=new ArrayList<String>();
+        rval.add("-l");
+        rval.add("h_rt="+formatWalltime(walltimeLimit));
+        if (Util.getGPBooleanProperty(jobSubmission, PROP_WALLTIME_SOFT, false)) {
+            rval.add("-l");
+            rval.add("s_rt="+formatWalltime((long) Math.floor(walltimeLimit * 0.95)));
+        }
+        return rval;
+    }
+    
+    /** format the number of seconds as a Grid Engine time specifier, hh:mm:ss */
+    protected static String formatWalltime(final long seconds) {
+        return String.format("%d:%02d:%02d", seconds / 3600L, (seconds / 60L) % 60L, seconds % 60L);
+    }
+    
+    protected static int getIntegerProperty(final DrmJobSubmission jobSubmission, final String key, final int defaultValue) {
+        final Integer value=Ints.tryParse(Strings.nullToEmpty(jobSubmission.getProperty(key)).trim());
+        return value==null ? defaultValue : value;
+    }
+    
+    protected static double getDoubleProperty(final DrmJobSubmission jobSubmission, final String key, final double defaultValue) {
+        final Double value=Doubles.tryParse(Strings.nullToEmpty(jobSubmission.getProperty(key)).trim());
+        return value==null ? defaultValue : value;
+    }
+    
+    protected static Memory getMemoryProperty(final DrmJobSubmission jobSubmission, final String key) {
+        final String value=jobSubmission.getProperty(key);
+        if (Strings.isNullOrEmpty(value)) {
+            return null;
+        }
+        try {
+            return Memory.fromString(value);
+        }
+        catch (Throwable t) {
+            log.error("Error parsing memory value for "+key+"='"+value+"'", t);
+            return null;
+        }
+    }
+    
+    /**
+     * Format the memory per slot as a Grid Engine memory specifier, rounding up.
+     * @param numBytes, total memory for the job
+     * @param numSlots
+     * @param units, 'g' for whole gigabytes, 'm' for whole megabytes
+     */
+    protected static String formatMemoryPerSlot(final long numBytes, final int numSlots, final String units) {
+        final double perSlot=((double) numBytes) / Math.max(1, numSlots);
+        if ("m".equalsIgnoreCase(units)) {
+            return ((long)Math.ceil(perSlot / (1024.0*1024.0)))+"m";
+        }
+        return ((long)Math.ceil(perSlot / (1024.0*1024.0*1024.0)))+"g";
+    }
+    
+    protected String getPeType(final DrmJobSubmission jobSubmission) {
+        return getPeType(jobSubmission, null);
+    }
+
+    /**
+     * Get the parallel environment for the given number of slots.
+     * @param jobSubmission
+     * @param numSlots, the number of slots, can be null
+     * @return the pe_type, default 'smp'
+     */
+    protected String getPeType(final DrmJobSubmission jobSubmission, final Integer numSlots) {
+        final Value value=jobSubmission.getValue(PROP_PE_TYPE);
+        if (value != null && value.isFromCollection()) {
+            for(final String entry : value.getValues()) {
+                final String peType=selectPeType(entry, numSlots);
+                if (peType != null) {
+                    return peType;
+                }
+            }
+            log.warn("no match in "+PROP_PE_TYPE+" for numSlots="+numSlots+", using default");
+        }
+        else {
+            final String peType=jobSubmission.getProperty(PROP_PE_TYPE);
+            if (peType != null) {
+                return peType;
+            }
+        }
+        return "smp"; // default value
     }
 
     /**
-     * Helper method to deal with two possible flags:
-     *     job.cpuCount and job.nodeCount
-     *     
-     * @param jobSubmission
-     * @return
+     * Match an entry from the 'job.ge.pe_type' list, '{maxSlots}={pe_type}' or '{pe_type}'.
+     * @return the pe_type, or null if the entry does not match the number of slots
      */
-    protected Integer getNumCores(final DrmJobSubmission jobSubmission) {
-        Integer nodeCount=jobSubmission.getNodeCount();
-        Integer cpuCount=jobSubmission.getCpuCount();
-        if (cpuCount==nodeCount) return cpuCount;
-        if (nodeCount==null && cpuCount !=null) return cpuCount;
-        if (cpuCount==null && nodeCount !=null) return nodeCount;
-        
-        // special-case: both set, but they differ        
-        return Math.max(nodeCount, cpuCount); 
-    }
-    
-    protected String getPeType(final DrmJobSubmission jobSubmission) {
-        String peType=jobSubmission.getProperty(PROP_PE_TYPE);
-        if (peType==null) {
-            peType="smp"; // default value
+    protected static String selectPeType(final String entry, final Integer numSlots) {
+        if (Strings.isNullOrEmpty(entry)) {
+            return null;
+        }
+        final int idx=entry.indexOf('=');
+        if (idx < 0) {
+            return entry.trim();
+        }
+        final Integer maxSlots=Ints.tryParse(entry.substring(0, idx).trim());
+        if (maxSlots==null) {
+            log.error("Invalid "+PROP_PE_TYPE+" entry, expecting {maxSlots}={pe_type}: '"+entry+"'");
+            return null;
+        }
+        if (numSlots==null || numSlots <= maxSlots) {
+            return entry.substring(idx+1).trim();
         }
-        return peType;
+        return null;
     }
     
     /**
@@ -392,19 +2963,51 @@ public class DrmaaV1JobRunner implements JobRunner {
      * Example qsub command-line:
      *     qsub -pe openmpi 4 -b y my_wonderful_multiprocessor_app
      * 
+     * With the optional 'job.ge.binding' and 'job.ge.reservation.minSlots':
+     *     qsub -pe openmpi 32 -binding linear:32 -R y -b y my_wonderful_multiprocessor_app
      */
     protected List<String> getPeFlags(final DrmJobSubmission jobSubmission) {
-        final Integer numCores=getNumCores(jobSubmission);
+        final Integer numCores=getNumSlots(jobSubmission);
         if (numCores==null) {
-            return Collections.emptyList();
+            return getBindingFlags(jobSubmission, 1);
         }
         else if (numCores <= 1) {
             log.warn("numCores="+numCores+", ignore");
-            return Collections.emptyList();
+            return getBindingFlags(jobSubmission, 1);
         }
         
-        final String peType=getPeType(jobSubmission);
-        return Arrays.asList("-pe", peType, ""+numCores);
+        final String peType=getPeType(jobSubmission, numCores);
+        final List<String> rval=new ArrayList<String>();
+        rval.addAll(Arrays.asList("-pe", peType, ""+numCores));
+        rval.addAll(getBindingFlags(jobSubmission, numCores));
+        final int minSlots=getIntegerProperty(jobSubmission, PROP_RESERVATION_MIN_SLOTS, 0);
+        if (minSlots > 0 && numCores >= minSlots) {
+            rval.add("-R");
+            rval.add("y");
+        }
+        return rval;
+    }
+
+    /**
+     * Get the [optional] core binding flags, see 'job.ge.binding', e.g.
+     *     -binding linear:4
+     *     -binding striding:4:2
+     *     -binding explicit:0,0:0,1:1,0:1,1
+     */
+    protected List<String> getBindingFlags(final DrmJobSubmission jobSubmission, final int numSlots) {
+        final String strategy=jobSubmission.getProperty(PROP_BINDING);
+        if (Strings.isNullOrEmpty(strategy) || "off".equalsIgnoreCase(strategy)) {
+            return Collections.emptyList();
+        }
+        if ("linear".equalsIgnoreCase(strategy)) {
+            return Arrays.asList("-binding", "linear:"+numSlots);
+        }
+        else if ("striding".equalsIgnoreCase(strategy)) {
+            final int step=Math.max(1, getIntegerProperty(jobSubmission, PROP_BINDING_STEP, 2));
+            return Arrays.asList("-binding", "striding:"+numSlots+":"+step);
+        }
+        log.error("Invalid "+PROP_BINDING+"="+strategy+", expecting off | linear | striding");
+        return Collections.emptyList();
     }
     
     protected List<String> getCustomResourceFlags(final DrmJobSubmission jobSubmission) {
@@ -418,6 +3021,32 @@ public class DrmaaV1JobRunner implements JobRunner {
         return rval;
     }
     
+    /**
+     * Get the [optional] data locality flags, see 'job.ge.locality', e.g.
+     *     -soft -l lustre_group=a -hard
+     */
+    protected List<String> getLocalityFlags(final DrmJobSubmission jobSubmission) {
+        final Value rules=jobSubmission.getValue(PROP_LOCALITY);
+        if (rules==null || rules.getValues()==null || rules.getValues().isEmpty()) {
+            return Collections.emptyList();
+        }
+        final Memory minInputSize=getMemoryProperty(jobSubmission, PROP_LOCALITY_MIN_INPUT_SIZE);
+        if (minInputSize != null && getInputSize(jobSubmission) < minInputSize.getNumBytes()) {
+            return Collections.emptyList();
+        }
+        final String resource=new LocalityResolver(rules.getValues()).resolve(getInputPaths(jobSubmission));
+        if (resource==null) {
+            return Collections.emptyList();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("gpJobNo="+jobSubmission.getGpJobNo()+", locality: "+resource);
+        }
+        if ("hard".equalsIgnoreCase(jobSubmission.getProperty(PROP_LOCALITY_MODE))) {
+            return Arrays.asList("-l", resource);
+        }
+        return Arrays.asList("-soft", "-l", resource, "-hard");
+    }
+    
     protected List<String> getCustomResourceArgs(final String resourceName, DrmJobSubmission jobSubmission) {
         final Value resourceValues=jobSubmission.getValue("job.ge.resource."+resourceName);
         if (resourceValues==null) {
@@ -459,31 +3088,414 @@ public class DrmaaV1JobRunner implements JobRunner {
      * @throws DrmaaException
      */
     protected JobTemplate initJobTemplate(final Session session, final DrmJobSubmission jobSubmission) throws DrmaaException {
-        JobTemplate jt = session.createJobTemplate();
-        jt.setJobName("GP_"+jobSubmission.getGpJobNo());
-        jt.setWorkingDirectory(jobSubmission.getWorkingDir().getAbsolutePath());
-        jt.setJoinFiles(false);
+        return initJobTemplate(session, prepareJob(jobSubmission));
+    }
+
+    /**
+     * Compute the job template attributes: the native specification, checked against the cluster configuration,
+     * and the command line. Call this before queueing the submission on the dispatcher, 
+     * it reads the config and may write the argument file.
+     * @throws DeniedByDrmException when the native specification is not valid
+     */
+    protected PreparedSubmission prepareJob(final DrmJobSubmission jobSubmission) throws DrmaaException {
+        final long traceId=jobSubmission.getGpJobNo()==null ? -1L : jobSubmission.getGpJobNo();
+        final long nativeSpecStart=traceStart();
         List<String> nativeSpecArgs=initNativeSpecification(jobSubmission);
         final String nativeSpec=formatNativeSpecification(nativeSpecArgs);
-        jt.setNativeSpecification(nativeSpec);
-        
-        final String cmd;
-        final List<String> args;
-        cmd=jobSubmission.getCommandLine().get(0);
-        args=jobSubmission.getCommandLine().subList(1, jobSubmission.getCommandLine().size());
-        jt.setRemoteCommand(cmd);
-        jt.setArgs(args);
+        traceEnd(TraceRing.Span.NATIVE_SPEC, traceId, nativeSpecStart);
+        final NativeSpecValidator validator=specValidator;
+        final String invalid=validator==null ? null : validator.validate(nativeSpecArgs);
+        if (invalid != null) {
+            throw new DeniedByDrmException("Invalid job configuration: "+invalid);
+        }
+        return new PreparedSubmission(jobSubmission.getGpJobNo(), 
+                "GP_"+jobSubmission.getGpJobNo(), 
+                jobSubmission.getWorkingDir().getAbsolutePath(), 
+                nativeSpec, 
+                initCommandLine(jobSubmission));
+    }
 
+    /**
+     * Create a new JobTemplate from the prepared attributes, on the dispatcher thread.
+     */
+    protected JobTemplate initJobTemplate(final Session session, final PreparedSubmission prepared) throws DrmaaException {
+        final long traceId=prepared.getGpJobNo()==null ? -1L : prepared.getGpJobNo();
+        final long createStart=traceStart();
+        JobTemplate jt = session.createJobTemplate();
+        traceEnd(TraceRing.Span.CREATE_JOB_TEMPLATE, traceId, createStart);
+        jt.setJobName(prepared.getJobName());
+        jt.setWorkingDirectory(prepared.getWorkingDirectory());
+        jt.setJoinFiles(false);
+        jt.setNativeSpecification(prepared.getNativeSpecification());
+        jt.setRemoteCommand(prepared.getRemoteCommand());
+        jt.setArgs(prepared.getArgs());
         return jt;
     }
     
+    /**
+     * @return the command line for the job, wrapped in the staging script when 'job.ge.stage' is set
+     */
+    protected List<String> initCommandLine(final DrmJobSubmission jobSubmission) {
+        List<String> commandLine=initArgFileCommandLine(jobSubmission);
+        if (isSampled(jobSubmission)) {
+            commandLine=initSamplerCommandLine(jobSubmission, commandLine);
+        }
+        if (!isStaged(jobSubmission)) {
+            return commandLine;
+        }
+        final Value outputFiles=jobSubmission.getValue(PROP_STAGE_OUTPUT_FILES);
+        return OutputStaging.wrapCommandLine(commandLine, 
+                initFilepath(jobSubmission.getWorkingDir(), jobSubmission.getStdoutFile(), "stdout.txt"), 
+                initFilepath(jobSubmission.getWorkingDir(), jobSubmission.getStderrFile(), "stderr.txt"), 
+                outputFiles==null ? null : outputFiles.getValues());
+    }
+
+    /**
+     * @return the launcher command line when the args were saved to an argument file, see 'job.ge.argfile',
+     *     otherwise the command line for the job
+     */
+    protected List<String> initArgFileCommandLine(final DrmJobSubmission jobSubmission) {
+        final List<String> commandLine=jobSubmission.getCommandLine();
+        if (!Util.getGPBooleanProperty(jobSubmission, PROP_ARGFILE, false) || jobSubmission.getWorkingDir()==null) {
+            return commandLine;
+        }
+        final int maxArgs=getIntegerProperty(jobSubmission, PROP_ARGFILE_MAX_ARGS, 1000);
+        final int maxBytes=getIntegerProperty(jobSubmission, PROP_ARGFILE_MAX_BYTES, 65536);
+        if (!ArgumentFile.isLarge(commandLine, maxArgs, maxBytes)) {
+            return commandLine;
+        }
+        final File argFile=new File(jobSubmission.getWorkingDir(), ArgumentFile.ARG_FILE);
+        try {
+            ArgumentFile.write(argFile, commandLine);
+        }
+        catch (IOException e) {
+            log.error("Error writing argument file, passing "+commandLine.size()+" args to the job template, gpJobNo="+
+                    jobSubmission.getGpJobNo()+", file="+argFile, e);
+            return commandLine;
+        }
+        log.debug("gpJobNo="+jobSubmission.getGpJobNo()+", saved "+commandLine.size()+" args to "+argFile);
+        return ArgumentFile.wrapCommandLine(argFile.getAbsolutePath());
+    }
+
+    protected boolean isSampled(final DrmJobSubmission jobSubmission) {
+        return Util.getGPBooleanProperty(jobSubmission, PROP_SAMPLER, false);
+    }
+
+    /**
+     * @return the command line, run in the resource sampler
+     */
+    protected List<String> initSamplerCommandLine(final DrmJobSubmission jobSubmission, final List<String> commandLine) {
+        return ResourceSampler.wrapCommandLine(commandLine, 
+                getIntegerProperty(jobSubmission, PROP_SAMPLER_INTERVAL, 10), ResourceSampler.SAMPLES_FILE);
+    }
+
+    /**
+     * Add the summary of the resource samples to the usage of a completed job, see 'job.ge.sampler'.
+     */
+    protected DrmJobStatus withSampledUsage(final SubmittedJob submittedJob, final DrmJobStatus status) {
+        if (submittedJob==null || !submittedJob.isSampled() || submittedJob.getJobSubmission().getWorkingDir()==null) {
+            return status;
+        }
+        final File samplesFile=new File(submittedJob.getJobSubmission().getWorkingDir(), ResourceSampler.SAMPLES_FILE);
+        if (!samplesFile.exists()) {
+            return status;
+        }
+        try {
+            final ResourceSampler.Summary summary=ResourceSampler.read(samplesFile);
+            if (summary.getNumSamples()==0) {
+                return status;
+            }
+            final Map<String,String> usage=new TreeMap<String,String>();
+            if (status.getResourceUsage() != null) {
+                usage.putAll(status.getResourceUsage());
+            }
+            usage.put("sampled_maxrss", ""+summary.getMaxRssBytes());
+            usage.put("sampled_maxswap", ""+summary.getMaxSwapBytes());
+            usage.put("sampled_max_processes", ""+summary.getMaxProcesses());
+            usage.put("sampled_max_threads", ""+summary.getMaxThreads());
+            usage.put("sampled_cpu_utilization", String.format("%.2f", summary.getAvgCpuUtilization()));
+            usage.put("sampled_max_cpu_utilization", String.format("%.2f", summary.getMaxCpuUtilization()));
+            usage.put("sampled_max_read_rate", String.format("%.0f", summary.getMaxReadBytesPerSec()));
+            usage.put("sampled_max_write_rate", String.format("%.0f", summary.getMaxWriteBytesPerSec()));
+            final DrmJobStatus.Builder b=copyOf(status);
+            logUsageStats(b, usage);
+            return b.build();
+        }
+        catch (IOException e) {
+            log.warn("Error reading resource samples, extJobId="+submittedJob.getExtJobId()+", file="+samplesFile, e);
+            return status;
+        }
+    }
+
+    protected boolean isStaged(final DrmJobSubmission jobSubmission) {
+        return Util.getGPBooleanProperty(jobSubmission, PROP_STAGE, false);
+    }
+
+    /**
+     * Is a completed staged job waiting for its done marker? The status is saved until the marker is found, 
+     * or the 'job.ge.stage.grace' period has passed, see {@link #checkStagingStatus(String)}.
+     * @return true if the job is not complete yet
+     */
+    protected boolean isStagingPending(final String extJobId, final SubmittedJob submittedJob, final DrmJobStatus status) {
+        if (submittedJob==null || !submittedJob.isStaged() || status.getJobState() != DrmJobState.DONE ||
+                submittedJob.getJobSubmission().getWorkingDir()==null || 
+                OutputStaging.isComplete(submittedJob.getJobSubmission().getWorkingDir())) 
+        {
+            stagingStatuses.remove(extJobId);
+            stagingMisses.remove(extJobId);
+            return false;
+        }
+        final long now=System.currentTimeMillis();
+        final Long prev=stagingMisses.putIfAbsent(extJobId, now);
+        final long graceMillis=getIntegerProperty(submittedJob.getJobSubmission(), PROP_STAGE_GRACE, 120) * 1000L;
+        if (prev==null || now - prev < graceMillis) {
+            stagingStatuses.put(extJobId, status);
+            return true;
+        }
+        stagingStatuses.remove(extJobId);
+        stagingMisses.remove(extJobId);
+        return false;
+    }
+
+    /**
+     * Check the done marker again for a staged job which is waiting for it.
+     * @return the status of the job, or null if the job is not waiting for its done marker
+     */
+    protected DrmJobStatus checkStagingStatus(final String extJobId) {
+        final DrmJobStatus status=stagingStatuses.get(extJobId);
+        if (status==null) {
+            return null;
+        }
+        return completeJob(extJobId, status);
+    }
+
+    /** the status of a completed job which is waiting for its done marker */
+    protected DrmJobStatus stagingStatus(final String extJobId) {
+        return new DrmJobStatus.Builder()
+            .extJobId(extJobId)
+            .jobState(DrmJobState.RUNNING)
+            .jobStatusMessage("waiting for the staged output to be copied back to the working directory")
+        .build();
+    }
+
+    /**
+     * Delete the runner's own files from the working directory of a completed job,
+     * the done marker, the resource samples and the argument file, so that they are not listed as job results.
+     */
+    protected static void deleteJobFiles(final File workingDir) {
+        if (workingDir==null) {
+            return;
+        }
+        for(final String name : new String[] { OutputStaging.DONE_MARKER, ResourceSampler.SAMPLES_FILE, ArgumentFile.ARG_FILE }) {
+            final File file=new File(workingDir, name);
+            if (file.exists() && !file.delete()) {
+                log.warn("Error deleting "+file);
+            }
+        }
+    }
+
+    /**
+     * A staged job is only DONE after the wrapper copied its files back to the working directory.
+     * @return the status, FAILED if the staged files were not copied back
+     */
+    protected DrmJobStatus checkStaging(final SubmittedJob submittedJob, final DrmJobStatus status) {
+        if (submittedJob==null || !submittedJob.isStaged() || status.getJobState() != DrmJobState.DONE) {
+            return status;
+        }
+        final File workingDir=submittedJob.getJobSubmission().getWorkingDir();
+        if (workingDir==null || OutputStaging.isComplete(workingDir)) {
+            return status;
+        }
+        log.error("staged output was not copied back, extJobId="+submittedJob.getExtJobId()+", workingDir="+workingDir);
+        return copyOf(status)
+            .jobState(DrmJobState.FAILED)
+            .jobStatusMessage(joinStatusMessage(status.getJobStatusMessage(), 
+                    "staged stdout and stderr were not copied back to the working directory"))
+        .build();
+    }
+
     protected String submitJob(final Session session, final DrmJobSubmission job) throws DrmaaException {
-        JobTemplate jt=initJobTemplate(session, job);        
+        return submitJob(session, prepareJob(job));
+    }
+
+    /**
+     * Add the prepared job to the queue, the only DRMAA calls are createJobTemplate, runJob and deleteJobTemplate.
+     */
+    protected String submitJob(final Session session, final PreparedSubmission prepared) throws DrmaaException {
+        final long traceId=prepared.getGpJobNo()==null ? -1L : prepared.getGpJobNo();
+        JobTemplate jt=initJobTemplate(session, prepared);        
+        final long runStart=traceStart();
         String jobId=session.runJob(jt);
+        traceEnd(TraceRing.Span.RUN_JOB, traceId, runStart);
+        // before the caller adds the submitted job, so that a status check in between uses session.wait
+        sessionJobIds.add(jobId);
+        final long deleteStart=traceStart();
         session.deleteJobTemplate(jt);
+        traceEnd(TraceRing.Span.DELETE_JOB_TEMPLATE, traceId, deleteStart);
         return jobId;
     }
+
+    /**
+     * Load the cluster configuration in the background, and reload it every 'job.ge.validate.refreshInterval' seconds.
+     */
+    protected synchronized void startSpecValidator() {
+        if (getGpConfig()==null || !getGpConfig().getGPBooleanProperty(getServerContext(), PROP_VALIDATE, false) || specValidatorTimer != null) {
+            return;
+        }
+        final int interval=Math.max(1, getServerIntegerProperty(PROP_VALIDATE_REFRESH_INTERVAL, 600));
+        specValidatorTimer=Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("drmaa_v1-validate-%d").build());
+        specValidatorTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refreshSpecValidator();
+            }
+        }, 0, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reload the cluster configuration; on error, keep the previous configuration.
+     */
+    protected void refreshSpecValidator() {
+        final String dir=getServerProperty(PROP_VALIDATE_DIR, null);
+        try {
+            if (!Strings.isNullOrEmpty(dir)) {
+                setSpecValidator(NativeSpecValidator.fromDir(new File(dir)));
+            }
+            else {
+                setSpecValidator(NativeSpecValidator.fromQconf(getServerProperty(PROP_VALIDATE_CMD, NativeSpecValidator.DEFAULT_CMD), 
+                        NativeSpecValidator.DEFAULT_TIMEOUT));
+            }
+        }
+        catch (Throwable t) {
+            log.error("Error loading cluster configuration, "+(specValidator==null ? "jobs are not checked" : "using the previous configuration"), t);
+        }
+    }
+
+    protected void setSpecValidator(final NativeSpecValidator specValidator) {
+        this.specValidator=specValidator;
+    }
+
+    /**
+     * Initialize tracing from the server configuration, see 'job.ge.trace'.
+     */
+    protected void initTrace() {
+        if (getGpConfig() != null && getGpConfig().getGPBooleanProperty(getServerContext(), PROP_TRACE, false)) {
+            setTraceRing(new TraceRing(getServerIntegerProperty(PROP_TRACE_CAPACITY, 4096)), 
+                    getServerIntegerProperty(PROP_TRACE_THRESHOLD, 0));
+        }
+        else {
+            setTraceRing(null, 0);
+        }
+    }
+
+    protected void setTraceRing(final TraceRing traceRing, final int thresholdMillis) {
+        this.traceThresholdNanos=TimeUnit.MILLISECONDS.toNanos(Math.max(0, thresholdMillis));
+        this.traceRing=traceRing;
+        if (traceRing != null) {
+            registerMBean("TraceRing", traceRing);
+        }
+        else {
+            unregisterMBean("TraceRing");
+        }
+    }
+
+    /**
+     * Dump the recorded trace spans, oldest first.
+     * @param id, the gpJobNo or extJobId, or -1 for all spans
+     * @return the spans, one per line, or an empty string when tracing is disabled
+     */
+    public String dumpTrace(final long id) {
+        final TraceRing ring=traceRing;
+        return ring==null ? "" : ring.dump(id);
+    }
+
+    /** @return the start time for a trace span, or 0 when tracing is disabled */
+    protected long traceStart() {
+        return traceRing==null ? 0L : System.nanoTime();
+    }
+
+    /** record a trace span, a no-op when tracing is disabled */
+    protected void traceEnd(final TraceRing.Span span, final long id, final long start) {
+        final TraceRing ring=traceRing;
+        if (ring==null || start==0L) {
+            return;
+        }
+        final long end=System.nanoTime();
+        ring.record(span, id, start, end);
+        if ((span==TraceRing.Span.START_JOB || span==TraceRing.Span.REQUEST_STATUS) && 
+                traceThresholdNanos > 0L && end - start > traceThresholdNanos) 
+        {
+            log.warn("slow "+span+", id="+id+", "+TimeUnit.NANOSECONDS.toMillis(end - start)+" ms\n"+ring.dump(id));
+        }
+    }
     
+    /**
+     * Start the watchdog, which checks for a stuck DRMAA call every 'job.ge.watchdog.threshold' / 2 seconds.
+     */
+    protected synchronized void startWatchdog() {
+        final int threshold=getServerIntegerProperty(PROP_WATCHDOG_THRESHOLD, 300);
+        if (threshold <= 0 || watchdog != null) {
+            return;
+        }
+        final long thresholdMillis=threshold * 1000L;
+        final long period=Math.max(1L, Math.min(30L, threshold / 2));
+        watchdog=Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("drmaa_v1-watchdog-%d").build());
+        watchdog.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkDispatcher(thresholdMillis);
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    protected synchronized void stopWatchdog() {
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+            watchdog=null;
+        }
+    }
+
+    /**
+     * Log the stack trace of the dispatcher thread when the current call has been running for longer than the threshold.
+     * @return true if the call is stuck
+     */
+    protected boolean checkDispatcher(final long thresholdMillis) {
+        final DrmaaDispatcher dispatcher=this.dispatcher;
+        if (dispatcher==null) {
+            return false;
+        }
+        final long runningMillis=dispatcher.getRunningMillis();
+        if (runningMillis <= thresholdMillis) {
+            return false;
+        }
+        final long callNo=dispatcher.getNumStarted();
+        if (callNo != lastStuckCall) {
+            lastStuckCall=callNo;
+            numStuckCalls.incrementAndGet();
+            final StringBuilder sb=new StringBuilder();
+            for(final StackTraceElement e : dispatcher.getStackTrace()) {
+                sb.append("\n\tat ").append(e);
+            }
+            log.error("DRMAA call has been running for "+runningMillis+" ms, key="+dispatcher.getRunningKey()+sb);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of timed out, in doubt and stuck DRMAA calls since the runner was created
+     */
+    public Map<String, Long> getWatchdogCounts() {
+        final Map<String, Long> counts=new LinkedHashMap<String, Long>();
+        for(final Entry<String, AtomicLong> entry : numTimeouts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        counts.put("inDoubtSubmissions", submissionTracker.getNumInDoubtSubmissions());
+        counts.put("stuckCalls", numStuckCalls.get());
+        return counts;
+    }
+
     protected DrmJobState requestDrmJobState(final Session session, final String extJobId) throws DrmaaException {
         if (log.isDebugEnabled()) {
             log.debug("getJobProgramStatus("+extJobId+")");
@@ -694,101 +3706,145 @@ recording status for gpJobNo=79917, updatedJobStatus=drmJobId=169437, queueId=nu
             }
         }
 
-        // TODO:
-        //b.maxProcesses(maxProcesses);
-        //b.maxSwap(maxSwap);
-        //b.maxThreads(maxThreads);
+        // optionally, from the resource sampler, see 'job.ge.sampler'
+        final Integer maxProcesses=Ints.tryParse(Strings.nullToEmpty(usage.get("sampled_max_processes")));
+        if (maxProcesses != null) {
+            b.maxProcesses(maxProcesses);
+        }
+        final Integer maxThreads=Ints.tryParse(Strings.nullToEmpty(usage.get("sampled_max_threads")));
+        if (maxThreads != null) {
+            b.maxThreads(maxThreads);
+        }
+        if (usage.containsKey("sampled_maxswap")) {
+            final Memory maxSwap=parseMemory(usage.get("sampled_maxswap"));
+            if (maxSwap != null) {
+                b.maxSwap(maxSwap);
+            }
+        }
     }
     
+    /**
+     * Create the status for a completed job from the DRMAA JobInfo returned by session.wait.
+     */
+    protected DrmJobStatus initStatusFromJobInfo(final JobInfo jobInfo) throws DrmaaException {
+        DrmJobStatus.Builder b=new DrmJobStatus.Builder()
+            .extJobId(jobInfo.getJobId());
+        
+        final Map<String,String> usage=initResourceUsageMap(jobInfo);
+        logUsageStats(b, usage);
+        
+        if (jobInfo.hasExited()) {
+            log.debug("hasExited, exitStatus="+jobInfo.getExitStatus());
+            b.exitCode(jobInfo.getExitStatus());
+            if (jobInfo.getExitStatus()==0) {
+                b.jobState(DrmJobState.DONE);
+            }
+            else {
+                b.jobState(DrmJobState.FAILED);
+            }
+        }
+        else if (jobInfo.wasAborted()) {
+            log.debug("wasAborted");
+            log.debug("jobInfo="+jobInfo);
+            b.jobState(DrmJobState.ABORTED);
+        }
+        else if (jobInfo.hasSignaled()) {
+            final String msg="hasSignaled, terminatingSignal="+jobInfo.getTerminatingSignal();
+            log.debug(msg);
+            b.jobState(DrmJobState.FAILED);
+            b.jobStatusMessage(msg);
+            b.terminatingSignal(jobInfo.getTerminatingSignal());
+        }
+        else if (jobInfo.hasCoreDump()) {
+            log.debug("hasCoreDump");
+            b.jobState(DrmJobState.FAILED);
+            b.jobStatusMessage("hasCoreDump");
+        }
+        else {
+            log.debug("finished with unclear conditions");
+            // finished with unclear conditions
+            b.jobState(DrmJobState.UNDETERMINED);
+            b.jobStatusMessage("finished with unclear conditions");
+        } 
+        return b.build();
+    }
+
+    /**
+     * Request the status of the job, called on the dispatcher thread. A completed job is saved to the
+     * reaped statuses, the caller must complete it with {@link #completeReapedJob(String, boolean)}.
+     */
     protected DrmJobStatus requestStatus(final Session session, final String extJobId) throws DrmaaException {
         if (log.isDebugEnabled()) {
             log.debug("requesting status, jobId="+extJobId);
         }
-        JobInfo jobInfo=null;
+        final long traceId=traceRing==null ? -1L : TraceRing.asId(extJobId);
+        final long requestStart=traceStart();
         try {
-            final long timeout_seconds=5;
-            jobInfo=session.wait(extJobId, timeout_seconds);
-            log.debug("wait completed!, extJobId="+extJobId);
-            
-            DrmJobStatus.Builder b=new DrmJobStatus.Builder()
-                .extJobId(jobInfo.getJobId());
-            
-            logUsageStats(b, jobInfo);
-            
-            if (jobInfo.hasExited()) {
-                log.debug("hasExited, exitStatus="+jobInfo.getExitStatus());
-                b.exitCode(jobInfo.getExitStatus());
-                if (jobInfo.getExitStatus()==0) {
-                    b.jobState(DrmJobState.DONE);
+            JobInfo jobInfo=null;
+            try {
+                final long timeout_seconds=getServerIntegerProperty(PROP_STATUS_WAIT_TIMEOUT, DEFAULT_STATUS_WAIT_TIMEOUT);
+                final long waitStart=traceStart();
+                try {
+                    jobInfo=session.wait(extJobId, timeout_seconds);
                 }
-                else {
-                    b.jobState(DrmJobState.FAILED);
+                finally {
+                    traceEnd(TraceRing.Span.STATUS_WAIT, traceId, waitStart);
                 }
+                log.debug("wait completed!, extJobId="+extJobId);
+            
+                final long usageStart=traceStart();
+                final DrmJobStatus status=initStatusFromJobInfo(jobInfo);
+                traceEnd(TraceRing.Span.STATUS_USAGE, traceId, usageStart);
+                // completed by the caller, see completeReapedJob
+                reapedStatuses.put(extJobId, status);
+                return status;
             }
-            else if (jobInfo.wasAborted()) {
-                log.debug("wasAborted");
-                log.debug("jobInfo="+jobInfo);
-                b.jobState(DrmJobState.ABORTED);
+            catch (ExitTimeoutException e) {
+                log.debug("presumably still running", e);
             }
-            else if (jobInfo.hasSignaled()) {
-                final String msg="hasSignaled, terminatingSignal="+jobInfo.getTerminatingSignal();
-                log.debug(msg);
-                b.jobState(DrmJobState.FAILED);
-                b.jobStatusMessage(msg);
-                b.terminatingSignal(jobInfo.getTerminatingSignal());
+            catch (InvalidJobException e) {
+                log.error(e);
+                throw e;
             }
-            else if (jobInfo.hasCoreDump()) {
-                log.debug("hasCoreDump");
-                b.jobState(DrmJobState.FAILED);
-                b.jobStatusMessage("hasCoreDump");
+            catch (NoActiveSessionException e) {
+                log.error(e);
+                throw e;
+            }
+            catch (DrmCommunicationException e) {
+                log.error(e);
+                throw e;
+            }
+            catch (AuthorizationException e) {
+                log.error(e);
+                throw e;
+            }
+            catch (IllegalArgumentException e) {
+                log.error(e);
+                throw e;
+            }
+            catch (InternalException e) {
+                log.error(e);
+                throw e;
+            }
+            catch (Throwable t) {
+                log.error(t);
             }
-            else {
-                log.debug("finished with unclear conditions");
-                // finished with unclear conditions
-                b.jobState(DrmJobState.UNDETERMINED);
-                b.jobStatusMessage("finished with unclear conditions");
-            } 
-            return b.build();
-        }
-        catch (ExitTimeoutException e) {
-            log.debug("presumably still running", e);
-        }
-        catch (InvalidJobException e) {
-            log.error(e);
-            throw e;
-        }
-        catch (NoActiveSessionException e) {
-            log.error(e);
-            throw e;
-        }
-        catch (DrmCommunicationException e) {
-            log.error(e);
-            throw e;
-        }
-        catch (AuthorizationException e) {
-            log.error(e);
-            throw e;
-        }
-        catch (IllegalArgumentException e) {
-            log.error(e);
-            throw e;
-        }
-        catch (InternalException e) {
-            log.error(e);
-            throw e;
-        }
-        catch (Throwable t) {
-            log.error(t);
-        }
 
-        if (log.isDebugEnabled()) {
-            log.debug("job not finished, extJobId="+extJobId);
+            if (log.isDebugEnabled()) {
+                log.debug("job not finished, extJobId="+extJobId);
+            }
+            final long programStatusStart=traceStart();
+            final DrmJobState gpState=requestDrmJobState(session, extJobId);
+            traceEnd(TraceRing.Span.STATUS_PROGRAM_STATUS, traceId, programStatusStart);
+            return new DrmJobStatus.Builder()
+                .extJobId(extJobId)
+                .jobState(gpState)
+            .build();
+        }
+        finally {
+            // also for a failed request
+            traceEnd(TraceRing.Span.REQUEST_STATUS, traceId, requestStart);
         }
-        final DrmJobState gpState=requestDrmJobState(session, extJobId);
-        return new DrmJobStatus.Builder()
-            .extJobId(extJobId)
-            .jobState(gpState)
-        .build();
     }
     
     protected boolean requestCancelJob(final Session session, final String extJobId) throws DrmaaException {
@@ -0,0 +1,151 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Strings;
+
+/**
+ * Usage source for jobs which finished outside of the current DRMAA session,
+ * e.g. jobs which completed while the GenePattern Server was restarting.
+ * Parses the output from the accounting command, e.g.
+ * <pre>
+   qacct -j 169437
+ * </pre>
+ * into a resource usage map with the same keys as the DRMAA JobInfo.getResourceUsage() map,
+ * so that the results can be passed along to DrmaaV1JobRunner#logUsageStats.
+ *
+ * Example output:
+ * <pre>
+==============================================================
+qname        short
+hostname     node1234
+jobname      GP_79917
+jobnumber    169437
+qsub_time    Thu Aug 27 02:50:09 2015
+start_time   Thu Aug 27 02:53:39 2015
+end_time     Thu Aug 27 03:07:23 2015
+failed       0
+exit_status  0
+ru_wallclock 823s
+cpu          2720.230s
+maxvmem      1.372G
+ * </pre>
+ *
+ * @see man accounting(5)
+ */
+public class JobAccounting {
+    private static final Logger log = Logger.getLogger(JobAccounting.class);
+
+    /** default accounting command */
+    public static final String DEFAULT_CMD="qacct";
+
+    /** default timeout, in milliseconds, for the accounting command */
+    public static final long DEFAULT_TIMEOUT=30000L;
+
+    /**
+     * lookup table for renaming accounting fields to the DRMAA resourceUsage keys,
+     * fields not in this map are passed along as is.
+     */
+    protected static final Map<String,String> keyMap;
+    static {
+        Map<String,String> map=new HashMap<String,String>();
+        map.put("qsub_time", "submission_time");
+        map.put("ru_wallclock", "wallclock");
+        keyMap=Collections.unmodifiableMap(map);
+    }
+
+    /** date fields, converted from the accounting date format to a unix time stamp in milliseconds */
+    protected static final List<String> dateKeys=Arrays.asList("submission_time", "start_time", "end_time");
+
+    /** time fields, formatted with an optional trailing 's' */
+    protected static final List<String> secondsKeys=Arrays.asList("cpu", "wallclock", "ru_utime", "ru_stime");
+
+    private final String cmd;
+    private final long timeoutMillis;
+
+    public JobAccounting() {
+        this(DEFAULT_CMD, DEFAULT_TIMEOUT);
+    }
+
+    public JobAccounting(final String cmd, final long timeoutMillis) {
+        this.cmd=Strings.isNullOrEmpty(cmd) ? DEFAULT_CMD : cmd;
+        this.timeoutMillis=timeoutMillis;
+    }
+
+    /**
+     * Get the resource usage for the given job from the accounting file.
+     * @param extJobId
+     * @return the usage map, or an empty map if the job is not (yet) in the accounting file
+     */
+    public Map<String,String> getUsage(final String extJobId) {
+        try {
+            final List<String> lines=Util.exec(Arrays.asList(cmd, "-j", extJobId), timeoutMillis);
+            return parseUsage(lines);
+        }
+        catch (IOException e) {
+            log.debug("no accounting record for extJobId="+extJobId+": "+e.getLocalizedMessage());
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Parse the 'key value' lines from the accounting command into a resource usage map.
+     * When there is more than one record (e.g. for a re-scheduled job), the last record wins.
+     */
+    protected static Map<String,String> parseUsage(final List<String> lines) {
+        final SortedMap<String,String> usage=new TreeMap<String,String>();
+        if (lines==null) {
+            return usage;
+        }
+        for(final String line : lines) {
+            if (line.startsWith("====")) {
+                continue;
+            }
+            final String[] pair=line.trim().split("\\s+", 2);
+            if (pair.length != 2 || pair[0].length()==0) {
+                continue;
+            }
+            String key=pair[0];
+            if (keyMap.containsKey(key)) {
+                key=keyMap.get(key);
+            }
+            String val=pair[1].trim();
+            if (dateKeys.contains(key)) {
+                final Date date=parseDate(val);
+                val = date==null ? "" : ""+date.getTime();
+            }
+            else if (secondsKeys.contains(key) && val.endsWith("s")) {
+                val=val.substring(0, val.length()-1);
+            }
+            usage.put(key, val);
+        }
+        return usage;
+    }
+
+    protected static Date parseDate(final String dateStr) {
+        if (Strings.isNullOrEmpty(dateStr) || "-/-".equals(dateStr)) {
+            return null;
+        }
+        try {
+            return new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy", Locale.US).parse(dateStr);
+        }
+        catch (ParseException e) {
+            log.debug("Error parsing accounting date='"+dateStr+"'");
+            return null;
+        }
+    }
+
+}
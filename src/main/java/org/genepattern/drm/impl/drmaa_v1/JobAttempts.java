@@ -0,0 +1,85 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The chain of automatic resubmissions for one GenePattern job, e.g. after the job
+ * was killed for exceeding its walltime or memory limit. Holds the resource overrides for the
+ * next attempt and a short description of each failed attempt.
+ */
+public class JobAttempts {
+    private final Integer gpJobNo;
+    private final String originalExtJobId;
+    private final List<String> history=new ArrayList<String>();
+    private final List<String> causes=new ArrayList<String>();
+    private final Map<String,Integer> numRetriesByCause=new HashMap<String,Integer>();
+    private volatile Long walltimeLimit=null;
+    private volatile Long memory=null;
+
+    public JobAttempts(final Integer gpJobNo, final String originalExtJobId) {
+        this.gpJobNo=gpJobNo;
+        this.originalExtJobId=originalExtJobId;
+    }
+
+    public Integer getGpJobNo() {
+        return gpJobNo;
+    }
+
+    public String getOriginalExtJobId() {
+        return originalExtJobId;
+    }
+
+    /** the number of the current attempt, starting at 1 */
+    public synchronized int getAttempt() {
+        return history.size()+1;
+    }
+
+    /**
+     * record a failed attempt
+     * @param cause, e.g. 'walltime' or 'memory'
+     * @param description, e.g. 'extJobId=169437: walltime limit exceeded, h_rt=1:00:00'
+     */
+    public synchronized void addFailedAttempt(final String cause, final String description) {
+        history.add(description);
+        causes.add(cause);
+        numRetriesByCause.put(cause, getNumRetries(cause)+1);
+    }
+
+    /** the number of resubmissions for the given cause */
+    public synchronized int getNumRetries(final String cause) {
+        final Integer numRetries=numRetriesByCause.get(cause);
+        return numRetries==null ? 0 : numRetries;
+    }
+
+    public synchronized List<String> getHistory() {
+        return Collections.unmodifiableList(new ArrayList<String>(history));
+    }
+
+    /** the cause of each failed attempt, in the same order as the history */
+    public synchronized List<String> getCauses() {
+        return Collections.unmodifiableList(new ArrayList<String>(causes));
+    }
+
+    /** the walltime limit (h_rt) in seconds for the next attempt, or null to use the default */
+    public Long getWalltimeLimit() {
+        return walltimeLimit;
+    }
+
+    public void setWalltimeLimit(final Long walltimeLimit) {
+        this.walltimeLimit=walltimeLimit;
+    }
+
+    /** the total memory in bytes for the next attempt, or null to use the default */
+    public Long getMemory() {
+        return memory;
+    }
+
+    public void setMemory(final Long memory) {
+        this.memory=memory;
+    }
+
+}
@@ -0,0 +1,203 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+
+/**
+ * Find the live (pending or running) jobs with a given job name, e.g. 'GP_79917', from the output of
+ * <pre>
+   qstat -j GP_79917
+ * </pre>
+ * which has one record per matching job, e.g.
+ * <pre>
+==============================================================
+job_number:                 169437
+exec_file:                  job_scripts/169437
+submission_time:            Thu Aug 27 02:50:09 2015
+owner:                      gpuser
+cwd:                        /opt/gp/jobResults/79917
+job_name:                   GP_79917
+ * </pre>
+ * The job name is not unique on a shared cluster, e.g. another GenePattern server, or another user,
+ * may have a job with the same name. A job is only matched when its 'owner' is the given owner
+ * and its 'cwd' is the working directory of the job; a record without an owner or cwd line is not
+ * checked for that field.
+ *
+ * Several names can be looked up with one command, e.g. 'qstat -j GP_79917,GP_79918'.
+ * When there is no matching job, qstat exits with a non-zero status, e.g.
+ * <pre>
+Following jobs do not exist or permissions are not sufficient:
+GP_79917
+ * </pre>
+ */
+public class JobLookup {
+    private static final Logger log = Logger.getLogger(JobLookup.class);
+
+    /** default lookup command */
+    public static final String DEFAULT_CMD="qstat";
+
+    /** default timeout, in milliseconds, for the lookup command */
+    public static final long DEFAULT_TIMEOUT=30000L;
+
+    private static final String NOT_FOUND="do not exist";
+
+    private final String cmd;
+    private final long timeoutMillis;
+    private final String owner;
+
+    public JobLookup() {
+        this(DEFAULT_CMD, DEFAULT_TIMEOUT);
+    }
+
+    public JobLookup(final String cmd, final long timeoutMillis) {
+        this(cmd, timeoutMillis, System.getProperty("user.name"));
+    }
+
+    /**
+     * @param owner, only match jobs which are owned by this user, or null to match any user
+     */
+    public JobLookup(final String cmd, final long timeoutMillis, final String owner) {
+        this.cmd=Strings.isNullOrEmpty(cmd) ? DEFAULT_CMD : cmd;
+        this.timeoutMillis=timeoutMillis;
+        this.owner=Strings.emptyToNull(owner);
+    }
+
+    /**
+     * Get the extJobIds of the live jobs with the given name.
+     * @param jobName
+     * @return the extJobIds, in the order reported by qstat, or an empty list if there is no matching job
+     * @throws IOException when the command fails for any other reason
+     */
+    public List<String> getJobIds(final String jobName) throws IOException {
+        return getJobIds(jobName, null);
+    }
+
+    /**
+     * Get the extJobIds of the live jobs with the given name which run in the given working directory.
+     * @param workingDir, or null to match any directory
+     */
+    public List<String> getJobIds(final String jobName, final File workingDir) throws IOException {
+        final Map<String, File> jobs=new HashMap<String, File>();
+        jobs.put(jobName, workingDir);
+        final List<String> jobIds=getJobIds(jobs).get(jobName);
+        return jobIds==null ? new ArrayList<String>() : jobIds;
+    }
+
+    /**
+     * Look up several jobs with one command.
+     * @param jobs, the working directory, or null, keyed by job name
+     * @return the extJobIds of the matching jobs, keyed by job name; a name without a matching job is not in the map
+     * @throws IOException when the command fails, other than for a job which is not found
+     */
+    public Map<String, List<String>> getJobIds(final Map<String, File> jobs) throws IOException {
+        final Map<String, List<String>> jobIds=new LinkedHashMap<String, List<String>>();
+        if (jobs==null || jobs.isEmpty()) {
+            return jobIds;
+        }
+        final List<String> lines=Util.exec(Arrays.asList(cmd, "-j", Joiner.on(",").join(jobs.keySet())), timeoutMillis, false);
+        final List<Map<String,String>> records=parseRecords(lines);
+        if (records.isEmpty() && !contains(lines, NOT_FOUND)) {
+            // e.g. 'unable to contact qmaster'
+            throw new IOException("command failed: "+cmd+" -j "+jobs.keySet()+", output="+lines);
+        }
+        for(final Map<String,String> record : records) {
+            final String jobName=record.get("job_name");
+            if (jobName==null || !jobs.containsKey(jobName) || !matches(record, jobs.get(jobName))) {
+                continue;
+            }
+            List<String> ids=jobIds.get(jobName);
+            if (ids==null) {
+                ids=new ArrayList<String>();
+                jobIds.put(jobName, ids);
+            }
+            final String jobId=record.get("job_number");
+            if (!ids.contains(jobId)) {
+                ids.add(jobId);
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("found jobIds="+jobIds);
+        }
+        return jobIds;
+    }
+
+    private static boolean contains(final List<String> lines, final String str) {
+        for(final String line : lines) {
+            if (line.contains(str)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return true if the record is owned by the owner and runs in the working directory */
+    protected boolean matches(final Map<String,String> record, final File workingDir) {
+        final String recordOwner=record.get("owner");
+        if (owner != null && recordOwner != null && !owner.equals(recordOwner)) {
+            return false;
+        }
+        final String cwd=record.get("cwd");
+        if (workingDir != null && cwd != null &&
+                !new File(cwd).getAbsoluteFile().equals(workingDir.getAbsoluteFile()))
+        {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parse the 'name: value' lines from the qstat output, one map per job record;
+     * a record starts with its 'job_number:' line.
+     */
+    protected static List<Map<String,String>> parseRecords(final List<String> lines) {
+        final List<Map<String,String>> records=new ArrayList<Map<String,String>>();
+        if (lines==null) {
+            return records;
+        }
+        Map<String,String> record=null;
+        for(final String line : lines) {
+            final int idx=line.indexOf(':');
+            if (idx <= 0 || Character.isWhitespace(line.charAt(0))) {
+                continue;
+            }
+            final String name=line.substring(0, idx).trim();
+            final String value=line.substring(idx+1).trim();
+            if ("job_number".equals(name)) {
+                if (value.length()==0) {
+                    record=null;
+                    continue;
+                }
+                record=new LinkedHashMap<String,String>();
+                records.add(record);
+            }
+            if (record != null && !record.containsKey(name)) {
+                record.put(name, value);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Parse the 'job_number:' lines from the qstat output.
+     */
+    protected static List<String> parseJobIds(final List<String> lines) {
+        final LinkedHashSet<String> jobIds=new LinkedHashSet<String>();
+        for(final Map<String,String> record : parseRecords(lines)) {
+            jobIds.add(record.get("job_number"));
+        }
+        return new ArrayList<String>(jobIds);
+    }
+
+}
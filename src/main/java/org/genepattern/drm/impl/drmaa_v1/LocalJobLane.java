@@ -0,0 +1,284 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.genepattern.drm.CpuTime;
+import org.genepattern.drm.DrmJobState;
+import org.genepattern.drm.DrmJobStatus;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Run small jobs as local processes on a bounded worker pool, instead of submitting them to the queue.
+ * The extJobId of a local job starts with 'local-'. Local jobs are not persistent;
+ * a job which is not known to this lane, e.g. after a server restart, is reported as FAILED.
+ *
+ * Each job runs in its own process group, see {@link #WRAPPER_SCRIPT}, so that cancelling the job
+ * also kills the processes started by the module command, not only the bash wrapper.
+ */
+public class LocalJobLane {
+    private static final Logger log = Logger.getLogger(LocalJobLane.class);
+
+    public static final String EXT_JOB_ID_PREFIX="local-";
+
+    /** the output of the bash 'times' builtin, e.g. '0m1.234s 0m0.100s' */
+    /**
+     * The bash wrapper for a local job, run as 'bash -c WRAPPER_SCRIPT bash {timesFile} {commandLine}'.
+     * With job control enabled ('set -m') the command runs in a new process group; a SIGTERM from
+     * Process.destroy() is forwarded to the whole group. The 'times' builtin records the cpu time
+     * of the command.
+     */
+    protected static final String WRAPPER_SCRIPT=
+              "set -m; times_file=\"$1\"; shift; "
+            + "\"$@\" <&0 & pid=$!; "
+            + "trap 'kill -TERM -- -$pid 2>/dev/null' TERM INT HUP; "
+            + "wait $pid; rc=$?; "
+            // wait returns early when the trap runs, wait again for the exit code of the command
+            + "while kill -0 $pid 2>/dev/null; do wait $pid; rc=$?; done; "
+            + "times > \"$times_file\"; exit $rc";
+
+    private static final Pattern TIMES_PATTERN=Pattern.compile("(\\d+)m([\\d.]+)s\\s+(\\d+)m([\\d.]+)s");
+
+    public static boolean isLocalJobId(final String extJobId) {
+        return extJobId != null && extJobId.startsWith(EXT_JOB_ID_PREFIX);
+    }
+
+    protected static class LocalJob implements Runnable {
+        final String extJobId;
+        final List<String> commandLine;
+        final File workingDir;
+        final File stdoutFile;
+        final File stderrFile;
+        final File stdinFile;
+        final Date submitTime=new Date();
+        volatile DrmJobState jobState=DrmJobState.QUEUED;
+        volatile Date startTime=null;
+        volatile Date endTime=null;
+        volatile Integer exitCode=null;
+        volatile CpuTime cpuTime=null;
+        volatile String jobStatusMessage=null;
+        volatile boolean cancelled=false;
+        volatile Process process=null;
+        volatile Future<?> future=null;
+
+        LocalJob(final String extJobId, final List<String> commandLine, final File workingDir,
+                final File stdoutFile, final File stderrFile, final File stdinFile)
+        {
+            this.extJobId=extJobId;
+            this.commandLine=commandLine;
+            this.workingDir=workingDir;
+            this.stdoutFile=stdoutFile;
+            this.stderrFile=stderrFile;
+            this.stdinFile=stdinFile;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            File timesFile=null;
+            try {
+                timesFile=File.createTempFile("gp_local_times_", ".txt");
+                final List<String> cmd=new ArrayList<String>();
+                cmd.add("/bin/bash");
+                cmd.add("-c");
+                cmd.add(WRAPPER_SCRIPT);
+                cmd.add("bash");
+                cmd.add(timesFile.getAbsolutePath());
+                cmd.addAll(commandLine);
+                final ProcessBuilder pb=new ProcessBuilder(cmd)
+                    .directory(workingDir)
+                    .redirectOutput(stdoutFile)
+                    .redirectError(stderrFile);
+                if (stdinFile != null) {
+                    pb.redirectInput(stdinFile);
+                }
+                startTime=new Date();
+                jobState=DrmJobState.RUNNING;
+                process=pb.start();
+                if (cancelled) {
+                    process.destroy();
+                }
+                exitCode=process.waitFor();
+                cpuTime=parseTimes(Files.readLines(timesFile, Charsets.UTF_8));
+                jobState=cancelled ? DrmJobState.CANCELLED : exitCode==0 ? DrmJobState.DONE : DrmJobState.FAILED;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (process != null) {
+                    process.destroy();
+                }
+                jobStatusMessage="local job interrupted";
+                jobState=DrmJobState.CANCELLED;
+            }
+            catch (Throwable t) {
+                log.error("Error running local job, extJobId="+extJobId, t);
+                jobStatusMessage="Error running local job: "+t.getLocalizedMessage();
+                jobState=DrmJobState.FAILED;
+            }
+            finally {
+                endTime=new Date();
+                if (timesFile != null && !timesFile.delete()) {
+                    timesFile.deleteOnExit();
+                }
+            }
+        }
+
+        DrmJobStatus getStatus() {
+            final DrmJobStatus.Builder b=new DrmJobStatus.Builder()
+                .extJobId(extJobId)
+                .jobState(jobState)
+                .jobStatusMessage(jobStatusMessage)
+                .submitTime(submitTime)
+                .startTime(startTime)
+                .endTime(endTime)
+                .exitCode(exitCode)
+                .cpuTime(cpuTime)
+                .queueId("local");
+            if (endTime != null) {
+                final Map<String,String> usage=new TreeMap<String,String>();
+                if (startTime != null) {
+                    usage.put("wallclock", String.format("%.4f", (endTime.getTime() - startTime.getTime()) / 1000.0));
+                }
+                if (cpuTime != null) {
+                    usage.put("cpu", String.format("%.4f", cpuTime.asMillis() / 1000.0));
+                }
+                if (exitCode != null) {
+                    usage.put("exit_status", ""+exitCode);
+                }
+                b.resourceUsage(usage);
+            }
+            return b.build();
+        }
+    }
+
+    /**
+     * Parse the output of the bash 'times' builtin, the second line is the user and system time of the child processes.
+     * @return the cpu time, or null if the output could not be parsed
+     */
+    protected static CpuTime parseTimes(final List<String> lines) {
+        if (lines==null || lines.size() < 2) {
+            return null;
+        }
+        final Matcher m=TIMES_PATTERN.matcher(lines.get(1).trim());
+        if (!m.matches()) {
+            return null;
+        }
+        final double seconds=Integer.parseInt(m.group(1))*60.0 + Double.parseDouble(m.group(2)) +
+                Integer.parseInt(m.group(3))*60.0 + Double.parseDouble(m.group(4));
+        return new CpuTime(Math.round(seconds * 1000.0));
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<String, LocalJob> jobs=new ConcurrentHashMap<String, LocalJob>();
+    private final AtomicLong nextId=new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * @param numThreads, the max number of concurrent local jobs
+     * @param maxQueued, the max number of local jobs waiting for a worker
+     */
+    public LocalJobLane(final int numThreads, final int maxQueued) {
+        this.executor=new ThreadPoolExecutor(Math.max(1, numThreads), Math.max(1, numThreads),
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, maxQueued)),
+                new ThreadFactoryBuilder().setNameFormat("drmaa_v1-local-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Add a job to the local lane.
+     * @return the extJobId, e.g. 'local-1440658419871'
+     * @throws RejectedExecutionException when the lane is full
+     */
+    public String submit(final List<String> commandLine, final File workingDir,
+            final File stdoutFile, final File stderrFile, final File stdinFile) throws RejectedExecutionException
+    {
+        final String extJobId=EXT_JOB_ID_PREFIX+nextId.incrementAndGet();
+        final LocalJob job=new LocalJob(extJobId, commandLine, workingDir, stdoutFile, stderrFile, stdinFile);
+        jobs.put(extJobId, job);
+        try {
+            job.future=executor.submit(job);
+        }
+        catch (RejectedExecutionException e) {
+            jobs.remove(extJobId);
+            throw e;
+        }
+        return extJobId;
+    }
+
+    /**
+     * Get the status of a local job; a completed job is removed from the lane.
+     * @return the status, FAILED if the job is not known to this lane
+     */
+    public DrmJobStatus getStatus(final String extJobId) {
+        final LocalJob job=jobs.get(extJobId);
+        if (job==null) {
+            return new DrmJobStatus.Builder()
+                .extJobId(extJobId)
+                .jobState(DrmJobState.FAILED)
+                .jobStatusMessage("local job not found, the server may have been restarted")
+            .build();
+        }
+        final DrmJobStatus status=job.getStatus();
+        if (job.endTime != null) {
+            jobs.remove(extJobId);
+        }
+        return status;
+    }
+
+    /** cancel a local job, killing its process if it is running */
+    public boolean cancel(final String extJobId) {
+        final LocalJob job=jobs.get(extJobId);
+        if (job==null) {
+            return false;
+        }
+        job.cancelled=true;
+        // Future.cancel(false) also succeeds for a running job, without stopping its process
+        if (job.jobState==DrmJobState.QUEUED && job.future != null && job.future.cancel(false)) {
+            // removed from the queue before it started; if run() has just begun, it kills the process on start
+            job.jobState=DrmJobState.CANCELLED;
+            job.endTime=new Date();
+            return true;
+        }
+        final Process process=job.process;
+        if (process != null) {
+            process.destroy();
+        }
+        return true;
+    }
+
+    /** the number of local jobs which are queued or running */
+    public int getNumActive() {
+        return executor.getActiveCount() + executor.getQueue().size();
+    }
+
+    public void shutdown() {
+        for(final LocalJob job : jobs.values()) {
+            job.cancelled=true;
+            final Process process=job.process;
+            if (process != null) {
+                process.destroy();
+            }
+        }
+        executor.shutdownNow();
+    }
+
+}
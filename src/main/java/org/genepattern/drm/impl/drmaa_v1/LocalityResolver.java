@@ -0,0 +1,118 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Strings;
+
+/**
+ * Map the input file paths for a job to a preferred complex value, e.g. a host group with a fast mount
+ * of the file system which holds the input data.
+ *
+ * Each rule is of the form '{pathPrefix} {resource}={value}', e.g.
+ *     /xchip/lustre_a lustre_group=a
+ *     /nvme/cache nvme_cache=true
+ *
+ * Each input file is matched to the rule with the longest path prefix; the rule which matches the
+ * largest total number of input bytes wins.
+ */
+public class LocalityResolver {
+    private static final Logger log = Logger.getLogger(LocalityResolver.class);
+
+    protected static class Rule {
+        final String pathPrefix;
+        final String resource;
+
+        Rule(final String pathPrefix, final String resource) {
+            this.pathPrefix=pathPrefix;
+            this.resource=resource;
+        }
+    }
+
+    /**
+     * Parse a rule, '{pathPrefix} {resource}={value}'.
+     * @return the rule, or null if it is not valid
+     */
+    protected static Rule parseRule(final String entry) {
+        if (Strings.isNullOrEmpty(entry)) {
+            return null;
+        }
+        final String[] args=entry.trim().split("\\s+", 2);
+        if (args.length != 2 || !args[0].startsWith("/") || !args[1].contains("=")) {
+            log.error("Invalid locality rule, expecting '{pathPrefix} {resource}={value}': '"+entry+"'");
+            return null;
+        }
+        String pathPrefix=args[0];
+        if (pathPrefix.length() > 1 && pathPrefix.endsWith("/")) {
+            pathPrefix=pathPrefix.substring(0, pathPrefix.length()-1);
+        }
+        return new Rule(pathPrefix, args[1].trim());
+    }
+
+    private final List<Rule> rules;
+
+    public LocalityResolver(final List<String> entries) {
+        final List<Rule> rules=new ArrayList<Rule>();
+        if (entries != null) {
+            for(final String entry : entries) {
+                final Rule rule=parseRule(entry);
+                if (rule != null) {
+                    rules.add(rule);
+                }
+            }
+        }
+        this.rules=Collections.unmodifiableList(rules);
+    }
+
+    /** @return the rule with the longest path prefix which matches the path, or null if none match */
+    protected Rule match(final String path) {
+        Rule best=null;
+        for(final Rule rule : rules) {
+            final boolean matches=path.equals(rule.pathPrefix) ||
+                    path.startsWith(rule.pathPrefix.endsWith("/") ? rule.pathPrefix : rule.pathPrefix+"/");
+            if (matches && (best==null || rule.pathPrefix.length() > best.pathPrefix.length())) {
+                best=rule;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Get the preferred resource for the given input files.
+     * @param paths, the input file paths
+     * @return the resource, e.g. 'lustre_group=a', or null if no input file matches a rule
+     */
+    public String resolve(final List<String> paths) {
+        if (rules.isEmpty() || paths==null) {
+            return null;
+        }
+        final Map<String,Long> bytesByResource=new LinkedHashMap<String,Long>();
+        for(final String path : paths) {
+            final Rule rule=match(path);
+            if (rule==null) {
+                continue;
+            }
+            // count files which are not (yet) on the file system as one byte
+            final long numBytes=Math.max(1L, new File(path).length());
+            final Long total=bytesByResource.get(rule.resource);
+            bytesByResource.put(rule.resource, total==null ? numBytes : total+numBytes);
+        }
+        String resource=null;
+        long max=0L;
+        for(final Entry<String,Long> entry : bytesByResource.entrySet()) {
+            if (entry.getValue() > max) {
+                resource=entry.getKey();
+                max=entry.getValue();
+            }
+        }
+        return resource;
+    }
+
+}
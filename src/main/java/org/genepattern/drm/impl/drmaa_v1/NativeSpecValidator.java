@@ -0,0 +1,197 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+
+/**
+ * Check the queues (-q), parallel environments (-pe) and complex attributes (-l) in a native specification
+ * against the cluster configuration, so that a job which can never be scheduled is rejected before it
+ * is added to the queue. The configuration is loaded from the output of
+ * <pre>
+   qconf -sql
+   qconf -spl
+   qconf -sc
+ * </pre>
+ * or, e.g. for testing, from the files 'sql.txt', 'spl.txt' and 'sc.txt' in a directory.
+ *
+ * Example 'qconf -sc' output:
+ * <pre>
+#name               shortcut   type        relop requestable consumable default  urgency
+#----------------------------------------------------------------------------------------
+arch                a          RESTRING    ==    YES         NO         NONE     0
+h_rt                h_rt       TIME        &lt;=    YES         NO         0:0:0    0
+m_mem_free          mfree      MEMORY      &lt;=    YES         YES        0        0
+ * </pre>
+ * Names with wildcards, e.g. '*@node1' or 'mpi*', are not checked.
+ * A list which could not be loaded is not checked.
+ */
+public class NativeSpecValidator {
+    private static final Logger log = Logger.getLogger(NativeSpecValidator.class);
+
+    /** default config command */
+    public static final String DEFAULT_CMD="qconf";
+
+    /** default timeout, in milliseconds, for the config command */
+    public static final long DEFAULT_TIMEOUT=30000L;
+
+    private final Set<String> queues;
+    private final Set<String> peNames;
+    private final Set<String> complexes;
+
+    /**
+     * @param queues, the cluster queue names, or null to skip the check
+     * @param peNames, the parallel environment names, or null to skip the check
+     * @param complexes, the requestable complex attribute names and shortcuts, or null to skip the check
+     */
+    public NativeSpecValidator(final Collection<String> queues, final Collection<String> peNames, final Collection<String> complexes) {
+        this.queues=queues==null ? null : Collections.unmodifiableSet(new HashSet<String>(queues));
+        this.peNames=peNames==null ? null : Collections.unmodifiableSet(new HashSet<String>(peNames));
+        this.complexes=complexes==null ? null : Collections.unmodifiableSet(new HashSet<String>(complexes));
+    }
+
+    /**
+     * Load the cluster configuration with the qconf command.
+     * @throws IOException when none of the lists could be loaded
+     */
+    public static NativeSpecValidator fromQconf(final String cmd, final long timeoutMillis) throws IOException {
+        final String qconf=Strings.isNullOrEmpty(cmd) ? DEFAULT_CMD : cmd;
+        final List<String> sql=exec(qconf, "-sql", timeoutMillis);
+        final List<String> spl=exec(qconf, "-spl", timeoutMillis);
+        final List<String> sc=exec(qconf, "-sc", timeoutMillis);
+        if (sql==null && spl==null && sc==null) {
+            throw new IOException("Error loading cluster configuration with "+qconf);
+        }
+        return new NativeSpecValidator(parseNames(sql), parseNames(spl), parseComplexes(sc));
+    }
+
+    private static List<String> exec(final String qconf, final String arg, final long timeoutMillis) {
+        try {
+            return Util.exec(Arrays.asList(qconf, arg), timeoutMillis);
+        }
+        catch (IOException e) {
+            // e.g. 'no parallel environment defined'
+            log.error("Error running "+qconf+" "+arg+": "+e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Load the cluster configuration from the 'sql.txt', 'spl.txt' and 'sc.txt' files in the directory,
+     * a missing file is not checked.
+     */
+    public static NativeSpecValidator fromDir(final File dir) throws IOException {
+        return new NativeSpecValidator(
+                parseNames(readLines(new File(dir, "sql.txt"))),
+                parseNames(readLines(new File(dir, "spl.txt"))),
+                parseComplexes(readLines(new File(dir, "sc.txt"))));
+    }
+
+    private static List<String> readLines(final File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        return Files.readLines(file, Charsets.UTF_8);
+    }
+
+    /** one name per line, from 'qconf -sql' or 'qconf -spl' */
+    protected static List<String> parseNames(final List<String> lines) {
+        if (lines==null) {
+            return null;
+        }
+        final List<String> names=new ArrayList<String>();
+        for(final String line : lines) {
+            final String name=line.trim();
+            if (name.length() > 0 && !name.startsWith("#")) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /** the name and shortcut of each requestable complex attribute, from 'qconf -sc' */
+    protected static List<String> parseComplexes(final List<String> lines) {
+        if (lines==null) {
+            return null;
+        }
+        final List<String> names=new ArrayList<String>();
+        for(final String line : lines) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            final String[] fields=line.trim().split("\\s+");
+            if (fields[0].length()==0) {
+                continue;
+            }
+            if (fields.length > 4 && "NO".equalsIgnoreCase(fields[4])) {
+                // not requestable
+                continue;
+            }
+            names.add(fields[0]);
+            if (fields.length > 1) {
+                names.add(fields[1]);
+            }
+        }
+        return names;
+    }
+
+    private static boolean isPattern(final String name) {
+        return name.indexOf('*') >= 0 || name.indexOf('?') >= 0 || name.indexOf('[') >= 0;
+    }
+
+    /**
+     * Check the -q, -pe and -l args in the native specification.
+     * @return null if the args are valid, otherwise a message which describes the first invalid arg
+     */
+    public String validate(final List<String> nativeSpecArgs) {
+        if (nativeSpecArgs==null) {
+            return null;
+        }
+        for(int i=0; i < nativeSpecArgs.size()-1; ++i) {
+            final String flag=nativeSpecArgs.get(i);
+            final String value=nativeSpecArgs.get(i+1);
+            if (value==null) {
+                continue;
+            }
+            if ("-q".equals(flag) && queues != null) {
+                for(final String queueSpec : value.split(",")) {
+                    // e.g. 'short', 'short@node1', 'short@@hostgroup'
+                    final int idx=queueSpec.indexOf('@');
+                    final String queue=(idx < 0 ? queueSpec : queueSpec.substring(0, idx)).trim();
+                    if (queue.length() > 0 && !isPattern(queue) && !queues.contains(queue)) {
+                        return "unknown queue '"+queue+"' in '-q "+value+"', see 'qconf -sql'";
+                    }
+                }
+            }
+            else if ("-pe".equals(flag) && peNames != null) {
+                if (!isPattern(value) && !peNames.contains(value)) {
+                    return "unknown parallel environment '"+value+"' in '-pe "+value+"', see 'qconf -spl'";
+                }
+            }
+            else if ("-l".equals(flag) && complexes != null) {
+                for(final String request : value.split(",")) {
+                    // e.g. 'm_mem_free=8g', or a boolean attribute
+                    final int idx=request.indexOf('=');
+                    final String name=(idx < 0 ? request : request.substring(0, idx)).trim();
+                    if (name.length() > 0 && !complexes.contains(name)) {
+                        return "unknown or non-requestable complex attribute '"+name+"' in '-l "+value+"', see 'qconf -sc'";
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+}
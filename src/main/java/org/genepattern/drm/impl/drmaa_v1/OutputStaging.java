@@ -0,0 +1,83 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Wrap the command line for a job, so that stdout, stderr and (optionally) the given output files are written to
+ * node-local scratch space, e.g. $TMPDIR, and copied back to the working directory when the command exits.
+ * Each output file is replaced by a symlink into the scratch directory while the command runs.
+ *
+ * The wrapper writes the {@link #DONE_MARKER} file, with the exit code of the command, to the working directory
+ * after all files are copied back. A job without the marker did not finish copying its output.
+ * When the scratch directory can't be created, the command runs without staging.
+ */
+public class OutputStaging {
+    /** the marker file, in the working directory */
+    public static final String DONE_MARKER=".gp_stage_done";
+
+    /** quote the value for a bash script */
+    protected static String quote(final String value) {
+        return "'"+value.replace("'", "'\\''")+"'";
+    }
+
+    /**
+     * Generate the wrapper script, the command is passed in as the positional args.
+     * @param stdout, the stdout file, relative to the working directory or absolute
+     * @param stderr, the stderr file, relative to the working directory or absolute
+     * @param outputFiles, optional output files, relative to the working directory
+     */
+    protected static String initScript(final String stdout, final String stderr, final List<String> outputFiles) {
+        final StringBuilder sb=new StringBuilder();
+        sb.append("marker=").append(quote(DONE_MARKER)).append("\n");
+        sb.append("rm -f \"$marker\"\n");
+        sb.append("stage_dir=$(mktemp -d \"${TMPDIR:-/tmp}/gp_stage.XXXXXX\") || { \"$@\"; rc=$?; echo $rc > \"$marker\"; exit $rc; }\n");
+        final int numFiles=outputFiles==null ? 0 : outputFiles.size();
+        for(int i=0; i<numFiles; ++i) {
+            final String f=quote(outputFiles.get(i));
+            sb.append("rm -f ").append(f).append(" && ln -s \"$stage_dir/o").append(i).append("\" ").append(f).append("\n");
+        }
+        sb.append("\"$@\" > \"$stage_dir/stdout\" 2> \"$stage_dir/stderr\"\n");
+        sb.append("rc=$?\n");
+        sb.append("ok=1\n");
+        sb.append("cp \"$stage_dir/stdout\" ").append(quote(stdout)).append(" || ok=0\n");
+        sb.append("cp \"$stage_dir/stderr\" ").append(quote(stderr)).append(" || ok=0\n");
+        for(int i=0; i<numFiles; ++i) {
+            final String f=quote(outputFiles.get(i));
+            sb.append("if [ -L ").append(f).append(" ]; then rm -f ").append(f)
+                .append("; if [ -e \"$stage_dir/o").append(i).append("\" ]; then cp \"$stage_dir/o").append(i).append("\" ").append(f)
+                .append(" || ok=0; fi; fi\n");
+        }
+        sb.append("if [ $ok = 1 ]; then rm -rf \"$stage_dir\"; echo $rc > \"$marker\"; else echo \"gp_stage: error copying files from $stage_dir\" >&2; fi\n");
+        sb.append("exit $rc\n");
+        return sb.toString();
+    }
+
+    /**
+     * Wrap the command line.
+     * @return the new command line, '/bin/bash -c {script} gp_stage {commandLine}'
+     */
+    public static List<String> wrapCommandLine(final List<String> commandLine, final String stdout, final String stderr, final List<String> outputFiles) {
+        final List<String> wrapped=new ArrayList<String>();
+        wrapped.add("/bin/bash");
+        wrapped.add("-c");
+        wrapped.add(initScript(stdout, stderr, outputFiles));
+        wrapped.add("gp_stage");
+        wrapped.addAll(commandLine);
+        return wrapped;
+    }
+
+    /** @return true if the wrapper finished copying the staged files to the working directory */
+    public static boolean isComplete(final File workingDir) {
+        if (new File(workingDir, DONE_MARKER).exists()) {
+            return true;
+        }
+        // on NFS, a stat of a file created by another host may be answered from a stale cache,
+        // reading the directory revalidates it
+        final String[] names=workingDir.list();
+        return names != null && Arrays.asList(names).contains(DONE_MARKER);
+    }
+
+}
@@ -0,0 +1,54 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The job template attributes for a job submission, computed on the caller's thread before the submission
+ * is queued on the DRMAA dispatcher, so that the dispatcher thread only makes the DRMAA calls:
+ * createJobTemplate, runJob and deleteJobTemplate.
+ */
+public class PreparedSubmission {
+    private final Integer gpJobNo;
+    private final String jobName;
+    private final String workingDirectory;
+    private final String nativeSpecification;
+    private final String remoteCommand;
+    private final List<String> args;
+
+    public PreparedSubmission(final Integer gpJobNo, final String jobName, final String workingDirectory,
+            final String nativeSpecification, final List<String> commandLine)
+    {
+        this.gpJobNo=gpJobNo;
+        this.jobName=jobName;
+        this.workingDirectory=workingDirectory;
+        this.nativeSpecification=nativeSpecification;
+        this.remoteCommand=commandLine.get(0);
+        this.args=Collections.unmodifiableList(commandLine.subList(1, commandLine.size()));
+    }
+
+    public Integer getGpJobNo() {
+        return gpJobNo;
+    }
+
+    public String getJobName() {
+        return jobName;
+    }
+
+    public String getWorkingDirectory() {
+        return workingDirectory;
+    }
+
+    public String getNativeSpecification() {
+        return nativeSpecification;
+    }
+
+    public String getRemoteCommand() {
+        return remoteCommand;
+    }
+
+    public List<String> getArgs() {
+        return args;
+    }
+
+}
@@ -0,0 +1,132 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Follow a log file, e.g. the stdout of a running job, and keep the last line which matches the progress pattern.
+ * Each call to {@link #poll()} reads only the bytes which were appended since the previous call.
+ * When more than maxBytes were appended, only the last maxBytes are read; the file is never read again from the start,
+ * unless it was truncated.
+ */
+public class ProgressTail {
+    /** lines longer than this are truncated */
+    public static final int MAX_LINE_LENGTH=4096;
+
+    private final File file;
+    private final Pattern pattern;
+    private final int maxBytes;
+
+    private long offset=0L;
+    /** the bytes of an incomplete last line from the previous read */
+    private byte[] partialLine=new byte[0];
+    private String progress=null;
+
+    /**
+     * @param file, the file to follow
+     * @param pattern, the progress pattern; when it has a capturing group, the first group is the progress message
+     * @param maxBytes, the max number of bytes to read in one call
+     */
+    public ProgressTail(final File file, final Pattern pattern, final int maxBytes) {
+        this.file=file;
+        this.pattern=pattern;
+        this.maxBytes=Math.max(MAX_LINE_LENGTH, maxBytes);
+    }
+
+    /** the offset of the next read */
+    public synchronized long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Read the new bytes from the file.
+     * @return the last progress message, or null if no line has matched yet
+     */
+    public synchronized String poll() throws IOException {
+        if (!file.exists()) {
+            return progress;
+        }
+        final RandomAccessFile raf=new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel=raf.getChannel();
+            final long size=channel.size();
+            if (size < offset) {
+                // truncated or replaced
+                offset=0L;
+                partialLine=new byte[0];
+            }
+            if (size - offset > maxBytes) {
+                offset=size - maxBytes;
+                partialLine=new byte[0];
+            }
+            if (size == offset) {
+                return progress;
+            }
+            final ByteBuffer buf=ByteBuffer.allocate((int) (size - offset));
+            while(buf.hasRemaining()) {
+                final int n=channel.read(buf, offset + buf.position());
+                if (n < 0) {
+                    break;
+                }
+            }
+            offset += buf.position();
+            matchLines(buf.array(), buf.position());
+        }
+        finally {
+            raf.close();
+        }
+        return progress;
+    }
+
+    private void matchLines(final byte[] bytes, final int length) {
+        int start=0;
+        for(int i=0; i<length; ++i) {
+            // '\r' for progress bars which rewrite the same line
+            if (bytes[i] != '\n' && bytes[i] != '\r') {
+                continue;
+            }
+            final String line;
+            if (partialLine.length > 0) {
+                line=new String(concat(partialLine, bytes, start, i), Charsets.UTF_8);
+                partialLine=new byte[0];
+            }
+            else {
+                line=new String(bytes, start, Math.min(i - start, MAX_LINE_LENGTH), Charsets.UTF_8);
+            }
+            match(line);
+            start=i+1;
+        }
+        if (start < length) {
+            partialLine=concat(partialLine, bytes, start, length);
+        }
+    }
+
+    /** append bytes[from, to) to the prefix, up to MAX_LINE_LENGTH bytes */
+    private static byte[] concat(final byte[] prefix, final byte[] bytes, final int from, final int to) {
+        final int len=Math.min(MAX_LINE_LENGTH, prefix.length + (to - from));
+        final byte[] rval=new byte[len];
+        System.arraycopy(prefix, 0, rval, 0, Math.min(prefix.length, len));
+        if (len > prefix.length) {
+            System.arraycopy(bytes, from, rval, prefix.length, len - prefix.length);
+        }
+        return rval;
+    }
+
+    private void match(final String line) {
+        if (line.length()==0) {
+            return;
+        }
+        final Matcher m=pattern.matcher(line);
+        if (m.find()) {
+            progress=m.groupCount() > 0 && m.group(1) != null ? m.group(1) : line.trim();
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Streaming statistics of the time that jobs wait in each queue, from submission_time to start_time.
+ * Each queue has a histogram with power-of-2 buckets of seconds; older samples are exponentially
+ * decayed with the given half life, so that the percentiles follow the current state of the queue.
+ */
+public class QueueWaitStats {
+    /** bucket i holds waits in the range [2^(i-1), 2^i) seconds, bucket 0 holds waits under 1 second */
+    public static final int NUM_BUCKETS=24;
+
+    protected static class Histogram {
+        private final double[] weights=new double[NUM_BUCKETS];
+        private double total=0.0;
+        private long lastUpdate;
+
+        Histogram(final long now) {
+            this.lastUpdate=now;
+        }
+
+        /** decay the weights to the given time */
+        private void decay(final long now, final long halfLifeMillis) {
+            if (now <= lastUpdate) {
+                return;
+            }
+            final double factor=Math.pow(0.5, (now - lastUpdate) / (double) halfLifeMillis);
+            for(int i=0; i<weights.length; ++i) {
+                weights[i] *= factor;
+            }
+            total *= factor;
+            lastUpdate=now;
+        }
+
+        synchronized void add(final long waitMillis, final long now, final long halfLifeMillis) {
+            decay(now, halfLifeMillis);
+            weights[bucket(waitMillis)] += 1.0;
+            total += 1.0;
+        }
+
+        synchronized double weight(final long now, final long halfLifeMillis) {
+            decay(now, halfLifeMillis);
+            return total;
+        }
+
+        synchronized Long percentile(final double percentile, final long now, final long halfLifeMillis) {
+            decay(now, halfLifeMillis);
+            if (total <= 0.0) {
+                return null;
+            }
+            final double target=Math.max(0.0, Math.min(100.0, percentile)) / 100.0 * total;
+            double sum=0.0;
+            for(int i=0; i<weights.length; ++i) {
+                sum += weights[i];
+                if (sum >= target && weights[i] > 0.0) {
+                    return upperBoundMillis(i);
+                }
+            }
+            return upperBoundMillis(weights.length-1);
+        }
+    }
+
+    protected static int bucket(final long waitMillis) {
+        final long seconds=Math.max(0L, waitMillis / 1000L);
+        final int bucket=64 - Long.numberOfLeadingZeros(seconds);
+        return Math.min(NUM_BUCKETS-1, bucket);
+    }
+
+    /** the upper bound of the bucket, in milliseconds */
+    protected static long upperBoundMillis(final int bucket) {
+        return (1L << bucket) * 1000L;
+    }
+
+    private final long halfLifeMillis;
+    private final ConcurrentMap<String, Histogram> histograms=new ConcurrentHashMap<String, Histogram>();
+
+    /**
+     * @param halfLifeMillis, the age at which a sample counts for half as much as a new sample
+     */
+    public QueueWaitStats(final long halfLifeMillis) {
+        this.halfLifeMillis=Math.max(1L, halfLifeMillis);
+    }
+
+    public void add(final String queue, final long waitMillis) {
+        add(queue, waitMillis, System.currentTimeMillis());
+    }
+
+    protected void add(final String queue, final long waitMillis, final long now) {
+        if (queue==null || waitMillis < 0L) {
+            return;
+        }
+        Histogram histogram=histograms.get(queue);
+        if (histogram==null) {
+            final Histogram created=new Histogram(now);
+            histogram=histograms.putIfAbsent(queue, created);
+            if (histogram==null) {
+                histogram=created;
+            }
+        }
+        histogram.add(waitMillis, now, halfLifeMillis);
+    }
+
+    /** the decayed number of samples for the queue */
+    public double getWeight(final String queue) {
+        return getWeight(queue, System.currentTimeMillis());
+    }
+
+    protected double getWeight(final String queue, final long now) {
+        final Histogram histogram=queue==null ? null : histograms.get(queue);
+        return histogram==null ? 0.0 : histogram.weight(now, halfLifeMillis);
+    }
+
+    /**
+     * Get the estimated wait time for the queue.
+     * @param queue
+     * @param percentile, in the range [0, 100]
+     * @return the upper bound, in milliseconds, of the bucket which holds the percentile, or null if there are no samples
+     */
+    public Long getWaitMillis(final String queue, final double percentile) {
+        return getWaitMillis(queue, percentile, System.currentTimeMillis());
+    }
+
+    protected Long getWaitMillis(final String queue, final double percentile, final long now) {
+        final Histogram histogram=queue==null ? null : histograms.get(queue);
+        return histogram==null ? null : histogram.percentile(percentile, now, halfLifeMillis);
+    }
+
+}
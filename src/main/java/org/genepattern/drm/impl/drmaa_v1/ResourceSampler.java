@@ -0,0 +1,237 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.primitives.Longs;
+
+/**
+ * Run a command and sample the resource usage of its process tree from /proc at a fixed interval.
+ * The sampler is a bash script, see {@link #SCRIPT}, so that it adds no more than a few MB to the memory
+ * of the job and does not depend on the server's java installation, for example,
+ * <pre>
+ *     /bin/bash -c {script} gp_sampler 10 .gp_resource_samples.txt {cmd} {args}
+ * </pre>
+ * The exit code is the exit code of the command.
+ *
+ * File format: the header line, '# gp_resource_samples {version} {intervalMillis}', followed by one line per sample,
+ * <pre>
+ *     {timeMillis} {rssKb} {swapKb} {numProcesses} {numThreads} {cpuMillis} {readBytes} {writeBytes}
+ * </pre>
+ * a truncated last line, e.g. when the job was killed, is ignored.
+ */
+public class ResourceSampler {
+    public static final String HEADER="# gp_resource_samples";
+    public static final int VERSION=2;
+    /** the default sample file, in the working directory */
+    public static final String SAMPLES_FILE=".gp_resource_samples.txt";
+
+    /**
+     * The bash sampler, run as 'bash -c SCRIPT gp_sampler {intervalSeconds} {outputFile} {commandLine}'.
+     * The command runs in the background; a subshell walks /proc every interval, from the command's pid through
+     * the ppid field of each /proc/{pid}/stat, and sums the stat, status and io entries of the process tree.
+     * Only bash builtins are used for each process, the only commands are 'date' and 'sleep', once per sample.
+     */
+    protected static final String SCRIPT=
+              "interval=\"$1\"; out=\"$2\"; shift 2\n"
+            + "\"$@\" <&0 & pid=$!\n"
+            + "trap 'kill -TERM $pid 2>/dev/null' TERM INT HUP\n"
+            + "hz=$(getconf CLK_TCK 2>/dev/null); hz=${hz:-100}\n"
+            + "sample() {\n"
+            + "  local -A kids=() stats=()\n"
+            + "  local -a q f\n"
+            + "  local d line p k v u i=0 n=0 t=0 rss=0 swap=0 cpu=0 rb=0 wb=0\n"
+            + "  for d in /proc/[0-9]*; do\n"
+            + "    read -r line < \"$d/stat\" || continue\n"
+            // the command name is in parentheses, and may contain spaces
+            + "    line=${line##*) }; f=($line)\n"
+            + "    kids[${f[1]}]+=\" ${d#/proc/}\"; stats[${d#/proc/}]=$line\n"
+            + "  done 2>/dev/null\n"
+            + "  q=($pid)\n"
+            + "  while [ $i -lt ${#q[@]} ]; do\n"
+            + "    p=${q[$i]}; i=$((i+1))\n"
+            + "    [ -n \"${stats[$p]}\" ] || continue\n"
+            + "    f=(${stats[$p]})\n"
+            // utime+stime+cutime+cstime, num_threads
+            + "    n=$((n+1)); t=$((t+f[17])); cpu=$((cpu+f[11]+f[12]+f[13]+f[14]))\n"
+            + "    { while read -r k v u; do case $k in VmRSS:) rss=$((rss+v));; VmSwap:) swap=$((swap+v));; esac; done < /proc/$p/status; } 2>/dev/null\n"
+            + "    { while read -r k v; do case $k in read_bytes:) rb=$((rb+v));; write_bytes:) wb=$((wb+v));; esac; done < /proc/$p/io; } 2>/dev/null\n"
+            + "    q+=(${kids[$p]})\n"
+            + "  done\n"
+            + "  echo \"$(date +%s%3N) $rss $swap $n $t $((cpu*1000/hz)) $rb $wb\" >> \"$out\"\n"
+            + "}\n"
+            + "echo \"" + HEADER + " " + VERSION + " $((interval*1000))\" > \"$out\"\n"
+            + "( trap 'kill $s 2>/dev/null; exit 0' TERM\n"
+            + "  while kill -0 $pid 2>/dev/null; do sample; sleep \"$interval\" </dev/null >/dev/null 2>&1 & s=$!; wait $s; done ) & sampler=$!\n"
+            + "wait $pid; rc=$?\n"
+            // wait returns early when the trap runs, wait again for the exit code of the command
+            + "while kill -0 $pid 2>/dev/null; do wait $pid; rc=$?; done\n"
+            + "kill -TERM $sampler 2>/dev/null; wait $sampler\n"
+            + "exit $rc\n";
+
+    /** the resource usage of the process tree at one point in time */
+    public static class Sample {
+        long timeMillis;
+        long rssKb;
+        long swapKb;
+        int numProcesses;
+        int numThreads;
+        long cpuMillis;
+        long readBytes;
+        long writeBytes;
+
+        /** @return the sample, or null if the line is not a complete sample */
+        static Sample parse(final String line) {
+            final String[] fields=line.trim().split("\\s+");
+            if (fields.length != 8) {
+                return null;
+            }
+            final long[] values=new long[fields.length];
+            for(int i=0; i<fields.length; ++i) {
+                final Long value=Longs.tryParse(fields[i]);
+                if (value==null) {
+                    return null;
+                }
+                values[i]=value;
+            }
+            final Sample sample=new Sample();
+            sample.timeMillis=values[0];
+            sample.rssKb=values[1];
+            sample.swapKb=values[2];
+            sample.numProcesses=(int) values[3];
+            sample.numThreads=(int) values[4];
+            sample.cpuMillis=values[5];
+            sample.readBytes=values[6];
+            sample.writeBytes=values[7];
+            return sample;
+        }
+    }
+
+    /** summary stats for a series of samples */
+    public static class Summary {
+        private int numSamples=0;
+        private long maxRssBytes=0L;
+        private long maxSwapBytes=0L;
+        private int maxProcesses=0;
+        private int maxThreads=0;
+        private double avgCpuUtilization=0.0;
+        private double maxCpuUtilization=0.0;
+        private double maxReadBytesPerSec=0.0;
+        private double maxWriteBytesPerSec=0.0;
+
+        public int getNumSamples() {
+            return numSamples;
+        }
+        public long getMaxRssBytes() {
+            return maxRssBytes;
+        }
+        public long getMaxSwapBytes() {
+            return maxSwapBytes;
+        }
+        public int getMaxProcesses() {
+            return maxProcesses;
+        }
+        public int getMaxThreads() {
+            return maxThreads;
+        }
+        /** the average number of busy cores */
+        public double getAvgCpuUtilization() {
+            return avgCpuUtilization;
+        }
+        /** the max number of busy cores in one interval */
+        public double getMaxCpuUtilization() {
+            return maxCpuUtilization;
+        }
+        public double getMaxReadBytesPerSec() {
+            return maxReadBytesPerSec;
+        }
+        public double getMaxWriteBytesPerSec() {
+            return maxWriteBytesPerSec;
+        }
+    }
+
+    /**
+     * Summarize the samples.
+     */
+    protected static Summary summarize(final List<Sample> samples) {
+        final Summary summary=new Summary();
+        summary.numSamples=samples.size();
+        long busyMillis=0L;
+        Sample prev=null;
+        for(final Sample sample : samples) {
+            summary.maxRssBytes=Math.max(summary.maxRssBytes, sample.rssKb*1024L);
+            summary.maxSwapBytes=Math.max(summary.maxSwapBytes, sample.swapKb*1024L);
+            summary.maxProcesses=Math.max(summary.maxProcesses, sample.numProcesses);
+            summary.maxThreads=Math.max(summary.maxThreads, sample.numThreads);
+            if (prev != null && sample.timeMillis > prev.timeMillis) {
+                final long elapsedMillis=sample.timeMillis - prev.timeMillis;
+                final double seconds=elapsedMillis / 1000.0;
+                // counters go down when a process exits before its parent collects it
+                final long cpuMillis=Math.max(0L, sample.cpuMillis - prev.cpuMillis);
+                busyMillis += cpuMillis;
+                summary.maxCpuUtilization=Math.max(summary.maxCpuUtilization, (double) cpuMillis / elapsedMillis);
+                summary.maxReadBytesPerSec=Math.max(summary.maxReadBytesPerSec, Math.max(0L, sample.readBytes - prev.readBytes) / seconds);
+                summary.maxWriteBytesPerSec=Math.max(summary.maxWriteBytesPerSec, Math.max(0L, sample.writeBytes - prev.writeBytes) / seconds);
+            }
+            prev=sample;
+        }
+        if (samples.size() > 1) {
+            final long elapsedMillis=samples.get(samples.size()-1).timeMillis - samples.get(0).timeMillis;
+            if (elapsedMillis > 0L) {
+                summary.avgCpuUtilization=(double) busyMillis / elapsedMillis;
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Read the samples from the file.
+     * @throws IOException if the file is not a sample file
+     */
+    public static List<Sample> readSamples(final File file) throws IOException {
+        final List<String> lines=Files.readLines(file, Charsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).startsWith(HEADER)) {
+            throw new IOException("Not a resource sample file: "+file);
+        }
+        final String[] header=lines.get(0).substring(HEADER.length()).trim().split("\\s+");
+        if (!(""+VERSION).equals(header[0])) {
+            throw new IOException("Unsupported version: "+header[0]+", file="+file);
+        }
+        final List<Sample> samples=new ArrayList<Sample>();
+        for(final String line : lines.subList(1, lines.size())) {
+            final Sample sample=Sample.parse(line);
+            if (sample != null) {
+                samples.add(sample);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Read and summarize the samples from the file.
+     */
+    public static Summary read(final File file) throws IOException {
+        return summarize(readSamples(file));
+    }
+
+    /**
+     * Wrap the command line.
+     * @return the new command line, '/bin/bash -c {script} gp_sampler {intervalSeconds} {samplesFile} {commandLine}'
+     */
+    public static List<String> wrapCommandLine(final List<String> commandLine, final int intervalSeconds, final String samplesFile) {
+        final List<String> wrapped=new ArrayList<String>();
+        wrapped.add("/bin/bash");
+        wrapped.add("-c");
+        wrapped.add(SCRIPT);
+        wrapped.add("gp_sampler");
+        wrapped.add(""+Math.max(1, intervalSeconds));
+        wrapped.add(samplesFile);
+        wrapped.addAll(commandLine);
+        return wrapped;
+    }
+
+}
@@ -0,0 +1,81 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.util.Random;
+
+import org.ggf.drmaa.DrmCommunicationException;
+import org.ggf.drmaa.TryLaterException;
+
+/**
+ * Jittered exponential backoff for retrying a failed job submission, e.g. while the qmaster is restarting.
+ * The delay before retry n is drawn uniformly from [d/2, d], where d=min(maxDelay, initialDelay * 2^(n-1)),
+ * so that a burst of submissions which failed at the same time is spread out over the next interval.
+ * There are no more retries after the deadline.
+ */
+public class RetryPolicy {
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final long deadlineMillis;
+    private final Random random;
+
+    /**
+     * @param initialDelayMillis, the max delay before the first retry
+     * @param maxDelayMillis, the max delay before any retry
+     * @param deadlineMillis, the max time from the first failure to the last retry
+     * @param random, for the jitter
+     */
+    public RetryPolicy(final long initialDelayMillis, final long maxDelayMillis, final long deadlineMillis, final Random random) {
+        this.initialDelayMillis=Math.max(1L, initialDelayMillis);
+        this.maxDelayMillis=Math.max(this.initialDelayMillis, maxDelayMillis);
+        this.deadlineMillis=deadlineMillis;
+        this.random=random;
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /**
+     * @param retry, the number of the retry, starting at 1
+     * @return the delay, in milliseconds, before the retry
+     */
+    public long getDelayMillis(final int retry) {
+        long delay=initialDelayMillis;
+        for(int i=1; i<retry && delay < maxDelayMillis; ++i) {
+            delay *= 2L;
+        }
+        delay=Math.min(delay, maxDelayMillis);
+        final long half=delay / 2L;
+        final double r;
+        synchronized(random) {
+            r=random.nextDouble();
+        }
+        return half + (long) (r * (delay - half));
+    }
+
+    /**
+     * @param firstFailure, System.currentTimeMillis() of the first failed attempt
+     * @param now, the current time
+     * @param retry, the number of the next retry, starting at 1
+     * @return the delay before the next retry, or -1 if it would be after the deadline
+     */
+    public long getDelayMillis(final long firstFailure, final long now, final int retry) {
+        final long delay=getDelayMillis(retry);
+        if (now + delay > firstFailure + deadlineMillis) {
+            return -1L;
+        }
+        return delay;
+    }
+
+    /**
+     * A transient error may succeed when retried, e.g. the qmaster is not reachable or asks to try later.
+     * Permanent errors, e.g. an invalid job template or a job denied by the DRM, fail right away.
+     */
+    public static boolean isTransient(final Throwable t) {
+        if (t instanceof DrmaaTimeoutException) {
+            // an in doubt call may still complete, don't submit the job again
+            return !((DrmaaTimeoutException) t).isInDoubt();
+        }
+        return t instanceof DrmCommunicationException || t instanceof TryLaterException;
+    }
+
+}
@@ -0,0 +1,47 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesce concurrent requests for the same key into one call.
+ * The first caller runs the request in its own thread,
+ * concurrent callers with the same key wait for and share that result.
+ * Results are not kept after the call completes.
+ *
+ * @param <K> the key, e.g. the extJobId
+ * @param <V> the result, e.g. the DrmJobStatus
+ */
+public class SingleFlight<K,V> {
+    private final ConcurrentMap<K, FutureTask<V>> inFlight=new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * Get the result for the given key, calling the request only when there is
+     * not already a call in flight for the key.
+     *
+     * @throws ExecutionException wrapping any exception thrown by the request
+     * @throws InterruptedException
+     */
+    public V get(final K key, final Callable<V> request) throws ExecutionException, InterruptedException {
+        final FutureTask<V> task=new FutureTask<V>(request);
+        final FutureTask<V> existing=inFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            return existing.get();
+        }
+        try {
+            task.run();
+        }
+        finally {
+            inFlight.remove(key, task);
+        }
+        return task.get();
+    }
+
+    /** the number of calls currently in flight */
+    public int size() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,339 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+
+/**
+ * Index of the extJobId of the current submission for each gpJobNo, so that a retried startJob
+ * for the same gpJobNo can return the job which is already in the queue instead of adding a duplicate.
+ * A submission which may have been accepted by the qmaster, but whose extJobId is not known,
+ * is recorded as {@link #IN_DOUBT}.
+ *
+ * The index also holds the aliases from an earlier extJobId of a job to its current extJobId, e.g. from
+ * the placeholder for a pending job to the extJobId of the job once it was added to the queue.
+ * An alias is kept until it is removed, so that a job which GenePattern knows by its placeholder
+ * can be found after a restart.
+ *
+ * The {@link JobAttempts} of a job which was automatically resubmitted are kept with the index, 
+ * so that the next attempt after a restart has the same resource overrides and history.
+ *
+ * The index is kept in memory and optionally persisted to an append-only journal file, one
+ * 'gpJobNo extJobId', '@ fromExtJobId toExtJobId' or 'A gpJobNo originalExtJobId cause walltimeLimit memory description' 
+ * line per change, with '-' for a removed entry or a value which is not set. 
+ * The journal is compacted on load and when it has grown to more than twice the size of the index.
+ *
+ * The journal is kept open; each line is flushed to the operating system, but not synced to the disk.
+ * It survives a crash of the server, a crash of the host may lose the last changes. A partial last line
+ * is ignored on load, so the worst case is a retried startJob which adds a duplicate job.
+ */
+public class SubmissionIndex {
+    private static final Logger log = Logger.getLogger(SubmissionIndex.class);
+
+    /** the extJobId for a submission which may or may not have been accepted by the qmaster */
+    public static final String IN_DOUBT="?";
+    private static final String REMOVED="-";
+    private static final String ALIAS="@";
+    private static final String ATTEMPT="A";
+    /** min number of journal lines before compacting */
+    private static final int MIN_COMPACT_LINES=1000;
+
+    private final Map<Integer, String> extJobIds=new HashMap<Integer, String>();
+    private final Map<String, String> aliases=new HashMap<String, String>();
+    private final Map<Integer, JobAttempts> attempts=new HashMap<Integer, JobAttempts>();
+    private final File journal;
+    /** open for appending, null until the first change after load or compact */
+    private Writer writer=null;
+    private int numJournalLines=0;
+
+    /**
+     * @param journal, optional, the file for persisting the index
+     */
+    public SubmissionIndex(final File journal) {
+        this.journal=journal;
+    }
+
+    public File getJournal() {
+        return journal;
+    }
+
+    /** @return the extJobId, {@link #IN_DOUBT}, or null if there is no current submission for the job */
+    public synchronized String get(final int gpJobNo) {
+        return extJobIds.get(gpJobNo);
+    }
+
+    public synchronized void put(final int gpJobNo, final String extJobId) {
+        if (extJobId.equals(extJobIds.put(gpJobNo, extJobId))) {
+            return;
+        }
+        append(gpJobNo, extJobId);
+    }
+
+    public void putInDoubt(final int gpJobNo) {
+        put(gpJobNo, IN_DOUBT);
+    }
+
+    /** remove the entry for the job */
+    public synchronized void remove(final int gpJobNo) {
+        if (extJobIds.remove(gpJobNo) != null) {
+            append(gpJobNo, REMOVED);
+        }
+    }
+
+    /** remove the entry for the job, only if it is for the given extJobId */
+    public synchronized void remove(final int gpJobNo, final String extJobId) {
+        if (extJobId != null && extJobId.equals(extJobIds.get(gpJobNo))) {
+            remove(gpJobNo);
+        }
+    }
+
+    public synchronized int size() {
+        return extJobIds.size();
+    }
+
+    /** @return the extJobId which the given extJobId resolves to, or null if there is no alias */
+    public synchronized String getAlias(final String fromExtJobId) {
+        return aliases.get(fromExtJobId);
+    }
+
+    public synchronized void putAlias(final String fromExtJobId, final String toExtJobId) {
+        if (toExtJobId.equals(aliases.put(fromExtJobId, toExtJobId))) {
+            return;
+        }
+        append(ALIAS+" "+fromExtJobId+" "+toExtJobId);
+    }
+
+    public synchronized void removeAlias(final String fromExtJobId) {
+        if (aliases.remove(fromExtJobId) != null) {
+            append(ALIAS+" "+fromExtJobId+" "+REMOVED);
+        }
+    }
+
+    public synchronized int getNumAliases() {
+        return aliases.size();
+    }
+
+    /** @return the attempts for the job, or null if the job was not resubmitted */
+    public synchronized JobAttempts getAttempts(final int gpJobNo) {
+        return attempts.get(gpJobNo);
+    }
+
+    /** get or create the attempts for the job */
+    public synchronized JobAttempts getOrCreateAttempts(final int gpJobNo, final String originalExtJobId) {
+        JobAttempts jobAttempts=attempts.get(gpJobNo);
+        if (jobAttempts==null) {
+            jobAttempts=new JobAttempts(gpJobNo, originalExtJobId);
+            attempts.put(gpJobNo, jobAttempts);
+        }
+        return jobAttempts;
+    }
+
+    /**
+     * Save the failed attempt, after it was added to the attempts for the job, 
+     * see {@link JobAttempts#addFailedAttempt(String, String)}.
+     */
+    public synchronized void saveFailedAttempt(final JobAttempts jobAttempts, final String cause, final String description) {
+        attempts.put(jobAttempts.getGpJobNo(), jobAttempts);
+        append(formatAttempt(jobAttempts, cause, description, jobAttempts.getWalltimeLimit(), jobAttempts.getMemory()));
+    }
+
+    /** @return the removed attempts, or null if the job was not resubmitted */
+    public synchronized JobAttempts removeAttempts(final int gpJobNo) {
+        final JobAttempts removed=attempts.remove(gpJobNo);
+        if (removed != null) {
+            append(ATTEMPT+" "+gpJobNo+" "+REMOVED);
+        }
+        return removed;
+    }
+
+    private static String formatAttempt(final JobAttempts jobAttempts, final String cause, final String description, final Long walltimeLimit, final Long memory) {
+        return ATTEMPT+" "+jobAttempts.getGpJobNo()+" "+jobAttempts.getOriginalExtJobId()+" "+cause+" "+
+                (walltimeLimit==null ? REMOVED : walltimeLimit)+" "+(memory==null ? REMOVED : memory)+" "+
+                description.replace('\n', ' ');
+    }
+
+    private void loadAttempt(final String line) {
+        final String[] args=line.trim().split("\\s+", 7);
+        final Integer gpJobNo=args.length >= 3 ? Ints.tryParse(args[1]) : null;
+        if (gpJobNo==null) {
+            return;
+        }
+        if (args.length==3 && REMOVED.equals(args[2])) {
+            attempts.remove(gpJobNo);
+            return;
+        }
+        if (args.length < 6) {
+            // e.g. a partial last line
+            return;
+        }
+        final JobAttempts jobAttempts=getOrCreateAttempts(gpJobNo, args[2]);
+        jobAttempts.addFailedAttempt(args[3], args.length==7 ? args[6] : "");
+        final Long walltimeLimit=Longs.tryParse(args[4]);
+        if (walltimeLimit != null) {
+            jobAttempts.setWalltimeLimit(walltimeLimit);
+        }
+        final Long memory=Longs.tryParse(args[5]);
+        if (memory != null) {
+            jobAttempts.setMemory(memory);
+        }
+    }
+
+    /**
+     * Load the index from the journal, then compact the journal.
+     * @return the number of entries
+     */
+    public synchronized int load() throws IOException {
+        if (journal==null || !journal.isFile()) {
+            return 0;
+        }
+        final BufferedReader in=new BufferedReader(new InputStreamReader(new FileInputStream(journal), Charsets.UTF_8));
+        try {
+            String line;
+            while((line=in.readLine()) != null) {
+                if (line.startsWith(ATTEMPT+" ")) {
+                    loadAttempt(line);
+                    continue;
+                }
+                final String[] args=line.trim().split("\\s+");
+                if (args.length==3 && ALIAS.equals(args[0])) {
+                    if (REMOVED.equals(args[2])) {
+                        aliases.remove(args[1]);
+                    }
+                    else {
+                        aliases.put(args[1], args[2]);
+                    }
+                    continue;
+                }
+                final Integer gpJobNo=args.length==2 ? Ints.tryParse(args[0]) : null;
+                if (gpJobNo==null) {
+                    // e.g. a partial last line
+                    continue;
+                }
+                if (REMOVED.equals(args[1])) {
+                    extJobIds.remove(gpJobNo);
+                }
+                else {
+                    extJobIds.put(gpJobNo, args[1]);
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+        compact();
+        return extJobIds.size();
+    }
+
+    private void append(final int gpJobNo, final String extJobId) {
+        append(gpJobNo+" "+extJobId);
+    }
+
+    private void append(final String line) {
+        if (journal==null) {
+            return;
+        }
+        try {
+            if (numJournalLines >= MIN_COMPACT_LINES && numJournalLines > 2 * getNumIndexLines()) {
+                compact();
+                return;
+            }
+            if (writer==null) {
+                writer=new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journal, true), Charsets.UTF_8));
+            }
+            writer.write(line+"\n");
+            writer.flush();
+            ++numJournalLines;
+        }
+        catch (IOException e) {
+            log.error("Error writing to "+journal, e);
+            close();
+        }
+    }
+
+    /** @return the number of lines in a compacted journal, one per entry and alias, one per failed attempt */
+    private int getNumIndexLines() {
+        int numLines=extJobIds.size() + aliases.size();
+        for(final JobAttempts jobAttempts : attempts.values()) {
+            numLines += jobAttempts.getHistory().size();
+        }
+        return numLines;
+    }
+
+    /**
+     * Close the journal; the next change opens it again.
+     */
+    public synchronized void close() {
+        if (writer==null) {
+            return;
+        }
+        try {
+            writer.close();
+        }
+        catch (IOException e) {
+            log.error("Error closing "+journal, e);
+        }
+        writer=null;
+    }
+
+    /**
+     * Rewrite the journal with one line per entry; the journal is written to a temporary file which
+     * is then renamed, so that a reader never sees a partial journal.
+     */
+    protected synchronized void compact() throws IOException {
+        if (journal==null) {
+            return;
+        }
+        close();
+        final File tmpFile=new File(journal.getPath()+".tmp");
+        final Writer out=new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), Charsets.UTF_8));
+        int numLines=0;
+        try {
+            for(final Entry<Integer, String> entry : extJobIds.entrySet()) {
+                out.write(entry.getKey()+" "+entry.getValue()+"\n");
+                ++numLines;
+            }
+            for(final Entry<String, String> entry : aliases.entrySet()) {
+                out.write(ALIAS+" "+entry.getKey()+" "+entry.getValue()+"\n");
+                ++numLines;
+            }
+            for(final JobAttempts jobAttempts : attempts.values()) {
+                final List<String> history=jobAttempts.getHistory();
+                final List<String> causes=jobAttempts.getCauses();
+                for(int i=0; i<history.size(); ++i) {
+                    // the resource overrides for the next attempt are on the last line
+                    final boolean last=i==history.size()-1;
+                    out.write(formatAttempt(jobAttempts, causes.get(i), history.get(i), 
+                            last ? jobAttempts.getWalltimeLimit() : null, last ? jobAttempts.getMemory() : null)+"\n");
+                    ++numLines;
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(journal)) {
+            // e.g. on Windows, when the file exists
+            if (!journal.delete() || !tmpFile.renameTo(journal)) {
+                throw new IOException("Error renaming "+tmpFile+" to "+journal);
+            }
+        }
+        numJournalLines=numLines;
+    }
+
+}
@@ -0,0 +1,69 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.util.List;
+
+/**
+ * Values derived from a job submission which are expensive to compute, e.g. the size of the input files,
+ * computed at most once per submission and shared by the native specification and the book-keeping
+ * for the submitted job. A null value has not been computed yet.
+ */
+public class SubmissionInfo {
+    private List<String> inputPaths=null;
+    private Long inputSize=null;
+    private Long rightsizedMemory=null;
+    private Integer numSlots=null;
+    private boolean walltimeLimitSet=false;
+    private Long walltimeLimit=null;
+
+    /** the input file paths on the command line */
+    public synchronized List<String> getInputPaths() {
+        return inputPaths;
+    }
+
+    public synchronized void setInputPaths(final List<String> inputPaths) {
+        this.inputPaths=inputPaths;
+    }
+
+    /** the total size in bytes of the input files */
+    public synchronized Long getInputSize() {
+        return inputSize;
+    }
+
+    public synchronized void setInputSize(final Long inputSize) {
+        this.inputSize=inputSize;
+    }
+
+    /** the total memory in bytes to request, after right-sizing */
+    public synchronized Long getRightsizedMemory() {
+        return rightsizedMemory;
+    }
+
+    public synchronized void setRightsizedMemory(final Long rightsizedMemory) {
+        this.rightsizedMemory=rightsizedMemory;
+    }
+
+    /** the number of slots to request for a parallel job, after downsizing */
+    public synchronized Integer getNumSlots() {
+        return numSlots;
+    }
+
+    public synchronized void setNumSlots(final Integer numSlots) {
+        this.numSlots=numSlots;
+    }
+
+    /** true if the walltime limit has been computed, the limit itself may be null */
+    public synchronized boolean isWalltimeLimitSet() {
+        return walltimeLimitSet;
+    }
+
+    /** the walltime limit in seconds, or null if there is no limit */
+    public synchronized Long getWalltimeLimit() {
+        return walltimeLimit;
+    }
+
+    public synchronized void setWalltimeLimit(final Long walltimeLimit) {
+        this.walltimeLimit=walltimeLimit;
+        this.walltimeLimitSet=true;
+    }
+
+}
@@ -0,0 +1,1039 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.genepattern.drm.DrmJobRecord;
+import org.genepattern.drm.DrmJobState;
+import org.genepattern.drm.DrmJobStatus;
+import org.genepattern.drm.DrmJobSubmission;
+import org.genepattern.server.config.GpConfig;
+import org.genepattern.server.config.GpContext;
+import org.genepattern.server.executor.CommandExecutorException;
+import org.ggf.drmaa.DrmCommunicationException;
+import org.ggf.drmaa.DrmaaException;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The submission state machine for the {@link DrmaaV1JobRunner}: the jobs which are not in the queue yet, 
+ * held under a placeholder extJobId, e.g. 'pending-1440658419871', and how each placeholder resolves.
+ * A job is held while the session is initializing, while it waits for a retry after a transient error, 
+ * while its submission is in doubt, and while the next attempt of a resubmitted job is added to the queue. 
+ * The placeholder resolves to the new extJobId, or to the job which was found by name, 
+ * or it gets a FAILED or CANCELLED status.
+ * 
+ * The gpJobNo to extJobId index, and the aliases from placeholder and previous extJobIds, 
+ * are saved in the {@link SubmissionIndex} journal, so that they survive a server restart.
+ * 
+ * The DRMAA calls, and the book-keeping for the jobs in the queue, are made by the runner, see {@link JobQueue}.
+ */
+public class SubmissionTracker {
+    private static final Logger log = Logger.getLogger(SubmissionTracker.class);
+
+    public static final String PENDING_JOB_ID_PREFIX="pending-";
+
+    public static boolean isPendingJobId(final String extJobId) {
+        return extJobId != null && extJobId.startsWith(PENDING_JOB_ID_PREFIX);
+    }
+
+    /**
+     * The calls which the tracker makes into the runner, to add a held job to the queue, 
+     * and to update the runner's book-keeping when a placeholder resolves.
+     */
+    protected interface JobQueue {
+        GpConfig getGpConfig();
+        GpContext getServerContext();
+        /** add the job to the queue, a transient error is retried, see {@link SubmissionTracker#addRetryJob} */
+        String submitToQueue(DrmJobSubmission jobSubmission) throws CommandExecutorException;
+        /** make one attempt to add the job to the queue */
+        String submitOnce(DrmJobSubmission jobSubmission) throws DrmaaException, CommandExecutorException;
+        /** clean up after a failed submission, see {@link SubmissionTracker#indexFailedSubmission} */
+        CommandExecutorException submitError(DrmJobSubmission jobSubmission, DrmaaException e, int numAttempts);
+        void clearSelectedQueue(DrmJobSubmission jobSubmission);
+        /** a job which was added to the queue by this session */
+        void addSubmittedJob(String extJobId, DrmJobSubmission jobSubmission);
+        /** a job which was found by name, e.g. added to the queue by a submission which was in doubt */
+        void addFoundJob(String extJobId);
+        boolean isKnownJob(String extJobId);
+        boolean isLiveJob(String extJobId);
+        /** cancel a job which was added to the queue after its placeholder was cancelled */
+        void cancelOrphanJob(String extJobId);
+        /** the FAILED or CANCELLED status of a placeholder */
+        void putCompletedStatus(DrmJobStatus jobStatus);
+        DrmJobStatus fetchStatus(DrmJobRecord drmJobRecord, String extJobId);
+    }
+
+    private final JobQueue queue;
+
+    /** guards the held jobs, keyed by placeholder extJobId, and the startup hold */
+    private final Object heldJobsLock=new Object();
+    /** jobs held while the session is initializing, see {@link #holdStartupJobs()} */
+    private final Map<String, DrmJobSubmission> startupJobs=new LinkedHashMap<String, DrmJobSubmission>();
+    private boolean holdingStartupJobs=false;
+    /** jobs waiting for a retry after a transient error, or for the lookup of an in doubt submission */
+    private final Map<String, DrmJobSubmission> retryJobs=new LinkedHashMap<String, DrmJobSubmission>();
+    /** jobs whose submission timed out while the call was running in the native library */
+    private final Map<String, DrmJobSubmission> inDoubtJobs=new LinkedHashMap<String, DrmJobSubmission>();
+    /** jobs which are being added to the queue, the released startup jobs and the next attempt of a resubmitted job */
+    private final Map<String, DrmJobSubmission> submittingJobs=new LinkedHashMap<String, DrmJobSubmission>();
+    private final List<Map<String, DrmJobSubmission>> heldJobs=ImmutableList.of(startupJobs, retryJobs, inDoubtJobs, submittingJobs);
+    private final AtomicLong nextPendingId=new AtomicLong(System.currentTimeMillis());
+    /** placeholder extJobIds up to this one were created before the server was (re)started */
+    private final long firstPendingId=nextPendingId.get();
+
+    /** extJobId of the current submission, keyed by gpJobNo, initialized on first use */
+    private SubmissionIndex submissionIndex=null;
+
+    /** backoff for submissions which failed with a transient error, initialized on first use */
+    private RetryPolicy retryPolicy=null;
+    private boolean retryPolicyInitialized=false;
+    private ScheduledExecutorService retryTimer=null;
+    /** pending retries whose previous attempt is in doubt, keyed by placeholder extJobId; looked up in one batch */
+    private final Map<String, DrmJobSubmission> inDoubtRetries=new LinkedHashMap<String, DrmJobSubmission>();
+    /** the result of the last batch lookup, the extJobId or an empty string, keyed by placeholder extJobId */
+    private final Map<String, String> inDoubtRetryLookups=new HashMap<String, String>();
+
+    /** completes in doubt submissions, off the dispatcher thread; initialized on first use */
+    private ExecutorService inDoubtExecutor=null;
+    /** the time after which an in doubt submission is looked up by name, keyed by placeholder extJobId */
+    private final Map<String, Long> inDoubtDeadlines=new LinkedHashMap<String, Long>();
+    private final AtomicLong numInDoubtSubmissions=new AtomicLong(0L);
+
+    public SubmissionTracker(final JobQueue queue) {
+        this.queue=queue;
+    }
+
+    protected int getIntegerProperty(final String key, final int defaultValue) {
+        final GpConfig gpConfig=queue.getGpConfig();
+        if (gpConfig==null) {
+            return defaultValue;
+        }
+        final Integer value=gpConfig.getGPIntegerProperty(queue.getServerContext(), key, defaultValue);
+        return value==null ? defaultValue : value;
+    }
+
+    protected String getProperty(final String key, final String defaultValue) {
+        final GpConfig gpConfig=queue.getGpConfig();
+        if (gpConfig==null) {
+            return defaultValue;
+        }
+        return gpConfig.getGPProperty(queue.getServerContext(), key, defaultValue);
+    }
+
+    protected String newPendingId() {
+        return PENDING_JOB_ID_PREFIX+nextPendingId.incrementAndGet();
+    }
+
+    /** @return the held job, or null if the placeholder was resolved or cancelled */
+    protected DrmJobSubmission getHeldJob(final String pendingId) {
+        synchronized(heldJobsLock) {
+            for(final Map<String, DrmJobSubmission> jobs : heldJobs) {
+                final DrmJobSubmission jobSubmission=jobs.get(pendingId);
+                if (jobSubmission != null) {
+                    return jobSubmission;
+                }
+            }
+            return null;
+        }
+    }
+
+    /** @return the held job, or null if the placeholder was already resolved or cancelled */
+    protected DrmJobSubmission removeHeldJob(final String pendingId) {
+        synchronized(heldJobsLock) {
+            for(final Map<String, DrmJobSubmission> jobs : heldJobs) {
+                final DrmJobSubmission jobSubmission=jobs.remove(pendingId);
+                if (jobSubmission != null) {
+                    return jobSubmission;
+                }
+            }
+            return null;
+        }
+    }
+
+    /** @return the number of held jobs */
+    public int getNumHeldJobs() {
+        synchronized(heldJobsLock) {
+            int numJobs=0;
+            for(final Map<String, DrmJobSubmission> jobs : heldJobs) {
+                numJobs += jobs.size();
+            }
+            return numJobs;
+        }
+    }
+
+    /**
+     * Alias an earlier extJobId of the job, e.g. a placeholder or a previous attempt, to its current extJobId.
+     * The alias is saved in the submission index, see {@link #resolveExtJobId(String)}.
+     */
+    protected void putAlias(final String fromExtJobId, final String toExtJobId) {
+        getSubmissionIndex().putAlias(fromExtJobId, toExtJobId);
+    }
+
+    /**
+     * Remove the chain of aliases from the given extJobId, once GenePattern has the final status of the job.
+     */
+    protected void removeAliases(final String extJobId) {
+        final SubmissionIndex index=getSubmissionIndex();
+        String current=extJobId;
+        for(int i=0; i<10 && current != null; ++i) {
+            final String next=index.getAlias(current);
+            index.removeAlias(current);
+            current=next;
+        }
+    }
+
+    /**
+     * Get the extJobId of the current attempt for the job, 
+     * which differs from the given extJobId when the job was automatically resubmitted.
+     */
+    protected String resolveExtJobId(final String extJobId) {
+        if (extJobId==null) {
+            return null;
+        }
+        // a placeholder can resolve to another placeholder, e.g. when a pending job's submission is in doubt
+        String current=extJobId;
+        for(int i=0; i<10; ++i) {
+            final String next=getSubmissionIndex().getAlias(current);
+            if (next==null || next.equals(current)) {
+                break;
+            }
+            current=next;
+        }
+        return current;
+    }
+
+    /**
+     * Hold the jobs which are started from now on, until the session is initialized, see {@link #releaseStartupJobs()}.
+     */
+    protected void holdStartupJobs() {
+        synchronized(heldJobsLock) {
+            holdingStartupJobs=true;
+        }
+    }
+
+    /**
+     * Hold the job until the session is ready.
+     * @return the placeholder extJobId, or null if the startup jobs were already released
+     * @throws CommandExecutorException when there are already 'job.ge.startup.maxPending' jobs waiting
+     */
+    protected String addStartupJob(final DrmJobSubmission jobSubmission) throws CommandExecutorException {
+        final int maxPending=getIntegerProperty(DrmaaV1JobRunner.PROP_STARTUP_MAX_PENDING, 100);
+        synchronized(heldJobsLock) {
+            if (!holdingStartupJobs) {
+                return null;
+            }
+            if (startupJobs.size() >= maxPending) {
+                throw new CommandExecutorException("session is initializing, too many pending jobs (max="+maxPending+")");
+            }
+            final String pendingId=newPendingId();
+            startupJobs.put(pendingId, jobSubmission);
+            indexSubmission(jobSubmission, pendingId);
+            return pendingId;
+        }
+    }
+
+    /**
+     * Release the jobs which were held while the session was initializing, after the session state 
+     * changed to READY or FAILED; a job which is started after this is not held. 
+     * Each released job is held as a submitting job until it is added to the queue, see {@link #flushPendingJob}.
+     * @return the released jobs, keyed by placeholder extJobId
+     */
+    protected Map<String, DrmJobSubmission> releaseStartupJobs() {
+        synchronized(heldJobsLock) {
+            holdingStartupJobs=false;
+            final Map<String, DrmJobSubmission> released=new LinkedHashMap<String, DrmJobSubmission>(startupJobs);
+            startupJobs.clear();
+            submittingJobs.putAll(released);
+            return released;
+        }
+    }
+
+    /**
+     * Add a held job to the queue, the placeholder extJobId resolves to the new extJobId,
+     * see {@link #resolveExtJobId(String)}. On error, the placeholder gets a FAILED status.
+     */
+    protected void flushPendingJob(final String pendingId, final DrmJobSubmission jobSubmission) {
+        String extJobId=null;
+        CommandExecutorException error=null;
+        try {
+            extJobId=queue.submitToQueue(jobSubmission);
+        }
+        catch (CommandExecutorException e) {
+            error=e;
+        }
+        onPendingJobSubmitted(pendingId, jobSubmission, extJobId, error);
+    }
+
+    /**
+     * Resolve the placeholder extJobId for a pending job, once the job was added to the queue.
+     * When the placeholder was cancelled in the meantime, the new job is cancelled.
+     * @param extJobId, the new extJobId, or null on error
+     * @param error, the error, or null on success
+     */
+    protected void onPendingJobSubmitted(final String pendingId, final DrmJobSubmission jobSubmission, final String extJobId, final CommandExecutorException error) {
+        if (extJobId != null) {
+            putAlias(pendingId, extJobId);
+            log.debug("added pending job to queue, gpJobNo="+jobSubmission.getGpJobNo()+", "+pendingId+" -> "+extJobId);
+        }
+        else {
+            queue.putCompletedStatus(new DrmJobStatus.Builder()
+                .extJobId(pendingId)
+                .jobState(DrmJobState.FAILED)
+                .jobStatusMessage(error==null ? "error adding job to queue" : error.getLocalizedMessage())
+            .build());
+        }
+        final boolean cancelled=removeHeldJob(pendingId)==null;
+        if (cancelled && extJobId != null) {
+            // cancelled while it was being added to the queue
+            getSubmissionIndex().removeAlias(pendingId);
+            queue.cancelOrphanJob(extJobId);
+        }
+    }
+
+    /**
+     * @return the status of a held job
+     */
+    protected DrmJobStatus getPendingJobStatus(final String pendingId) {
+        return getPendingJobStatus(null, pendingId);
+    }
+
+    /**
+     * @param drmJobRecord, optional, for finding a placeholder from before a restart by name
+     * @return the status of a held job
+     */
+    protected DrmJobStatus getPendingJobStatus(final DrmJobRecord drmJobRecord, final String pendingId) {
+        final boolean pending;
+        final boolean startup;
+        synchronized(heldJobsLock) {
+            pending=getHeldJob(pendingId) != null;
+            startup=startupJobs.containsKey(pendingId);
+        }
+        if (!pending && drmJobRecord != null && drmJobRecord.getGpJobNo() != null && isPreviousPendingId(pendingId)) {
+            return getRestartedPendingJobStatus(drmJobRecord, pendingId);
+        }
+        return new DrmJobStatus.Builder()
+            .extJobId(pendingId)
+            .jobState(pending ? DrmJobState.QUEUED : DrmJobState.FAILED)
+            .jobStatusMessage(!pending ? "pending job not found, the server may have been restarted" : 
+                startup ? "waiting for the job queue to start" : "waiting to be added to the job queue")
+        .build();
+    }
+
+    /** @return true if the placeholder was created before the server was (re)started */
+    protected boolean isPreviousPendingId(final String pendingId) {
+        final Long id=Longs.tryParse(pendingId.substring(PENDING_JOB_ID_PREFIX.length()));
+        return id != null && id <= firstPendingId;
+    }
+
+    /**
+     * Find a job by name, when its placeholder was not resolved before the server was restarted, 
+     * e.g. the server was stopped while the job was pending or its submission was in doubt.
+     * A job which is found is reconciled like the other jobs from a previous session.
+     */
+    protected DrmJobStatus getRestartedPendingJobStatus(final DrmJobRecord drmJobRecord, final String pendingId) {
+        final Integer gpJobNo=drmJobRecord.getGpJobNo();
+        final JobLookup lookup=new JobLookup(getProperty(DrmaaV1JobRunner.PROP_SUBMIT_LOOKUP_CMD, JobLookup.DEFAULT_CMD), JobLookup.DEFAULT_TIMEOUT);
+        final List<String> jobIds;
+        try {
+            jobIds=lookup.getJobIds("GP_"+gpJobNo, drmJobRecord.getWorkingDir());
+        }
+        catch (IOException e) {
+            log.error("Error looking up jobs for gpJobNo="+gpJobNo+", extJobId="+pendingId, e);
+            return new DrmJobStatus.Builder()
+                .extJobId(pendingId)
+                .jobState(DrmJobState.QUEUED)
+                .jobStatusMessage("looking for the job after a server restart: "+e.getLocalizedMessage())
+            .build();
+        }
+        if (jobIds.isEmpty()) {
+            getSubmissionIndex().remove(gpJobNo, pendingId);
+            return new DrmJobStatus.Builder()
+                .extJobId(pendingId)
+                .jobState(DrmJobState.FAILED)
+                .jobStatusMessage("pending job not found, it was not added to the queue before the server was restarted")
+            .build();
+        }
+        final String extJobId=jobIds.get(jobIds.size()-1);
+        log.info("found pending job after restart, gpJobNo="+gpJobNo+", "+pendingId+" -> "+extJobId);
+        queue.addFoundJob(extJobId);
+        putAlias(pendingId, extJobId);
+        if (getSubmissionIndex().get(gpJobNo) != null) {
+            getSubmissionIndex().put(gpJobNo, extJobId);
+        }
+        return queue.fetchStatus(drmJobRecord, extJobId);
+    }
+
+    /**
+     * Cancel a held job.
+     * @return true if the job was still held
+     */
+    protected boolean cancelPendingJob(final String pendingId) {
+        if (removeHeldJob(pendingId)==null) {
+            return false;
+        }
+        removeInDoubtRetry(pendingId);
+        synchronized(inDoubtDeadlines) {
+            inDoubtDeadlines.remove(pendingId);
+        }
+        queue.putCompletedStatus(new DrmJobStatus.Builder()
+            .extJobId(pendingId)
+            .jobState(DrmJobState.CANCELLED)
+            .jobStatusMessage("cancelled before the job was added to the queue")
+        .build());
+        return true;
+    }
+
+    /**
+     * @return the retry policy, or null if 'job.ge.submit.retry' is not set
+     */
+    protected synchronized RetryPolicy getRetryPolicy() {
+        if (!retryPolicyInitialized) {
+            if (queue.getGpConfig() != null && queue.getGpConfig().getGPBooleanProperty(queue.getServerContext(), DrmaaV1JobRunner.PROP_SUBMIT_RETRY, false)) {
+                setRetryPolicy(new RetryPolicy(
+                        getIntegerProperty(DrmaaV1JobRunner.PROP_SUBMIT_RETRY_INITIAL_DELAY, 1) * 1000L, 
+                        getIntegerProperty(DrmaaV1JobRunner.PROP_SUBMIT_RETRY_MAX_DELAY, 30) * 1000L, 
+                        getIntegerProperty(DrmaaV1JobRunner.PROP_SUBMIT_RETRY_DEADLINE, 300) * 1000L, 
+                        new Random()));
+            }
+            retryPolicyInitialized=true;
+        }
+        return retryPolicy;
+    }
+
+    protected synchronized void setRetryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicy=retryPolicy;
+        this.retryPolicyInitialized=true;
+    }
+
+    protected synchronized ScheduledExecutorService getRetryTimer() {
+        if (retryTimer==null) {
+            retryTimer=Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("drmaa_v1-retry-%d").build());
+        }
+        return retryTimer;
+    }
+
+    /**
+     * Hold a job whose submission failed with a transient error, and schedule the first retry.
+     * @return the placeholder extJobId, or null if the job can't be retried
+     */
+    protected String addRetryJob(final DrmJobSubmission jobSubmission, final DrmaaException error) {
+        final RetryPolicy policy=getRetryPolicy();
+        if (policy==null) {
+            return null;
+        }
+        final long firstFailure=System.currentTimeMillis();
+        final long delay=policy.getDelayMillis(firstFailure, firstFailure, 1);
+        if (delay < 0L) {
+            return null;
+        }
+        final int maxPending=getIntegerProperty(DrmaaV1JobRunner.PROP_SUBMIT_RETRY_MAX_PENDING, 1000);
+        final String pendingId;
+        synchronized(heldJobsLock) {
+            if (retryJobs.size() >= maxPending) {
+                log.error("too many jobs waiting to be added to the queue (max="+maxPending+"), gpJobNo="+jobSubmission.getGpJobNo());
+                return null;
+            }
+            pendingId=newPendingId();
+            retryJobs.put(pendingId, jobSubmission);
+        }
+        indexSubmission(jobSubmission, pendingId);
+        log.warn("Error adding job to queue, gpJobNo="+jobSubmission.getGpJobNo()+", extJobId="+pendingId+
+                ", retry in "+delay+" ms: "+error.getLocalizedMessage());
+        scheduleRetry(pendingId, jobSubmission, firstFailure, 1, isInDoubt(error), delay);
+        return pendingId;
+    }
+
+    private void scheduleRetry(final String pendingId, final DrmJobSubmission jobSubmission, final long firstFailure, final int retry, 
+            final boolean inDoubt, final long delay) 
+    {
+        if (inDoubt) {
+            synchronized(inDoubtRetries) {
+                inDoubtRetries.put(pendingId, jobSubmission);
+            }
+        }
+        try {
+            getRetryTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    retrySubmit(pendingId, jobSubmission, firstFailure, retry, inDoubt);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            // the runner was stopped
+            onPendingJobSubmitted(pendingId, jobSubmission, null, new CommandExecutorException("runner stopped before adding job to queue"));
+        }
+    }
+
+    /**
+     * Retry the submission of a job which is waiting after a transient error. When a previous attempt is in doubt, 
+     * first look for the job by name, so that the retry does not add a duplicate, see {@link #lookupRetryJob}.
+     * @param retry, the number of the retry, starting at 1
+     */
+    protected void retrySubmit(final String pendingId, final DrmJobSubmission jobSubmission, final long firstFailure, final int retry, final boolean inDoubt) {
+        synchronized(heldJobsLock) {
+            if (!retryJobs.containsKey(pendingId)) {
+                // cancelled
+                return;
+            }
+        }
+        final Integer gpJobNo=jobSubmission.getGpJobNo();
+        if (inDoubt && gpJobNo != null && isDedupe()) {
+            final RetryPolicy policy=getRetryPolicy();
+            final long remaining=policy==null ? JobLookup.DEFAULT_TIMEOUT : firstFailure + policy.getDeadlineMillis() - System.currentTimeMillis();
+            if (remaining <= 0L) {
+                // e.g. after waiting for the lookups of other jobs, leave the index in doubt for the next startJob
+                removeInDoubtRetry(pendingId);
+                final CommandExecutorException e=new CommandExecutorException("Timed out adding job to queue, gpJobNo="+gpJobNo+
+                        ", attempts="+retry+", the previous attempt is in doubt");
+                log.error(e.getLocalizedMessage());
+                queue.clearSelectedQueue(jobSubmission);
+                getSubmissionIndex().putInDoubt(gpJobNo);
+                onPendingJobSubmitted(pendingId, jobSubmission, null, e);
+                return;
+            }
+            final String found=lookupRetryJob(pendingId, jobSubmission, Math.min(JobLookup.DEFAULT_TIMEOUT, remaining));
+            if (found != null) {
+                log.info("previous attempt was added to the queue, gpJobNo="+gpJobNo+", extJobId="+found);
+                queue.addFoundJob(found);
+                getSubmissionIndex().put(gpJobNo, found);
+                onPendingJobSubmitted(pendingId, jobSubmission, found, null);
+                return;
+            }
+        }
+        final DrmaaException error;
+        try {
+            onPendingJobSubmitted(pendingId, jobSubmission, queue.submitOnce(jobSubmission), null);
+            return;
+        }
+        catch (DrmaaException e) {
+            error=e;
+        }
+        catch (CommandExecutorException e) {
+            // no session
+            queue.clearSelectedQueue(jobSubmission);
+            onPendingJobSubmitted(pendingId, jobSubmission, null, e);
+            return;
+        }
+        catch (Throwable t) {
+            queue.clearSelectedQueue(jobSubmission);
+            final String msg="Unexpected exception adding job to queue, gpJobNo="+gpJobNo+": "+t.getLocalizedMessage();
+            log.error(msg, t);
+            onPendingJobSubmitted(pendingId, jobSubmission, null, new CommandExecutorException(msg, t));
+            return;
+        }
+        final RetryPolicy policy=getRetryPolicy();
+        if (policy != null && RetryPolicy.isTransient(error)) {
+            final long delay=policy.getDelayMillis(firstFailure, System.currentTimeMillis(), retry+1);
+            if (delay >= 0L) {
+                log.debug("Error adding job to queue, gpJobNo="+gpJobNo+", extJobId="+pendingId+", retry in "+delay+" ms: "+error.getLocalizedMessage());
+                scheduleRetry(pendingId, jobSubmission, firstFailure, retry+1, inDoubt || isInDoubt(error), delay);
+                return;
+            }
+        }
+        final CommandExecutorException e=queue.submitError(jobSubmission, error, retry+1);
+        log.error(e.getLocalizedMessage());
+        onPendingJobSubmitted(pendingId, jobSubmission, null, e);
+    }
+
+    /**
+     * Look for the job of an in doubt retry by name. The retries which are in doubt at the time are 
+     * looked up together, with one 'qstat -j GP_1,GP_2,...' command, so that a burst of failed submissions, 
+     * e.g. while the qmaster is restarting, doesn't run one lookup after another on the retry thread.
+     * @return the extJobId, or null if the job was not found
+     */
+    protected String lookupRetryJob(final String pendingId, final DrmJobSubmission jobSubmission, final long timeoutMillis) {
+        synchronized(inDoubtRetries) {
+            if (!inDoubtRetryLookups.containsKey(pendingId)) {
+                final Map<String, DrmJobSubmission> batch=new LinkedHashMap<String, DrmJobSubmission>();
+                batch.put(pendingId, jobSubmission);
+                synchronized(heldJobsLock) {
+                    for(final Iterator<Entry<String, DrmJobSubmission>> it=inDoubtRetries.entrySet().iterator(); it.hasNext(); ) {
+                        final Entry<String, DrmJobSubmission> entry=it.next();
+                        if (retryJobs.containsKey(entry.getKey())) {
+                            batch.put(entry.getKey(), entry.getValue());
+                        }
+                        else {
+                            // cancelled or completed
+                            it.remove();
+                            inDoubtRetryLookups.remove(entry.getKey());
+                        }
+                    }
+                }
+                final Map<String, String> found=lookupJobs(batch, timeoutMillis);
+                for(final String id : batch.keySet()) {
+                    // when the lookup failed, retry the submission anyway
+                    inDoubtRetryLookups.put(id, found==null ? "" : Strings.nullToEmpty(found.get(id)));
+                }
+            }
+            inDoubtRetries.remove(pendingId);
+            return Strings.emptyToNull(inDoubtRetryLookups.remove(pendingId));
+        }
+    }
+
+    private void removeInDoubtRetry(final String pendingId) {
+        synchronized(inDoubtRetries) {
+            inDoubtRetries.remove(pendingId);
+            inDoubtRetryLookups.remove(pendingId);
+        }
+    }
+
+    /**
+     * Look for the live jobs named 'GP_{gpJobNo}', owned by the server user and running in the working directory 
+     * of each job, with one lookup command, see 'job.ge.submit.lookupCmd'.
+     * @param jobs, keyed by placeholder extJobId
+     * @return the extJobId of the most recent matching job, keyed by placeholder extJobId, 
+     *     a job which was not found is not in the map; or null when the lookup failed
+     */
+    protected Map<String, String> lookupJobs(final Map<String, DrmJobSubmission> jobs, final long timeoutMillis) {
+        final Map<String, String> found=new HashMap<String, String>();
+        final Map<String, File> jobNames=new LinkedHashMap<String, File>();
+        for(final DrmJobSubmission jobSubmission : jobs.values()) {
+            if (jobSubmission.getGpJobNo() != null) {
+                jobNames.put("GP_"+jobSubmission.getGpJobNo(), jobSubmission.getWorkingDir());
+            }
+        }
+        if (jobNames.isEmpty()) {
+            return found;
+        }
+        final JobLookup lookup=new JobLookup(getProperty(DrmaaV1JobRunner.PROP_SUBMIT_LOOKUP_CMD, JobLookup.DEFAULT_CMD), Math.max(1000L, timeoutMillis));
+        final Map<String, List<String>> jobIds;
+        try {
+            jobIds=lookup.getJobIds(jobNames);
+        }
+        catch (IOException e) {
+            log.error("Error looking up "+jobNames.size()+" jobs", e);
+            return null;
+        }
+        for(final Entry<String, DrmJobSubmission> entry : jobs.entrySet()) {
+            final List<String> ids=jobIds.get("GP_"+entry.getValue().getGpJobNo());
+            if (ids != null && !ids.isEmpty()) {
+                found.put(entry.getKey(), ids.get(ids.size()-1));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Hold a job whose submission timed out while the call was running in the native library. 
+     * The placeholder extJobId resolves to the new extJobId when the call completes, 
+     * or gets a FAILED status when the call fails.
+     * @return the placeholder extJobId
+     */
+    @SuppressWarnings("unchecked")
+    protected String addInDoubtJob(final DrmJobSubmission jobSubmission, final ListenableFuture<?> future) {
+        final String pendingId=newPendingId();
+        synchronized(heldJobsLock) {
+            inDoubtJobs.put(pendingId, jobSubmission);
+        }
+        indexSubmission(jobSubmission, pendingId);
+        numInDoubtSubmissions.incrementAndGet();
+        log.error("submission is in doubt, waiting for the DRMAA call to complete, gpJobNo="+jobSubmission.getGpJobNo()+", extJobId="+pendingId);
+        Futures.addCallback((ListenableFuture<String>) future, new FutureCallback<String>() {
+            @Override
+            public void onSuccess(final String extJobId) {
+                if (!endInDoubt(pendingId)) {
+                    if (extJobId.equals(getSubmissionIndex().getAlias(pendingId)) || queue.isKnownJob(extJobId)) 
+                    {
+                        log.info("in doubt submission completed, gpJobNo="+jobSubmission.getGpJobNo()+", already found by name, extJobId="+extJobId);
+                        return;
+                    }
+                    // cancelled, or failed after the deadline
+                    log.warn("in doubt submission completed too late, gpJobNo="+jobSubmission.getGpJobNo()+", cancelling extJobId="+extJobId);
+                    queue.cancelOrphanJob(extJobId);
+                    return;
+                }
+                log.info("in doubt submission completed, gpJobNo="+jobSubmission.getGpJobNo()+", "+pendingId+" -> "+extJobId);
+                queue.addSubmittedJob(extJobId, jobSubmission);
+                onPendingJobSubmitted(pendingId, jobSubmission, extJobId, null);
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                if (!endInDoubt(pendingId)) {
+                    log.debug("in doubt submission failed after the job was resolved, gpJobNo="+jobSubmission.getGpJobNo()+": "+t.getLocalizedMessage());
+                    return;
+                }
+                queue.clearSelectedQueue(jobSubmission);
+                indexFailedSubmission(jobSubmission, t);
+                final String msg="Error adding job to queue, gpJobNo="+jobSubmission.getGpJobNo()+": "+t.getLocalizedMessage();
+                log.error(msg, t);
+                onPendingJobSubmitted(pendingId, jobSubmission, null, new CommandExecutorException(msg, t));
+            }
+        }, getInDoubtExecutor());
+        scheduleInDoubtLookup(pendingId);
+        return pendingId;
+    }
+
+    /**
+     * The call for an in doubt submission completed, don't look it up by name.
+     * @return true if the placeholder is still pending, i.e. not found by name, failed or cancelled 
+     */
+    private boolean endInDoubt(final String pendingId) {
+        synchronized(inDoubtDeadlines) {
+            inDoubtDeadlines.remove(pendingId);
+        }
+        synchronized(heldJobsLock) {
+            return inDoubtJobs.containsKey(pendingId);
+        }
+    }
+
+    /**
+     * Look for an in doubt submission by name after the 'job.ge.timeout.submit.inDoubtDeadline'.
+     * The lookup runs on the in doubt executor, so that it can't race with the completion of the call.
+     */
+    protected void scheduleInDoubtLookup(final String pendingId) {
+        final int deadlineSeconds=getIntegerProperty(DrmaaV1JobRunner.PROP_TIMEOUT_SUBMIT_IN_DOUBT_DEADLINE, DrmaaV1JobRunner.DEFAULT_TIMEOUT_SUBMIT_IN_DOUBT_DEADLINE);
+        if (deadlineSeconds <= 0) {
+            return;
+        }
+        synchronized(inDoubtDeadlines) {
+            inDoubtDeadlines.put(pendingId, System.currentTimeMillis() + deadlineSeconds * 1000L);
+        }
+        try {
+            getRetryTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        getInDoubtExecutor().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                lookupInDoubtJobs(System.currentTimeMillis());
+                            }
+                        });
+                    }
+                    catch (RejectedExecutionException e) {
+                        // the runner was stopped
+                    }
+                }
+            }, deadlineSeconds, TimeUnit.SECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            // the runner was stopped
+        }
+    }
+
+    /**
+     * Look up the in doubt submissions which are past their deadline as of now, all with one lookup command.
+     * Resolve each placeholder to the job which was found, or fail it.
+     */
+    protected void lookupInDoubtJobs(final long now) {
+        final Map<String, DrmJobSubmission> batch=new LinkedHashMap<String, DrmJobSubmission>();
+        synchronized(inDoubtDeadlines) {
+            for(final Iterator<Entry<String, Long>> it=inDoubtDeadlines.entrySet().iterator(); it.hasNext(); ) {
+                final Entry<String, Long> entry=it.next();
+                if (entry.getValue() > now) {
+                    continue;
+                }
+                it.remove();
+                synchronized(heldJobsLock) {
+                    final DrmJobSubmission jobSubmission=inDoubtJobs.get(entry.getKey());
+                    if (jobSubmission != null) {
+                        batch.put(entry.getKey(), jobSubmission);
+                    }
+                }
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        final Map<String, String> found=lookupJobs(batch, JobLookup.DEFAULT_TIMEOUT);
+        if (found==null) {
+            // the lookup failed, keep waiting for the calls
+            log.error("Error looking up "+batch.size()+" in doubt submissions, waiting for the DRMAA calls to complete");
+            return;
+        }
+        for(final Entry<String, DrmJobSubmission> entry : batch.entrySet()) {
+            final String pendingId=entry.getKey();
+            final DrmJobSubmission jobSubmission=entry.getValue();
+            final Integer gpJobNo=jobSubmission.getGpJobNo();
+            final String extJobId=found.get(pendingId);
+            if (extJobId != null) {
+                log.warn("in doubt submission found by name, gpJobNo="+gpJobNo+", "+pendingId+" -> "+extJobId);
+                queue.addFoundJob(extJobId);
+                indexSubmission(jobSubmission, extJobId);
+                onPendingJobSubmitted(pendingId, jobSubmission, extJobId, null);
+            }
+            else {
+                final String msg="Timed out adding job to queue, gpJobNo="+gpJobNo+
+                        ", the DRMAA call has not completed and the job is not in the queue";
+                log.error(msg+", extJobId="+pendingId);
+                queue.clearSelectedQueue(jobSubmission);
+                if (gpJobNo != null && isDedupe()) {
+                    getSubmissionIndex().remove(gpJobNo, pendingId);
+                }
+                onPendingJobSubmitted(pendingId, jobSubmission, null, new CommandExecutorException(msg));
+            }
+        }
+    }
+
+    /** 
+     * the callbacks for in doubt submissions must not run on the dispatcher thread which completes the future,
+     * they may call back into the dispatcher, e.g. to cancel the job
+     */
+    protected synchronized ExecutorService getInDoubtExecutor() {
+        if (inDoubtExecutor==null) {
+            inDoubtExecutor=Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("drmaa_v1-in-doubt-%d").build());
+        }
+        return inDoubtExecutor;
+    }
+
+    protected boolean isDedupe() {
+        return queue.getGpConfig()==null || queue.getGpConfig().getGPBooleanProperty(queue.getServerContext(), DrmaaV1JobRunner.PROP_SUBMIT_DEDUPE, true);
+    }
+
+    /**
+     * Get the submission index; on first use, load it from the 'job.ge.submit.indexFile'.
+     */
+    protected synchronized SubmissionIndex getSubmissionIndex() {
+        if (submissionIndex != null) {
+            return submissionIndex;
+        }
+        String path=getProperty(DrmaaV1JobRunner.PROP_SUBMIT_INDEX_FILE, null);
+        if (Strings.isNullOrEmpty(path) && queue.getGpConfig() != null && queue.getGpConfig().getResourcesDir() != null) {
+            path=new File(queue.getGpConfig().getResourcesDir(), "drmaa_v1_submissions.txt").getPath();
+        }
+        submissionIndex=new SubmissionIndex(Strings.isNullOrEmpty(path) ? null : new File(path));
+        try {
+            final int numJobs=submissionIndex.load();
+            if (numJobs > 0) {
+                log.info("loaded "+numJobs+" submissions from "+path);
+            }
+        }
+        catch (IOException e) {
+            log.error("Error loading submissions from "+path, e);
+        }
+        return submissionIndex;
+    }
+
+    /** record the extJobId, or placeholder extJobId, of the current submission for the job */
+    protected void indexSubmission(final DrmJobSubmission jobSubmission, final String extJobId) {
+        if (jobSubmission.getGpJobNo() != null && extJobId != null && isDedupe()) {
+            getSubmissionIndex().put(jobSubmission.getGpJobNo(), extJobId);
+        }
+    }
+
+    /**
+     * Record a failed submission; after a communication error the qmaster may have accepted the job anyway,
+     * the submission is in doubt until the next startJob looks for it by name, see {@link #findExistingJob}.
+     */
+    protected void indexFailedSubmission(final DrmJobSubmission jobSubmission, final Throwable t) {
+        if (jobSubmission.getGpJobNo()==null || !isDedupe()) {
+            return;
+        }
+        if (isInDoubt(t)) {
+            getSubmissionIndex().putInDoubt(jobSubmission.getGpJobNo());
+        }
+        else {
+            getSubmissionIndex().remove(jobSubmission.getGpJobNo());
+        }
+    }
+
+    /** 
+     * @return true if the qmaster may have accepted the job in spite of the error, i.e. a communication error,
+     *     or a timeout while the call was running in the native library
+     */
+    protected static boolean isInDoubt(final Throwable t) {
+        if (t instanceof DrmaaTimeoutException) {
+            return ((DrmaaTimeoutException) t).isInDoubt();
+        }
+        return t instanceof DrmCommunicationException;
+    }
+
+    /**
+     * Find a previous submission for the job which is still pending or running, so that a retried startJob 
+     * does not add a duplicate job to the queue. When the previous submission is in doubt, the job is held 
+     * while it is looked up by name on the retry timer, see {@link #addInDoubtLookup(DrmJobSubmission)}.
+     * @return the extJobId of the previous submission, or a placeholder extJobId, or null if there is none
+     */
+    protected String findExistingJob(final DrmJobSubmission jobSubmission) {
+        final Integer gpJobNo=jobSubmission.getGpJobNo();
+        if (gpJobNo==null || !isDedupe()) {
+            return null;
+        }
+        final SubmissionIndex index=getSubmissionIndex();
+        final String indexed=index.get(gpJobNo);
+        if (indexed==null) {
+            return null;
+        }
+        final String extJobId=resolveExtJobId(indexed);
+        if (SubmissionIndex.IN_DOUBT.equals(extJobId)) {
+            return addInDoubtLookup(jobSubmission);
+        }
+        if (isPendingJobId(extJobId)) {
+            if (getHeldJob(extJobId) != null) {
+                return extJobId;
+            }
+        }
+        else if (queue.isLiveJob(extJobId)) {
+            return extJobId;
+        }
+        // failed, cancelled or no longer in the queue
+        index.remove(gpJobNo, indexed);
+        return null;
+    }
+
+    /**
+     * Hold a job whose previous submission is in doubt, and look for it by name on the retry timer, 
+     * together with the in doubt retries, see {@link #lookupRetryJob}. The placeholder extJobId resolves 
+     * to the job which was found, or else the job is added to the queue.
+     * @return the placeholder extJobId
+     */
+    protected String addInDoubtLookup(final DrmJobSubmission jobSubmission) {
+        final String pendingId=newPendingId();
+        synchronized(heldJobsLock) {
+            retryJobs.put(pendingId, jobSubmission);
+        }
+        synchronized(inDoubtRetries) {
+            inDoubtRetries.put(pendingId, jobSubmission);
+        }
+        indexSubmission(jobSubmission, pendingId);
+        log.info("previous submission is in doubt, looking for gpJobNo="+jobSubmission.getGpJobNo()+" by name, extJobId="+pendingId);
+        try {
+            getRetryTimer().execute(new Runnable() {
+                @Override
+                public void run() {
+                    resolveInDoubtLookup(pendingId, jobSubmission);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // the runner was stopped
+            removeInDoubtRetry(pendingId);
+            onPendingJobSubmitted(pendingId, jobSubmission, null, new CommandExecutorException("runner stopped before adding job to queue"));
+        }
+        return pendingId;
+    }
+
+    /**
+     * Resolve the placeholder for a job whose previous submission is in doubt, 
+     * to the job which was found by name, or to a new submission.
+     */
+    protected void resolveInDoubtLookup(final String pendingId, final DrmJobSubmission jobSubmission) {
+        final String found=lookupRetryJob(pendingId, jobSubmission, JobLookup.DEFAULT_TIMEOUT);
+        synchronized(heldJobsLock) {
+            if (!retryJobs.containsKey(pendingId)) {
+                // cancelled
+                return;
+            }
+            if (found==null && holdingStartupJobs) {
+                // added to the queue with the jobs which are waiting for the session
+                startupJobs.put(pendingId, retryJobs.remove(pendingId));
+                return;
+            }
+        }
+        if (found != null) {
+            log.info("previous submission was added to the queue, gpJobNo="+jobSubmission.getGpJobNo()+", extJobId="+found);
+            queue.addFoundJob(found);
+            indexSubmission(jobSubmission, found);
+            onPendingJobSubmitted(pendingId, jobSubmission, found, null);
+            return;
+        }
+        flushPendingJob(pendingId, jobSubmission);
+    }
+
+    /**
+     * Hold the next attempt of a failed job as a pending job, and add it to the queue on the retry timer,
+     * so that the status check which found the failed job, e.g. drainCompletedJobs on the dispatcher thread, 
+     * does not wait for the submission. The extJobId of the failed attempt resolves to the placeholder, 
+     * and then to the new extJobId, see {@link #resolveExtJobId(String)}.
+     * @return the status of the placeholder
+     */
+    protected DrmJobStatus scheduleResubmit(final SubmittedJob submittedJob, final String reason) {
+        final DrmJobSubmission jobSubmission=submittedJob.getJobSubmission();
+        final JobAttempts attempts=getSubmissionIndex().getOrCreateAttempts(jobSubmission.getGpJobNo(), submittedJob.getExtJobId());
+        final String pendingId=newPendingId();
+        synchronized(heldJobsLock) {
+            submittingJobs.put(pendingId, jobSubmission);
+        }
+        putAlias(submittedJob.getExtJobId(), pendingId);
+        indexSubmission(jobSubmission, pendingId);
+        final String msg=reason+", resubmitting (attempt "+attempts.getAttempt()+")"+
+                (attempts.getAttempt() > 2 ? "; previous attempts: "+Joiner.on("; ").join(attempts.getHistory()) : "");
+        log.info("gpJobNo="+jobSubmission.getGpJobNo()+": "+msg+", extJobId="+pendingId);
+        getRetryTimer().execute(new Runnable() {
+            @Override
+            public void run() {
+                resubmitJob(pendingId, jobSubmission, reason);
+            }
+        });
+        return new DrmJobStatus.Builder()
+            .extJobId(pendingId)
+            .jobState(DrmJobState.QUEUED)
+            .jobStatusMessage(msg)
+        .build();
+    }
+
+    /**
+     * Add the next attempt of a failed job to the queue, with the resource overrides from its JobAttempts.
+     * On error, the placeholder gets a FAILED status.
+     */
+    protected void resubmitJob(final String pendingId, final DrmJobSubmission jobSubmission, final String reason) {
+        String extJobId=null;
+        CommandExecutorException error=null;
+        try {
+            extJobId=queue.submitToQueue(jobSubmission);
+        }
+        catch (CommandExecutorException e) {
+            log.error("Error resubmitting gpJobNo="+jobSubmission.getGpJobNo()+" after "+reason, e);
+            error=new CommandExecutorException(reason+", error resubmitting job: "+e.getLocalizedMessage(), e);
+            getSubmissionIndex().removeAttempts(jobSubmission.getGpJobNo());
+        }
+        onPendingJobSubmitted(pendingId, jobSubmission, extJobId, error);
+    }
+
+    /** @return the number of submissions which timed out while the call was running in the native library */
+    public long getNumInDoubtSubmissions() {
+        return numInDoubtSubmissions.get();
+    }
+
+    /**
+     * Forget the held jobs, and stop the retry timer and the in doubt executor, when the runner is stopped.
+     */
+    protected void shutdown() {
+        synchronized(heldJobsLock) {
+            for(final Map<String, DrmJobSubmission> jobs : heldJobs) {
+                jobs.clear();
+            }
+            holdingStartupJobs=false;
+        }
+        synchronized(this) {
+            if (retryTimer != null) {
+                retryTimer.shutdownNow();
+                retryTimer=null;
+            }
+            if (inDoubtExecutor != null) {
+                inDoubtExecutor.shutdown();
+                inDoubtExecutor=null;
+            }
+            if (submissionIndex != null) {
+                submissionIndex.close();
+            }
+        }
+    }
+
+}
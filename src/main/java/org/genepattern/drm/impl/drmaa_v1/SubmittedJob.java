@@ -0,0 +1,138 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import org.genepattern.drm.DrmJobStatus;
+import org.genepattern.drm.DrmJobSubmission;
+
+/**
+ * Book-keeping for a job which was submitted by this runner, kept in memory
+ * from startJob until the job completes, so that the completed job's usage
+ * can be attributed to the module and the resources which were requested for it.
+ */
+public class SubmittedJob {
+    private final String extJobId;
+    private final DrmJobSubmission jobSubmission;
+    private String memoryHistoryKey=null;
+    private String walltimeHistoryKey=null;
+    private Long walltimeLimit=null;
+    private Long memoryLimit=null;
+    private int numSlots=1;
+    private String cpuHistoryKey=null;
+    private String queue=null;
+    private boolean staged=false;
+    private boolean sampled=false;
+    private ProgressTail progressTail=null;
+    private volatile DrmJobStatus lastStatus=null;
+
+    public SubmittedJob(final String extJobId, final DrmJobSubmission jobSubmission) {
+        this.extJobId=extJobId;
+        this.jobSubmission=jobSubmission;
+    }
+
+    public String getExtJobId() {
+        return extJobId;
+    }
+
+    public DrmJobSubmission getJobSubmission() {
+        return jobSubmission;
+    }
+
+    /** the key for the peak memory history, or null if not tracked for this job */
+    public String getMemoryHistoryKey() {
+        return memoryHistoryKey;
+    }
+
+    public void setMemoryHistoryKey(final String memoryHistoryKey) {
+        this.memoryHistoryKey=memoryHistoryKey;
+    }
+
+    /** the key for the wallclock history, or null if not tracked for this job */
+    public String getWalltimeHistoryKey() {
+        return walltimeHistoryKey;
+    }
+
+    public void setWalltimeHistoryKey(final String walltimeHistoryKey) {
+        this.walltimeHistoryKey=walltimeHistoryKey;
+    }
+
+    /** the requested walltime limit (h_rt) in seconds, or null if there is no limit */
+    public Long getWalltimeLimit() {
+        return walltimeLimit;
+    }
+
+    public void setWalltimeLimit(final Long walltimeLimit) {
+        this.walltimeLimit=walltimeLimit;
+    }
+
+    /** the requested total memory in bytes, or null if no memory was requested */
+    public Long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    public void setMemoryLimit(final Long memoryLimit) {
+        this.memoryLimit=memoryLimit;
+    }
+
+    /** the number of requested slots, 1 for a serial job */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    public void setNumSlots(final int numSlots) {
+        this.numSlots=numSlots;
+    }
+
+    /** the key for the cpu usage history, or null if not tracked for this job */
+    public String getCpuHistoryKey() {
+        return cpuHistoryKey;
+    }
+
+    public void setCpuHistoryKey(final String cpuHistoryKey) {
+        this.cpuHistoryKey=cpuHistoryKey;
+    }
+
+    /** the queue which was requested for the job, or null if not set */
+    public String getQueue() {
+        return queue;
+    }
+
+    public void setQueue(final String queue) {
+        this.queue=queue;
+    }
+
+    /** true if stdout and stderr are staged to node-local scratch space, see {@link OutputStaging} */
+    public boolean isStaged() {
+        return staged;
+    }
+
+    public void setStaged(final boolean staged) {
+        this.staged=staged;
+    }
+
+    /** true if the job runs in the {@link ResourceSampler} */
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    public void setSampled(final boolean sampled) {
+        this.sampled=sampled;
+    }
+
+    /** follows the log file of the job for progress messages, or null if not enabled for this job */
+    public ProgressTail getProgressTail() {
+        return progressTail;
+    }
+
+    public void setProgressTail(final ProgressTail progressTail) {
+        this.progressTail=progressTail;
+    }
+
+    /** the last status which was fetched from the queue, reported when a status check times out */
+    public DrmJobStatus getLastStatus() {
+        return lastStatus;
+    }
+
+    public void setLastStatus(final DrmJobStatus lastStatus) {
+        this.lastStatus=lastStatus;
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size, lock-free ring buffer of trace spans, e.g. the time spent in 'runJob' for a job submission.
+ * Recording a span does not allocate; the slots are preallocated atomic arrays and the writer
+ * claims a slot with a single atomic increment. The oldest spans are overwritten when the buffer is full.
+ *
+ * Each slot has a sequence number, which is cleared while the slot is being written, so that a reader
+ * can skip slots which are overwritten during a dump. The fields are written with volatile stores, 
+ * which can't be reordered before the store which clears the sequence number; with plain stores a reader 
+ * could see a new field value and the old sequence number.
+ */
+public class TraceRing implements TraceRingMBean {
+    /** the traced operations */
+    public static enum Span {
+        /** startJob, from validation to the returned extJobId */
+        START_JOB,
+        /** Util.logCommandLine */
+        LOG_COMMAND_LINE,
+        /** time waiting for the dispatcher thread */
+        DISPATCH_WAIT,
+        /** session.createJobTemplate */
+        CREATE_JOB_TEMPLATE,
+        /** initNativeSpecification, including the GpConfig lookups */
+        NATIVE_SPEC,
+        /** session.runJob */
+        RUN_JOB,
+        /** session.deleteJobTemplate */
+        DELETE_JOB_TEMPLATE,
+        /** requestStatus, from the call to the returned status */
+        REQUEST_STATUS,
+        /** session.wait */
+        STATUS_WAIT,
+        /** session.getJobProgramStatus */
+        STATUS_PROGRAM_STATUS,
+        /** initStatusFromJobInfo, parsing the resource usage */
+        STATUS_USAGE
+    }
+
+    private static final Span[] SPANS=Span.values();
+
+    private final int mask;
+    private final AtomicLong cursor=new AtomicLong(0L);
+    private final AtomicLongArray seq;
+    private final AtomicLongArray ids;
+    private final AtomicIntegerArray spans;
+    private final AtomicLongArray startNanos;
+    private final AtomicLongArray durationNanos;
+
+    /**
+     * @param capacity, the number of slots, rounded up to a power of 2
+     */
+    public TraceRing(final int capacity) {
+        final int size=Integer.highestOneBit(Math.max(2, capacity-1)) << 1;
+        this.mask=size-1;
+        this.seq=new AtomicLongArray(size);
+        this.ids=new AtomicLongArray(size);
+        this.spans=new AtomicIntegerArray(size);
+        this.startNanos=new AtomicLongArray(size);
+        this.durationNanos=new AtomicLongArray(size);
+    }
+
+    @Override
+    public int getCapacity() {
+        return mask+1;
+    }
+
+    /**
+     * Record a span.
+     * @param span, the operation
+     * @param id, the gpJobNo for submission spans, the (numeric) extJobId for status spans
+     * @param start, from System.nanoTime() at the start of the operation
+     * @param end, from System.nanoTime() at the end of the operation
+     */
+    public void record(final Span span, final long id, final long start, final long end) {
+        final long n=cursor.getAndIncrement();
+        final int idx=(int) (n & mask);
+        seq.set(idx, 0L);
+        ids.set(idx, id);
+        spans.set(idx, span.ordinal());
+        startNanos.set(idx, start);
+        durationNanos.set(idx, end - start);
+        seq.lazySet(idx, n+1);
+    }
+
+    /** the total number of spans recorded since the buffer was created */
+    @Override
+    public long getNumRecorded() {
+        return cursor.get();
+    }
+
+    /**
+     * Format the spans in the buffer, oldest first, one per line, e.g.
+     *     REQUEST_STATUS id=169437 start=1234567890123 duration=1.250 ms
+     * @param id, only include spans with this id, or -1 for all spans
+     */
+    @Override
+    public String dump(final long id) {
+        final StringBuilder sb=new StringBuilder();
+        final long end=cursor.get();
+        final long begin=Math.max(0L, end - getCapacity());
+        for(long n=begin; n<end; ++n) {
+            final int idx=(int) (n & mask);
+            if (seq.get(idx) != n+1) {
+                continue;
+            }
+            final long spanId=ids.get(idx);
+            final int span=spans.get(idx);
+            final long start=startNanos.get(idx);
+            final long duration=durationNanos.get(idx);
+            if (seq.get(idx) != n+1) {
+                // overwritten while reading
+                continue;
+            }
+            if (id != -1L && spanId != id) {
+                continue;
+            }
+            sb.append(SPANS[span]).append(" id=").append(spanId)
+                .append(" start=").append(start)
+                .append(" duration=").append(String.format("%.3f", duration / (double) TimeUnit.MILLISECONDS.toNanos(1))).append(" ms\n");
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String dumpAll() {
+        return dump(-1L);
+    }
+
+    /**
+     * Get a numeric id for an extJobId, without allocating.
+     * @return the numeric value, or -1 if the extJobId is not a number, e.g. 'local-1440658419871'
+     */
+    public static long asId(final String extJobId) {
+        if (extJobId==null || extJobId.length()==0 || extJobId.length() > 18) {
+            return -1L;
+        }
+        long id=0L;
+        for(int i=0; i<extJobId.length(); ++i) {
+            final char c=extJobId.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1L;
+            }
+            id=id*10L + (c - '0');
+        }
+        return id;
+    }
+
+}
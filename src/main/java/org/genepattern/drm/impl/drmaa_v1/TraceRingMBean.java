@@ -0,0 +1,21 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+/**
+ * JMX interface for the trace spans, see {@link TraceRing}.
+ */
+public interface TraceRingMBean {
+    /** the number of slots */
+    int getCapacity();
+
+    /** the total number of spans recorded since the buffer was created */
+    long getNumRecorded();
+
+    /**
+     * Format the spans in the buffer, oldest first, one per line.
+     * @param id, the gpJobNo or extJobId, or -1 for all spans
+     */
+    String dump(long id);
+
+    /** format all of the spans in the buffer, oldest first, one per line */
+    String dumpAll();
+}
@@ -0,0 +1,108 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.util.Arrays;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Compact, bounded history of a usage metric for completed jobs, e.g. the peak memory per module.
+ * Keeps the most recent 'maxSamples' values for each key in a fixed-size ring buffer,
+ * for at most 'maxKeys' keys (least recently used keys are evicted).
+ */
+public class UsageHistory {
+    public static final int DEFAULT_MAX_SAMPLES=100;
+    public static final int DEFAULT_MAX_KEYS=10000;
+
+    /** ring buffer of the most recent samples for one key */
+    protected static class Samples {
+        private final float[] values;
+        private int next=0;
+        private int count=0;
+
+        Samples(final int maxSamples) {
+            this.values=new float[maxSamples];
+        }
+
+        synchronized void add(final double value) {
+            values[next]=(float) value;
+            next=(next+1) % values.length;
+            if (count < values.length) {
+                ++count;
+            }
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        synchronized float[] sorted() {
+            final float[] sorted=Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    private final int maxSamples;
+    private final Cache<String, Samples> history;
+
+    public UsageHistory() {
+        this(DEFAULT_MAX_SAMPLES, DEFAULT_MAX_KEYS);
+    }
+
+    public UsageHistory(final int maxSamples, final int maxKeys) {
+        this.maxSamples=Math.max(1, maxSamples);
+        this.history=CacheBuilder.newBuilder()
+            .maximumSize(maxKeys)
+        .build();
+    }
+
+    public void add(final String key, final double value) {
+        if (key==null || Double.isNaN(value)) {
+            return;
+        }
+        Samples samples=history.getIfPresent(key);
+        if (samples==null) {
+            final Samples created=new Samples(maxSamples);
+            samples=history.asMap().putIfAbsent(key, created);
+            if (samples==null) {
+                samples=created;
+            }
+        }
+        samples.add(value);
+    }
+
+    /** the number of samples for the key */
+    public int count(final String key) {
+        if (key==null) {
+            return 0;
+        }
+        final Samples samples=history.getIfPresent(key);
+        return samples==null ? 0 : samples.count();
+    }
+
+    /**
+     * Get the given percentile of the recent samples for the key, using the nearest-rank method.
+     * @param key
+     * @param percentile, in the range [0, 100]
+     * @return the value, or null if there are no samples for the key
+     */
+    public Double percentile(final String key, final double percentile) {
+        if (key==null) {
+            return null;
+        }
+        final Samples samples=history.getIfPresent(key);
+        if (samples==null) {
+            return null;
+        }
+        final float[] sorted=samples.sorted();
+        if (sorted.length==0) {
+            return null;
+        }
+        final double p=Math.max(0.0, Math.min(100.0, percentile));
+        int rank=(int) Math.ceil(p / 100.0 * sorted.length);
+        rank=Math.max(1, Math.min(sorted.length, rank));
+        return (double) sorted[rank-1];
+    }
+
+}
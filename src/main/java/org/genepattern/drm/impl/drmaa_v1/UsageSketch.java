@@ -0,0 +1,154 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Fixed-size, mergeable quantile sketch for positive values, e.g. the wallclock time of completed jobs.
+ * Values are counted in logarithmic buckets, so that each quantile is accurate to within
+ * {@link #RELATIVE_ACCURACY} of the true value. Values at or below {@link #MIN_VALUE} are counted
+ * in a separate bucket and reported as 0; values above {@link #MAX_VALUE} are counted in the last bucket.
+ */
+public class UsageSketch {
+    public static final double RELATIVE_ACCURACY=0.05;
+    public static final double MIN_VALUE=1.0e-3;
+    public static final double MAX_VALUE=1.0e13;
+
+    private static final double GAMMA=(1.0 + RELATIVE_ACCURACY) / (1.0 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA=Math.log(GAMMA);
+    private static final int OFFSET=(int) Math.floor(Math.log(MIN_VALUE) / LOG_GAMMA);
+    protected static final int NUM_BUCKETS=(int) Math.ceil(Math.log(MAX_VALUE) / LOG_GAMMA) - OFFSET + 1;
+
+    private final int[] counts=new int[NUM_BUCKETS];
+    private long zeroCount=0L;
+    private long count=0L;
+    private double sum=0.0;
+    private double max=0.0;
+
+    protected static int index(final double value) {
+        final int idx=(int) Math.ceil(Math.log(value) / LOG_GAMMA) - OFFSET;
+        return Math.max(1, Math.min(NUM_BUCKETS-1, idx));
+    }
+
+    /** the representative value of the bucket, with at most RELATIVE_ACCURACY error for the values in the bucket */
+    protected static double value(final int index) {
+        return 2.0 * Math.pow(GAMMA, index + OFFSET) / (GAMMA + 1.0);
+    }
+
+    public synchronized void add(final double value) {
+        if (Double.isNaN(value) || value < 0.0) {
+            return;
+        }
+        if (value <= MIN_VALUE) {
+            ++zeroCount;
+        }
+        else {
+            final int idx=index(value);
+            if (counts[idx] < Integer.MAX_VALUE) {
+                ++counts[idx];
+            }
+        }
+        ++count;
+        sum += value;
+        max=Math.max(max, value);
+    }
+
+    /** add the counts from the other sketch to this one */
+    public void merge(final UsageSketch other) {
+        final int[] otherCounts;
+        final long otherZeroCount, otherCount;
+        final double otherSum, otherMax;
+        synchronized(other) {
+            otherCounts=other.counts.clone();
+            otherZeroCount=other.zeroCount;
+            otherCount=other.count;
+            otherSum=other.sum;
+            otherMax=other.max;
+        }
+        synchronized(this) {
+            for(int i=0; i<NUM_BUCKETS; ++i) {
+                counts[i]=(int) Math.min(Integer.MAX_VALUE, (long) counts[i] + otherCounts[i]);
+            }
+            zeroCount += otherZeroCount;
+            count += otherCount;
+            sum += otherSum;
+            max=Math.max(max, otherMax);
+        }
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getMean() {
+        return count==0L ? Double.NaN : sum / count;
+    }
+
+    public synchronized double getMax() {
+        return count==0L ? Double.NaN : max;
+    }
+
+    /**
+     * Get the estimated quantile.
+     * @param q, in the range [0, 1], e.g. 0.9 for the p90
+     * @return the value, or NaN if the sketch is empty
+     */
+    public synchronized double getQuantile(final double q) {
+        if (count==0L) {
+            return Double.NaN;
+        }
+        final long rank=Math.max(1L, (long) Math.ceil(Math.max(0.0, Math.min(1.0, q)) * count));
+        long seen=zeroCount;
+        if (seen >= rank) {
+            return 0.0;
+        }
+        for(int i=0; i<NUM_BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(value(i), max);
+            }
+        }
+        return max;
+    }
+
+    /** write the sketch in a compact form, only the non-empty buckets */
+    public synchronized void write(final DataOutput out) throws IOException {
+        out.writeLong(count);
+        out.writeLong(zeroCount);
+        out.writeDouble(sum);
+        out.writeDouble(max);
+        int numBuckets=0;
+        for(final int c : counts) {
+            if (c > 0) {
+                ++numBuckets;
+            }
+        }
+        out.writeShort(numBuckets);
+        for(int i=0; i<NUM_BUCKETS; ++i) {
+            if (counts[i] > 0) {
+                out.writeShort(i);
+                out.writeInt(counts[i]);
+            }
+        }
+    }
+
+    public static UsageSketch read(final DataInput in) throws IOException {
+        final UsageSketch sketch=new UsageSketch();
+        sketch.count=in.readLong();
+        sketch.zeroCount=in.readLong();
+        sketch.sum=in.readDouble();
+        sketch.max=in.readDouble();
+        final int numBuckets=in.readShort();
+        for(int i=0; i<numBuckets; ++i) {
+            final int idx=in.readShort();
+            final int c=in.readInt();
+            if (idx < 0 || idx >= NUM_BUCKETS) {
+                throw new IOException("Invalid bucket index: "+idx);
+            }
+            sketch.counts[idx]=c;
+        }
+        return sketch;
+    }
+
+}
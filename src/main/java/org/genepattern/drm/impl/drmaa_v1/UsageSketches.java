@@ -0,0 +1,237 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Per-module streaming quantile sketches of the resource usage of completed jobs,
+ * for capacity planning. Each (module, metric) pair has a fixed-size {@link UsageSketch}.
+ *
+ * The sketches can be written to and read from a compact binary snapshot file, 
+ * so that they survive a server restart.
+ */
+public class UsageSketches implements UsageSketchesMBean {
+    private static final Logger log = Logger.getLogger(UsageSketches.class);
+
+    /** wallclock time, in seconds */
+    public static final String WALLCLOCK="wallclock";
+    /** cpu time, in seconds */
+    public static final String CPU="cpu";
+    /** peak memory, in megabytes */
+    public static final String MAXVMEM="maxvmem";
+    /** amount of data transferred in i/o operations, as reported by Grid Engine */
+    public static final String IO="io";
+    /** time from submission_time to start_time, in seconds */
+    public static final String QUEUE_WAIT="queue_wait";
+
+    public static final List<String> METRICS=Collections.unmodifiableList(Arrays.asList(WALLCLOCK, CPU, MAXVMEM, IO, QUEUE_WAIT));
+
+    /** all modules, for the getQuantile(ALL_MODULES, ...) query */
+    public static final String ALL_MODULES="*";
+
+    private static final int SNAPSHOT_MAGIC=0x47505553; // 'GPUS'
+    private static final int SNAPSHOT_VERSION=1;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, UsageSketch>> sketches=new ConcurrentHashMap<String, ConcurrentMap<String, UsageSketch>>();
+    private final int maxModules;
+    private final File snapshotFile;
+
+    /**
+     * @param maxModules, the max number of modules to track, additional modules are ignored
+     * @param snapshotFile, optional, the file for snapshots
+     */
+    public UsageSketches(final int maxModules, final File snapshotFile) {
+        this.maxModules=maxModules;
+        this.snapshotFile=snapshotFile;
+    }
+
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    protected UsageSketch getSketch(final String module, final String metric, final boolean create) {
+        ConcurrentMap<String, UsageSketch> byMetric=sketches.get(module);
+        if (byMetric==null) {
+            if (!create) {
+                return null;
+            }
+            if (sketches.size() >= maxModules) {
+                log.debug("ignoring usage for module="+module+", maxModules="+maxModules);
+                return null;
+            }
+            final ConcurrentMap<String, UsageSketch> created=new ConcurrentHashMap<String, UsageSketch>();
+            byMetric=sketches.putIfAbsent(module, created);
+            if (byMetric==null) {
+                byMetric=created;
+            }
+        }
+        UsageSketch sketch=byMetric.get(metric);
+        if (sketch==null && create) {
+            final UsageSketch created=new UsageSketch();
+            sketch=byMetric.putIfAbsent(metric, created);
+            if (sketch==null) {
+                sketch=created;
+            }
+        }
+        return sketch;
+    }
+
+    public void add(final String module, final String metric, final Double value) {
+        if (module==null || metric==null || value==null) {
+            return;
+        }
+        final UsageSketch sketch=getSketch(module, metric, true);
+        if (sketch != null) {
+            sketch.add(value);
+        }
+    }
+
+    /** get the sketch for the module, or the merged sketch for all modules */
+    protected UsageSketch query(final String module, final String metric) {
+        if (ALL_MODULES.equals(module)) {
+            final UsageSketch merged=new UsageSketch();
+            for(final Map<String, UsageSketch> byMetric : sketches.values()) {
+                final UsageSketch sketch=byMetric.get(metric);
+                if (sketch != null) {
+                    merged.merge(sketch);
+                }
+            }
+            return merged;
+        }
+        return getSketch(module, metric, false);
+    }
+
+    @Override
+    public String[] getModules() {
+        final List<String> modules=new ArrayList<String>(sketches.keySet());
+        Collections.sort(modules);
+        return modules.toArray(new String[modules.size()]);
+    }
+
+    @Override
+    public long getCount(final String module, final String metric) {
+        final UsageSketch sketch=query(module, metric);
+        return sketch==null ? 0L : sketch.getCount();
+    }
+
+    @Override
+    public double getQuantile(final String module, final String metric, final double q) {
+        final UsageSketch sketch=query(module, metric);
+        return sketch==null ? Double.NaN : sketch.getQuantile(q);
+    }
+
+    @Override
+    public String getSummary(final String module) {
+        final StringBuilder sb=new StringBuilder();
+        for(final String metric : METRICS) {
+            final UsageSketch sketch=query(module, metric);
+            if (sketch==null || sketch.getCount()==0L) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(String.format("%s: p50=%.1f, p90=%.1f, p99=%.1f (n=%d)", metric, 
+                    sketch.getQuantile(0.5), sketch.getQuantile(0.9), sketch.getQuantile(0.99), sketch.getCount()));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void snapshot() {
+        if (snapshotFile==null) {
+            return;
+        }
+        try {
+            write(snapshotFile);
+        }
+        catch (Throwable t) {
+            log.error("Error writing usage sketches to "+snapshotFile, t);
+        }
+    }
+
+    /**
+     * Write all sketches to the file; the snapshot is written to a temporary file which is then renamed,
+     * so that a reader never sees a partial snapshot.
+     */
+    public void write(final File file) throws IOException {
+        final File tmpFile=new File(file.getPath()+".tmp");
+        final DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            final List<Entry<String, ConcurrentMap<String, UsageSketch>>> modules=
+                    new ArrayList<Entry<String, ConcurrentMap<String, UsageSketch>>>(sketches.entrySet());
+            out.writeInt(modules.size());
+            for(final Entry<String, ConcurrentMap<String, UsageSketch>> module : modules) {
+                out.writeUTF(module.getKey());
+                final List<Entry<String, UsageSketch>> metrics=new ArrayList<Entry<String, UsageSketch>>(module.getValue().entrySet());
+                out.writeInt(metrics.size());
+                for(final Entry<String, UsageSketch> metric : metrics) {
+                    out.writeUTF(metric.getKey());
+                    metric.getValue().write(out);
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            // e.g. on Windows, when the file exists
+            if (!file.delete() || !tmpFile.renameTo(file)) {
+                throw new IOException("Error renaming "+tmpFile+" to "+file);
+            }
+        }
+    }
+
+    /**
+     * Merge the sketches from a snapshot file into this instance.
+     * @return the number of modules read from the file
+     */
+    public int read(final File file) throws IOException {
+        final DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a usage sketch snapshot: "+file);
+            }
+            final int version=in.readInt();
+            if (version != SNAPSHOT_VERSION) {
+                throw new IOException("Unsupported usage sketch snapshot version="+version+": "+file);
+            }
+            final int numModules=in.readInt();
+            for(int i=0; i<numModules; ++i) {
+                final String module=in.readUTF();
+                final int numMetrics=in.readInt();
+                for(int j=0; j<numMetrics; ++j) {
+                    final String metric=in.readUTF();
+                    final UsageSketch sketch=UsageSketch.read(in);
+                    final UsageSketch existing=getSketch(module, metric, true);
+                    if (existing != null) {
+                        existing.merge(sketch);
+                    }
+                }
+            }
+            return numModules;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,26 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+/**
+ * JMX interface for the per-module usage sketches, see {@link UsageSketches}.
+ */
+public interface UsageSketchesMBean {
+    /** the names of the modules with at least one completed job */
+    String[] getModules();
+
+    /** the number of completed jobs for the module */
+    long getCount(String module, String metric);
+
+    /**
+     * Get the estimated quantile of a usage metric for the module.
+     * @param module, the module name, or '*' for all modules
+     * @param metric, one of 'wallclock', 'cpu', 'maxvmem', 'io', 'queue_wait'
+     * @param q, in the range [0, 1]
+     */
+    double getQuantile(String module, String metric, double q);
+
+    /** p50, p90 and p99 of each metric for the module, e.g. 'wallclock: p50=12.1, p90=60.3, p99=120.7 (n=1024)' */
+    String getSummary(String module);
+
+    /** write a snapshot now */
+    void snapshot();
+}
@@ -1,20 +1,156 @@
 package org.genepattern.drm.impl.drmaa_v1;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 import org.genepattern.drm.DrmJobSubmission;
+import org.genepattern.server.config.GpContext;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class Util {
     private static final Logger log = Logger.getLogger(Util.class);
     
+    /** timer for killing external commands which run past their timeout */
+    private static final ScheduledExecutorService execTimer=Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("drmaa_v1-exec-timer-%d").build());
+    
     protected static boolean getGPBooleanProperty(final DrmJobSubmission jobSubmission, final String key, final boolean defaultValue) {
+        if (jobSubmission.getGpConfig()==null) {
+            // e.g. a submission without a config, fall back to the job property
+            final String value=jobSubmission.getProperty(key);
+            if (value==null || value.trim().length()==0) {
+                return defaultValue;
+            }
+            return Boolean.parseBoolean(value.trim());
+        }
         return jobSubmission.getGpConfig().getGPBooleanProperty(jobSubmission.getJobContext(), key, defaultValue);
     }
     
+    /**
+     * Get the module name for the job, from the taskInfo or the jobInfo of the job context.
+     * @return the name, or null if not available
+     */
+    public static String getTaskName(final DrmJobSubmission jobSubmission) {
+        final GpContext jobContext=jobSubmission.getJobContext();
+        if (jobContext==null) {
+            return null;
+        }
+        if (jobContext.getTaskInfo() != null && jobContext.getTaskInfo().getName() != null) {
+            return jobContext.getTaskInfo().getName();
+        }
+        if (jobContext.getJobInfo() != null) {
+            return jobContext.getJobInfo().getTaskName();
+        }
+        return null;
+    }
+    
+    public static String getUserId(final DrmJobSubmission jobSubmission) {
+        final GpContext jobContext=jobSubmission.getJobContext();
+        if (jobContext==null) {
+            return null;
+        }
+        return jobContext.getUserId();
+    }
+    
+    /**
+     * Get the input file paths for the job, the absolute paths on the command line, e.g.
+     * <pre>
+       /path/to/input.txt
+       --input.file=/path/to/input.txt
+       -i/path/to/input.txt
+       "-i /path/to/input.txt"
+     * </pre>
+     * Does not check the file system.
+     */
+    public static List<String> getInputPaths(final DrmJobSubmission jobSubmission) {
+        final List<String> paths=new ArrayList<String>();
+        final List<String> cmdLine=jobSubmission.getCommandLine();
+        if (cmdLine==null) {
+            return paths;
+        }
+        // skip the first arg, the executable
+        for(int i=1; i<cmdLine.size(); ++i) {
+            final String path=getInputPath(cmdLine.get(i));
+            if (path != null && !paths.contains(path)) {
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+    
+    /**
+     * Get the absolute path from a command line arg, a bare path, a 'key=/path' arg, a '-k/path' flag, 
+     * or a '-k /path' flag passed as a single arg.
+     * @return the path, or null if the arg has no absolute path
+     */
+    protected static String getInputPath(final String arg) {
+        if (arg==null || arg.length()==0) {
+            return null;
+        }
+        if (arg.startsWith("/")) {
+            return arg;
+        }
+        final int eq=arg.indexOf("=/");
+        if (eq >= 0) {
+            return arg.substring(eq+1);
+        }
+        if (arg.startsWith("-")) {
+            final int space=arg.indexOf(" /");
+            if (space > 0) {
+                return arg.substring(space+1).trim();
+            }
+            if (arg.length() > 2 && arg.charAt(1) != '-' && arg.charAt(2)=='/') {
+                return arg.substring(2);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Get the total size in bytes of the input files for the job,
+     * the regular files with an absolute path on the command line.
+     */
+    public static long getInputSize(final DrmJobSubmission jobSubmission) {
+        return getInputSize(getInputPaths(jobSubmission));
+    }
+    
+    /**
+     * Get the total size in bytes of the regular files in the list of paths.
+     */
+    public static long getInputSize(final List<String> inputPaths) {
+        long total=0L;
+        for(final String path : inputPaths) {
+            final File file=new File(path);
+            if (file.isFile()) {
+                total += file.length();
+            }
+        }
+        return total;
+    }
+    
+    /**
+     * Bucket the input size by powers of 2, e.g. 0 for no input, 31 for 1 to 2 Gb of input.
+     */
+    public static int getSizeBucket(final long numBytes) {
+        if (numBytes <= 0L) {
+            return 0;
+        }
+        return 64 - Long.numberOfLeadingZeros(numBytes);
+    }
+    
     /**
      * If configured by the server admin, write the command line into a log file in the working directory for the job.
      * Example config,
@@ -27,8 +163,22 @@ public class Util {
      * @return true the file that was written to, or null if not logged
      */
     public static File logCommandLine(final DrmJobSubmission jobSubmission) {
+        return logCommandLine(jobSubmission, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Write the command line into the log file, with at most maxArgs args, 
+     * e.g. when the full list of args is saved in an argument file.
+     * 
+     * @param jobSubmission
+     * @param maxArgs, the max number of args to log
+     * @return true the file that was written to, or null if not logged
+     */
+    public static File logCommandLine(final DrmJobSubmission jobSubmission, final int maxArgs) {
+        final List<String> commandLine=jobSubmission.getCommandLine();
+        final boolean truncated=commandLine.size() > maxArgs;
         if (log.isDebugEnabled()) {
-            log.debug("commandLine="+jobSubmission.getCommandLine());
+            log.debug("commandLine="+(truncated ? commandLine.subList(0, maxArgs)+" ... "+(commandLine.size()-maxArgs)+" more args" : commandLine));
         }
         final File logFile=jobSubmission.getRelativeFile(jobSubmission.getLogFile());
         if (logFile == null) {
@@ -48,10 +198,17 @@ public class Util {
         try {
             FileWriter fw = new FileWriter(logFile);
             bw = new BufferedWriter(fw);
-            bw.write(jobSubmission.getCommandLine().toString());
-            bw.newLine();
+            if (!truncated) {
+                bw.write(commandLine.toString());
+                bw.newLine();
+            }
             int i=0;
-            for(final String arg : jobSubmission.getCommandLine()) {
+            for(final String arg : commandLine) {
+                if (i >= maxArgs) {
+                    bw.write("    ... "+(commandLine.size()-maxArgs)+" more args");
+                    bw.newLine();
+                    break;
+                }
                 bw.write("    arg["+i+"]: '"+arg+"'");
                 bw.newLine();
                 ++i;
@@ -75,4 +232,73 @@ public class Util {
         }
     }
 
+    /**
+     * Run an external command, e.g. 'qacct -j 169437', and return the lines written to stdout (and stderr).
+     * The process is destroyed if it runs for longer than the given timeout.
+     * 
+     * @param cmd the command line
+     * @param timeoutMillis, max time to wait for the command to complete
+     * @return the output lines
+     * @throws IOException when the command can't be started, exits with a non-zero status or times out
+     */
+    public static List<String> exec(final List<String> cmd, final long timeoutMillis) throws IOException {
+        return exec(cmd, timeoutMillis, true);
+    }
+
+    /**
+     * Run an external command, optionally ignoring a non-zero exit status, e.g. for 'qstat -j GP_1,GP_2',
+     * which lists the jobs it found and exits with status 1 when any one of the jobs is not found.
+     * 
+     * @param checkExitValue, when false return the output regardless of the exit status
+     * @throws IOException when the command can't be started or times out, 
+     *     or when checkExitValue is set and it exits with a non-zero status
+     */
+    public static List<String> exec(final List<String> cmd, final long timeoutMillis, final boolean checkExitValue) throws IOException {
+        if (log.isDebugEnabled()) {
+            log.debug("exec: "+cmd);
+        }
+        final Process process=new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        final AtomicBoolean timedOut=new AtomicBoolean(false);
+        final ScheduledFuture<?> timeout=execTimer.schedule(new Runnable() {
+            public void run() {
+                log.error("command timed out after "+timeoutMillis+" ms: "+cmd);
+                timedOut.set(true);
+                process.destroy();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        final List<String> lines=new ArrayList<String>();
+        BufferedReader br=null;
+        try {
+            br=new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line;
+            while((line=br.readLine()) != null) {
+                lines.add(line);
+            }
+            final int exitValue=process.waitFor();
+            if (timedOut.get()) {
+                throw new IOException("command timed out after "+timeoutMillis+" ms: "+cmd+", output="+lines);
+            }
+            if (exitValue != 0 && checkExitValue) {
+                throw new IOException("command exited with status "+exitValue+": "+cmd+", output="+lines);
+            }
+            return lines;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroy();
+            throw new IOException("interrupted: "+cmd, e);
+        }
+        finally {
+            timeout.cancel(false);
+            if (br != null) {
+                try {
+                    br.close();
+                }
+                catch (IOException e) {
+                    log.error(e);
+                }
+            }
+        }
+    }
+
 }
@@ -0,0 +1,66 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class TestArgumentFile {
+    @Rule
+    public TemporaryFolder temp= new TemporaryFolder();
+
+    @Test
+    public void isLarge() {
+        final List<String> cmd=Arrays.asList("echo", "Hello, World!");
+        assertFalse("small", ArgumentFile.isLarge(cmd, 1000, 65536L));
+        assertTrue("maxArgs", ArgumentFile.isLarge(cmd, 1, 65536L));
+        assertTrue("maxBytes", ArgumentFile.isLarge(cmd, 1000, 10L));
+    }
+
+    @Test
+    public void writeAndRead() throws IOException {
+        final List<String> cmd=Arrays.asList("echo", "with space", "it's \"quoted\"", "two\nlines", "", "caf\u00e9");
+        final File argFile=new File(temp.getRoot(), ArgumentFile.ARG_FILE);
+        ArgumentFile.write(argFile, cmd);
+        assertEquals(cmd, ArgumentFile.read(argFile));
+    }
+
+    @Test
+    public void launcher() throws Exception {
+        final File jobDir=temp.newFolder("10357");
+        final List<String> cmd=new ArrayList<String>();
+        cmd.add("/bin/bash");
+        cmd.add("-c");
+        cmd.add("echo $# \"$5\" > count.txt");
+        cmd.add("bash");
+        for(int i=0; i<5000; ++i) {
+            cmd.add("/xchip/data/input file "+i+".txt");
+        }
+        final File argFile=new File(jobDir, ArgumentFile.ARG_FILE);
+        ArgumentFile.write(argFile, cmd);
+        final Process process=new ProcessBuilder(ArgumentFile.wrapCommandLine(argFile.getAbsolutePath()))
+            .directory(jobDir)
+        .start();
+        assertEquals("exitCode", 0, process.waitFor());
+        assertEquals("5000 /xchip/data/input file 4.txt\n", Files.toString(new File(jobDir, "count.txt"), Charsets.UTF_8));
+    }
+
+    @Test
+    public void launcher_missingFile() throws Exception {
+        final Process process=new ProcessBuilder(ArgumentFile.wrapCommandLine(new File(temp.getRoot(), "missing").getAbsolutePath())).start();
+        assertEquals("exitCode", 127, process.waitFor());
+    }
+
+}
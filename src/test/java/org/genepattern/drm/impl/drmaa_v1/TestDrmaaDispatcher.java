@@ -0,0 +1,217 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ggf.drmaa.InvalidJobException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDrmaaDispatcher {
+    private DrmaaDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        dispatcher=new DrmaaDispatcher();
+        dispatcher.start();
+    }
+
+    @After
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void runOnDispatcherThread() throws Exception {
+        final String threadName=dispatcher.call(null, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return Thread.currentThread().getName();
+            }
+        });
+        assertEquals("threadName", "drmaa_v1-dispatcher", threadName);
+    }
+
+    @Test
+    public void drainSharesResultForSameKey() throws Exception {
+        final CountDownLatch started=new CountDownLatch(1);
+        final CountDownLatch release=new CountDownLatch(1);
+        final AtomicInteger numCalls=new AtomicInteger(0);
+        // block the dispatcher so that the next requests are drained together
+        dispatcher.submit(null, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                started.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                return null;
+            }
+        });
+        assertTrue("started", started.await(10, TimeUnit.SECONDS));
+        final Callable<Integer> getJobProgramStatus=new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return numCalls.incrementAndGet();
+            }
+        };
+        final Future<Integer> first=dispatcher.submit("requestDrmJobState:1001", getJobProgramStatus);
+        final Future<Integer> second=dispatcher.submit("requestDrmJobState:1001", getJobProgramStatus);
+        final Future<Integer> other=dispatcher.submit("requestDrmJobState:1002", getJobProgramStatus);
+        release.countDown();
+        assertEquals("first", first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+        other.get(10, TimeUnit.SECONDS);
+        assertEquals("numCalls", 2, numCalls.get());
+    }
+
+    @Test
+    public void exceptionFromCall() throws Exception {
+        try {
+            dispatcher.call(null, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    throw new InvalidJobException("not found");
+                }
+            });
+            fail("expecting ExecutionException");
+        }
+        catch (ExecutionException e) {
+            assertTrue("expecting InvalidJobException, was "+e.getCause(), e.getCause() instanceof InvalidJobException);
+        }
+    }
+
+    @Test
+    public void timeoutBeforeCallStarts() throws Exception {
+        final CountDownLatch release=new CountDownLatch(1);
+        final AtomicInteger numCalls=new AtomicInteger(0);
+        dispatcher.submit(null, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                release.await(10, TimeUnit.SECONDS);
+                return null;
+            }
+        });
+        try {
+            dispatcher.call(null, new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return numCalls.incrementAndGet();
+                }
+            }, 100L);
+            fail("expecting DrmaaTimeoutException");
+        }
+        catch (DrmaaTimeoutException e) {
+            assertFalse("inDoubt", e.isInDoubt());
+        }
+        release.countDown();
+        // the abandoned call is skipped
+        dispatcher.call(null, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                return null;
+            }
+        });
+        assertEquals("numCalls", 0, numCalls.get());
+    }
+
+    @Test
+    public void timeoutWhileCallIsRunning() throws Exception {
+        final CountDownLatch started=new CountDownLatch(1);
+        final CountDownLatch release=new CountDownLatch(1);
+        try {
+            dispatcher.call(null, new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    started.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                    return "1001";
+                }
+            }, 500L);
+            fail("expecting DrmaaTimeoutException");
+        }
+        catch (DrmaaTimeoutException e) {
+            assertTrue("started", started.await(10, TimeUnit.SECONDS));
+            assertTrue("inDoubt", e.isInDoubt());
+            assertTrue("runningMillis", dispatcher.getRunningMillis() > 0L);
+            release.countDown();
+            assertEquals("result of the in doubt call", "1001", e.getFuture().get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void abandonAndPurge() throws Exception {
+        final CountDownLatch started=new CountDownLatch(1);
+        final CountDownLatch release=new CountDownLatch(1);
+        final AtomicInteger numCalls=new AtomicInteger(0);
+        dispatcher.submit(null, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                started.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                return null;
+            }
+        });
+        assertTrue("started", started.await(10, TimeUnit.SECONDS));
+        final DrmaaDispatcher.TimedCall<Integer> timedCall=new DrmaaDispatcher.TimedCall<Integer>(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return numCalls.incrementAndGet();
+            }
+        });
+        final Future<Integer> future=dispatcher.submit("requestDrmJobState:1001", timedCall);
+        assertTrue("abandoned before it started", dispatcher.abandon(timedCall, future));
+        assertTrue("cancelled", future.isCancelled());
+        dispatcher.purge();
+        assertEquals("removed from the queue", 0, dispatcher.getQueueSize());
+        release.countDown();
+        dispatcher.call(null, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                return null;
+            }
+        });
+        assertEquals("numCalls", 0, numCalls.get());
+        assertFalse("can't abandon twice", dispatcher.abandon(timedCall, future));
+    }
+
+    @Test(expected=ExecutionException.class)
+    public void submitAfterShutdown() throws Exception {
+        dispatcher.shutdown();
+        dispatcher.call(null, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void failQueuedRequests() throws Exception {
+        // not started, e.g. a request which was added after the dispatch loop exited
+        final DrmaaDispatcher stopped=new DrmaaDispatcher();
+        final Future<Void> future=stopped.submit(null, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                return null;
+            }
+        });
+        stopped.failQueuedRequests();
+        assertEquals("queueSize", 0, stopped.getQueueSize());
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("expecting ExecutionException");
+        }
+        catch (ExecutionException e) {
+            assertTrue("expecting IllegalStateException, was "+e.getCause(), e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+}
@@ -1,7 +1,13 @@
 package org.genepattern.drm.impl.drmaa_v1;
 
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
@@ -9,16 +15,31 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import org.genepattern.drm.CpuTime;
+import org.genepattern.drm.DrmJobRecord;
+import org.genepattern.drm.DrmJobState;
+import org.genepattern.drm.DrmJobStatus;
 import org.genepattern.drm.DrmJobSubmission;
 import org.genepattern.drm.JobRunner;
 import org.genepattern.drm.Memory;
+import org.genepattern.drm.Walltime;
 import org.genepattern.server.config.GpConfig;
 import org.genepattern.server.config.GpContext;
+import org.genepattern.server.config.Value;
 import org.genepattern.server.executor.CommandExecutorException;
+import org.genepattern.webservice.TaskInfo;
+import org.ggf.drmaa.DeniedByDrmException;
+import org.ggf.drmaa.DrmCommunicationException;
 import org.ggf.drmaa.DrmaaException;
+import org.ggf.drmaa.ExitTimeoutException;
+import org.ggf.drmaa.InvalidJobException;
+import org.ggf.drmaa.JobInfo;
 import org.ggf.drmaa.JobTemplate;
 import org.ggf.drmaa.Session;
 import org.ggf.drmaa.SimpleJobTemplate;
@@ -28,6 +49,10 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.SettableFuture;
+
 public class TestDrmaaV1JobRunner {
     private GpConfig gpConfig;
     private GpContext jobContext;
@@ -59,6 +84,7 @@ public class TestDrmaaV1JobRunner {
         .build();
 
         jobRunner=new DrmaaV1JobRunner();
+        jobRunner.setGpConfig(gpConfig, new GpContext.Builder().build());
         session=mock(Session.class);
         when(session.createJobTemplate()).thenReturn(new SimpleJobTemplate());
     }
@@ -214,8 +240,8 @@ public class TestDrmaaV1JobRunner {
         when(job.getMemory()).thenReturn(Memory.fromString("24 Gb"));
         final List<String> args=jobRunner.initNativeSpecification(job);
         
-        //  -l m_mem_free=Xg
-        assertArgWithFlag(args, "-l", "m_mem_free=24g");
+        //  -l m_mem_free=Xm
+        assertArgWithFlag(args, "-l", "m_mem_free=24576m");
     }
     
     @Test
@@ -224,8 +250,8 @@ public class TestDrmaaV1JobRunner {
         when(job.getMemory()).thenReturn(Memory.fromString("512m"));
         final List<String> args=jobRunner.initNativeSpecification(job);
         
-        //  -l m_mem_free=Xg
-        assertArgWithFlag(args, "-l", "m_mem_free=1g");
+        //  -l m_mem_free=Xm
+        assertArgWithFlag(args, "-l", "m_mem_free=512m");
     }
 
     @Test
@@ -234,10 +260,373 @@ public class TestDrmaaV1JobRunner {
         when(job.getMemory()).thenReturn(Memory.fromString("4.5 Gb"));
         final List<String> args=jobRunner.initNativeSpecification(job);
         
-        //  -l m_mem_free=Xg
-        assertArgWithFlag(args, "-l", "m_mem_free=5g");
+        //  -l m_mem_free=Xm
+        assertArgWithFlag(args, "-l", "m_mem_free=4608m");
+    }
+
+    @Test
+    public void jobMemory_singleSlot() {
+        job=mock(DrmJobSubmission.class);
+        when(job.getMemory()).thenReturn(Memory.fromString("1.5 Gb"));
+        when(job.getCpuCount()).thenReturn(1);
+        // not rounded up to 2g
+        assertArgWithFlag(jobRunner.initNativeSpecification(job), "-l", "m_mem_free=1536m");
+    }
+
+    @Test
+    public void jobMemory_gigabytes() {
+        job=mock(DrmJobSubmission.class);
+        when(job.getMemory()).thenReturn(Memory.fromString("4.5 Gb"));
+        when(job.getProperty(DrmaaV1JobRunner.PROP_MEMORY_UNITS)).thenReturn("g");
+        assertArgWithFlag(jobRunner.initNativeSpecification(job), "-l", "m_mem_free=5g");
     }
     
+    @Test
+    public void jobMemory_perSlot() {
+        job=mock(DrmJobSubmission.class);
+        when(job.getMemory()).thenReturn(Memory.fromString("16 Gb"));
+        when(job.getCpuCount()).thenReturn(8);
+        final List<String> args=jobRunner.initNativeSpecification(job);
+        assertArgWithFlag(args, "-l", "m_mem_free=2048m");
+        assertArgWithFlag(args, "-pe", "smp", "8");
+    }
+
+    @Test
+    public void jobMemory_perSlot_defaultUnits() {
+        job=mock(DrmJobSubmission.class);
+        when(job.getMemory()).thenReturn(Memory.fromString("10 Gb"));
+        when(job.getCpuCount()).thenReturn(8);
+        // 10240m / 8 slots, not rounded up to 2g per slot
+        assertArgWithFlag(jobRunner.initNativeSpecification(job), "-l", "m_mem_free=1280m");
+    }
+
+    @Test
+    public void jobMemory_perSlot_gigabytes() {
+        job=mock(DrmJobSubmission.class);
+        when(job.getMemory()).thenReturn(Memory.fromString("10 Gb"));
+        when(job.getCpuCount()).thenReturn(8);
+        when(job.getProperty(DrmaaV1JobRunner.PROP_MEMORY_UNITS)).thenReturn("g");
+        assertArgWithFlag(jobRunner.initNativeSpecification(job), "-l", "m_mem_free=2g");
+    }
+
+    @Test
+    public void jobMemory_perSlot_disabled() {
+        job=mock(DrmJobSubmission.class);
+        when(job.getMemory()).thenReturn(Memory.fromString("16 Gb"));
+        when(job.getCpuCount()).thenReturn(8);
+        when(job.getProperty(DrmaaV1JobRunner.PROP_MEMORY_PER_SLOT)).thenReturn("false");
+        final List<String> args=jobRunner.initNativeSpecification(job);
+        assertArgWithFlag(args, "-l", "m_mem_free=16384m");
+    }
+
+    @Test
+    public void jobMemory_megabytes() {
+        job=mock(DrmJobSubmission.class);
+        when(job.getMemory()).thenReturn(Memory.fromString("10 Gb"));
+        when(job.getCpuCount()).thenReturn(8);
+        when(job.getProperty(DrmaaV1JobRunner.PROP_MEMORY_UNITS)).thenReturn("m");
+        final List<String> args=jobRunner.initNativeSpecification(job);
+        // 10240m / 8 slots
+        assertArgWithFlag(args, "-l", "m_mem_free=1280m");
+    }
+
+    @Test
+    public void jobMemory_customResource_hardLimit() {
+        job=mock(DrmJobSubmission.class);
+        when(job.getMemory()).thenReturn(Memory.fromString("4 Gb"));
+        when(job.getProperty(DrmaaV1JobRunner.PROP_MEMORY_RESOURCE)).thenReturn("mem_free");
+        when(job.getProperty(DrmaaV1JobRunner.PROP_MEMORY_HARD_RESOURCE)).thenReturn("h_vmem");
+        final List<String> args=jobRunner.getMemoryFlags(job);
+        assertEquals("memoryFlags", Arrays.asList("-l", "mem_free=4096m", "-l", "h_vmem=4096m"), args);
+    }
+
+    @Test
+    public void formatMemoryPerSlot() {
+        final long oneGb=1024L*1024L*1024L;
+        assertEquals("g", "3g", DrmaaV1JobRunner.formatMemoryPerSlot(5L*oneGb, 2, "g"));
+        assertEquals("m", "2560m", DrmaaV1JobRunner.formatMemoryPerSlot(5L*oneGb, 2, "m"));
+        assertEquals("default units", "5g", DrmaaV1JobRunner.formatMemoryPerSlot(5L*oneGb, 1, null));
+    }
+
+    /**
+     * Mock a submission of the 'ConvertLineEndings' module, with job.memory=8 Gb, and seed the usage histories
+     * for the module: 10 runs with 1000 Mb peak memory, 3600 seconds wallclock and 1 busy core.
+     * 
+     * @param cpuCount, the job.cpuCount, can be null
+     * @param properties, the job properties, as 'key=value' pairs
+     */
+    protected DrmJobSubmission mockModuleJob(final Integer cpuCount, final String... properties) {
+        final TaskInfo taskInfo=new TaskInfo();
+        taskInfo.setName("ConvertLineEndings");
+        final GpContext jobContext=new GpContext.Builder()
+            .taskInfo(taskInfo)
+        .build();
+        final DrmJobSubmission job=mock(DrmJobSubmission.class);
+        when(job.getJobContext()).thenReturn(jobContext);
+        when(job.getCpuCount()).thenReturn(cpuCount);
+        when(job.getMemory()).thenReturn(Memory.fromString("8 Gb"));
+        for(final String property : properties) {
+            final int idx=property.indexOf('=');
+            when(job.getProperty(property.substring(0, idx))).thenReturn(property.substring(idx+1));
+        }
+        for(int i=0; i<10; ++i) {
+            jobRunner.getMemoryHistory().add("ConvertLineEndings|0", 1000.0);
+            jobRunner.getWalltimeHistory().add("ConvertLineEndings", 3600.0);
+            jobRunner.getCpuHistory().add("ConvertLineEndings", 1.0);
+        }
+        return job;
+    }
+
+    @Test
+    public void rightsizeMemory() {
+        job=mockModuleJob(null, DrmaaV1JobRunner.PROP_MEMORY_UNITS+"=m", DrmaaV1JobRunner.PROP_RIGHTSIZE_MEMORY+"=on");
+        // p95 of 1000m, with 1.2 headroom
+        assertArgWithFlag(jobRunner.getMemoryFlags(job), "-l", "m_mem_free=1200m");
+    }
+
+    @Test
+    public void rightsizeMemory_oncePerSubmission() {
+        job=mockModuleJob(null, DrmaaV1JobRunner.PROP_MEMORY_UNITS+"=m", DrmaaV1JobRunner.PROP_RIGHTSIZE_MEMORY+"=on");
+        assertArgWithFlag(jobRunner.getMemoryFlags(job), "-l", "m_mem_free=1200m");
+        for(int i=0; i<10; ++i) {
+            jobRunner.getMemoryHistory().add("ConvertLineEndings|0", 4000.0);
+        }
+        assertEquals("same submission, same request", new Long(1200L*1024L*1024L), jobRunner.getRequestedMemory(job));
+    }
+
+    @Test
+    public void rightsizeMemory_dryRun() {
+        job=mockModuleJob(null, DrmaaV1JobRunner.PROP_MEMORY_UNITS+"=m", DrmaaV1JobRunner.PROP_RIGHTSIZE_MEMORY+"=dryRun");
+        assertArgWithFlag(jobRunner.getMemoryFlags(job), "-l", "m_mem_free=8192m");
+    }
+
+    @Test
+    public void rightsizeMemory_override() {
+        job=mockModuleJob(null, DrmaaV1JobRunner.PROP_MEMORY_UNITS+"=m", DrmaaV1JobRunner.PROP_RIGHTSIZE_MEMORY+"=on");
+        when(job.getProperty(DrmaaV1JobRunner.PROP_RIGHTSIZE_MEMORY_OVERRIDE)).thenReturn("true");
+        assertArgWithFlag(jobRunner.getMemoryFlags(job), "-l", "m_mem_free=8192m");
+    }
+
+    @Test
+    public void rightsizeMemory_floor() {
+        job=mockModuleJob(null, DrmaaV1JobRunner.PROP_MEMORY_UNITS+"=m", DrmaaV1JobRunner.PROP_RIGHTSIZE_MEMORY+"=on");
+        when(job.getProperty(DrmaaV1JobRunner.PROP_RIGHTSIZE_MEMORY_MIN)).thenReturn("2 Gb");
+        assertArgWithFlag(jobRunner.getMemoryFlags(job), "-l", "m_mem_free=2048m");
+    }
+
+    @Test
+    public void rightsizeMemory_notEnoughSamples() {
+        job=mockModuleJob(null, DrmaaV1JobRunner.PROP_MEMORY_UNITS+"=m", DrmaaV1JobRunner.PROP_RIGHTSIZE_MEMORY+"=on");
+        when(job.getProperty(DrmaaV1JobRunner.PROP_RIGHTSIZE_MEMORY_MIN_SAMPLES)).thenReturn("20");
+        assertArgWithFlag(jobRunner.getMemoryFlags(job), "-l", "m_mem_free=8192m");
+    }
+
+    @Test
+    public void formatWalltime() {
+        assertEquals("10 min", "0:10:00", DrmaaV1JobRunner.formatWalltime(600L));
+        assertEquals("1.5 hours", "1:30:00", DrmaaV1JobRunner.formatWalltime(5400L));
+        assertEquals("3 days", "72:00:01", DrmaaV1JobRunner.formatWalltime(3L*24L*3600L+1L));
+    }
+
+    @Test
+    public void walltimeFlags_predict() {
+        job=mockModuleJob(null, DrmaaV1JobRunner.PROP_WALLTIME_MODE+"=predict");
+        // p95 of 1 hour, with 1.5 margin
+        assertArgWithFlag(jobRunner.getWalltimeFlags(job), "-l", "h_rt=1:30:00");
+    }
+
+    @Test
+    public void walltimeLimit_oncePerSubmission() {
+        job=mockModuleJob(null, DrmaaV1JobRunner.PROP_WALLTIME_MODE+"=predict");
+        assertArgWithFlag(jobRunner.getWalltimeFlags(job), "-l", "h_rt=1:30:00");
+        for(int i=0; i<10; ++i) {
+            jobRunner.getWalltimeHistory().add("ConvertLineEndings", 7200.0);
+        }
+        assertEquals("same submission, same limit", new Long(5400L), jobRunner.addSubmittedJob("1001", job).getWalltimeLimit());
+    }
+
+    @Test
+    public void walltimeFlags_softLimit() {
+        job=mockModuleJob(null, DrmaaV1JobRunner.PROP_WALLTIME_MODE+"=predict");
+        when(job.getProperty(DrmaaV1JobRunner.PROP_WALLTIME_SOFT)).thenReturn("true");
+        assertEquals(Arrays.asList("-l", "h_rt=1:30:00", "-l", "s_rt=1:25:30"), jobRunner.getWalltimeFlags(job));
+    }
+
+    @Test
+    public void walltimeFlags_dryRun() {
+        job=mockModuleJob(null, DrmaaV1JobRunner.PROP_WALLTIME_MODE+"=dryRun");
+        assertEquals("no h_rt for dryRun", Collections.emptyList(), jobRunner.getWalltimeFlags(job));
+    }
+
+    @Test
+    public void walltimeFlags_explicit() throws Exception {
+        job=mockModuleJob(null, DrmaaV1JobRunner.PROP_WALLTIME_MODE+"=predict");
+        final Walltime walltime=mock(Walltime.class);
+        when(walltime.asMillis()).thenReturn(2L*3600L*1000L);
+        when(job.getWalltime()).thenReturn(walltime);
+        assertArgWithFlag(jobRunner.getWalltimeFlags(job), "-l", "h_rt=2:00:00");
+    }
+
+    @Test
+    public void walltimeFlags_off() {
+        job=mockModuleJob(null);
+        assertEquals("default", Collections.emptyList(), jobRunner.getWalltimeFlags(job));
+    }
+
+    protected DrmJobStatus killedJobStatus(final Integer exitCode, final String wallclock) {
+        final Map<String,String> usage=new HashMap<String,String>();
+        usage.put("wallclock", wallclock);
+        return new DrmJobStatus.Builder("1001", DrmJobState.FAILED)
+            .exitCode(exitCode)
+            .resourceUsage(usage)
+        .build();
+    }
+
+    @Test
+    public void isWalltimeExceeded() {
+        assertTrue("killed at h_rt", DrmaaV1JobRunner.isWalltimeExceeded(killedJobStatus(137, "5400.1"), 5400L));
+        assertFalse("killed before h_rt", DrmaaV1JobRunner.isWalltimeExceeded(killedJobStatus(137, "120.0"), 5400L));
+        assertFalse("not killed", DrmaaV1JobRunner.isWalltimeExceeded(killedJobStatus(1, "5400.1"), 5400L));
+        assertFalse("no h_rt", DrmaaV1JobRunner.isWalltimeExceeded(killedJobStatus(137, "5400.1"), null));
+    }
+
+    protected DrmJobStatus oomJobStatus(final Integer exitCode, final String maxvmem) {
+        return new DrmJobStatus.Builder("1001", DrmJobState.FAILED)
+            .exitCode(exitCode)
+            .memory(Memory.fromString(maxvmem))
+        .build();
+    }
+
+    @Test
+    public void isOutOfMemory() {
+        final long requested=Memory.fromString("8 Gb").getNumBytes();
+        assertTrue("killed at limit", DrmaaV1JobRunner.isOutOfMemory(oomJobStatus(137, "7.9 Gb"), requested, 0.9));
+        assertFalse("killed below limit", DrmaaV1JobRunner.isOutOfMemory(oomJobStatus(137, "2 Gb"), requested, 0.9));
+        assertFalse("not killed", DrmaaV1JobRunner.isOutOfMemory(oomJobStatus(1, "7.9 Gb"), requested, 0.9));
+        assertFalse("no memory request", DrmaaV1JobRunner.isOutOfMemory(oomJobStatus(137, "7.9 Gb"), null, 0.9));
+    }
+
+    @Test
+    public void escalatedMemory() {
+        job=mock(DrmJobSubmission.class);
+        final long requested=Memory.fromString("8 Gb").getNumBytes();
+        assertEquals("default factor", Memory.fromString("16 Gb").getNumBytes(), DrmaaV1JobRunner.getEscalatedMemory(job, requested));
+        when(job.getProperty(DrmaaV1JobRunner.PROP_OOM_MAX_MEMORY)).thenReturn("12 Gb");
+        assertEquals("capped", Memory.fromString("12 Gb").getNumBytes(), DrmaaV1JobRunner.getEscalatedMemory(job, requested));
+    }
+
+    @Test
+    public void memoryFlags_resubmittedJob() {
+        job=mock(DrmJobSubmission.class);
+        when(job.getGpJobNo()).thenReturn(jobNo);
+        when(job.getMemory()).thenReturn(Memory.fromString("8 Gb"));
+        final JobAttempts attempts=jobRunner.getJobAttempts(new SubmittedJob("1001", job));
+        attempts.addFailedAttempt("memory", "extJobId=1001: memory limit exceeded");
+        attempts.setMemory(Memory.fromString("16 Gb").getNumBytes());
+        assertArgWithFlag(jobRunner.getMemoryFlags(job), "-l", "m_mem_free=16384m");
+        assertEquals("attempt", 2, attempts.getAttempt());
+    }
+
+    @Test
+    public void completeJob_resubmitOutOfMemory() {
+        job=mock(DrmJobSubmission.class);
+        when(job.getGpJobNo()).thenReturn(jobNo);
+        when(job.getWorkingDir()).thenReturn(jobDir);
+        when(job.getMemory()).thenReturn(Memory.fromString("8 Gb"));
+        when(job.getProperty(DrmaaV1JobRunner.PROP_OOM_RESUBMIT)).thenReturn("true");
+        jobRunner.addSubmittedJob("1001", job);
+        final DrmJobStatus status=jobRunner.completeJob("1001", oomJobStatus(137, "7.9 Gb"));
+        assertEquals("jobState", DrmJobState.QUEUED, status.getJobState());
+        assertTrue("placeholder for the next attempt", SubmissionTracker.isPendingJobId(status.getDrmJobId()));
+        assertEquals("alias", status.getDrmJobId(), jobRunner.getSubmissionTracker().getSubmissionIndex().getAlias("1001"));
+        assertNull("failed attempt is not a completed status", jobRunner.getCompletedStatusCache().getIfPresent("1001"));
+        final JobAttempts attempts=jobRunner.getSubmissionTracker().getSubmissionIndex().getAttempts(jobNo);
+        assertEquals("attempt", 2, attempts.getAttempt());
+        assertEquals("memory", Memory.fromString("16 Gb").getNumBytes(), attempts.getMemory().longValue());
+    }
+
+    @Test
+    public void completeJob_resubmitOutOfMemory_noWalltimeRetries() throws Exception {
+        job=mock(DrmJobSubmission.class);
+        when(job.getGpJobNo()).thenReturn(jobNo);
+        when(job.getWorkingDir()).thenReturn(jobDir);
+        when(job.getMemory()).thenReturn(Memory.fromString("8 Gb"));
+        final Walltime walltime=mock(Walltime.class);
+        when(walltime.asMillis()).thenReturn(3600L*1000L);
+        when(job.getWalltime()).thenReturn(walltime);
+        when(job.getProperty(DrmaaV1JobRunner.PROP_WALLTIME_MODE)).thenReturn("predict");
+        when(job.getProperty(DrmaaV1JobRunner.PROP_WALLTIME_MAX_RETRIES)).thenReturn("0");
+        when(job.getProperty(DrmaaV1JobRunner.PROP_OOM_RESUBMIT)).thenReturn("true");
+        jobRunner.addSubmittedJob("1001", job);
+        final Map<String,String> usage=new HashMap<String,String>();
+        usage.put("wallclock", "3600.1");
+        final DrmJobStatus killed=new DrmJobStatus.Builder("1001", DrmJobState.FAILED)
+            .exitCode(137)
+            .memory(Memory.fromString("7.9 Gb"))
+            .resourceUsage(usage)
+        .build();
+        final DrmJobStatus status=jobRunner.completeJob("1001", killed);
+        assertTrue("resubmitted for memory", SubmissionTracker.isPendingJobId(status.getDrmJobId()));
+        final JobAttempts attempts=jobRunner.getSubmissionTracker().getSubmissionIndex().getAttempts(jobNo);
+        assertEquals("memory", Memory.fromString("16 Gb").getNumBytes(), attempts.getMemory().longValue());
+        assertEquals("walltime retries", 0, attempts.getNumRetries("walltime"));
+    }
+
+    @Test
+    public void cpuEfficiency() {
+        final Map<String,String> usage=new HashMap<String,String>();
+        usage.put("cpu", "1200.0");
+        usage.put("wallclock", "600.0");
+        final DrmJobStatus status=new DrmJobStatus.Builder("1001", DrmJobState.DONE)
+            .resourceUsage(usage)
+        .build();
+        assertEquals("8 slots", 0.25, DrmaaV1JobRunner.getCpuEfficiency(status, 8), 0.0001);
+        assertEquals("1 slot", 2.0, DrmaaV1JobRunner.getCpuEfficiency(status, null), 0.0001);
+        assertEquals("cpu_efficiency", "0.2500", DrmaaV1JobRunner.withCpuEfficiency(status, 8).getResourceUsage().get("cpu_efficiency"));
+    }
+
+    @Test
+    public void downsizeSlots() {
+        job=mockModuleJob(8, DrmaaV1JobRunner.PROP_PE_DOWNSIZE+"=on");
+        // p90 of 1 busy core, with 1.5 headroom
+        assertEquals("numSlots", new Integer(2), jobRunner.getNumSlots(job));
+        assertEquals(Arrays.asList("-pe", "smp", "2"), jobRunner.getPeFlags(job));
+        // total memory is divided by the capped number of slots
+        assertArgWithFlag(jobRunner.getMemoryFlags(job), "-l", "m_mem_free=4096m");
+    }
+
+    @Test
+    public void downsizeSlots_dryRun() {
+        job=mockModuleJob(8, DrmaaV1JobRunner.PROP_PE_DOWNSIZE+"=dryRun");
+        assertEquals("numSlots", new Integer(8), jobRunner.getNumSlots(job));
+    }
+
+    @Test
+    public void downsizeSlots_efficientModule() {
+        job=mockModuleJob(8, DrmaaV1JobRunner.PROP_PE_DOWNSIZE+"=on");
+        for(int i=0; i<100; ++i) {
+            jobRunner.getCpuHistory().add("ConvertLineEndings", 7.5);
+        }
+        assertEquals("numSlots", new Integer(8), jobRunner.getNumSlots(job));
+    }
+
+    @Test
+    public void isLocalJob() {
+        job=mockModuleJob(null);
+        assertFalse("default", jobRunner.isLocalJob(job));
+        when(job.getProperty(DrmaaV1JobRunner.PROP_LOCAL)).thenReturn("true");
+        assertFalse("job.memory > 2 Gb", jobRunner.isLocalJob(job));
+        when(job.getMemory()).thenReturn(Memory.fromString("512 Mb"));
+        assertTrue("small job", jobRunner.isLocalJob(job));
+        final Value modules=mock(Value.class);
+        when(modules.getValues()).thenReturn(Arrays.asList("PreprocessDataset"));
+        when(job.getValue(DrmaaV1JobRunner.PROP_LOCAL_MODULES)).thenReturn(modules);
+        assertFalse("not in job.ge.local.modules", jobRunner.isLocalJob(job));
+        when(job.getValue(DrmaaV1JobRunner.PROP_LOCAL_MODULES)).thenReturn(null);
+        when(job.getCpuCount()).thenReturn(4);
+        assertFalse("parallel job", jobRunner.isLocalJob(job));
+    }
+
     @Test
     public void jobQueue() {
         job=mock(DrmJobSubmission.class);
@@ -247,6 +636,40 @@ public class TestDrmaaV1JobRunner {
         assertArgWithFlag(args, "-q", "short"); 
     }
 
+    @Test
+    public void jobQueue_candidates() {
+        final Value candidates=mock(Value.class);
+        when(candidates.getValues()).thenReturn(Arrays.asList("short", "long"));
+        job=mock(DrmJobSubmission.class);
+        when(job.getGpJobNo()).thenReturn(jobNo);
+        when(job.getValue(DrmaaV1JobRunner.PROP_QUEUE_CANDIDATES)).thenReturn(candidates);
+        when(job.getQueue()).thenReturn("long");
+        when(job.getProperty(DrmaaV1JobRunner.PROP_QUEUE_EXPLORE_RATE)).thenReturn("0");
+        assertEquals("not enough data, use job.queue", "long", jobRunner.getQueue(job));
+        for(int i=0; i<5; ++i) {
+            jobRunner.getQueueWaitStats().add("short", 60L*1000L);
+            jobRunner.getQueueWaitStats().add("long", 3600L*1000L);
+        }
+        assertArgWithFlag(jobRunner.initNativeSpecification(job), "-q", "short");
+        assertEquals("numDecisions", 2, jobRunner.getQueueDecisions().size());
+    }
+
+    @Test
+    public void jobQueue_candidates_explore() {
+        final Value candidates=mock(Value.class);
+        when(candidates.getValues()).thenReturn(Arrays.asList("short", "long", "new"));
+        job=mock(DrmJobSubmission.class);
+        when(job.getValue(DrmaaV1JobRunner.PROP_QUEUE_CANDIDATES)).thenReturn(candidates);
+        for(int i=0; i<5; ++i) {
+            jobRunner.getQueueWaitStats().add("short", 60L*1000L);
+            jobRunner.getQueueWaitStats().add("long", 3600L*1000L);
+        }
+        when(job.getProperty(DrmaaV1JobRunner.PROP_QUEUE_EXPLORE_RATE)).thenReturn("0");
+        assertEquals("lowest wait", "short", jobRunner.getQueue(job));
+        when(job.getProperty(DrmaaV1JobRunner.PROP_QUEUE_EXPLORE_RATE)).thenReturn("1");
+        assertEquals("queue without enough samples", "new", jobRunner.getQueue(job));
+    }
+
     @Test
     public void jobQueue_emptyString() {
         job=mock(DrmJobSubmission.class);
@@ -367,6 +790,70 @@ public class TestDrmaaV1JobRunner {
         assertArgWithFlag(args, "-pe", "mpi", "8");
     }
 
+    @Test
+    public void jobPeFlag_peTypeBySlots() {
+        final Value peTypes=mock(Value.class);
+        when(peTypes.isFromCollection()).thenReturn(true);
+        when(peTypes.getValues()).thenReturn(Arrays.asList("16=smp", "openmpi"));
+        job=mock(DrmJobSubmission.class);
+        when(job.getValue(DrmaaV1JobRunner.PROP_PE_TYPE)).thenReturn(peTypes);
+        when(job.getCpuCount()).thenReturn(8);
+        assertEquals(Arrays.asList("-pe", "smp", "8"), jobRunner.getPeFlags(job));
+        when(job.getCpuCount()).thenReturn(32);
+        assertEquals(Arrays.asList("-pe", "openmpi", "32"), jobRunner.getPeFlags(job));
+    }
+
+    @Test
+    public void selectPeType() {
+        assertEquals("default", "openmpi", DrmaaV1JobRunner.selectPeType("openmpi", 64));
+        assertEquals("match", "smp", DrmaaV1JobRunner.selectPeType("16=smp", 16));
+        assertEquals("no match", null, DrmaaV1JobRunner.selectPeType("16=smp", 17));
+        assertEquals("invalid", null, DrmaaV1JobRunner.selectPeType("sixteen=smp", 4));
+    }
+
+    @Test
+    public void jobPeFlag_binding() {
+        job=mock(DrmJobSubmission.class);
+        when(job.getCpuCount()).thenReturn(4);
+        when(job.getProperty(DrmaaV1JobRunner.PROP_BINDING)).thenReturn("linear");
+        assertEquals(Arrays.asList("-pe", "smp", "4", "-binding", "linear:4"), jobRunner.getPeFlags(job));
+        when(job.getProperty(DrmaaV1JobRunner.PROP_BINDING)).thenReturn("striding");
+        assertEquals(Arrays.asList("-binding", "striding:4:2"), jobRunner.getBindingFlags(job, 4));
+        when(job.getProperty(DrmaaV1JobRunner.PROP_BINDING)).thenReturn("explicit");
+        assertEquals("explicit is not supported", Collections.emptyList(), jobRunner.getBindingFlags(job, 4));
+    }
+
+    @Test
+    public void jobPeFlag_bindingSerialJob() {
+        job=mock(DrmJobSubmission.class);
+        when(job.getProperty(DrmaaV1JobRunner.PROP_BINDING)).thenReturn("linear");
+        assertEquals(Arrays.asList("-binding", "linear:1"), jobRunner.getPeFlags(job));
+    }
+
+    @Test
+    public void jobPeFlag_reservation() {
+        job=mock(DrmJobSubmission.class);
+        when(job.getProperty(DrmaaV1JobRunner.PROP_RESERVATION_MIN_SLOTS)).thenReturn("16");
+        when(job.getCpuCount()).thenReturn(8);
+        assertEquals(Arrays.asList("-pe", "smp", "8"), jobRunner.getPeFlags(job));
+        when(job.getCpuCount()).thenReturn(16);
+        assertEquals(Arrays.asList("-pe", "smp", "16", "-R", "y"), jobRunner.getPeFlags(job));
+    }
+
+    @Test
+    public void localityFlags() {
+        final Value rules=mock(Value.class);
+        when(rules.getValues()).thenReturn(Arrays.asList("/xchip/lustre_a lustre_group=a"));
+        job=mock(DrmJobSubmission.class);
+        when(job.getValue(DrmaaV1JobRunner.PROP_LOCALITY)).thenReturn(rules);
+        when(job.getCommandLine()).thenReturn(Arrays.asList("echo", "/xchip/lustre_a/all_aml_test.gct"));
+        assertEquals("soft", Arrays.asList("-soft", "-l", "lustre_group=a", "-hard"), jobRunner.getLocalityFlags(job));
+        when(job.getProperty(DrmaaV1JobRunner.PROP_LOCALITY_MODE)).thenReturn("hard");
+        assertEquals("hard", Arrays.asList("-l", "lustre_group=a"), jobRunner.getLocalityFlags(job));
+        when(job.getProperty(DrmaaV1JobRunner.PROP_LOCALITY_MIN_INPUT_SIZE)).thenReturn("1 Gb");
+        assertEquals("small input", Collections.emptyList(), jobRunner.getLocalityFlags(job));
+    }
+
     @Test
     public void jobPeFlag_fromCpuCount_invalid() {
         // qsub -pe openmpi 8
@@ -577,6 +1064,607 @@ public class TestDrmaaV1JobRunner {
         JobTemplate jt=jobRunner.initJobTemplate(session, job);
         assertEquals("jt.jobName", "GP_"+jobNo, jt.getJobName()); 
     }
-    
+
+    @Test
+    public void reconcileStatus_running() throws DrmaaException {
+        when(session.getJobProgramStatus("1001")).thenReturn(Session.RUNNING);
+        final JobAccounting accounting=mock(JobAccounting.class);
+        final DrmJobStatus status=jobRunner.reconcileStatus(session, accounting, "1001");
+        assertEquals("jobState", DrmJobState.RUNNING, status.getJobState());
+    }
+
+    @Test
+    public void reconcileStatus_fromAccounting() throws DrmaaException {
+        when(session.getJobProgramStatus("1001")).thenThrow(new InvalidJobException("not found"));
+        final Map<String,String> usage=new HashMap<String,String>();
+        usage.put("exit_status", "0");
+        usage.put("failed", "0");
+        usage.put("cpu", "2720.230");
+        final JobAccounting accounting=mock(JobAccounting.class);
+        when(accounting.getUsage("1001")).thenReturn(usage);
+        final DrmJobStatus status=jobRunner.reconcileStatus(session, accounting, "1001");
+        assertEquals("jobState", DrmJobState.DONE, status.getJobState());
+        assertEquals("exitCode", new Integer(0), status.getExitCode());
+        assertEquals("cpuTime", 2720230L, status.getCpuTime().asMillis());
+    }
+
+    @Test
+    public void reconcileStatus_notFound() throws DrmaaException {
+        when(session.getJobProgramStatus("1001")).thenThrow(new InvalidJobException("not found"));
+        final Map<String,String> usage=Collections.emptyMap();
+        final JobAccounting accounting=mock(JobAccounting.class);
+        when(accounting.getUsage("1001")).thenReturn(usage);
+        assertEquals("not found", null, jobRunner.reconcileStatus(session, accounting, "1001"));
+    }
+
+    @Test
+    public void accountingMiss_grace() {
+        assertEquals("waiting for the accounting record", DrmJobState.RUNNING, jobRunner.accountingMiss("1001").getJobState());
+        assertEquals("still waiting", DrmJobState.RUNNING, jobRunner.accountingMiss("1001").getJobState());
+    }
+
+    @Test
+    public void getReconciledStatus_cachedAccountingMiss() throws DrmaaException {
+        assertFalse("no lookup yet", jobRunner.isAccountingMissCached("1001"));
+        jobRunner.accountingMiss("1001");
+        assertTrue("cached for the grace period", jobRunner.isAccountingMissCached("1001"));
+        final DrmJobStatus status=jobRunner.getReconciledStatus(session, jobNo, "1001");
+        assertEquals("jobState", DrmJobState.RUNNING, status.getJobState());
+        verify(session, never()).getJobProgramStatus("1001");
+    }
+
+    @Test
+    public void accountingMiss_noGrace() {
+        jobRunner.setGpConfig(new GpConfig.Builder()
+            .addProperty(DrmaaV1JobRunner.PROP_ACCOUNTING_GRACE, "0")
+        .build(), new GpContext.Builder().build());
+        assertEquals("not found", DrmJobState.UNDETERMINED, jobRunner.accountingMiss("1001").getJobState());
+    }
+
+    @Test
+    public void isForeignJobId() {
+        assertTrue("from a previous session", jobRunner.isForeignJobId("1001"));
+        jobRunner.addSubmittedJob("1002", job);
+        assertFalse("submitted by this session", jobRunner.isForeignJobId("1002"));
+        assertFalse("local job", jobRunner.isForeignJobId("local-1440658419871"));
+        assertFalse("placeholder", jobRunner.isForeignJobId("pending-1440658419871"));
+        assertTrue("not numeric", jobRunner.isForeignJobId("1003.cluster"));
+        jobRunner.completeJob("1002", new DrmJobStatus.Builder("1002", DrmJobState.DONE).build());
+        assertTrue("completed, session.wait can't find it", jobRunner.isForeignJobId("1002"));
+    }
+
+    @Test
+    public void initStatusFromUsage_failed() {
+        final Map<String,String> usage=new HashMap<String,String>();
+        usage.put("exit_status", "0");
+        usage.put("failed", "100 : assumedly after job");
+        final DrmJobStatus status=jobRunner.initStatusFromUsage("1001", usage);
+        assertEquals("jobState", DrmJobState.FAILED, status.getJobState());
+        assertEquals("jobStatusMessage", "failed: 100 : assumedly after job", status.getJobStatusMessage());
+    }
+
+    @Test
+    public void requestStatus_cacheCompletedStatus() throws DrmaaException {
+        final JobInfo jobInfo=mock(JobInfo.class);
+        when(jobInfo.getJobId()).thenReturn("1001");
+        when(jobInfo.hasExited()).thenReturn(true);
+        when(jobInfo.getExitStatus()).thenReturn(0);
+        when(session.wait("1001", Session.TIMEOUT_NO_WAIT)).thenReturn(jobInfo);
+        final DrmJobStatus status=jobRunner.requestStatus(session, "1001");
+        assertEquals("jobState", DrmJobState.DONE, status.getJobState());
+        assertNull("not completed on the dispatcher thread", jobRunner.getCompletedStatusCache().getIfPresent("1001"));
+        final DrmJobStatus completed=jobRunner.completeReapedJob("1001", false);
+        assertEquals("jobState", DrmJobState.DONE, completed.getJobState());
+        assertSame("cached status", completed, jobRunner.getCompletedStatusCache().getIfPresent("1001"));
+        assertNull("completed once", jobRunner.completeReapedJob("1001", false));
+    }
+
+    @Test
+    public void requestStatus_defaultWaitTimeout() throws DrmaaException {
+        when(session.wait("1001", Session.TIMEOUT_NO_WAIT)).thenThrow(new ExitTimeoutException());
+        when(session.getJobProgramStatus("1001")).thenReturn(Session.RUNNING);
+        final DrmJobStatus status=jobRunner.requestStatus(session, "1001");
+        assertEquals("jobState", DrmJobState.RUNNING, status.getJobState());
+        verify(session).wait("1001", Session.TIMEOUT_NO_WAIT);
+    }
+
+    @Test
+    public void requestStatus_waitTimeout() throws DrmaaException {
+        jobRunner.setGpConfig(new GpConfig.Builder()
+            .addProperty(DrmaaV1JobRunner.PROP_STATUS_WAIT_TIMEOUT, "5")
+        .build(), new GpContext.Builder().build());
+        when(session.wait("1001", 5L)).thenThrow(new ExitTimeoutException());
+        when(session.getJobProgramStatus("1001")).thenReturn(Session.RUNNING);
+        jobRunner.requestStatus(session, "1001");
+        verify(session).wait("1001", 5L);
+    }
+
+    @Test
+    public void drainCompletedJobs() throws DrmaaException {
+        final JobInfo jobInfo=mock(JobInfo.class);
+        when(jobInfo.getJobId()).thenReturn("1001");
+        when(jobInfo.hasExited()).thenReturn(true);
+        when(jobInfo.getExitStatus()).thenReturn(1);
+        when(session.wait(Session.JOB_IDS_SESSION_ANY, Session.TIMEOUT_NO_WAIT))
+            .thenReturn(jobInfo)
+            .thenThrow(new ExitTimeoutException());
+        assertEquals("numDrained", 1, jobRunner.drainCompletedJobs(session));
+        assertNull("not completed on the dispatcher thread", jobRunner.getCompletedStatusCache().getIfPresent("1001"));
+        assertEquals("numCompleted", 1, jobRunner.completeReapedJobs());
+        final DrmJobStatus status=jobRunner.getCompletedStatusCache().getIfPresent("1001");
+        assertEquals("jobState", DrmJobState.FAILED, status.getJobState());
+        assertEquals("exitCode", new Integer(1), status.getExitCode());
+    }
+
+    @Test
+    public void drainCompletedJobs_pinnedUntilPolled() throws DrmaaException {
+        final JobInfo jobInfo=mock(JobInfo.class);
+        when(jobInfo.getJobId()).thenReturn("1001");
+        when(jobInfo.hasExited()).thenReturn(true);
+        when(jobInfo.getExitStatus()).thenReturn(0);
+        when(session.wait(Session.JOB_IDS_SESSION_ANY, Session.TIMEOUT_NO_WAIT))
+            .thenReturn(jobInfo)
+            .thenThrow(new ExitTimeoutException());
+        assertEquals("numDrained", 1, jobRunner.drainCompletedJobs(session));
+        assertEquals("numCompleted", 1, jobRunner.completeReapedJobs());
+        assertEquals("numUnpolled", 1, jobRunner.getNumUnpolledStatuses());
+        // e.g. evicted before GenePattern polled for the job
+        jobRunner.getCompletedStatusCache().invalidateAll();
+        final DrmJobStatus status=jobRunner.getCompletedStatus("1001");
+        assertEquals("jobState", DrmJobState.DONE, status.getJobState());
+        assertEquals("numUnpolled, after poll", 0, jobRunner.getNumUnpolledStatuses());
+        assertSame("cached after poll", status, jobRunner.getCompletedStatusCache().getIfPresent("1001"));
+    }
+
+    @Test
+    public void drainCompletedJobs_noJobs() throws DrmaaException {
+        when(session.wait(Session.JOB_IDS_SESSION_ANY, Session.TIMEOUT_NO_WAIT))
+            .thenThrow(new InvalidJobException());
+        assertEquals("numDrained", 0, jobRunner.drainCompletedJobs(session));
+    }
+
+    @Test
+    public void startJob_pendingUntilSessionInit() throws Exception {
+        when(session.runJob(any(JobTemplate.class))).thenReturn("1001");
+        jobRunner.setSessionInitializing();
+        final String pendingId=jobRunner.startJob(job);
+        assertTrue("placeholder extJobId, "+pendingId, SubmissionTracker.isPendingJobId(pendingId));
+        final DrmJobRecord record=mock(DrmJobRecord.class);
+        when(record.getExtJobId()).thenReturn(pendingId);
+        assertEquals("jobState before init", DrmJobState.QUEUED, jobRunner.getStatus(record).getJobState());
+
+        jobRunner.onSessionInit(session, null);
+        assertEquals("sessionState", DrmaaV1JobRunner.SessionState.READY, jobRunner.getSessionState());
+        assertEquals("resolved extJobId", "1001", jobRunner.getSubmissionTracker().resolveExtJobId(pendingId));
+    }
+
+    @Test
+    public void startJob_pendingCancelled() throws Exception {
+        jobRunner.setSessionInitializing();
+        final String pendingId=jobRunner.startJob(job);
+        final DrmJobRecord record=mock(DrmJobRecord.class);
+        when(record.getExtJobId()).thenReturn(pendingId);
+        assertTrue("cancelled", jobRunner.cancelJob(record));
+        assertEquals("jobState", DrmJobState.CANCELLED, jobRunner.getStatus(record).getJobState());
+    }
+
+    @Test
+    public void cancelJob_evictsSubmittedJob() throws Exception {
+        jobRunner.onSessionInit(session, null);
+        jobRunner.addSubmittedJob("1001", job);
+        final DrmJobRecord record=mock(DrmJobRecord.class);
+        when(record.getExtJobId()).thenReturn("1001");
+        assertTrue("cancelled", jobRunner.cancelJob(record));
+        assertNull("evicted", jobRunner.getSubmittedJob("1001"));
+    }
+
+    @Test
+    public void getStatus_evictsLostJob() throws Exception {
+        when(session.wait(eq("1001"), anyLong())).thenThrow(new InvalidJobException());
+        jobRunner.onSessionInit(session, null);
+        jobRunner.addSubmittedJob("1001", job);
+        final DrmJobRecord record=mock(DrmJobRecord.class);
+        when(record.getExtJobId()).thenReturn("1001");
+        assertEquals("jobState", DrmJobState.UNDETERMINED, jobRunner.getStatus(record).getJobState());
+        assertNull("evicted", jobRunner.getSubmittedJob("1001"));
+    }
+
+    @Test
+    public void getStatus_keepsJobOnTransientError() throws Exception {
+        when(session.wait(eq("1001"), anyLong())).thenThrow(new DrmCommunicationException("failed receiving gdi request response"));
+        jobRunner.onSessionInit(session, null);
+        jobRunner.addSubmittedJob("1001", job);
+        final DrmJobRecord record=mock(DrmJobRecord.class);
+        when(record.getExtJobId()).thenReturn("1001");
+        assertEquals("jobState", DrmJobState.UNDETERMINED, jobRunner.getStatus(record).getJobState());
+        assertNotNull("not evicted", jobRunner.getSubmittedJob("1001"));
+    }
+
+    @Test
+    public void startJob_duplicateWhilePending() throws Exception {
+        jobRunner.setSessionInitializing();
+        final String pendingId=jobRunner.startJob(job);
+        assertEquals("retry returns the pending job", pendingId, jobRunner.startJob(job));
+    }
+
+    @Test
+    public void findExistingJob_cancelled() throws Exception {
+        jobRunner.setSessionInitializing();
+        final String pendingId=jobRunner.startJob(job);
+        assertTrue("cancelled", jobRunner.getSubmissionTracker().cancelPendingJob(pendingId));
+        assertNull("cancelled job is not a duplicate", jobRunner.getSubmissionTracker().findExistingJob(job));
+        assertNull("removed from the index", jobRunner.getSubmissionTracker().getSubmissionIndex().get(job.getGpJobNo()));
+    }
+
+    @Test
+    public void isInDoubt() {
+        assertTrue("no reply", SubmissionTracker.isInDoubt(new DrmCommunicationException("failed receiving gdi request response for mid=3")));
+        assertTrue("running", SubmissionTracker.isInDoubt(new DrmaaTimeoutException("timed out", true, null)));
+        assertFalse("not started", SubmissionTracker.isInDoubt(new DrmaaTimeoutException("timed out", false, null)));
+        assertFalse("denied", SubmissionTracker.isInDoubt(new DeniedByDrmException("denied")));
+    }
+
+    /**
+     * A job whose previous submission is in doubt is held, and looked up by name on the retry timer.
+     */
+    @Test
+    public void findExistingJob_inDoubt() throws Exception {
+        initLookupCmd(
+                "echo 'job_number:                 169437'\n"+
+                "echo 'job_name:                   GP_10357'\n");
+        jobRunner.onSessionInit(session, null);
+        jobRunner.getSubmissionTracker().getSubmissionIndex().putInDoubt(jobNo);
+        final String pendingId=jobRunner.getSubmissionTracker().findExistingJob(job);
+        assertTrue("held", SubmissionTracker.isPendingJobId(pendingId));
+        // wait for the lookup
+        jobRunner.getSubmissionTracker().getRetryTimer().submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+        assertEquals("resolved", "169437", jobRunner.getSubmissionTracker().resolveExtJobId(pendingId));
+        assertEquals("indexed", "169437", jobRunner.getSubmissionTracker().getSubmissionIndex().get(jobNo));
+        verify(session, never()).runJob(any(JobTemplate.class));
+    }
+
+    /**
+     * The in doubt retries are looked up with one command, matching the job directory.
+     */
+    @Test
+    public void lookupJobs_batch() throws Exception {
+        final File otherDir=temp.newFolder("10358");
+        final org.genepattern.webservice.JobInfo otherJobInfo=mock(org.genepattern.webservice.JobInfo.class);
+        when(otherJobInfo.getJobNumber()).thenReturn(10358);
+        final DrmJobSubmission otherJob=new DrmJobSubmission.Builder(otherDir)
+            .gpConfig(gpConfig)
+            .jobContext(new GpContext.Builder().jobNumber(10358).jobInfo(otherJobInfo).build())
+            .commandLine(Arrays.asList("echo", "Hello, World!"))
+        .build();
+        final File args=new File(temp.getRoot(), "qstat_args.txt");
+        initLookupCmd(
+                "echo \"$@\" >> '"+args.getAbsolutePath()+"'\n"+
+                "echo 'job_number:                 169437'\n"+
+                "echo 'cwd:                        "+jobDir.getAbsolutePath()+"'\n"+
+                "echo 'job_name:                   GP_10357'\n"+
+                "echo 'Following jobs do not exist or permissions are not sufficient: '\n"+
+                "echo 'GP_10358'\n"+
+                "exit 1\n");
+
+        final Map<String, DrmJobSubmission> jobs=new LinkedHashMap<String, DrmJobSubmission>();
+        jobs.put("pending-1", job);
+        jobs.put("pending-2", otherJob);
+        final Map<String, String> found=jobRunner.getSubmissionTracker().lookupJobs(jobs, 10000L);
+        assertEquals("found", "169437", found.get("pending-1"));
+        assertFalse("not found", found.containsKey("pending-2"));
+        assertEquals("one command", Arrays.asList("-j GP_10357,GP_10358"), 
+                Files.readLines(args, Charsets.UTF_8));
+    }
+
+    /** use a script with the given body as the 'job.ge.submit.lookupCmd' */
+    protected void initLookupCmd(final String body) throws IOException {
+        final File qstat=temp.newFile("qstat");
+        Files.write("#!/bin/sh\n"+body, qstat, Charsets.UTF_8);
+        assertTrue(qstat.setExecutable(true));
+        jobRunner.setGpConfig(new GpConfig.Builder()
+            .addProperty(DrmaaV1JobRunner.PROP_SUBMIT_LOOKUP_CMD, qstat.getAbsolutePath())
+        .build(), new GpContext.Builder().build());
+    }
+
+    @Test
+    public void getStatus_pendingJobAfterRestart_notFound() throws Exception {
+        initLookupCmd(
+                "echo 'Following jobs do not exist or permissions are not sufficient: '\n"+
+                "echo 'GP_10357'\n"+
+                "exit 1\n");
+        jobRunner.onSessionInit(session, null);
+        // from before the restart
+        jobRunner.getSubmissionTracker().getSubmissionIndex().put(jobNo, "pending-1");
+        final DrmJobRecord record=mock(DrmJobRecord.class);
+        when(record.getGpJobNo()).thenReturn(jobNo);
+        when(record.getWorkingDir()).thenReturn(jobDir);
+        when(record.getExtJobId()).thenReturn("pending-1");
+        final DrmJobStatus status=jobRunner.getStatus(record);
+        assertEquals("jobState", DrmJobState.FAILED, status.getJobState());
+        assertNull("removed from index", jobRunner.getSubmissionTracker().getSubmissionIndex().get(jobNo));
+    }
+
+    @Test
+    public void getStatus_pendingJobAfterRestart_found() throws Exception {
+        initLookupCmd(
+                "echo 'job_number:                 169437'\n"+
+                "echo 'job_name:                   GP_10357'\n");
+        final DrmJobRecord record=mock(DrmJobRecord.class);
+        when(record.getGpJobNo()).thenReturn(jobNo);
+        when(record.getWorkingDir()).thenReturn(jobDir);
+        when(record.getExtJobId()).thenReturn("pending-1");
+        jobRunner.getSubmissionTracker().getRestartedPendingJobStatus(record, "pending-1");
+        assertEquals("resolved", "169437", jobRunner.getSubmissionTracker().resolveExtJobId("pending-1"));
+    }
+
+    @Test
+    public void getStatus_removeAliasesWhenCompleted() {
+        jobRunner.getSubmissionTracker().putAlias("pending-1", "1001");
+        jobRunner.getCompletedStatusCache().put("1001", new DrmJobStatus.Builder()
+            .extJobId("1001")
+            .jobState(DrmJobState.DONE)
+        .build());
+        final DrmJobRecord record=mock(DrmJobRecord.class);
+        when(record.getExtJobId()).thenReturn("pending-1");
+        assertEquals("jobState", DrmJobState.DONE, jobRunner.getStatus(record).getJobState());
+        assertEquals("alias removed", 0, jobRunner.getSubmissionTracker().getSubmissionIndex().getNumAliases());
+    }
+
+    @Test
+    public void lookupInDoubtJobs_found() throws Exception {
+        initLookupCmd(
+                "echo 'job_number:                 169437'\n"+
+                "echo 'job_name:                   GP_10357'\n");
+        jobRunner.onSessionInit(session, null);
+        final SettableFuture<String> future=SettableFuture.create();
+        final String pendingId=jobRunner.getSubmissionTracker().addInDoubtJob(job, future);
+        jobRunner.getSubmissionTracker().lookupInDoubtJobs(Long.MAX_VALUE);
+        assertEquals("resolved", "169437", jobRunner.getSubmissionTracker().resolveExtJobId(pendingId));
+        assertEquals("indexed", "169437", jobRunner.getSubmissionTracker().getSubmissionIndex().get(jobNo));
+
+        // the call completes with the same job
+        future.set("169437");
+        Thread.sleep(100);
+        verify(session, never()).control("169437", Session.TERMINATE);
+    }
+
+    @Test
+    public void lookupInDoubtJobs_notFound() throws Exception {
+        initLookupCmd(
+                "echo 'Following jobs do not exist or permissions are not sufficient: '\n"+
+                "echo 'GP_10357'\n"+
+                "exit 1\n");
+        jobRunner.onSessionInit(session, null);
+        final SettableFuture<String> future=SettableFuture.create();
+        final String pendingId=jobRunner.getSubmissionTracker().addInDoubtJob(job, future);
+        jobRunner.getSubmissionTracker().lookupInDoubtJobs(Long.MAX_VALUE);
+        final DrmJobRecord record=mock(DrmJobRecord.class);
+        when(record.getExtJobId()).thenReturn(pendingId);
+        assertEquals("jobState", DrmJobState.FAILED, jobRunner.getStatus(record).getJobState());
+
+        // the job added by the late call is cancelled
+        future.set("169437");
+        verify(session, timeout(5000)).control("169437", Session.TERMINATE);
+    }
+
+    @Test
+    public void lookupInDoubtJobs_beforeDeadline() throws Exception {
+        jobRunner.onSessionInit(session, null);
+        final String pendingId=jobRunner.getSubmissionTracker().addInDoubtJob(job, SettableFuture.<String>create());
+        jobRunner.getSubmissionTracker().lookupInDoubtJobs(System.currentTimeMillis());
+        assertTrue("still pending", SubmissionTracker.isPendingJobId(jobRunner.getSubmissionTracker().resolveExtJobId(pendingId)));
+    }
+
+    @Test
+    public void startJob_retryTransientError() throws Exception {
+        when(session.runJob(any(JobTemplate.class)))
+            .thenThrow(new DrmCommunicationException("qmaster is not reachable"))
+            .thenReturn("1001");
+        jobRunner.onSessionInit(session, null);
+        jobRunner.getSubmissionTracker().setRetryPolicy(new RetryPolicy(1L, 1L, 10000L, new Random(0L)));
+        final String pendingId=jobRunner.startJob(job);
+        assertTrue("placeholder extJobId, "+pendingId, SubmissionTracker.isPendingJobId(pendingId));
+        for(int i=0; i<100 && jobRunner.getSubmissionTracker().resolveExtJobId(pendingId).equals(pendingId); ++i) {
+            Thread.sleep(50L);
+        }
+        assertEquals("resolved extJobId", "1001", jobRunner.getSubmissionTracker().resolveExtJobId(pendingId));
+    }
+
+    @Test(expected=CommandExecutorException.class)
+    public void startJob_permanentError() throws Exception {
+        when(session.runJob(any(JobTemplate.class))).thenThrow(new DeniedByDrmException("invalid queue"));
+        jobRunner.onSessionInit(session, null);
+        jobRunner.getSubmissionTracker().setRetryPolicy(new RetryPolicy(1L, 1L, 10000L, new Random(0L)));
+        jobRunner.startJob(job);
+    }
+
+    @Test
+    public void initJobTemplate_invalidQueue() throws Exception {
+        jobRunner.setSpecValidator(new NativeSpecValidator(Arrays.asList("short", "long"), null, null));
+        job=mock(DrmJobSubmission.class);
+        when(job.getWorkingDir()).thenReturn(jobDir);
+        when(job.getCommandLine()).thenReturn(Arrays.asList("echo", "Hello, World!"));
+        when(job.getQueue()).thenReturn("shrot");
+        try {
+            jobRunner.initJobTemplate(session, job);
+            fail("expecting DeniedByDrmException");
+        }
+        catch (DeniedByDrmException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("unknown queue 'shrot'"));
+        }
+    }
+
+    @Test
+    public void prepareJob() throws DrmaaException {
+        final PreparedSubmission prepared=jobRunner.prepareJob(job);
+        assertEquals("jobName", "GP_"+jobNo, prepared.getJobName());
+        assertEquals("workingDirectory", jobDir.getAbsolutePath(), prepared.getWorkingDirectory());
+        assertEquals("remoteCommand", "echo", prepared.getRemoteCommand());
+        assertEquals("args", Arrays.asList("Hello, World!"), prepared.getArgs());
+    }
+
+    @Test
+    public void submitOnce_invalidQueue_beforeDispatch() throws Exception {
+        jobRunner.setSpecValidator(new NativeSpecValidator(Arrays.asList("short", "long"), null, null));
+        job=mock(DrmJobSubmission.class);
+        when(job.getWorkingDir()).thenReturn(jobDir);
+        when(job.getCommandLine()).thenReturn(Arrays.asList("echo", "Hello, World!"));
+        when(job.getQueue()).thenReturn("shrot");
+        try {
+            jobRunner.submitOnce(session, job);
+            fail("expecting DeniedByDrmException");
+        }
+        catch (DeniedByDrmException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("unknown queue 'shrot'"));
+        }
+        verify(session, never()).createJobTemplate();
+    }
+
+    @Test
+    public void resolveExtJobId_inDoubt() {
+        // a pending job whose submission was in doubt
+        jobRunner.getSubmissionTracker().putAlias("pending-1", "pending-2");
+        assertEquals("in doubt", "pending-2", jobRunner.getSubmissionTracker().resolveExtJobId("pending-1"));
+        jobRunner.getSubmissionTracker().putAlias("pending-2", "1001");
+        assertEquals("resolved", "1001", jobRunner.getSubmissionTracker().resolveExtJobId("pending-1"));
+    }
+
+    @Test
+    public void timedOutStatus() {
+        final DrmJobStatus status=jobRunner.timedOutStatus("1001");
+        assertEquals("jobState", DrmJobState.QUEUED, status.getJobState());
+        assertEquals("extJobId", "1001", status.getDrmJobId());
+    }
+
+    @Test
+    public void checkStaging() throws IOException {
+        final DrmJobSubmission stagedJob=mock(DrmJobSubmission.class);
+        when(stagedJob.getWorkingDir()).thenReturn(jobDir);
+        when(stagedJob.getProperty(DrmaaV1JobRunner.PROP_STAGE)).thenReturn("true");
+        final SubmittedJob submittedJob=new SubmittedJob("1001", stagedJob);
+        submittedJob.setStaged(true);
+        final DrmJobStatus done=new DrmJobStatus.Builder()
+            .extJobId("1001")
+            .jobState(DrmJobState.DONE)
+            .exitCode(0)
+        .build();
+        assertEquals("no marker", DrmJobState.FAILED, jobRunner.checkStaging(submittedJob, done).getJobState());
+        assertTrue(new File(jobDir, OutputStaging.DONE_MARKER).createNewFile());
+        assertEquals("with marker", DrmJobState.DONE, jobRunner.checkStaging(submittedJob, done).getJobState());
+    }
+
+    @Test
+    public void completeJob_waitsForStagingMarker() throws IOException {
+        final DrmJobSubmission stagedJob=mock(DrmJobSubmission.class);
+        when(stagedJob.getWorkingDir()).thenReturn(jobDir);
+        when(stagedJob.getProperty(DrmaaV1JobRunner.PROP_STAGE)).thenReturn("true");
+        jobRunner.addSubmittedJob("1001", stagedJob);
+        final DrmJobStatus done=new DrmJobStatus.Builder()
+            .extJobId("1001")
+            .jobState(DrmJobState.DONE)
+            .exitCode(0)
+        .build();
+        assertEquals("no marker yet", DrmJobState.RUNNING, jobRunner.completeJob("1001", done).getJobState());
+        assertNull("not cached", jobRunner.getCompletedStatusCache().getIfPresent("1001"));
+        assertEquals("still waiting", DrmJobState.RUNNING, jobRunner.checkStagingStatus("1001").getJobState());
+
+        assertTrue(new File(jobDir, OutputStaging.DONE_MARKER).createNewFile());
+        assertEquals("with marker", DrmJobState.DONE, jobRunner.checkStagingStatus("1001").getJobState());
+        assertNull("no longer waiting", jobRunner.checkStagingStatus("1001"));
+        assertFalse("marker deleted", new File(jobDir, OutputStaging.DONE_MARKER).exists());
+    }
+
+    @Test
+    public void completeJob_stagingGraceExpired() {
+        final DrmJobSubmission stagedJob=mock(DrmJobSubmission.class);
+        when(stagedJob.getWorkingDir()).thenReturn(jobDir);
+        when(stagedJob.getProperty(DrmaaV1JobRunner.PROP_STAGE)).thenReturn("true");
+        when(stagedJob.getProperty(DrmaaV1JobRunner.PROP_STAGE_GRACE)).thenReturn("0");
+        jobRunner.addSubmittedJob("1001", stagedJob);
+        final DrmJobStatus done=new DrmJobStatus.Builder()
+            .extJobId("1001")
+            .jobState(DrmJobState.DONE)
+            .exitCode(0)
+        .build();
+        assertEquals("first miss", DrmJobState.RUNNING, jobRunner.completeJob("1001", done).getJobState());
+        assertEquals("after grace", DrmJobState.FAILED, jobRunner.checkStagingStatus("1001").getJobState());
+    }
+
+    @Test
+    public void deleteJobFiles() throws IOException {
+        for(final String name : new String[] { OutputStaging.DONE_MARKER, ResourceSampler.SAMPLES_FILE, ArgumentFile.ARG_FILE, "stdout.txt" }) {
+            assertTrue(new File(jobDir, name).createNewFile());
+        }
+        DrmaaV1JobRunner.deleteJobFiles(jobDir);
+        assertEquals(Arrays.asList("stdout.txt"), Arrays.asList(jobDir.list()));
+    }
+
+    @Test
+    public void mbeanName_perInstance() throws Exception {
+        final DrmaaV1JobRunner other=new DrmaaV1JobRunner();
+        assertFalse("each runner has its own MBean", 
+                jobRunner.getMBeanName("UsageSketches").equals(other.getMBeanName("UsageSketches")));
+    }
+
+    @Test
+    public void initProgressTail_staged() {
+        job=mockModuleJob(null, DrmaaV1JobRunner.PROP_PROGRESS+"=(\\d+% complete)");
+        when(job.getWorkingDir()).thenReturn(jobDir);
+        assertNotNull("default", jobRunner.initProgressTail(job));
+        when(job.getProperty(DrmaaV1JobRunner.PROP_STAGE)).thenReturn("true");
+        assertNull("staged", jobRunner.initProgressTail(job));
+    }
+
+    @Test
+    public void initCommandLine_staged() {
+        job=mockModuleJob(null);
+        when(job.getCommandLine()).thenReturn(Arrays.asList("echo", "Hello, World!"));
+        assertEquals("default", Arrays.asList("echo", "Hello, World!"), jobRunner.initCommandLine(job));
+        when(job.getProperty(DrmaaV1JobRunner.PROP_STAGE)).thenReturn("true");
+        final List<String> cmd=jobRunner.initCommandLine(job);
+        assertEquals("/bin/bash", cmd.get(0));
+        assertEquals(Arrays.asList("echo", "Hello, World!"), cmd.subList(4, cmd.size()));
+    }
+
+    @Test
+    public void logUsageStats_sampled() {
+        final Map<String,String> usage=new HashMap<String,String>();
+        usage.put("sampled_max_processes", "3");
+        usage.put("sampled_max_threads", "24");
+        usage.put("sampled_maxswap", "1048576");
+        final DrmJobStatus.Builder b=new DrmJobStatus.Builder().extJobId("1001");
+        jobRunner.logUsageStats(b, usage);
+        final DrmJobStatus status=b.build();
+        assertEquals("maxProcesses", new Integer(3), status.getMaxProcesses());
+        assertEquals("maxThreads", new Integer(24), status.getMaxThreads());
+        assertEquals("maxSwap", Memory.fromString("1 mb").getNumBytes(), status.getMaxSwap().getNumBytes());
+    }
+
+    @Test
+    public void completeJob_sampledUsage() throws IOException {
+        job=mock(DrmJobSubmission.class);
+        when(job.getWorkingDir()).thenReturn(jobDir);
+        when(job.getProperty(DrmaaV1JobRunner.PROP_SAMPLER)).thenReturn("true");
+        Files.write(ResourceSampler.HEADER+" "+ResourceSampler.VERSION+" 10000\n"+
+                "0 1000 0 1 2 0 0 0\n"+
+                "10000 4000 0 3 24 20000 0 0\n", new File(jobDir, ResourceSampler.SAMPLES_FILE), Charsets.UTF_8);
+        jobRunner.addSubmittedJob("1001", job);
+        final DrmJobStatus status=jobRunner.completeJob("1001", new DrmJobStatus.Builder("1001", DrmJobState.DONE).build());
+        assertEquals("maxThreads", new Integer(24), status.getMaxThreads());
+        assertEquals("sampled_maxrss", ""+(4000L*1024L), status.getResourceUsage().get("sampled_maxrss"));
+    }
+
+    @Test
+    public void initCommandLine_sampled() {
+        job=mockModuleJob(null);
+        when(job.getCommandLine()).thenReturn(Arrays.asList("echo", "Hello, World!"));
+        when(job.getProperty(DrmaaV1JobRunner.PROP_SAMPLER)).thenReturn("true");
+        assertEquals(Arrays.asList("/bin/bash", "-c", ResourceSampler.SCRIPT, "gp_sampler", "10", ResourceSampler.SAMPLES_FILE, "echo", "Hello, World!"), 
+                jobRunner.initCommandLine(job));
+    }
 
 }
@@ -0,0 +1,63 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * test cases for parsing the output from the 'qacct -j <extJobId>' command.
+ */
+public class TestJobAccounting {
+    private static final List<String> qacctOutput=Arrays.asList(
+        "==============================================================",
+        "qname        short",
+        "hostname     node1234",
+        "jobname      GP_79917",
+        "jobnumber    169437",
+        "qsub_time    Thu Aug 27 02:50:09 2015",
+        "start_time   Thu Aug 27 02:53:39 2015",
+        "end_time     Thu Aug 27 03:07:23 2015",
+        "failed       0",
+        "exit_status  0",
+        "ru_wallclock 823s",
+        "cpu          2720.230s",
+        "maxvmem      1.372G"
+    );
+
+    @Test
+    public void parseUsage() {
+        final Map<String,String> usage=JobAccounting.parseUsage(qacctOutput);
+        assertEquals("jobname", "GP_79917", usage.get("jobname"));
+        assertEquals("exit_status", "0", usage.get("exit_status"));
+        assertEquals("cpu, strip trailing 's'", "2720.230", usage.get("cpu"));
+        assertEquals("ru_wallclock renamed to wallclock", "823", usage.get("wallclock"));
+        assertEquals("maxvmem", "1.372G", usage.get("maxvmem"));
+    }
+
+    @Test
+    public void parseUsage_dates() {
+        final Map<String,String> usage=JobAccounting.parseUsage(qacctOutput);
+        assertTrue("qsub_time renamed to submission_time", usage.containsKey("submission_time"));
+        final long submitTime=Long.parseLong(usage.get("submission_time"));
+        final long startTime=Long.parseLong(usage.get("start_time"));
+        assertEquals("start_time - submission_time", 210000L, startTime - submitTime);
+        assertEquals("start_time", DrmaaV1JobRunner.parseDate(usage.get("start_time")).getTime(), startTime);
+    }
+
+    @Test
+    public void parseUsage_notAvailable() {
+        final Map<String,String> usage=JobAccounting.parseUsage(Arrays.asList("start_time   -/-"));
+        assertEquals("start_time", "", usage.get("start_time"));
+    }
+
+    @Test
+    public void parseUsage_null() {
+        assertTrue("expecting empty map", JobAccounting.parseUsage(null).isEmpty());
+    }
+
+}
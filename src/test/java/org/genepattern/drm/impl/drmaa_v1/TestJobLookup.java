@@ -0,0 +1,125 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * test cases for parsing the output from the 'qstat -j <jobName>' command.
+ */
+public class TestJobLookup {
+    @Rule
+    public TemporaryFolder temp= new TemporaryFolder();
+
+    private static final List<String> qstatOutput=Arrays.asList(
+        "==============================================================",
+        "job_number:                 169437",
+        "exec_file:                  job_scripts/169437",
+        "submission_time:            Thu Aug 27 02:50:09 2015",
+        "owner:                      gpuser",
+        "job_name:                   GP_79917",
+        "==============================================================",
+        "job_number:                 169440",
+        "exec_file:                  job_scripts/169440",
+        "job_name:                   GP_79917"
+    );
+
+    @Test
+    public void parseJobIds() {
+        assertEquals(Arrays.asList("169437", "169440"), JobLookup.parseJobIds(qstatOutput));
+    }
+
+    @Test
+    public void parseJobIds_null() {
+        assertTrue("expecting empty list", JobLookup.parseJobIds(null).isEmpty());
+    }
+
+    @Test
+    public void getJobIds_notFound() throws IOException {
+        final File qstat=temp.newFile("qstat");
+        Files.write("#!/bin/sh\necho 'Following jobs do not exist or permissions are not sufficient: '\necho $2\nexit 1\n", qstat, Charsets.UTF_8);
+        assertTrue(qstat.setExecutable(true));
+        final JobLookup lookup=new JobLookup(qstat.getPath(), JobLookup.DEFAULT_TIMEOUT);
+        assertTrue("not found", lookup.getJobIds("GP_79917").isEmpty());
+    }
+
+    @Test
+    public void parseRecords() {
+        final List<Map<String,String>> records=JobLookup.parseRecords(qstatOutput);
+        assertEquals("numRecords", 2, records.size());
+        assertEquals("owner", "gpuser", records.get(0).get("owner"));
+        assertEquals("submission_time", "Thu Aug 27 02:50:09 2015", records.get(0).get("submission_time"));
+        assertEquals("job_name", "GP_79917", records.get(1).get("job_name"));
+    }
+
+    /**
+     * Only match the jobs of the server user, in the working directory of the job.
+     */
+    @Test
+    public void getJobIds_filterByOwnerAndCwd() throws IOException {
+        final File qstat=temp.newFile("qstat");
+        Files.write("#!/bin/sh\n"+
+                "echo 'job_number:                 169437'\n"+
+                "echo 'owner:                      otheruser'\n"+
+                "echo 'cwd:                        /opt/gp/jobResults/79917'\n"+
+                "echo 'job_name:                   GP_79917'\n"+
+                "echo 'job_number:                 169438'\n"+
+                "echo 'owner:                      gpuser'\n"+
+                "echo 'cwd:                        /other/gp/jobResults/79917'\n"+
+                "echo 'job_name:                   GP_79917'\n"+
+                "echo 'job_number:                 169439'\n"+
+                "echo 'owner:                      gpuser'\n"+
+                "echo 'cwd:                        /opt/gp/jobResults/79917'\n"+
+                "echo 'job_name:                   GP_79917'\n", 
+                qstat, Charsets.UTF_8);
+        assertTrue(qstat.setExecutable(true));
+        final JobLookup lookup=new JobLookup(qstat.getPath(), JobLookup.DEFAULT_TIMEOUT, "gpuser");
+        assertEquals(Arrays.asList("169439"), lookup.getJobIds("GP_79917", new File("/opt/gp/jobResults/79917")));
+        assertEquals("any directory", Arrays.asList("169438", "169439"), lookup.getJobIds("GP_79917"));
+    }
+
+    /**
+     * Look up several names with one command, qstat exits with status 1 when one of them is not found.
+     */
+    @Test
+    public void getJobIds_batch() throws IOException {
+        final File qstat=temp.newFile("qstat");
+        Files.write("#!/bin/sh\n"+
+                "echo 'job_number:                 169437'\n"+
+                "echo 'job_name:                   GP_79917'\n"+
+                "echo 'Following jobs do not exist or permissions are not sufficient: '\n"+
+                "echo 'GP_79918'\n"+
+                "exit 1\n", 
+                qstat, Charsets.UTF_8);
+        assertTrue(qstat.setExecutable(true));
+        final Map<String,File> jobs=new LinkedHashMap<String,File>();
+        jobs.put("GP_79917", null);
+        jobs.put("GP_79918", null);
+        final Map<String,List<String>> jobIds=new JobLookup(qstat.getPath(), JobLookup.DEFAULT_TIMEOUT).getJobIds(jobs);
+        assertEquals("found", Arrays.asList("169437"), jobIds.get("GP_79917"));
+        assertFalse("not found", jobIds.containsKey("GP_79918"));
+    }
+
+    @Test(expected=IOException.class)
+    public void getJobIds_error() throws IOException {
+        final File qstat=temp.newFile("qstat");
+        Files.write("#!/bin/sh\necho 'error: unable to contact qmaster'\nexit 1\n", qstat, Charsets.UTF_8);
+        assertTrue(qstat.setExecutable(true));
+        new JobLookup(qstat.getPath(), JobLookup.DEFAULT_TIMEOUT).getJobIds("GP_79917");
+    }
+
+}
@@ -0,0 +1,116 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.genepattern.drm.DrmJobState;
+import org.genepattern.drm.DrmJobStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class TestLocalJobLane {
+    private LocalJobLane lane;
+    private File jobDir;
+
+    @Rule
+    public TemporaryFolder temp= new TemporaryFolder();
+
+    @Before
+    public void setUp() throws IOException {
+        lane=new LocalJobLane(1, 1);
+        jobDir=temp.newFolder("10357");
+    }
+
+    @After
+    public void tearDown() {
+        lane.shutdown();
+    }
+
+    protected DrmJobStatus waitForCompletion(final String extJobId) throws InterruptedException {
+        for(int i=0; i<100; ++i) {
+            final DrmJobStatus status=lane.getStatus(extJobId);
+            if (status.getEndTime() != null) {
+                return status;
+            }
+            Thread.sleep(100);
+        }
+        throw new AssertionError("timed out waiting for local job, extJobId="+extJobId);
+    }
+
+    @Test
+    public void runLocalJob() throws Exception {
+        final File stdout=new File(jobDir, "stdout.txt");
+        final String extJobId=lane.submit(Arrays.asList("echo", "Hello, World!"), jobDir, stdout, new File(jobDir, "stderr.txt"), null);
+        assertTrue("extJobId="+extJobId, LocalJobLane.isLocalJobId(extJobId));
+        final DrmJobStatus status=waitForCompletion(extJobId);
+        assertEquals("jobState", DrmJobState.DONE, status.getJobState());
+        assertEquals("exitCode", new Integer(0), status.getExitCode());
+        assertEquals("stdout", "Hello, World!", Files.readFirstLine(stdout, Charsets.UTF_8));
+        assertTrue("wallclock", status.getResourceUsage().containsKey("wallclock"));
+    }
+
+    @Test
+    public void failedLocalJob() throws Exception {
+        final String extJobId=lane.submit(Arrays.asList("false"), jobDir, new File(jobDir, "stdout.txt"), new File(jobDir, "stderr.txt"), null);
+        final DrmJobStatus status=waitForCompletion(extJobId);
+        assertEquals("jobState", DrmJobState.FAILED, status.getJobState());
+        assertEquals("exitCode", new Integer(1), status.getExitCode());
+    }
+
+    /**
+     * Cancel must kill the processes started by the module command, not only the bash wrapper.
+     */
+    @Test
+    public void cancelLocalJob_killsChildProcesses() throws Exception {
+        final File pidFile=new File(jobDir, "child.pid");
+        final String extJobId=lane.submit(Arrays.asList("/bin/bash", "-c", "sleep 60 & echo $! > child.pid; wait"), 
+                jobDir, new File(jobDir, "stdout.txt"), new File(jobDir, "stderr.txt"), null);
+        for(int i=0; i<100 && pidFile.length()==0; ++i) {
+            Thread.sleep(100);
+        }
+        final String childPid=Files.readFirstLine(pidFile, Charsets.UTF_8).trim();
+        assertTrue("child is running", isAlive(childPid));
+
+        assertTrue("cancel", lane.cancel(extJobId));
+        final DrmJobStatus status=waitForCompletion(extJobId);
+        assertEquals("jobState", DrmJobState.CANCELLED, status.getJobState());
+        for(int i=0; i<50 && isAlive(childPid); ++i) {
+            Thread.sleep(100);
+        }
+        assertFalse("child is killed, pid="+childPid, isAlive(childPid));
+    }
+
+    /** a killed process which has not been reaped yet, state 'Z' in /proc/{pid}/stat, is not alive */
+    protected static boolean isAlive(final String pid) throws IOException {
+        final File stat=new File("/proc/"+pid+"/stat");
+        if (!stat.exists()) {
+            return false;
+        }
+        final String line=Files.readFirstLine(stat, Charsets.UTF_8);
+        return line != null && !line.substring(line.lastIndexOf(')')+1).trim().startsWith("Z");
+    }
+
+    @Test
+    public void unknownLocalJob() {
+        assertEquals("jobState", DrmJobState.FAILED, lane.getStatus("local-1").getJobState());
+    }
+
+    @Test
+    public void parseTimes() {
+        assertEquals("cpuTime", 61334L, LocalJobLane.parseTimes(Arrays.asList("0m0.001s 0m0.002s", "1m1.234s 0m0.100s")).asMillis());
+        assertNull("no children", LocalJobLane.parseTimes(Arrays.asList("0m0.001s 0m0.002s")));
+    }
+
+}
@@ -0,0 +1,46 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class TestLocalityResolver {
+    private final LocalityResolver resolver=new LocalityResolver(Arrays.asList(
+            "/xchip/lustre_a lustre_group=a",
+            "/xchip/lustre_a/nvme nvme_cache=true",
+            "/xchip/lustre_b/ lustre_group=b",
+            "invalid_rule"));
+
+    @Test
+    public void longestPrefix() {
+        assertEquals("lustre_group=a", resolver.resolve(Arrays.asList("/xchip/lustre_a/all_aml_test.gct")));
+        assertEquals("nvme_cache=true", resolver.resolve(Arrays.asList("/xchip/lustre_a/nvme/all_aml_test.gct")));
+        assertEquals("trailing slash", "lustre_group=b", resolver.resolve(Arrays.asList("/xchip/lustre_b/all_aml_test.gct")));
+    }
+
+    @Test
+    public void mostInputFiles() {
+        assertEquals("lustre_group=b", resolver.resolve(Arrays.asList(
+                "/xchip/lustre_a/all_aml_test.gct",
+                "/xchip/lustre_b/all_aml_test.cls",
+                "/xchip/lustre_b/all_aml_train.gct")));
+    }
+
+    @Test
+    public void noMatch() {
+        assertNull("not a path prefix", resolver.resolve(Arrays.asList("/xchip/lustre_abc/all_aml_test.gct")));
+        assertNull("no input files", resolver.resolve(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void invalidRule() {
+        assertNull(LocalityResolver.parseRule("lustre_group=a"));
+        assertNull(LocalityResolver.parseRule("/xchip/lustre_a"));
+        assertNull(LocalityResolver.parseRule(""));
+    }
+
+}
@@ -0,0 +1,103 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+
+/**
+ * test cases for checking native specifications against the 'qconf -sql', 'qconf -spl' and 'qconf -sc' output.
+ */
+public class TestNativeSpecValidator {
+    private static final List<String> qconfSc=Arrays.asList(
+        "#name               shortcut   type        relop requestable consumable default  urgency",
+        "#----------------------------------------------------------------------------------------",
+        "arch                a          RESTRING    ==    YES         NO         NONE     0",
+        "h_rt                h_rt       TIME        <=    YES         NO         0:0:0    0",
+        "m_mem_free          mfree      MEMORY      <=    YES         YES        0        0",
+        "load_avg            la         DOUBLE      >=    NO          NO         0        0",
+        "# >>>>>>>>>>>>>>>> do not edit",
+        ""
+    );
+
+    @Rule
+    public TemporaryFolder temp= new TemporaryFolder();
+
+    private NativeSpecValidator validator;
+
+    @Before
+    public void setUp() throws IOException {
+        final File dir=temp.newFolder("qconf");
+        Files.write("short\nlong\n", new File(dir, "sql.txt"), Charsets.UTF_8);
+        Files.write("smp\nopenmpi\n", new File(dir, "spl.txt"), Charsets.UTF_8);
+        Files.write(Joiner.on("\n").join(qconfSc), new File(dir, "sc.txt"), Charsets.UTF_8);
+        validator=NativeSpecValidator.fromDir(dir);
+    }
+
+    @Test
+    public void parseComplexes() {
+        assertEquals(Arrays.asList("arch", "a", "h_rt", "h_rt", "m_mem_free", "mfree"), NativeSpecValidator.parseComplexes(qconfSc));
+    }
+
+    @Test
+    public void validSpec() {
+        assertNull(validator.validate(Arrays.asList(
+                "-o", "stdout.txt", "-e", "stderr.txt", 
+                "-l", "m_mem_free=8g", "-l", "h_rt=01:00:00", 
+                "-q", "short,long@node1", "-pe", "smp", "4", 
+                "-soft", "-l", "a=lx-amd64", "-hard")));
+    }
+
+    @Test
+    public void wildcards() {
+        assertNull(validator.validate(Arrays.asList("-q", "*@node1", "-pe", "mpi*", "8")));
+    }
+
+    @Test
+    public void invalidQueue() {
+        final String message=validator.validate(Arrays.asList("-q", "short,shrot"));
+        assertTrue(message, message.startsWith("unknown queue 'shrot'"));
+    }
+
+    @Test
+    public void invalidPe() {
+        final String message=validator.validate(Arrays.asList("-pe", "threaded", "4"));
+        assertTrue(message, message.startsWith("unknown parallel environment 'threaded'"));
+    }
+
+    @Test
+    public void invalidComplex() {
+        final String message=validator.validate(Arrays.asList("-l", "m_mem_free=8g,os=centos5"));
+        assertTrue(message, message.startsWith("unknown or non-requestable complex attribute 'os'"));
+    }
+
+    @Test
+    public void notRequestable() {
+        final String message=validator.validate(Arrays.asList("-l", "load_avg=1"));
+        assertTrue(message, message.startsWith("unknown or non-requestable complex attribute 'load_avg'"));
+    }
+
+    @Test
+    public void missingFile() throws IOException {
+        // no spl.txt, parallel environments are not checked
+        final File dir=temp.newFolder("partial");
+        Files.write("short\n", new File(dir, "sql.txt"), Charsets.UTF_8);
+        final NativeSpecValidator partial=NativeSpecValidator.fromDir(dir);
+        assertNull(partial.validate(Arrays.asList("-pe", "threaded", "4", "-l", "os=centos5")));
+        assertTrue(partial.validate(Arrays.asList("-q", "long")) != null);
+    }
+
+}
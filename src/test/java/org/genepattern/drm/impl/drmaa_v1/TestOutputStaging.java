@@ -0,0 +1,56 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class TestOutputStaging {
+    @Rule
+    public TemporaryFolder temp= new TemporaryFolder();
+
+    protected int run(final File jobDir, final List<String> commandLine) throws IOException, InterruptedException {
+        final ProcessBuilder pb=new ProcessBuilder(commandLine).directory(jobDir);
+        pb.environment().put("TMPDIR", temp.newFolder("scratch").getAbsolutePath());
+        return pb.start().waitFor();
+    }
+
+    @Test
+    public void quote() {
+        assertEquals("'stdout.txt'", OutputStaging.quote("stdout.txt"));
+        assertEquals("'it'\\''s'", OutputStaging.quote("it's"));
+    }
+
+    @Test
+    public void stageStdoutAndOutputFiles() throws Exception {
+        final File jobDir=temp.newFolder("10357");
+        final List<String> cmd=OutputStaging.wrapCommandLine(
+                Arrays.asList("/bin/bash", "-c", "echo hello; echo oops >&2; echo result > out.txt; exit 3"), 
+                "stdout.txt", "stderr.txt", Arrays.asList("out.txt"));
+        assertEquals("exitCode", 3, run(jobDir, cmd));
+        assertEquals("stdout", "hello\n", Files.toString(new File(jobDir, "stdout.txt"), Charsets.UTF_8));
+        assertEquals("stderr", "oops\n", Files.toString(new File(jobDir, "stderr.txt"), Charsets.UTF_8));
+        final File outFile=new File(jobDir, "out.txt");
+        assertFalse("not a symlink", java.nio.file.Files.isSymbolicLink(outFile.toPath()));
+        assertEquals("output file", "result\n", Files.toString(outFile, Charsets.UTF_8));
+        assertTrue("done marker", OutputStaging.isComplete(jobDir));
+        assertEquals("scratch dir removed", 0, new File(temp.getRoot(), "scratch").list().length);
+    }
+
+    @Test
+    public void notComplete() throws Exception {
+        assertFalse(OutputStaging.isComplete(temp.newFolder("10358")));
+    }
+
+}
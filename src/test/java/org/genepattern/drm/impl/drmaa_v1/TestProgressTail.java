@@ -0,0 +1,77 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+
+public class TestProgressTail {
+    @Rule
+    public TemporaryFolder temp= new TemporaryFolder();
+
+    private static final Pattern PERCENT=Pattern.compile("(\\d+% complete)");
+
+    @Test
+    public void noFile() throws IOException {
+        final ProgressTail tail=new ProgressTail(new File(temp.getRoot(), "stdout.txt"), PERCENT, 1024);
+        assertNull(tail.poll());
+    }
+
+    @Test
+    public void incrementalRead() throws IOException {
+        final File stdout=temp.newFile("stdout.txt");
+        final ProgressTail tail=new ProgressTail(stdout, PERCENT, 1024);
+        Files.append("starting\n10% complete\n", stdout, Charsets.UTF_8);
+        assertEquals("10% complete", tail.poll());
+        assertEquals("offset", stdout.length(), tail.getOffset());
+
+        // partial line, not matched until it is complete
+        Files.append("processing ... 20% compl", stdout, Charsets.UTF_8);
+        assertEquals("10% complete", tail.poll());
+        Files.append("ete\nother output\n", stdout, Charsets.UTF_8);
+        assertEquals("20% complete", tail.poll());
+    }
+
+    @Test
+    public void carriageReturn() throws IOException {
+        final File stdout=temp.newFile("stdout.txt");
+        final ProgressTail tail=new ProgressTail(stdout, Pattern.compile("\\d+%"), 1024);
+        Files.append("30%\r40%\r", stdout, Charsets.UTF_8);
+        assertEquals("40%", tail.poll());
+    }
+
+    @Test
+    public void skipToEnd() throws IOException {
+        final File stdout=temp.newFile("stdout.txt");
+        final ProgressTail tail=new ProgressTail(stdout, PERCENT, ProgressTail.MAX_LINE_LENGTH);
+        final StringBuilder sb=new StringBuilder();
+        for(int i=0; i<1000; ++i) {
+            sb.append(Strings.repeat("x", 80)).append("\n");
+        }
+        sb.append("90% complete\n");
+        Files.append(sb, stdout, Charsets.UTF_8);
+        assertEquals("90% complete", tail.poll());
+        assertEquals("offset", stdout.length(), tail.getOffset());
+    }
+
+    @Test
+    public void truncated() throws IOException {
+        final File stdout=temp.newFile("stdout.txt");
+        final ProgressTail tail=new ProgressTail(stdout, PERCENT, 1024);
+        Files.write("50% complete\n", stdout, Charsets.UTF_8);
+        assertEquals("50% complete", tail.poll());
+        Files.write("5% complete\n", stdout, Charsets.UTF_8);
+        assertEquals("5% complete", tail.poll());
+    }
+
+}
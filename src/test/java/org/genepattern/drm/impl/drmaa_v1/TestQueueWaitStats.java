@@ -0,0 +1,48 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class TestQueueWaitStats {
+    private static final long HOUR=3600L*1000L;
+
+    @Test
+    public void bucket() {
+        assertEquals("under 1 sec", 0, QueueWaitStats.bucket(999L));
+        assertEquals("1 sec", 1, QueueWaitStats.bucket(1000L));
+        assertEquals("1 min", 6, QueueWaitStats.bucket(60L*1000L));
+        assertEquals("max", QueueWaitStats.NUM_BUCKETS-1, QueueWaitStats.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentile() {
+        final QueueWaitStats stats=new QueueWaitStats(HOUR);
+        final long now=System.currentTimeMillis();
+        for(int i=0; i<9; ++i) {
+            stats.add("short", 30L*1000L, now);
+        }
+        stats.add("short", HOUR, now);
+        assertEquals("p50", new Long(32L*1000L), stats.getWaitMillis("short", 50.0, now));
+        assertEquals("p100", new Long(4096L*1000L), stats.getWaitMillis("short", 100.0, now));
+        assertNull("no samples", stats.getWaitMillis("long", 50.0, now));
+    }
+
+    @Test
+    public void decay() {
+        final QueueWaitStats stats=new QueueWaitStats(HOUR);
+        final long now=System.currentTimeMillis();
+        for(int i=0; i<8; ++i) {
+            stats.add("short", HOUR, now);
+        }
+        assertEquals("weight", 8.0, stats.getWeight("short", now), 0.0001);
+        assertEquals("weight after half life", 4.0, stats.getWeight("short", now+HOUR), 0.0001);
+        // the queue cleared up, recent samples dominate
+        for(int i=0; i<8; ++i) {
+            stats.add("short", 10L*1000L, now+3L*HOUR);
+        }
+        assertEquals("p50", new Long(16L*1000L), stats.getWaitMillis("short", 50.0, now+3L*HOUR));
+    }
+
+}
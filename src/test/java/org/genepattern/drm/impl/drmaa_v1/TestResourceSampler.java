@@ -0,0 +1,82 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+
+public class TestResourceSampler {
+    @Rule
+    public TemporaryFolder temp= new TemporaryFolder();
+
+    @Test
+    public void parseSample() {
+        final ResourceSampler.Sample sample=ResourceSampler.Sample.parse("1000 2048 16 3 24 1500 4096 8192");
+        assertEquals("rssKb", 2048L, sample.rssKb);
+        assertEquals("swapKb", 16L, sample.swapKb);
+        assertEquals("numProcesses", 3, sample.numProcesses);
+        assertEquals("numThreads", 24, sample.numThreads);
+        assertEquals("cpuMillis", 1500L, sample.cpuMillis);
+        assertEquals("writeBytes", 8192L, sample.writeBytes);
+    }
+
+    @Test
+    public void parseSample_truncated() {
+        assertNull(ResourceSampler.Sample.parse("1000 2048 16 3"));
+        assertNull(ResourceSampler.Sample.parse("1000 2048 16 3 24 1500 4096 81x"));
+    }
+
+    @Test
+    public void readSummary() throws IOException {
+        final File file=temp.newFile("samples.txt");
+        Files.write(Joiner.on("\n").join(
+                ResourceSampler.HEADER+" "+ResourceSampler.VERSION+" 10000",
+                // 2 busy cores
+                "0 1000 0 1 2 0 0 0",
+                "10000 4000 0 1 4 20000 0 0",
+                "20000 2000 0 1 3 40000 0 0",
+                // truncated line
+                "30000 20")+"\n", file, Charsets.UTF_8);
+
+        final ResourceSampler.Summary summary=ResourceSampler.read(file);
+        assertEquals("numSamples", 3, summary.getNumSamples());
+        assertEquals("maxRssBytes", 4000L*1024L, summary.getMaxRssBytes());
+        assertEquals("maxThreads", 4, summary.getMaxThreads());
+        assertEquals("avgCpuUtilization", 2.0, summary.getAvgCpuUtilization(), 0.001);
+    }
+
+    @Test(expected=IOException.class)
+    public void readSamples_notASampleFile() throws IOException {
+        final File file=temp.newFile("samples.txt");
+        Files.write("1000 2048 16 3 24 1500 4096 8192\n", file, Charsets.UTF_8);
+        ResourceSampler.readSamples(file);
+    }
+
+    @Test
+    public void runSampler() throws Exception {
+        final File samplesFile=new File(temp.getRoot(), ResourceSampler.SAMPLES_FILE);
+        final List<String> cmd=ResourceSampler.wrapCommandLine(
+                Arrays.asList("/bin/bash", "-c", "x=0; while [ $x -lt 100000 ]; do x=$((x+1)); done; exit 3"),
+                1, samplesFile.getPath());
+        final Process process=new ProcessBuilder(cmd).start();
+        assertEquals("exit code of the command", 3, process.waitFor());
+
+        final List<ResourceSampler.Sample> samples=ResourceSampler.readSamples(samplesFile);
+        assertTrue("numSamples", samples.size() >= 1);
+        assertEquals("numProcesses", 1, samples.get(0).numProcesses);
+        assertTrue("rssKb", samples.get(0).rssKb > 0L);
+    }
+
+}
@@ -0,0 +1,63 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.ggf.drmaa.DeniedByDrmException;
+import org.ggf.drmaa.DrmCommunicationException;
+import org.ggf.drmaa.InternalException;
+import org.ggf.drmaa.TryLaterException;
+import org.junit.Test;
+
+public class TestRetryPolicy {
+    private final RetryPolicy policy=new RetryPolicy(1000L, 30000L, 300000L, new Random(0L));
+
+    private static void assertDelay(final String message, final long maxDelay, final long delay) {
+        assertTrue(message+": expecting delay in ["+(maxDelay/2)+", "+maxDelay+"], was "+delay, delay >= maxDelay/2 && delay <= maxDelay);
+    }
+
+    @Test
+    public void exponentialBackoff() {
+        for(int i=0; i<100; ++i) {
+            assertDelay("retry 1", 1000L, policy.getDelayMillis(1));
+            assertDelay("retry 2", 2000L, policy.getDelayMillis(2));
+            assertDelay("retry 5", 16000L, policy.getDelayMillis(5));
+            assertDelay("retry 6, capped", 30000L, policy.getDelayMillis(6));
+            assertDelay("retry 100, capped", 30000L, policy.getDelayMillis(100));
+        }
+    }
+
+    @Test
+    public void jitter() {
+        long min=Long.MAX_VALUE;
+        long max=Long.MIN_VALUE;
+        for(int i=0; i<1000; ++i) {
+            final long delay=policy.getDelayMillis(6);
+            min=Math.min(min, delay);
+            max=Math.max(max, delay);
+        }
+        assertTrue("expecting spread out delays, min="+min+", max="+max, max - min > 10000L);
+    }
+
+    @Test
+    public void deadline() {
+        final long firstFailure=1440658419871L;
+        assertDelay("before deadline", 30000L, policy.getDelayMillis(firstFailure, firstFailure + 200000L, 10));
+        assertEquals("after deadline", -1L, policy.getDelayMillis(firstFailure, firstFailure + 300000L, 10));
+    }
+
+    @Test
+    public void isTransient() {
+        assertTrue("DrmCommunicationException", RetryPolicy.isTransient(new DrmCommunicationException("qmaster is not reachable")));
+        assertTrue("TryLaterException", RetryPolicy.isTransient(new TryLaterException("try later")));
+        assertTrue("timeout, not started", RetryPolicy.isTransient(new DrmaaTimeoutException("timed out", false, null)));
+        assertFalse("timeout, in doubt", RetryPolicy.isTransient(new DrmaaTimeoutException("timed out", true, null)));
+        assertFalse("DeniedByDrmException", RetryPolicy.isTransient(new DeniedByDrmException("denied")));
+        assertFalse("InternalException", RetryPolicy.isTransient(new InternalException("error")));
+        assertFalse("null", RetryPolicy.isTransient(null));
+    }
+
+}
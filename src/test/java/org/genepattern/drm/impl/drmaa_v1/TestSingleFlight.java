@@ -0,0 +1,87 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestSingleFlight {
+
+    @Test
+    public void concurrentCallsShareResult() throws Exception {
+        final SingleFlight<String,String> singleFlight=new SingleFlight<String,String>();
+        final AtomicInteger numCalls=new AtomicInteger(0);
+        final CountDownLatch started=new CountDownLatch(1);
+        final CountDownLatch release=new CountDownLatch(1);
+        final Callable<String> request=new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                numCalls.incrementAndGet();
+                started.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                return "RUNNING";
+            }
+        };
+        final ExecutorService exec=Executors.newFixedThreadPool(2);
+        try {
+            final Future<String> first=exec.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return singleFlight.get("1001", request);
+                }
+            });
+            assertTrue("first call started", started.await(10, TimeUnit.SECONDS));
+            final Future<String> second=exec.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return singleFlight.get("1001", request);
+                }
+            });
+            // give the second caller a chance to join the in-flight call
+            Thread.sleep(100);
+            release.countDown();
+            assertEquals("first", "RUNNING", first.get(10, TimeUnit.SECONDS));
+            assertEquals("second", "RUNNING", second.get(10, TimeUnit.SECONDS));
+            assertEquals("numCalls", 1, numCalls.get());
+            assertEquals("nothing in flight", 0, singleFlight.size());
+        }
+        finally {
+            exec.shutdownNow();
+        }
+    }
+
+    @Test
+    public void sequentialCallsAreNotCached() throws Exception {
+        final SingleFlight<String,Integer> singleFlight=new SingleFlight<String,Integer>();
+        final AtomicInteger numCalls=new AtomicInteger(0);
+        final Callable<Integer> request=new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return numCalls.incrementAndGet();
+            }
+        };
+        assertEquals("first call", new Integer(1), singleFlight.get("1001", request));
+        assertEquals("second call", new Integer(2), singleFlight.get("1001", request));
+    }
+
+    @Test(expected=ExecutionException.class)
+    public void requestError() throws Exception {
+        final SingleFlight<String,String> singleFlight=new SingleFlight<String,String>();
+        singleFlight.get("1001", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                throw new Exception("job queue error");
+            }
+        });
+    }
+
+}
@@ -0,0 +1,153 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class TestSubmissionIndex {
+    @Rule
+    public TemporaryFolder temp= new TemporaryFolder();
+
+    @Test
+    public void inMemory() throws IOException {
+        final SubmissionIndex index=new SubmissionIndex(null);
+        assertEquals("load without journal", 0, index.load());
+        index.put(79917, "169437");
+        index.putInDoubt(79918);
+        assertEquals("169437", index.get(79917));
+        assertEquals(SubmissionIndex.IN_DOUBT, index.get(79918));
+        index.remove(79917, "169438");
+        assertEquals("remove other extJobId", "169437", index.get(79917));
+        index.remove(79917, "169437");
+        assertNull("removed", index.get(79917));
+        assertEquals("size", 1, index.size());
+    }
+
+    @Test
+    public void reloadFromJournal() throws IOException {
+        final File journal=new File(temp.getRoot(), "submissions.txt");
+        final SubmissionIndex index=new SubmissionIndex(journal);
+        index.put(79917, "pending-1");
+        index.put(79917, "169437");
+        index.put(79918, "169438");
+        index.remove(79918);
+        index.putInDoubt(79919);
+
+        final SubmissionIndex reloaded=new SubmissionIndex(journal);
+        assertEquals("numJobs", 2, reloaded.load());
+        assertEquals("169437", reloaded.get(79917));
+        assertNull(reloaded.get(79918));
+        assertEquals(SubmissionIndex.IN_DOUBT, reloaded.get(79919));
+        assertEquals("compacted on load", 2, Files.readLines(journal, Charsets.UTF_8).size());
+    }
+
+    @Test
+    public void aliases() throws IOException {
+        final File journal=new File(temp.getRoot(), "submissions.txt");
+        final SubmissionIndex index=new SubmissionIndex(journal);
+        index.put(79917, "pending-1");
+        index.putAlias("pending-1", "169437");
+        index.putAlias("169437", "169440");
+        index.putAlias("pending-2", "169438");
+        index.removeAlias("pending-2");
+        assertEquals("169437", index.getAlias("pending-1"));
+        assertNull(index.getAlias("pending-2"));
+
+        final SubmissionIndex reloaded=new SubmissionIndex(journal);
+        assertEquals("numJobs", 1, reloaded.load());
+        assertEquals("numAliases", 2, reloaded.getNumAliases());
+        assertEquals("169437", reloaded.getAlias("pending-1"));
+        assertEquals("169440", reloaded.getAlias("169437"));
+        assertNull(reloaded.getAlias("pending-2"));
+        assertEquals("compacted on load", 3, Files.readLines(journal, Charsets.UTF_8).size());
+    }
+
+    @Test
+    public void attempts() throws IOException {
+        final File journal=new File(temp.getRoot(), "submissions.txt");
+        final SubmissionIndex index=new SubmissionIndex(journal);
+        final JobAttempts attempts=index.getOrCreateAttempts(79917, "169437");
+        attempts.addFailedAttempt("walltime", "extJobId=169437: walltime limit exceeded, h_rt=1:00:00");
+        attempts.setWalltimeLimit(7200L);
+        index.saveFailedAttempt(attempts, "walltime", "extJobId=169437: walltime limit exceeded, h_rt=1:00:00");
+        attempts.addFailedAttempt("memory", "extJobId=169440: memory limit exceeded");
+        attempts.setMemory(17179869184L);
+        index.saveFailedAttempt(attempts, "memory", "extJobId=169440: memory limit exceeded");
+        final JobAttempts other=index.getOrCreateAttempts(79918, "169438");
+        other.addFailedAttempt("memory", "extJobId=169438: memory limit exceeded");
+        index.saveFailedAttempt(other, "memory", "extJobId=169438: memory limit exceeded");
+        assertEquals("removed", other, index.removeAttempts(79918));
+
+        final SubmissionIndex reloaded=new SubmissionIndex(journal);
+        reloaded.load();
+        assertNull(reloaded.getAttempts(79918));
+        final JobAttempts loaded=reloaded.getAttempts(79917);
+        assertEquals("originalExtJobId", "169437", loaded.getOriginalExtJobId());
+        assertEquals("attempt", 3, loaded.getAttempt());
+        assertEquals("history", attempts.getHistory(), loaded.getHistory());
+        assertEquals("walltime retries", 1, loaded.getNumRetries("walltime"));
+        assertEquals("walltimeLimit", new Long(7200L), loaded.getWalltimeLimit());
+        assertEquals("memory", new Long(17179869184L), loaded.getMemory());
+
+        // compacted on load, the same attempts after a second reload
+        final SubmissionIndex compacted=new SubmissionIndex(journal);
+        compacted.load();
+        assertEquals("history, compacted", attempts.getHistory(), compacted.getAttempts(79917).getHistory());
+        assertEquals("walltimeLimit, compacted", new Long(7200L), compacted.getAttempts(79917).getWalltimeLimit());
+        assertEquals("memory, compacted", new Long(17179869184L), compacted.getAttempts(79917).getMemory());
+    }
+
+    @Test
+    public void ignorePartialLine() throws IOException {
+        final File journal=new File(temp.getRoot(), "submissions.txt");
+        Files.write("79917 169437\n79918 1694", journal, Charsets.UTF_8);
+        Files.append("\n79919", journal, Charsets.UTF_8);
+        final SubmissionIndex index=new SubmissionIndex(journal);
+        assertEquals("numJobs", 2, index.load());
+        assertEquals("169437", index.get(79917));
+    }
+
+    @Test
+    public void compactJournal() throws IOException {
+        final File journal=new File(temp.getRoot(), "submissions.txt");
+        final SubmissionIndex index=new SubmissionIndex(journal);
+        for(int i=0; i<5000; ++i) {
+            index.put(i, ""+(100000+i));
+            index.remove(i);
+        }
+        index.put(1, "100001");
+        final List<String> lines=Files.readLines(journal, Charsets.UTF_8);
+        assertTrue("expecting compacted journal, numLines="+lines.size(), lines.size() < 2000);
+        final SubmissionIndex reloaded=new SubmissionIndex(journal);
+        assertEquals("numJobs", 1, reloaded.load());
+        assertEquals("100001", reloaded.get(1));
+    }
+
+    @Test
+    public void appendAfterCompact() throws IOException {
+        final File journal=new File(temp.getRoot(), "submissions.txt");
+        final SubmissionIndex index=new SubmissionIndex(journal);
+        index.put(79917, "169437");
+        index.compact();
+        // written to the new journal, not the file which was replaced
+        index.put(79918, "169438");
+        index.close();
+        index.put(79919, "169439");
+        assertEquals("numLines", 3, Files.readLines(journal, Charsets.UTF_8).size());
+        final SubmissionIndex reloaded=new SubmissionIndex(journal);
+        assertEquals("numJobs", 3, reloaded.load());
+        reloaded.close();
+    }
+
+}
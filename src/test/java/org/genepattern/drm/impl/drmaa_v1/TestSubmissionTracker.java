@@ -0,0 +1,212 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.genepattern.drm.DrmJobRecord;
+import org.genepattern.drm.DrmJobState;
+import org.genepattern.drm.DrmJobStatus;
+import org.genepattern.drm.DrmJobSubmission;
+import org.genepattern.server.config.GpConfig;
+import org.genepattern.server.config.GpContext;
+import org.genepattern.server.executor.CommandExecutorException;
+import org.genepattern.webservice.JobInfo;
+import org.ggf.drmaa.DrmaaException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+public class TestSubmissionTracker {
+    @Rule
+    public TemporaryFolder temp= new TemporaryFolder();
+
+    /** records the calls from the tracker into the runner */
+    private static class FakeQueue implements SubmissionTracker.JobQueue {
+        private int numSubmitted=0;
+        private final Set<String> liveJobs=new HashSet<String>();
+        private final List<String> orphanJobs=new ArrayList<String>();
+        private final Map<String, DrmJobStatus> completedStatuses=new HashMap<String, DrmJobStatus>();
+
+        @Override
+        public GpConfig getGpConfig() {
+            return null;
+        }
+
+        @Override
+        public GpContext getServerContext() {
+            return null;
+        }
+
+        @Override
+        public String submitToQueue(final DrmJobSubmission jobSubmission) {
+            return ""+(1000 + (++numSubmitted));
+        }
+
+        @Override
+        public String submitOnce(final DrmJobSubmission jobSubmission) {
+            return submitToQueue(jobSubmission);
+        }
+
+        @Override
+        public CommandExecutorException submitError(final DrmJobSubmission jobSubmission, final DrmaaException e, final int numAttempts) {
+            return new CommandExecutorException(e.getLocalizedMessage(), e);
+        }
+
+        @Override
+        public void clearSelectedQueue(final DrmJobSubmission jobSubmission) {
+        }
+
+        @Override
+        public void addSubmittedJob(final String extJobId, final DrmJobSubmission jobSubmission) {
+            liveJobs.add(extJobId);
+        }
+
+        @Override
+        public void addFoundJob(final String extJobId) {
+            liveJobs.add(extJobId);
+        }
+
+        @Override
+        public boolean isKnownJob(final String extJobId) {
+            return liveJobs.contains(extJobId);
+        }
+
+        @Override
+        public boolean isLiveJob(final String extJobId) {
+            return liveJobs.contains(extJobId);
+        }
+
+        @Override
+        public void cancelOrphanJob(final String extJobId) {
+            orphanJobs.add(extJobId);
+        }
+
+        @Override
+        public void putCompletedStatus(final DrmJobStatus jobStatus) {
+            completedStatuses.put(jobStatus.getDrmJobId(), jobStatus);
+        }
+
+        @Override
+        public DrmJobStatus fetchStatus(final DrmJobRecord drmJobRecord, final String extJobId) {
+            return new DrmJobStatus.Builder()
+                .extJobId(extJobId)
+                .jobState(DrmJobState.RUNNING)
+            .build();
+        }
+    }
+
+    private final int jobNo=10357;
+    private DrmJobSubmission job;
+    private FakeQueue queue;
+    private SubmissionTracker tracker;
+
+    @Before
+    public void setUp() throws IOException {
+        job=newJob(jobNo);
+        queue=new FakeQueue();
+        tracker=new SubmissionTracker(queue);
+    }
+
+    @After
+    public void tearDown() {
+        tracker.shutdown();
+    }
+
+    protected DrmJobSubmission newJob(final int gpJobNo) throws IOException {
+        final File jobDir=temp.newFolder(""+gpJobNo);
+        final JobInfo jobInfo=new JobInfo();
+        jobInfo.setJobNumber(gpJobNo);
+        return new DrmJobSubmission.Builder(jobDir)
+            .jobContext(new GpContext.Builder().jobNumber(gpJobNo).jobInfo(jobInfo).build())
+        .build();
+    }
+
+    @Test
+    public void startupJobs() throws Exception {
+        tracker.holdStartupJobs();
+        final String pendingId=tracker.addStartupJob(job);
+        assertTrue("held", SubmissionTracker.isPendingJobId(pendingId));
+        assertEquals("waiting for the job queue to start", tracker.getPendingJobStatus(pendingId).getJobStatusMessage());
+
+        final Map<String, DrmJobSubmission> released=tracker.releaseStartupJobs();
+        assertEquals("released", 1, released.size());
+        assertTrue("released", released.containsKey(pendingId));
+        assertTrue("released only once", tracker.releaseStartupJobs().isEmpty());
+        assertNull("not held after release", tracker.addStartupJob(newJob(10358)));
+        assertEquals("waiting to be added to the job queue", tracker.getPendingJobStatus(pendingId).getJobStatusMessage());
+
+        tracker.flushPendingJob(pendingId, job);
+        assertEquals("resolved", "1001", tracker.resolveExtJobId(pendingId));
+        assertEquals("numHeldJobs", 0, tracker.getNumHeldJobs());
+    }
+
+    /**
+     * Only the jobs which were held for the session are released, not e.g. an in doubt submission.
+     */
+    @Test
+    public void releaseStartupJobs_onlyStartupJobs() throws Exception {
+        tracker.holdStartupJobs();
+        final String startupId=tracker.addStartupJob(job);
+        final String inDoubtId=tracker.addInDoubtJob(newJob(10358), SettableFuture.<String>create());
+        final Map<String, DrmJobSubmission> released=tracker.releaseStartupJobs();
+        assertEquals("released", 1, released.size());
+        assertTrue("released", released.containsKey(startupId));
+        assertFalse("still in doubt", released.containsKey(inDoubtId));
+        assertEquals("numHeldJobs", 2, tracker.getNumHeldJobs());
+    }
+
+    @Test
+    public void cancelReleasedJob() throws Exception {
+        tracker.holdStartupJobs();
+        final String pendingId=tracker.addStartupJob(job);
+        tracker.releaseStartupJobs();
+        assertTrue("cancelled", tracker.cancelPendingJob(pendingId));
+        assertEquals("jobState", DrmJobState.CANCELLED, queue.completedStatuses.get(pendingId).getJobState());
+        // the flush was already under way
+        tracker.flushPendingJob(pendingId, job);
+        assertEquals("orphan cancelled", 1, queue.orphanJobs.size());
+        assertEquals("orphan cancelled", "1001", queue.orphanJobs.get(0));
+    }
+
+    @Test
+    public void findExistingJob_held() throws Exception {
+        tracker.holdStartupJobs();
+        final String pendingId=tracker.addStartupJob(job);
+        assertEquals("held", pendingId, tracker.findExistingJob(job));
+    }
+
+    @Test
+    public void findExistingJob_live() throws Exception {
+        tracker.getSubmissionIndex().put(jobNo, "1001");
+        queue.liveJobs.add("1001");
+        assertEquals("live", "1001", tracker.findExistingJob(job));
+        queue.liveJobs.remove("1001");
+        assertNull("not live", tracker.findExistingJob(job));
+        assertNull("removed from the index", tracker.getSubmissionIndex().get(jobNo));
+    }
+
+    @Test
+    public void shutdown() throws Exception {
+        tracker.holdStartupJobs();
+        final String pendingId=tracker.addStartupJob(job);
+        tracker.shutdown();
+        assertEquals("numHeldJobs", 0, tracker.getNumHeldJobs());
+        assertFalse("not held", tracker.cancelPendingJob(pendingId));
+    }
+
+}
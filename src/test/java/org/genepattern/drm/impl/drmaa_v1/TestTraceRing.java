@@ -0,0 +1,48 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestTraceRing {
+
+    @Test
+    public void capacity() {
+        assertEquals("power of 2", 4096, new TraceRing(4096).getCapacity());
+        assertEquals("round up", 1024, new TraceRing(1000).getCapacity());
+    }
+
+    @Test
+    public void recordAndDump() {
+        final TraceRing ring=new TraceRing(16);
+        ring.record(TraceRing.Span.RUN_JOB, 1L, 1000L, 1000L+2500000L);
+        ring.record(TraceRing.Span.STATUS_WAIT, 2L, 2000L, 2000L+1000000L);
+        assertEquals("numRecorded", 2L, ring.getNumRecorded());
+        assertEquals("dump id=1", "RUN_JOB id=1 start=1000 duration=2.500 ms\n", ring.dump(1L));
+        final String all=ring.dump(-1L);
+        assertTrue("all spans, oldest first", all.startsWith("RUN_JOB") && all.contains("STATUS_WAIT id=2"));
+        assertEquals("dumpAll", all, ring.dumpAll());
+    }
+
+    @Test
+    public void wraparound() {
+        final TraceRing ring=new TraceRing(4);
+        for(int i=0; i<10; ++i) {
+            ring.record(TraceRing.Span.NATIVE_SPEC, i, 0L, 1L);
+        }
+        final String[] lines=ring.dump(-1L).split("\n");
+        assertEquals("keep the newest spans", 4, lines.length);
+        assertTrue("oldest", lines[0].contains("id=6 "));
+        assertTrue("newest", lines[3].contains("id=9 "));
+    }
+
+    @Test
+    public void asId() {
+        assertEquals(169437L, TraceRing.asId("169437"));
+        assertEquals(-1L, TraceRing.asId("local-1440658419871"));
+        assertEquals(-1L, TraceRing.asId(""));
+        assertEquals(-1L, TraceRing.asId(null));
+    }
+
+}
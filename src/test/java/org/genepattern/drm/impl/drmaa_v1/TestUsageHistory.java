@@ -0,0 +1,42 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class TestUsageHistory {
+
+    @Test
+    public void percentile() {
+        final UsageHistory history=new UsageHistory();
+        for(int i=1; i<=100; ++i) {
+            history.add("ConvertLineEndings|0", i);
+        }
+        assertEquals("count", 100, history.count("ConvertLineEndings|0"));
+        assertEquals("p50", 50.0, history.percentile("ConvertLineEndings|0", 50), 0.0);
+        assertEquals("p95", 95.0, history.percentile("ConvertLineEndings|0", 95), 0.0);
+        assertEquals("p100", 100.0, history.percentile("ConvertLineEndings|0", 100), 0.0);
+        assertEquals("p0", 1.0, history.percentile("ConvertLineEndings|0", 0), 0.0);
+    }
+
+    @Test
+    public void keepMostRecentSamples() {
+        final UsageHistory history=new UsageHistory(3, 10);
+        history.add("key", 1000);
+        history.add("key", 1);
+        history.add("key", 2);
+        history.add("key", 3);
+        assertEquals("count", 3, history.count("key"));
+        assertEquals("max of recent samples", 3.0, history.percentile("key", 100), 0.0);
+    }
+
+    @Test
+    public void noSamples() {
+        final UsageHistory history=new UsageHistory();
+        assertEquals("count", 0, history.count("key"));
+        assertNull("percentile", history.percentile("key", 95));
+        assertNull("null key", history.percentile(null, 95));
+    }
+
+}
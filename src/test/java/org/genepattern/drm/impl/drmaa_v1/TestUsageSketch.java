@@ -0,0 +1,53 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestUsageSketch {
+
+    @Test
+    public void quantiles() {
+        final UsageSketch sketch=new UsageSketch();
+        for(int i=1; i<=1000; ++i) {
+            sketch.add(i);
+        }
+        assertEquals("count", 1000L, sketch.getCount());
+        assertEquals("p50", 500.0, sketch.getQuantile(0.5), 500.0*UsageSketch.RELATIVE_ACCURACY);
+        assertEquals("p90", 900.0, sketch.getQuantile(0.9), 900.0*UsageSketch.RELATIVE_ACCURACY);
+        assertEquals("p99", 990.0, sketch.getQuantile(0.99), 990.0*UsageSketch.RELATIVE_ACCURACY);
+        assertEquals("max", 1000.0, sketch.getQuantile(1.0), 0.0001);
+    }
+
+    @Test
+    public void emptySketch() {
+        assertTrue("NaN", Double.isNaN(new UsageSketch().getQuantile(0.5)));
+    }
+
+    @Test
+    public void zeroValues() {
+        final UsageSketch sketch=new UsageSketch();
+        sketch.add(0.0);
+        sketch.add(0.0);
+        sketch.add(30.0);
+        assertEquals("p50", 0.0, sketch.getQuantile(0.5), 0.0);
+        assertEquals("p99", 30.0, sketch.getQuantile(0.99), 30.0*UsageSketch.RELATIVE_ACCURACY);
+    }
+
+    @Test
+    public void merge() {
+        final UsageSketch a=new UsageSketch();
+        final UsageSketch b=new UsageSketch();
+        for(int i=0; i<100; ++i) {
+            a.add(10.0);
+            b.add(1000.0);
+        }
+        a.merge(b);
+        assertEquals("count", 200L, a.getCount());
+        assertEquals("p25", 10.0, a.getQuantile(0.25), 10.0*UsageSketch.RELATIVE_ACCURACY);
+        assertEquals("p75", 1000.0, a.getQuantile(0.75), 1000.0*UsageSketch.RELATIVE_ACCURACY);
+        assertEquals("mean", 505.0, a.getMean(), 0.0001);
+    }
+
+}
@@ -0,0 +1,52 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestUsageSketches {
+    @Rule
+    public TemporaryFolder temp= new TemporaryFolder();
+
+    @Test
+    public void snapshot() throws Exception {
+        final File snapshotFile=new File(temp.getRoot(), "drmaa_v1_usage_sketches.bin");
+        final UsageSketches sketches=new UsageSketches(100, snapshotFile);
+        for(int i=1; i<=100; ++i) {
+            sketches.add("ConvertLineEndings", UsageSketches.WALLCLOCK, (double) i);
+            sketches.add("PreprocessDataset", UsageSketches.MAXVMEM, 2048.0);
+        }
+        sketches.snapshot();
+        assertTrue("snapshot file", snapshotFile.isFile());
+
+        final UsageSketches restored=new UsageSketches(100, snapshotFile);
+        assertEquals("numModules", 2, restored.read(snapshotFile));
+        assertArrayEquals(new String[] {"ConvertLineEndings", "PreprocessDataset"}, restored.getModules());
+        assertEquals("count", 100L, restored.getCount("ConvertLineEndings", UsageSketches.WALLCLOCK));
+        assertEquals("p90", 90.0, restored.getQuantile("ConvertLineEndings", UsageSketches.WALLCLOCK, 0.9), 90.0*UsageSketch.RELATIVE_ACCURACY);
+    }
+
+    @Test
+    public void allModules() {
+        final UsageSketches sketches=new UsageSketches(100, null);
+        sketches.add("ConvertLineEndings", UsageSketches.CPU, 10.0);
+        sketches.add("PreprocessDataset", UsageSketches.CPU, 10.0);
+        assertEquals("count", 2L, sketches.getCount(UsageSketches.ALL_MODULES, UsageSketches.CPU));
+        assertTrue("summary", sketches.getSummary("ConvertLineEndings").startsWith("cpu: p50="));
+    }
+
+    @Test
+    public void maxModules() {
+        final UsageSketches sketches=new UsageSketches(1, null);
+        sketches.add("ConvertLineEndings", UsageSketches.CPU, 10.0);
+        sketches.add("PreprocessDataset", UsageSketches.CPU, 10.0);
+        assertEquals("numModules", 1, sketches.getModules().length);
+    }
+
+}
@@ -0,0 +1,36 @@
+package org.genepattern.drm.impl.drmaa_v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class TestUtil {
+
+    @Test
+    public void inputPath_bare() {
+        assertEquals("/xchip/all_aml_test.gct", Util.getInputPath("/xchip/all_aml_test.gct"));
+    }
+
+    @Test
+    public void inputPath_keyValue() {
+        assertEquals("/xchip/all_aml_test.gct", Util.getInputPath("--input.file=/xchip/all_aml_test.gct"));
+        assertEquals("/xchip/all_aml_test.gct", Util.getInputPath("input.file=/xchip/all_aml_test.gct"));
+    }
+
+    @Test
+    public void inputPath_flag() {
+        assertEquals("-i/path", "/xchip/all_aml_test.gct", Util.getInputPath("-i/xchip/all_aml_test.gct"));
+        assertEquals("'-i /path' as one arg", "/xchip/all_aml_test.gct", Util.getInputPath("-i /xchip/all_aml_test.gct"));
+    }
+
+    @Test
+    public void inputPath_none() {
+        assertNull(Util.getInputPath(null));
+        assertNull(Util.getInputPath("-Xmx512m"));
+        assertNull(Util.getInputPath("all_aml_test.gct"));
+        assertNull("relative path", Util.getInputPath("-i./all_aml_test.gct"));
+        assertNull("option with a slash", Util.getInputPath("--x/y"));
+    }
+
+}